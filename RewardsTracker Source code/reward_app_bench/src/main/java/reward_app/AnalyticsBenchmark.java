@@ -0,0 +1,126 @@
+/**
+ * AnalyticsBenchmark - Report queries on the analytics copy against the
+ * same queries run on the live SQLite table.
+ * The copy is filled straight from generated ledger entries: every
+ * customer earns a random balance on one of the last 365 days, so the
+ * top customers heap and the daily columns see realistic data. The
+ * SQLite queries scan a seeded rewards table of the same size, which is
+ * what a report would cost the tills without the copy.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class AnalyticsBenchmark {
+    private static final int BATCH = 1 << 16;
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    @State(Scope.Benchmark)
+    public static class Copy {
+        @Param({"1000000", "10000000"})
+        public int customers;
+
+        BenchmarkDatabase empty;
+        RewardsAnalytics analytics;
+        LocalDate today;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException, SQLException {
+            // Never refreshed from the store; filled directly below
+            empty = BenchmarkDatabase.create(0, 1);
+            analytics = new RewardsAnalytics(new ShardedDatabase(empty.database()), 0);
+            SplittableRandom random = new SplittableRandom(42);
+            long now = System.currentTimeMillis();
+            long[] keys = new long[BATCH];
+            int[] deltas = new int[BATCH];
+            long[] times = new long[BATCH];
+            for (int from = 0; from < customers; from += BATCH) {
+                int count = Math.min(BATCH, customers - from);
+                for (int i = 0; i < count; i++) {
+                    keys[i] = BenchmarkDatabase.FIRST_KEY + from + i;
+                    deltas[i] = 1 + random.nextInt(10_000);
+                    times[i] = now - random.nextLong(365 * DAY_MILLIS);
+                }
+                analytics.apply(keys, deltas, times, count);
+            }
+            today = LocalDate.now();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            empty.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Live {
+        @Param({"1000000", "10000000"})
+        public int customers;
+
+        BenchmarkDatabase db;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException, SQLException {
+            db = BenchmarkDatabase.create(customers, 1);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            db.close();
+        }
+    }
+
+    @Benchmark
+    public long pointsLiability(Copy copy) {
+        return copy.analytics.pointsLiability();
+    }
+
+    @Benchmark
+    public List<CustomerPoints> topCustomers(Copy copy) {
+        return copy.analytics.topCustomers(100);
+    }
+
+    @Benchmark
+    public List<DailyPoints> pointsPerDay(Copy copy) {
+        return copy.analytics.pointsPerDay(copy.today.minusDays(364), copy.today);
+    }
+
+    @Benchmark
+    public long sqlitePointsLiability(Live live) throws SQLException {
+        try (PooledConnection conn = live.db.database().acquire()) {
+            PreparedStatement sum = conn.prepare("SELECT SUM(points) FROM rewards WHERE points > 0");
+            try (ResultSet rs = sum.executeQuery()) {
+                rs.next();
+                return rs.getLong(1);
+            }
+        }
+    }
+
+    @Benchmark
+    public int sqliteTopCustomers(Live live) throws SQLException {
+        try (PooledConnection conn = live.db.database().acquire()) {
+            PreparedStatement top = conn.prepare("SELECT phone, points FROM rewards ORDER BY points DESC LIMIT 100");
+            int rows = 0;
+            try (ResultSet rs = top.executeQuery()) {
+                while (rs.next()) {
+                    rows++;
+                }
+            }
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * BackupBenchmark - Online backups of a multi-GB database, and what they
+ * cost the tills.
+ * backup times one whole backup, plain or gzipped, with no rate limit;
+ * throughput is the database size printed at setup divided by the time.
+ * addPoints samples accrual latency while backups run back to back in the
+ * background: none, at the default rate limit, or unlimited.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class BackupBenchmark {
+    private static final int CUSTOMERS = 1_000_000;
+    // About 2.3 GB of ledger and index
+    private static final int ENTRIES_PER_CUSTOMER = 40;
+
+    @State(Scope.Benchmark)
+    public static class Copy {
+        @Param({"false", "true"})
+        public boolean compress;
+
+        BenchmarkDatabase fixture;
+        Path db;
+        Path folder;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException, SQLException {
+            fixture = BenchmarkDatabase.create(CUSTOMERS, 1, ENTRIES_PER_CUSTOMER);
+            db = fixture.directory().resolve("rewards.db");
+            folder = fixture.directory().resolve("backups");
+            System.out.println("Database is " + (Files.size(db) >> 20) + " MB");
+        }
+
+        @TearDown(Level.Iteration)
+        public void deleteBackups() throws IOException {
+            delete(folder);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            fixture.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Tills {
+        @Param({"off", "limited", "unlimited"})
+        public String backups;
+
+        BenchmarkDatabase fixture;
+        RewardsManager manager;
+        Thread backupLoop;
+        volatile boolean stopped;
+        SplittableRandom random;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException, SQLException {
+            fixture = BenchmarkDatabase.create(CUSTOMERS, 2, ENTRIES_PER_CUSTOMER);
+            manager = new RewardsManager(fixture.database());
+            random = new SplittableRandom(42);
+            if (backups.equals("off")) {
+                return;
+            }
+            long rate = backups.equals("limited") ? RewardsBackup.DEFAULT_BYTES_PER_SECOND : RewardsBackup.UNLIMITED;
+            Path db = fixture.directory().resolve("rewards.db");
+            Path folder = fixture.directory().resolve("backups");
+            backupLoop = new Thread(() -> {
+                try {
+                    while (!stopped) {
+                        Files.delete(RewardsBackup.backup(db, folder, true, rate));
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped at teardown
+                } catch (IOException | SQLException e) {
+                    System.out.println("Error backing up: " + e.getMessage());
+                }
+            }, "benchmark-backup");
+            backupLoop.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException, SQLException, InterruptedException {
+            if (backupLoop != null) {
+                stopped = true;
+                backupLoop.interrupt();
+                backupLoop.join();
+            }
+            manager.close();
+            fixture.close();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 2)
+    public Path backup(Copy copy) throws IOException, SQLException, InterruptedException {
+        return RewardsBackup.backup(copy.db, copy.folder, copy.compress, RewardsBackup.UNLIMITED);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 2, time = 5)
+    @Measurement(iterations = 6, time = 10)
+    public void addPoints(Tills tills) throws SQLException {
+        tills.manager.addPoints(BenchmarkDatabase.phone(tills.random.nextInt(CUSTOMERS)), 10.0);
+    }
+
+    private static void delete(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * BenchmarkDatabase - Temporary rewards database seeded for a benchmark run.
+ * Customers are generated inside SQLite in one transaction, so even a
+ * 10M-customer table is ready in seconds rather than minutes of inserts.
+ * Customer i has phone key FIRST_KEY + i and a large opening balance so
+ * redemption benchmarks never run a customer dry.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+final class BenchmarkDatabase implements AutoCloseable {
+    static final long FIRST_KEY = 2_000_000_000L;
+    static final int OPENING_POINTS = 1_000_000_000;
+
+    private static final String SEED_REWARDS_SQL = "INSERT INTO rewards (phone, points) "
+                                                 + "WITH RECURSIVE seq(n) AS "
+                                                 + "(SELECT 0 UNION ALL SELECT n + 1 FROM seq WHERE n + 1 < ?) "
+                                                 + "SELECT printf('%010d', ? + n), ? FROM seq";
+    private static final String SEED_LEDGER_SQL = "INSERT INTO ledger (phone, delta, created_at) "
+                                                + "SELECT phone, points, ? FROM rewards";
+    // Zero-point entries give the ledger depth without changing any balance
+    private static final String PAD_LEDGER_SQL = "INSERT INTO ledger (phone, delta, created_at) "
+                                               + "WITH RECURSIVE copy(n) AS "
+                                               + "(SELECT 1 UNION ALL SELECT n + 1 FROM copy WHERE n + 1 < ?) "
+                                               + "SELECT phone, 0, ? FROM rewards, copy";
+
+    private final Path directory;
+    private final RewardsDatabase db;
+    private final int customers;
+
+    private BenchmarkDatabase(Path directory, RewardsDatabase db, int customers) {
+        this.directory = directory;
+        this.db = db;
+        this.customers = customers;
+    }
+
+    /**
+     * Creates a database in a new temporary directory with one ledger entry per customer.
+     * @param customers Number of customers to seed
+     * @param poolSize Number of pooled connections
+     * @return The seeded database
+     * @throws IOException If the temporary directory cannot be created
+     * @throws SQLException If seeding fails
+     */
+    static BenchmarkDatabase create(int customers, int poolSize) throws IOException, SQLException {
+        return create(customers, poolSize, 1);
+    }
+
+    /**
+     * Creates a database in a new temporary directory.
+     * @param customers Number of customers to seed
+     * @param poolSize Number of pooled connections
+     * @param entriesPerCustomer Ledger entries per customer (at least 1)
+     * @return The seeded database
+     * @throws IOException If the temporary directory cannot be created
+     * @throws SQLException If seeding fails
+     */
+    static BenchmarkDatabase create(int customers, int poolSize, int entriesPerCustomer)
+            throws IOException, SQLException {
+        Path directory = Files.createTempDirectory("rewards-bench");
+        RewardsDatabase db = new RewardsDatabase(
+            directory.resolve("rewards.db").toString(), poolSize, "NORMAL", 5000);
+        BenchmarkDatabase fixture = new BenchmarkDatabase(directory, db, customers);
+        if (customers > 0) {
+            fixture.seed(entriesPerCustomer);
+        }
+        return fixture;
+    }
+
+    private void seed(int entriesPerCustomer) throws SQLException {
+        long now = System.currentTimeMillis();
+        try (PooledConnection conn = db.acquireWriter()) {
+            conn.begin();
+            try {
+                PreparedStatement rewards = conn.prepare(SEED_REWARDS_SQL);
+                rewards.setInt(1, customers);
+                rewards.setLong(2, FIRST_KEY);
+                rewards.setInt(3, OPENING_POINTS);
+                rewards.executeUpdate();
+                PreparedStatement ledger = conn.prepare(SEED_LEDGER_SQL);
+                ledger.setLong(1, now);
+                ledger.executeUpdate();
+                if (entriesPerCustomer > 1) {
+                    PreparedStatement pad = conn.prepare(PAD_LEDGER_SQL);
+                    pad.setInt(1, entriesPerCustomer);
+                    pad.setLong(2, now);
+                    pad.executeUpdate();
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return The pooled database
+     */
+    RewardsDatabase database() {
+        return db;
+    }
+
+    /**
+     * @return Directory holding the database, for scratch files
+     */
+    Path directory() {
+        return directory;
+    }
+
+    /**
+     * @param index Customer index, 0 to customers - 1
+     * @return The customer's phone number as a till would send it
+     */
+    static String phone(int index) {
+        return PhoneNumbers.format(FIRST_KEY + index);
+    }
+
+    /**
+     * Closes the database and deletes its directory.
+     */
+    @Override
+    public void close() throws IOException {
+        db.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/**
+ * BulkImportBenchmark - Time per row of a bulk CSV import into an empty database.
+ * Rows per second is 1e6 divided by the reported microseconds per row.
+ * Run with -prof gc to see allocation and heap figures alongside.
+ */
+package reward_app;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx256m")
+@OperationsPerInvocation(BulkImportBenchmark.ROWS)
+public class BulkImportBenchmark {
+    static final int ROWS = 1_000_000;
+
+    private Path csv;
+    private BenchmarkDatabase fixture;
+
+    @Setup(Level.Trial)
+    public void writeCsv() throws IOException {
+        csv = Files.createTempFile("rewards-import", ".csv");
+        try (BufferedWriter out = Files.newBufferedWriter(csv, StandardCharsets.UTF_8)) {
+            out.write("phone,points");
+            out.newLine();
+            // Scattered order, as an export from another system would be
+            for (int i = 0; i < ROWS; i++) {
+                int customer = (int) ((i * 2_654_435_761L) % ROWS);
+                out.write(BenchmarkDatabase.phone(customer) + "," + (i % 500));
+                out.newLine();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteCsv() throws IOException {
+        Files.deleteIfExists(csv);
+    }
+
+    @Setup(Level.Iteration)
+    public void createDatabase() throws IOException, SQLException {
+        fixture = BenchmarkDatabase.create(0, 4);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteDatabase() throws IOException {
+        fixture.close();
+    }
+
+    @Benchmark
+    public ImportResult importCsv() throws IOException, SQLException {
+        return RewardsBulkIO.importCsv(fixture.database(), csv, fixture.directory().resolve("rejects.csv"));
+    }
+}
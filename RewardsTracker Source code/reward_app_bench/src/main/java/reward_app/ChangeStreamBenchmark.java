@@ -0,0 +1,109 @@
+/**
+ * ChangeStreamBenchmark - Publishing balance changes, and what it adds to
+ * the tills.
+ * publish measures changes per second through the ring into a sink that
+ * drops them, and into the change files (forced to disk each batch); once
+ * the ring is full it runs at the sink's pace, so this is the sustained
+ * rate. addPoints samples the latency of accruals on the in-memory store
+ * with the change feed off and on, for the added tail (p99, p99.9).
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ChangeStreamBenchmark {
+    private static final int CUSTOMERS = 100_000;
+
+    @State(Scope.Benchmark)
+    public static class Ring {
+        @Param({"discard", "file"})
+        public String sink;
+
+        Path directory;
+        ChangeStream stream;
+        long key;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("rewards-changes");
+            stream = new ChangeStream(ChangeStream.DEFAULT_CAPACITY, 0);
+            if (sink.equals("file")) {
+                stream.addSink("file", new ChangeLogFile(directory, ChangeLogFile.DEFAULT_FILES_KEPT));
+            } else {
+                stream.addSink("discard", (offset, time, key, delta, balance) -> { });
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            stream.close();
+            delete(directory);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Tills {
+        @Param({"false", "true"})
+        public boolean changes;
+
+        Path directory;
+        MemoryStore store;
+        RewardsManager manager;
+        String[] phones;
+        SplittableRandom random;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            directory = Files.createTempDirectory("rewards-changes");
+            store = new MemoryStore(directory.resolve("memory"), 10, Long.MAX_VALUE);
+            manager = new RewardsManager(store);
+            if (changes) {
+                manager.enableChanges(directory.resolve("changes"), 0);
+            }
+            phones = new String[CUSTOMERS];
+            for (int i = 0; i < CUSTOMERS; i++) {
+                phones[i] = PhoneNumbers.format(BenchmarkDatabase.FIRST_KEY + i);
+            }
+            random = new SplittableRandom(42);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException, SQLException {
+            manager.close();
+            store.close();
+            delete(directory);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long publish(Ring ring) {
+        return ring.stream.publish(BenchmarkDatabase.FIRST_KEY + (ring.key++ & 0xFFFF), 10, 100);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void addPoints(Tills tills) throws SQLException {
+        tills.manager.addPoints(tills.phones[tills.random.nextInt(CUSTOMERS)], 10.0);
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * ConfigurationBenchmark - A busy store's mixed workload under each manager setup.
+ * Six threads look up balances while two add points. hitRatio is the
+ * share of visits from regular customers, few enough to all fit in the
+ * cache; everyone else is picked from the rest of the table, so the cache
+ * hits about that share of lookups. Compares pool sizes, write-behind
+ * batching and the balance cache policies, including none, at each ratio;
+ * throughput and per-call latency are both reported, and the cache's
+ * actual hit ratio is printed at the end of each trial.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ConfigurationBenchmark {
+    private static final int CUSTOMERS = 1_000_000;
+    private static final int CACHE_ENTRIES = 50_000;
+    // Leaves the cache room for the occasional visitor without evicting regulars
+    private static final int REGULARS = CACHE_ENTRIES / 2;
+
+    @Param({"1", "4"})
+    public int poolSize;
+
+    @Param({"off", "on"})
+    public String batching;
+
+    @Param({"NONE", "LRU", "LFU"})
+    public String cache;
+
+    // Percentage of visits from regular customers
+    @Param({"0", "50", "90", "99"})
+    public int hitRatio;
+
+    private BenchmarkDatabase fixture;
+    private RewardsManager manager;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        fixture = BenchmarkDatabase.create(CUSTOMERS, poolSize);
+        manager = new RewardsManager(fixture.database());
+        if (batching.equals("on")) {
+            manager.enableBatching(256, 20);
+        }
+        if (!cache.equals("NONE")) {
+            manager.enableCache(CACHE_ENTRIES, BalanceCache.Policy.valueOf(cache));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, SQLException {
+        manager.close();
+        if (manager.getCache() != null) {
+            System.out.println(manager.getCache());
+        }
+        fixture.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Keys {
+        private static final int MASK = (1 << 16) - 1;
+
+        private final String[] phones = new String[MASK + 1];
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(ConfigurationBenchmark benchmark) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < phones.length; i++) {
+                int customer = random.nextInt(100) < benchmark.hitRatio
+                    ? random.nextInt(REGULARS)
+                    : REGULARS + random.nextInt(CUSTOMERS - REGULARS);
+                phones[i] = BenchmarkDatabase.phone(customer);
+            }
+        }
+
+        String next() {
+            return phones[next++ & MASK];
+        }
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(6)
+    public int checkPoints(Keys keys) throws SQLException {
+        return manager.checkPoints(keys.next());
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public void addPoints(Keys keys) throws SQLException {
+        manager.addPoints(keys.next(), 13.95);
+    }
+}
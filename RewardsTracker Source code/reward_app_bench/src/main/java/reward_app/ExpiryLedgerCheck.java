@@ -0,0 +1,96 @@
+/**
+ * ExpiryLedgerCheck - Batched writes over overdue balances must leave the
+ * ledger and the change feed adding up to the balances.
+ * Gives customers points, backdates their last earning past the points'
+ * lifetime, then adds more points to half of them through the write-behind
+ * queue and to the other half through a bulk import, both of which expire
+ * the old points first. Passes only if every balance is the new points
+ * alone, every customer's ledger sums to the balance, and the change feed
+ * saw each expiry (imported points themselves are not in the feed). Exits
+ * with status 1 on failure.
+ *
+ * Usage: java -cp benchmarks.jar reward_app.ExpiryLedgerCheck [customers]
+ */
+package reward_app;
+
+import java.io.BufferedWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+public final class ExpiryLedgerCheck {
+    private static final int OLD_POINTS = 10;
+    private static final int NEW_POINTS = 5;
+    private static final String BACKDATE_SQL = "UPDATE rewards SET earned_at = 1";
+
+    private ExpiryLedgerCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int customers = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int batched = customers / 2;
+        Map<Long, Integer> feed = new ConcurrentHashMap<>();
+        int failures = 0;
+        try (BenchmarkDatabase fixture = BenchmarkDatabase.create(0, 2)) {
+            ShardedDatabase store = new ShardedDatabase(fixture.database());
+            RewardsManager manager = new RewardsManager(store);
+            try {
+                manager.enableChanges(fixture.directory().resolve("changes"), 0);
+                manager.getChanges().addSink("check", (offset, time, key, delta, balance) ->
+                    feed.merge(key, delta, Integer::sum));
+                for (int i = 0; i < customers; i++) {
+                    manager.addPoints(BenchmarkDatabase.phone(i), OLD_POINTS);
+                }
+                try (PooledConnection conn = fixture.database().acquireWriter()) {
+                    conn.prepare(BACKDATE_SQL).executeUpdate();
+                }
+                store.setPointsLifetime(TimeUnit.DAYS.toMillis(1));
+
+                manager.enableBatching(256, 20);
+                for (int i = 0; i < batched; i++) {
+                    manager.addPoints(BenchmarkDatabase.phone(i), NEW_POINTS);
+                }
+                manager.flush();
+                Path csv = fixture.directory().resolve("import.csv");
+                try (BufferedWriter out = Files.newBufferedWriter(csv, StandardCharsets.UTF_8)) {
+                    for (int i = batched; i < customers; i++) {
+                        out.write(BenchmarkDatabase.phone(i) + "," + NEW_POINTS);
+                        out.newLine();
+                    }
+                }
+                manager.importCsv(csv, fixture.directory().resolve("import.csv.rejects"));
+
+                for (int i = 0; i < customers; i++) {
+                    long key = BenchmarkDatabase.FIRST_KEY + i;
+                    int balance = store.getBalance(key);
+                    int ledger = PointsLedger.ledgerBalance(fixture.database(), key);
+                    if (balance != NEW_POINTS || ledger != balance) {
+                        failures++;
+                        System.out.println(BenchmarkDatabase.phone(i) + ": balance " + balance
+                                           + ", ledger sum " + ledger + ", expected " + NEW_POINTS);
+                    }
+                }
+            } finally {
+                // Drains the change feed
+                manager.close();
+            }
+        }
+        for (int i = 0; i < customers; i++) {
+            int expected = i < batched ? NEW_POINTS : 0;
+            int seen = feed.getOrDefault(BenchmarkDatabase.FIRST_KEY + i, 0);
+            if (seen != expected) {
+                failures++;
+                System.out.println(BenchmarkDatabase.phone(i) + ": change feed sums to " + seen
+                                   + ", expected " + expected);
+            }
+        }
+        System.out.printf("%d customers, %d through the write-behind queue, %d imported: %d problems - %s%n",
+                          customers, batched, customers - batched, failures, failures == 0 ? "PASSED" : "FAILED");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+}
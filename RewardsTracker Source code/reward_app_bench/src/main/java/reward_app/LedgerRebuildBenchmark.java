@@ -0,0 +1,46 @@
+/**
+ * LedgerRebuildBenchmark - Time to rebuild every balance from the ledger.
+ * Each rebuild is measured once from a cold start, for ledgers with one
+ * and ten entries per customer.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class LedgerRebuildBenchmark {
+    @Param({"100000", "1000000"})
+    public int customers;
+
+    @Param({"1", "10"})
+    public int entriesPerCustomer;
+
+    private BenchmarkDatabase fixture;
+    private RewardsManager manager;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        fixture = BenchmarkDatabase.create(customers, 4, entriesPerCustomer);
+        manager = new RewardsManager(fixture.database());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, SQLException {
+        manager.close();
+        fixture.close();
+    }
+
+    @Benchmark
+    public long rebuildBalances() throws SQLException {
+        return manager.rebuildBalances();
+    }
+}
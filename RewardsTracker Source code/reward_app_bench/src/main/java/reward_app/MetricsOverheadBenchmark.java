@@ -0,0 +1,72 @@
+/**
+ * MetricsOverheadBenchmark - Cost of timing every RewardsManager call.
+ * Measures checkPoints with metrics on and off, both from the database and
+ * from the cache (the cheapest call, where recording shows most), plus the
+ * raw cost of recording into a histogram from one thread and from eight.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsOverheadBenchmark {
+    private static final int CUSTOMERS = 1000;
+
+    @Param({"on", "off"})
+    public String metrics;
+
+    @Param({"on", "off"})
+    public String cache;
+
+    private BenchmarkDatabase fixture;
+    private RewardsManager manager;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        fixture = BenchmarkDatabase.create(CUSTOMERS, 4);
+        manager = new RewardsManager(fixture.database());
+        if (cache.equals("on")) {
+            manager.enableCache(CUSTOMERS, BalanceCache.Policy.LRU);
+        }
+        manager.getMetrics().setEnabled(metrics.equals("on"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, SQLException {
+        manager.close();
+        fixture.close();
+    }
+
+    @Benchmark
+    public int checkPoints() throws SQLException {
+        return manager.checkPoints(BenchmarkDatabase.phone(ThreadLocalRandom.current().nextInt(CUSTOMERS)));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public int checkPointsConcurrent() throws SQLException {
+        return manager.checkPoints(BenchmarkDatabase.phone(ThreadLocalRandom.current().nextInt(CUSTOMERS)));
+    }
+
+    @Benchmark
+    public void record() {
+        histogram.record(ThreadLocalRandom.current().nextLong(1_000, 10_000_000));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void recordConcurrent() {
+        histogram.record(ThreadLocalRandom.current().nextLong(1_000, 10_000_000));
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * PhoneParsingBenchmark - Cost of validating a phone number on every call.
+ * Compares the single-pass PhoneNumbers.parse with the regular
+ * expressions it replaced, for plain and formatted input.
+ */
+package reward_app;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PhoneParsingBenchmark {
+    private static final Pattern NON_DIGITS = Pattern.compile("[^0-9]");
+
+    @Param({"7051234567", "(705)-123-4567", "+1 705.123.4567"})
+    public String phone;
+
+    @Benchmark
+    public long parse() {
+        return PhoneNumbers.parse(phone);
+    }
+
+    /** The original check, which only accepted plain digits. */
+    @Benchmark
+    public boolean regexMatches() {
+        return phone.matches("\\d{10}");
+    }
+
+    /** Regex normalization, the usual way to accept separators. */
+    @Benchmark
+    public long regexNormalize() {
+        String digits = NON_DIGITS.matcher(phone).replaceAll("");
+        if (digits.length() == 11 && digits.charAt(0) == '1') {
+            digits = digits.substring(1);
+        }
+        return digits.length() == 10 ? Long.parseLong(digits) : PhoneNumbers.INVALID;
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * PhoneSearchBenchmark - Finding customers by the first digits of their
+ * number in a PhoneIndex of 10M customers with random numbers.
+ * search looks up prefixes of existing numbers, as a cashier typing would;
+ * addExisting is the check every addPoints makes, and addNew indexes new
+ * customers, including the merges every 65,536 of them.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class PhoneSearchBenchmark {
+    private static final int SEED_CHUNK = 100_000;
+    private static final long NUMBERS = 10_000_000_000L;
+
+    @Param({"10000000"})
+    public int customers;
+
+    // Digits typed so far
+    @Param({"3", "6", "8"})
+    public int digits;
+
+    private PhoneIndex index;
+    private long[] existing;
+    private String[] prefixes;
+    private SplittableRandom random;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        Path directory = Files.createTempDirectory("rewards-search");
+        SplittableRandom seed = new SplittableRandom(42);
+        existing = new long[customers];
+        MemoryStore store = new MemoryStore(directory, 10, Long.MAX_VALUE);
+        try {
+            int[] points = new int[customers];
+            for (int i = 0; i < customers; i++) {
+                existing[i] = seed.nextLong(NUMBERS);
+                points[i] = 100;
+            }
+            for (int from = 0; from < customers; from += SEED_CHUNK) {
+                store.addAll(existing, points, from, Math.min(from + SEED_CHUNK, customers));
+            }
+            index = new PhoneIndex();
+            index.build(store);
+        } finally {
+            store.close();
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+        prefixes = new String[1 << 16];
+        for (int i = 0; i < prefixes.length; i++) {
+            prefixes[i] = PhoneNumbers.format(existing[seed.nextInt(customers)]).substring(0, digits);
+        }
+        random = new SplittableRandom(7);
+    }
+
+    @Benchmark
+    public long[] search() {
+        return index.search(prefixes[next++ & (prefixes.length - 1)], 10);
+    }
+
+    @Benchmark
+    public void addExisting() {
+        index.add(existing[random.nextInt(customers)]);
+    }
+
+    @Benchmark
+    public void addNew() {
+        index.add(random.nextLong(NUMBERS));
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * PointsRulesBenchmark - Cost of pricing one purchase with the reward rules.
+ * Rule sets mix tier multipliers, category bonuses, caps and promotions
+ * with their own date windows over a year, as a busy rule file would.
+ * Purchases cycle through random tiers and categories. Their times fall
+ * within one hour, as at a till pricing purchases "now", or anywhere in
+ * the year, the worst case for finding the promotion period.
+ */
+package reward_app;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PointsRulesBenchmark {
+    private static final int PURCHASES = 1 << 12;
+    private static final String[] TIERS = {"silver 1000", "gold 5000", "platinum 20000"};
+    private static final int CATEGORIES = 16;
+    private static final LocalDate YEAR_START = LocalDate.of(2026, 1, 1);
+
+    @Param({"0", "100", "1000"})
+    public int rules;
+
+    @Param({"hour", "year"})
+    public String times;
+
+    private PointsRules compiled;
+    private final double[] amounts = new double[PURCHASES];
+    private final int[] balances = new int[PURCHASES];
+    private final int[] categories = new int[PURCHASES];
+    private final long[] purchaseTimes = new long[PURCHASES];
+    private int next;
+
+    @Setup
+    public void setUp() {
+        compiled = PointsRules.compile(ruleFile(rules));
+        SplittableRandom random = new SplittableRandom(42);
+        long yearStart = millis(YEAR_START);
+        long spread = times.equals("hour")
+            ? TimeUnit.HOURS.toMillis(1)
+            : millis(YEAR_START.plusYears(1)) - yearStart;
+        long first = times.equals("hour") ? millis(YEAR_START.plusDays(random.nextInt(360))) : yearStart;
+        for (int i = 0; i < PURCHASES; i++) {
+            amounts[i] = random.nextInt(1, 50_000) / 100.0;
+            balances[i] = random.nextInt(30_000);
+            categories[i] = compiled.category("category" + random.nextInt(CATEGORIES + 4));
+            purchaseTimes[i] = first + random.nextLong(spread);
+        }
+    }
+
+    static List<String> ruleFile(int count) {
+        List<String> lines = new ArrayList<>();
+        for (String tier : TIERS) {
+            lines.add("tier " + tier);
+        }
+        SplittableRandom random = new SplittableRandom(7);
+        for (int i = 0; i < count; i++) {
+            String category = " category category" + random.nextInt(CATEGORIES);
+            switch (i % 4) {
+                case 0:
+                    lines.add("multiply 1." + random.nextInt(1, 10) + " tier " + TIERS[i / 4 % TIERS.length].split(" ")[0]);
+                    break;
+                case 1:
+                    lines.add("bonus " + random.nextInt(1, 50) + category);
+                    break;
+                case 2:
+                    LocalDate from = YEAR_START.plusDays(random.nextInt(360));
+                    lines.add("multiply 2" + category + " from " + from + " until " + from.plusDays(random.nextInt(1, 5)));
+                    break;
+                default:
+                    lines.add("cap " + random.nextInt(200, 2000) + category);
+                    break;
+            }
+        }
+        return lines;
+    }
+
+    private static long millis(LocalDate date) {
+        return date.atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    @Benchmark
+    public int points() {
+        int i = next++ & (PURCHASES - 1);
+        return compiled.points(amounts[i], balances[i], categories[i], purchaseTimes[i]);
+    }
+
+    /** The single hard-coded rule the engine replaced. */
+    @Benchmark
+    public int roundedAmount() {
+        int i = next++ & (PURCHASES - 1);
+        return (int) Math.round(amounts[i]);
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * RecoveryBenchmark - Time from startup until balances can be served.
+ * The memory store loads its snapshot and replays the log written after
+ * it, as after a crash; SQLite opens the database file with an empty page
+ * cache. Both then answer a burst of random balance lookups, which is
+ * where a cold SQLite pays for its lazy start.
+ * Each iteration starts from a fresh copy of the files, and with the OS
+ * page cache dropped where that is allowed (Linux, as root), so both
+ * read their files from disk as after a reboot. Elsewhere the files
+ * stay cached, which flatters SQLite's lazy open.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RecoveryBenchmark {
+    private static final int SEED_CHUNK = 100_000;
+    private static final Path DROP_CACHES = Paths.get("/proc/sys/vm/drop_caches");
+
+    @Param({"10000000"})
+    public int customers;
+
+    // Changes made after the last snapshot, replayed from the log; a
+    // crash leaves up to the snapshot interval, 250,000 by default
+    @Param({"250000", "1000000"})
+    public int logRecords;
+
+    @Param({"0", "100000"})
+    public int lookups;
+
+    private BenchmarkDatabase sqlite;
+    private Path images;
+    private Path run;
+    private MemoryStore memory;
+    private RewardsDatabase db;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        sqlite = BenchmarkDatabase.create(customers, 1);
+        sqlite.database().close();
+
+        images = Files.createTempDirectory("rewards-recovery");
+        Path live = images.resolve("live");
+        MemoryStore seed = new MemoryStore(live, 10, Long.MAX_VALUE);
+        long[] keys = new long[SEED_CHUNK];
+        int[] points = new int[SEED_CHUNK];
+        for (int from = 0; from < customers; from += SEED_CHUNK) {
+            int count = Math.min(SEED_CHUNK, customers - from);
+            for (int i = 0; i < count; i++) {
+                keys[i] = BenchmarkDatabase.FIRST_KEY + from + i;
+                points[i] = BenchmarkDatabase.OPENING_POINTS;
+            }
+            seed.addAll(keys, points, 0, count);
+        }
+        seed.snapshot();
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < logRecords; i++) {
+            seed.addPoints(BenchmarkDatabase.FIRST_KEY + random.nextInt(customers), 1, null);
+        }
+        seed.sync();
+        // What a crash would leave behind, before close() writes a final snapshot
+        copy(live, images.resolve("crashed"));
+        seed.close();
+    }
+
+    @Setup(Level.Iteration)
+    public void copyFiles() throws IOException {
+        run = images.resolve("run");
+        delete(run);
+        copy(images.resolve("crashed"), run);
+        dropPageCache();
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeStores() {
+        if (memory != null) {
+            memory.close();
+            memory = null;
+        }
+        if (db != null) {
+            db.close();
+            db = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        sqlite.close();
+        delete(images);
+    }
+
+    @Benchmark
+    public long memoryStore() throws SQLException {
+        memory = new MemoryStore(run, 10, Long.MAX_VALUE);
+        return lookUp(memory);
+    }
+
+    @Benchmark
+    public long sqlite() throws SQLException {
+        db = new RewardsDatabase(sqlite.directory().resolve("rewards.db").toString(), 4, "NORMAL", 5000);
+        return lookUp(new ShardedDatabase(db));
+    }
+
+    private long lookUp(RewardsStore store) throws SQLException {
+        SplittableRandom random = new SplittableRandom(7);
+        long sum = store.getBalance(BenchmarkDatabase.FIRST_KEY);
+        for (int i = 0; i < lookups; i++) {
+            sum += store.getBalance(BenchmarkDatabase.FIRST_KEY + random.nextInt(customers));
+        }
+        return sum;
+    }
+
+    private static void dropPageCache() throws IOException {
+        if (!Files.isWritable(DROP_CACHES)) {
+            return;
+        }
+        try {
+            // Dirty pages are not dropped, so write the fresh copies out first
+            new ProcessBuilder("sync").inheritIO().start().waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Files.write(DROP_CACHES, "3".getBytes());
+    }
+
+    private static void copy(Path from, Path to) throws IOException {
+        Files.createDirectories(to);
+        try (Stream<Path> files = Files.list(from)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (!file.getFileName().toString().equals("store.lock")) {
+                    Files.copy(file, to.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        if (Files.exists(directory)) {
+            try (Stream<Path> files = Files.walk(directory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ * RedemptionStressCheck - Many tills redeeming from one customer at once
+ * must never overdraw the balance.
+ * Gives one customer a balance, then has every thread race to redeem
+ * single points from it, many more than the balance covers. Passes only if
+ * exactly the balance's worth of redemptions applied, the rest were
+ * refused, and the balance and the customer's ledger both end at 0.
+ * Runs against SQLite and against the in-memory store, and exits with
+ * status 1 if either fails.
+ *
+ * Usage: java -cp benchmarks.jar reward_app.RedemptionStressCheck [threads] [attempts]
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+public final class RedemptionStressCheck {
+    private static final int BALANCE = 1000;
+    private static final String PHONE = BenchmarkDatabase.phone(0);
+
+    private RedemptionStressCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int attempts = args.length > 1 ? Integer.parseInt(args[1]) : 4 * BALANCE;
+        if (attempts <= BALANCE) {
+            throw new IllegalArgumentException("Attempts must be more than the balance of " + BALANCE);
+        }
+        boolean passed = true;
+        try (BenchmarkDatabase fixture = BenchmarkDatabase.create(0, threads)) {
+            RewardsManager manager = new RewardsManager(fixture.database());
+            try {
+                passed &= check("sqlite", manager, threads, attempts);
+            } finally {
+                manager.close();
+            }
+        }
+        Path directory = Files.createTempDirectory("rewards-stress");
+        try {
+            RewardsManager manager = new RewardsManager(new MemoryStore(directory));
+            try {
+                passed &= check("memory", manager, threads, attempts);
+            } finally {
+                manager.close();
+            }
+        } finally {
+            delete(directory);
+        }
+        if (!passed) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Races the redemptions and reports the outcome.
+     * @return Whether no redemption overdrew the balance
+     */
+    private static boolean check(String storage, RewardsManager manager, int threads, int attempts)
+            throws InterruptedException, SQLException {
+        manager.addPoints(PHONE, BALANCE);
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger applied = new AtomicInteger();
+        AtomicInteger refused = new AtomicInteger();
+        List<Throwable> errors = new ArrayList<>();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> tills = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread till = new Thread(() -> {
+                try {
+                    start.await();
+                    while (next.getAndIncrement() < attempts) {
+                        if (manager.redeem(PHONE, 1).isApplied()) {
+                            applied.incrementAndGet();
+                        } else {
+                            refused.incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException | SQLException | RuntimeException e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }, "till-" + i);
+            till.start();
+            tills.add(till);
+        }
+        long started = System.nanoTime();
+        start.countDown();
+        for (Thread till : tills) {
+            till.join();
+        }
+        long millis = (System.nanoTime() - started) / 1_000_000;
+
+        int balance = manager.checkPoints(PHONE);
+        long ledger = 0;
+        for (LedgerEntry entry : manager.getHistory(PHONE, attempts + 1)) {
+            ledger += entry.getDelta();
+        }
+        boolean passed = errors.isEmpty() && applied.get() == BALANCE
+                      && refused.get() == attempts - BALANCE && balance == 0 && ledger == 0;
+        System.out.printf("%s: %d threads, %d redemptions in %d ms: %d applied, %d refused, "
+                          + "balance %d, ledger sum %d, %d errors - %s%n",
+                          storage, threads, attempts, millis, applied.get(), refused.get(),
+                          balance, ledger, errors.size(), passed ? "PASSED" : "FAILED");
+        for (Throwable error : errors) {
+            System.out.println("Error redeeming: " + error);
+        }
+        return passed;
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * RewardsBenchmarks - Entry point of benchmarks.jar.
+ * Takes the usual JMH command line, but writes results as JSON to
+ * rewards-benchmarks.json unless -rf/-rff say otherwise, so every run
+ * leaves a file that can be compared with the previous release.
+ *
+ * Usage:
+ *   java -jar benchmarks.jar                                  (everything)
+ *   java -jar benchmarks.jar RewardsManagerBenchmark -p customers=10000
+ *   java -jar benchmarks.jar BulkImportBenchmark -prof gc     (with heap figures)
+ */
+package reward_app;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+public final class RewardsBenchmarks {
+    private static final String DEFAULT_RESULT_FILE = "rewards-benchmarks.json";
+
+    private RewardsBenchmarks() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListWithParams()
+                || commandLine.shouldListProfilers() || commandLine.shouldListResultFormats()) {
+            // Listing and help output are handled by the stock JMH entry point
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if (!commandLine.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!commandLine.getResult().hasValue()) {
+            options.result(DEFAULT_RESULT_FILE);
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * RewardsManagerBenchmark - Throughput of the till's three operations.
+ * Runs addPoints, checkPoints and subtractPoints against a temporary
+ * SQLite file at several table sizes, from one thread and from eight,
+ * with every thread hitting one hot customer or customers picked
+ * uniformly at random. subtractPointsTwoStep is the redemption as it was
+ * before it became one conditional update, a read and then a separate
+ * UPDATE, made to do the same durable work as subtractPoints: one write
+ * transaction holding the read, the update and the ledger entry.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RewardsManagerBenchmark {
+    private static final int CONCURRENT_THREADS = 8;
+    private static final String TWO_STEP_REDEEM_SQL = "UPDATE rewards SET points = points - ? WHERE phone = ?";
+
+    @Param({"10000", "100000", "1000000", "10000000"})
+    public int customers;
+
+    @Param({"uniform", "hot"})
+    public String keys;
+
+    private BenchmarkDatabase fixture;
+    private RewardsManager manager;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        fixture = BenchmarkDatabase.create(customers, 4);
+        manager = new RewardsManager(fixture.database());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, SQLException {
+        manager.close();
+        fixture.close();
+    }
+
+    /**
+     * Phone numbers each thread cycles through, picked up front so the
+     * measurement doesn't include random number generation or formatting.
+     */
+    @State(Scope.Thread)
+    public static class Keys {
+        private static final int MASK = (1 << 16) - 1;
+
+        private final String[] phones = new String[MASK + 1];
+        private int next;
+
+        @Setup(Level.Trial)
+        public void setUp(RewardsManagerBenchmark benchmark) {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            boolean hot = benchmark.keys.equals("hot");
+            for (int i = 0; i < phones.length; i++) {
+                phones[i] = BenchmarkDatabase.phone(hot ? 0 : random.nextInt(benchmark.customers));
+            }
+        }
+
+        String next() {
+            return phones[next++ & MASK];
+        }
+    }
+
+    @Benchmark
+    public void addPoints(Keys keys) throws SQLException {
+        manager.addPoints(keys.next(), 13.95);
+    }
+
+    @Benchmark
+    public int checkPoints(Keys keys) throws SQLException {
+        return manager.checkPoints(keys.next());
+    }
+
+    @Benchmark
+    public int subtractPoints(Keys keys) throws SQLException {
+        return manager.subtractPoints(keys.next(), 1);
+    }
+
+    @Benchmark
+    public int subtractPointsTwoStep(Keys keys) throws SQLException {
+        return subtractTwoStep(keys.next(), 1);
+    }
+
+    @Benchmark
+    @Threads(CONCURRENT_THREADS)
+    public void addPointsConcurrent(Keys keys) throws SQLException {
+        manager.addPoints(keys.next(), 13.95);
+    }
+
+    @Benchmark
+    @Threads(CONCURRENT_THREADS)
+    public int checkPointsConcurrent(Keys keys) throws SQLException {
+        return manager.checkPoints(keys.next());
+    }
+
+    @Benchmark
+    @Threads(CONCURRENT_THREADS)
+    public int subtractPointsConcurrent(Keys keys) throws SQLException {
+        return manager.subtractPoints(keys.next(), 1);
+    }
+
+    @Benchmark
+    @Threads(CONCURRENT_THREADS)
+    public int subtractPointsTwoStepConcurrent(Keys keys) throws SQLException {
+        return subtractTwoStep(keys.next(), 1);
+    }
+
+    /**
+     * The old redemption: reads the balance, then deducts in a second
+     * statement. Begin, read, update, ledger entry, commit.
+     */
+    private int subtractTwoStep(String phone, int points) throws SQLException {
+        long key = PhoneNumbers.parse(phone);
+        String formatted = PhoneNumbers.format(key);
+        try (PooledConnection conn = fixture.database().acquireWriter()) {
+            conn.begin();
+            try {
+                PreparedStatement read = conn.checkPointsStatement();
+                read.setString(1, formatted);
+                int balance;
+                try (ResultSet rs = read.executeQuery()) {
+                    balance = rs.next() ? rs.getInt(1) : 0;
+                }
+                if (balance < points) {
+                    throw new IllegalArgumentException("Not enough points available");
+                }
+                PreparedStatement update = conn.prepare(TWO_STEP_REDEEM_SQL);
+                update.setInt(1, points);
+                update.setString(2, formatted);
+                update.executeUpdate();
+                PointsLedger.append(conn, key, -points);
+                conn.commit();
+                return balance - points;
+            } catch (SQLException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+/**
+ * ServerBenchmark - Request latency seen by tills sharing a RewardsServer.
+ * Sixteen clients call the server over loopback; sample mode reports the
+ * latency distribution, including p50 and p99, for lookups and accruals.
+ * The fork turns on TCP_NODELAY as --server mode does.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.sql.SQLException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(16)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+public class ServerBenchmark {
+    private static final int CUSTOMERS = 100_000;
+
+    private BenchmarkDatabase fixture;
+    private RewardsManager manager;
+    private RewardsServer server;
+    private RewardsService client;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        fixture = BenchmarkDatabase.create(CUSTOMERS, 4);
+        manager = new RewardsManager(fixture.database());
+        server = new RewardsServer(manager, new InetSocketAddress("127.0.0.1", 0));
+        server.start();
+        client = new RewardsHttpClient("http://127.0.0.1:" + server.getPort());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, SQLException {
+        server.stop();
+        manager.close();
+        fixture.close();
+    }
+
+    private static String randomPhone() {
+        return BenchmarkDatabase.phone(ThreadLocalRandom.current().nextInt(CUSTOMERS));
+    }
+
+    @Benchmark
+    public int checkPoints() {
+        return client.checkPointsAsync(randomPhone()).join();
+    }
+
+    @Benchmark
+    public void addPoints() {
+        client.addPointsAsync(randomPhone(), 13.95).join();
+    }
+}
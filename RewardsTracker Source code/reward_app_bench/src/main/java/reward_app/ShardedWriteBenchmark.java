@@ -0,0 +1,57 @@
+/**
+ * ShardedWriteBenchmark - addPoints throughput as the shard count grows.
+ * Eight threads add points for random customers; each shard has its own
+ * write lock, so throughput should rise with shards until the cores or
+ * the disk run out.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Threads(8)
+@Fork(1)
+public class ShardedWriteBenchmark {
+    private static final int CUSTOMERS = 1_000_000;
+
+    @Param({"1", "2", "4", "8"})
+    public int shards;
+
+    private Path directory;
+    private ShardedDatabase database;
+    private RewardsManager manager;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("rewards-shards");
+        database = ShardedDatabase.open(directory.resolve("rewards.db").toString(), shards, 2, "NORMAL", 5000);
+        manager = new RewardsManager(database);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException, SQLException {
+        manager.close();
+        database.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public void addPoints() throws SQLException {
+        manager.addPoints(BenchmarkDatabase.phone(ThreadLocalRandom.current().nextInt(CUSTOMERS)), 13.95);
+    }
+}
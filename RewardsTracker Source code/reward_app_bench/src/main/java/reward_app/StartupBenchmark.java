@@ -0,0 +1,119 @@
+/**
+ * StartupBenchmark - Cold start of the till, from launching java to the
+ * window's first paint and to its first completed balance lookup.
+ * Each invocation starts the jar-with-dependencies in a new JVM with the
+ * startup probe on and waits for the line it prints, so the time includes
+ * everything a cashier waits for. With cds=on the JVM maps the archive
+ * recorded by mvn -Pcds package. Build reward_app_final first; set
+ * -Drewards.startupJar to time a jar elsewhere. First paint needs a
+ * display; without one only firstQuery can run.
+ */
+package reward_app;
+
+import java.awt.GraphicsEnvironment;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StartupBenchmark {
+    private static final String JAR = "RewardsTracker.jar";
+    private static final String ARCHIVE = "RewardsTracker.jsa";
+
+    @Param({"off", "on"})
+    public String cds;
+
+    private Path directory;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        Path jar = Paths.get(System.getProperty("rewards.startupJar",
+                "../reward_app_final/target/reward_app_final-1.0-SNAPSHOT-jar-with-dependencies.jar"));
+        if (!Files.exists(jar)) {
+            throw new IllegalStateException("No jar at " + jar.toAbsolutePath() + "; build reward_app_final first");
+        }
+        Path archive = jar.resolveSibling(ARCHIVE);
+        if (cds.equals("on") && !Files.exists(archive)) {
+            throw new IllegalStateException("No archive at " + archive.toAbsolutePath() + "; build with mvn -Pcds package");
+        }
+        // The archive only matches a jar with the same name and timestamp
+        directory = Files.createTempDirectory("rewards-startup");
+        Files.copy(jar, directory.resolve(JAR), StandardCopyOption.COPY_ATTRIBUTES);
+        if (cds.equals("on")) {
+            Files.copy(archive, directory.resolve(ARCHIVE), StandardCopyOption.COPY_ATTRIBUTES);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public long firstPaint() throws IOException, InterruptedException {
+        if (GraphicsEnvironment.isHeadless()) {
+            throw new IllegalStateException("First paint needs a display");
+        }
+        return start("Startup: first paint after ");
+    }
+
+    @Benchmark
+    public long firstQuery() throws IOException, InterruptedException {
+        return start("Startup: first query after ");
+    }
+
+    /**
+     * Starts the till and waits until it prints a line.
+     * @param marker Start of the line to wait for
+     * @return Milliseconds after JVM start the till reported
+     */
+    private long start(String marker) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (cds.equals("on")) {
+            // Fail rather than quietly timing a start without the archive
+            command.add("-XX:SharedArchiveFile=" + ARCHIVE);
+            command.add("-Xshare:on");
+        }
+        command.add("-Drewards.startupProbe=true");
+        command.add("-jar");
+        command.add(JAR);
+        Process process = new ProcessBuilder(command).directory(directory.toFile())
+                                                     .redirectErrorStream(true)
+                                                     .start();
+        String last = null;
+        try (BufferedReader output = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = output.readLine()) != null) {
+                if (line.startsWith(marker)) {
+                    return Long.parseLong(line.substring(marker.length(), line.length() - " ms".length()));
+                }
+                last = line;
+            }
+        } finally {
+            process.destroy();
+            process.waitFor();
+        }
+        throw new IllegalStateException("Till exited without printing \"" + marker + "\": " + last);
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * SyncBenchmark - Time and size of a points sync between two tills.
+ * fullSync brings an empty till up to date with every customer, as when a
+ * till joins or its peer's database was replaced. incrementalSync brings
+ * an up-to-date till in step after 1% of the customers changed. Delta
+ * size in bytes and counter rows are reported as the deltaBytes and rows
+ * secondary results, summed over the measured iterations.
+ */
+package reward_app;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class SyncBenchmark {
+    private static final String SOURCE = "http://source";
+    private static final int CHUNK = 50_000;
+    private static final int CHANGED_PERCENT = 1;
+
+    @State(Scope.Benchmark)
+    public static class Source {
+        @Param({"100000", "1000000"})
+        public int customers;
+
+        BenchmarkDatabase fixture;
+        PointsReplica replica;
+        ShardedDatabase store;
+        long[] keys;
+        int round;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException, SQLException {
+            fixture = BenchmarkDatabase.create(0, 1);
+            // Created before seeding so every customer is counted as this till's
+            replica = new PointsReplica(fixture.database());
+            store = new ShardedDatabase(fixture.database());
+            keys = new long[customers];
+            for (int i = 0; i < customers; i++) {
+                keys[i] = BenchmarkDatabase.FIRST_KEY + i;
+            }
+            int[] points = new int[customers];
+            Arrays.fill(points, 100);
+            for (int from = 0; from < customers; from += CHUNK) {
+                store.addAll(keys, points, from, Math.min(customers, from + CHUNK));
+            }
+        }
+
+        /**
+         * Changes a different 1% of the customers each time.
+         */
+        void change() throws SQLException {
+            int count = customers * CHANGED_PERCENT / 100;
+            long[] changed = new long[count];
+            int[] points = new int[count];
+            int stride = 100 / CHANGED_PERCENT;
+            for (int i = 0; i < count; i++) {
+                changed[i] = keys[(i * stride + round) % customers];
+                points[i] = 10;
+            }
+            round++;
+            for (int from = 0; from < count; from += CHUNK) {
+                store.addAll(changed, points, from, Math.min(count, from + CHUNK));
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            fixture.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class EmptyTill {
+        BenchmarkDatabase fixture;
+        PointsReplica replica;
+
+        @Setup(Level.Iteration)
+        public void setUp() throws IOException, SQLException {
+            fixture = BenchmarkDatabase.create(0, 1);
+            replica = new PointsReplica(fixture.database());
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            fixture.close();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class SyncedTill {
+        BenchmarkDatabase fixture;
+        PointsReplica replica;
+
+        @Setup(Level.Trial)
+        public void setUp(Source source) throws IOException, SQLException {
+            fixture = BenchmarkDatabase.create(0, 1);
+            replica = new PointsReplica(fixture.database());
+            sync(source.replica, replica, new Delta());
+        }
+
+        @Setup(Level.Iteration)
+        public void change(Source source) throws SQLException {
+            source.change();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            fixture.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Delta {
+        public long deltaBytes;
+        public long rows;
+    }
+
+    @Benchmark
+    public int fullSync(Source source, EmptyTill till, Delta delta) throws IOException, SQLException {
+        return sync(source.replica, till.replica, delta);
+    }
+
+    @Benchmark
+    public int incrementalSync(Source source, SyncedTill till, Delta delta) throws IOException, SQLException {
+        return sync(source.replica, till.replica, delta);
+    }
+
+    private static int sync(PointsReplica from, PointsReplica to, Delta delta) throws IOException, SQLException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        from.writeDelta(to.getPeer(SOURCE)[1], out);
+        int changed = to.applyDelta(SOURCE, new ByteArrayInputStream(out.toByteArray()), null);
+        delta.deltaBytes = out.size();
+        delta.rows = changed;
+        return changed;
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * SyncExpiryCheck - Two synced tills that both expire the same overdue
+ * points must take them only once.
+ * Gives customers points at one till and syncs them to the other, then
+ * backdates the last earning at both, lets both tills expire the points
+ * before syncing again, and finally adds new points at one till. Passes
+ * only if both tills end with every balance at the new points and every
+ * customer's ledger summing to it. Exits with status 1 on failure.
+ *
+ * Usage: java -cp benchmarks.jar reward_app.SyncExpiryCheck [customers]
+ */
+package reward_app;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+public final class SyncExpiryCheck {
+    private static final int OLD_POINTS = 10;
+    private static final int NEW_POINTS = 5;
+    private static final String BACKDATE_SQL = "UPDATE rewards SET earned_at = 1";
+
+    private SyncExpiryCheck() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        int customers = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int failures = 0;
+        try (BenchmarkDatabase first = BenchmarkDatabase.create(0, 2);
+             BenchmarkDatabase second = BenchmarkDatabase.create(0, 2)) {
+            Till a = new Till("a", first);
+            Till b = new Till("b", second);
+            for (int i = 0; i < customers; i++) {
+                a.store.addPoints(BenchmarkDatabase.FIRST_KEY + i, OLD_POINTS, TransactionIds.NONE, null);
+            }
+            a.sendTo(b);
+
+            for (Till till : new Till[] {a, b}) {
+                try (PooledConnection conn = till.fixture.database().acquireWriter()) {
+                    conn.prepare(BACKDATE_SQL).executeUpdate();
+                }
+                till.store.setPointsLifetime(TimeUnit.DAYS.toMillis(1));
+                while (till.store.expireDue(customers, TimeUnit.SECONDS.toNanos(10), null)) {
+                    // Expire every overdue balance before the tills hear of each other
+                }
+            }
+            a.sendTo(b);
+            b.sendTo(a);
+
+            for (int i = 0; i < customers; i++) {
+                a.store.addPoints(BenchmarkDatabase.FIRST_KEY + i, NEW_POINTS, TransactionIds.NONE, null);
+            }
+            a.sendTo(b);
+            b.sendTo(a);
+
+            for (Till till : new Till[] {a, b}) {
+                for (int i = 0; i < customers; i++) {
+                    long key = BenchmarkDatabase.FIRST_KEY + i;
+                    int balance = till.store.getBalance(key);
+                    int ledger = PointsLedger.ledgerBalance(till.fixture.database(), key);
+                    if (balance != NEW_POINTS || ledger != balance) {
+                        failures++;
+                        System.out.println("Till " + till.name + ", " + BenchmarkDatabase.phone(i) + ": balance "
+                                           + balance + ", ledger sum " + ledger + ", expected " + NEW_POINTS);
+                    }
+                }
+            }
+        }
+        System.out.printf("%d customers expired at both tills: %d problems - %s%n",
+                          customers, failures, failures == 0 ? "PASSED" : "FAILED");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * One till's store and replica, syncing by handing deltas over directly.
+     */
+    private static final class Till {
+        final String name;
+        final BenchmarkDatabase fixture;
+        final ShardedDatabase store;
+        final PointsReplica replica;
+
+        Till(String name, BenchmarkDatabase fixture) throws SQLException {
+            this.name = name;
+            this.fixture = fixture;
+            this.store = new ShardedDatabase(fixture.database());
+            this.replica = new PointsReplica(fixture.database());
+        }
+
+        void sendTo(Till peer) throws SQLException, IOException {
+            long since = peer.replica.getPeer(name)[1];
+            ByteArrayOutputStream delta = new ByteArrayOutputStream();
+            replica.writeDelta(since, delta);
+            peer.replica.applyDelta(name, new ByteArrayInputStream(delta.toByteArray()), null);
+        }
+    }
+}
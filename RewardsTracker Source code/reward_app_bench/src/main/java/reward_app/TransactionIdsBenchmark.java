@@ -0,0 +1,147 @@
+/**
+ * TransactionIdsBenchmark - What a transaction ID costs an accrual.
+ * Adds points with and without a new ID, against SQLite and the memory
+ * store, with no IDs retained and with a million, as after a busy day.
+ * With an ID the store checks the in-memory set, then records the ID
+ * with the change: a row in txn_ids for SQLite, a log record for memory.
+ * The lookup alone is measured too, for an ID seen before and a new one.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 3)
+@Measurement(iterations = 5, time = 3)
+// Room for every ID a run adds, so none are forgotten early
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g", "-Drewards.txnMaxIds=100000000"})
+public class TransactionIdsBenchmark {
+    private static final int CUSTOMERS = 100_000;
+    private static final int SEED_BATCH = 10_000;
+
+    @Param({"memory", "sqlite"})
+    public String store;
+
+    @Param({"0", "1000000"})
+    public int retained;
+
+    private BenchmarkDatabase sqlite;
+    private Path memoryDirectory;
+    private RewardsStore rewards;
+    private TransactionIds ids;
+    private long[] retainedIds;
+    private final SplittableRandom random = new SplittableRandom(42);
+    private long nextId = 1;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, SQLException {
+        retainedIds = new long[Math.max(1, retained)];
+        for (int i = 0; i < retained; i++) {
+            retainedIds[i] = newId();
+        }
+        if (store.equals("sqlite")) {
+            sqlite = BenchmarkDatabase.create(CUSTOMERS, 1);
+            rewards = new ShardedDatabase(sqlite.database());
+            ids = sqlite.database().transactionIds();
+            seedSqlite();
+        } else {
+            memoryDirectory = Files.createTempDirectory("rewards-txn");
+            MemoryStore memory = new MemoryStore(memoryDirectory, 10, Long.MAX_VALUE);
+            rewards = memory;
+            for (int i = 0; i < retained; i++) {
+                memory.addPoints(BenchmarkDatabase.FIRST_KEY + i % CUSTOMERS, 1, retainedIds[i], null);
+            }
+            // Sets are only used under the store's lock; the benchmark thread is alone
+            ids = new TransactionIds(TransactionIds.DEFAULT_WINDOW_MILLIS, TransactionIds.DEFAULT_MAX_IDS);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < retained; i++) {
+                ids.add(retainedIds[i], now);
+            }
+        }
+    }
+
+    /**
+     * Writes the retained IDs straight into txn_ids and the shard's set,
+     * much faster than a million single accruals.
+     */
+    private void seedSqlite() throws SQLException {
+        long now = System.currentTimeMillis();
+        try (PooledConnection conn = sqlite.database().acquireWriter()) {
+            conn.begin();
+            PreparedStatement insert = conn.prepare("INSERT INTO txn_ids (gen, id) VALUES (?, ?)");
+            for (int i = 0; i < retained; i++) {
+                insert.setLong(1, ids.generation(now));
+                insert.setLong(2, retainedIds[i]);
+                insert.addBatch();
+                if (i % SEED_BATCH == SEED_BATCH - 1) {
+                    insert.executeBatch();
+                }
+                ids.add(retainedIds[i], now);
+            }
+            insert.executeBatch();
+            conn.commit();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        if (sqlite != null) {
+            sqlite.close();
+        } else {
+            rewards.close();
+            try (Stream<Path> files = Files.walk(memoryDirectory)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+    }
+
+    private long newId() {
+        // Stands in for TransactionIds.hash of a UUID
+        long id = (nextId++ * 0x9E3779B97F4A7C15L) & Long.MAX_VALUE;
+        return id == TransactionIds.NONE ? 1 : id;
+    }
+
+    private long customer() {
+        return BenchmarkDatabase.FIRST_KEY + random.nextInt(CUSTOMERS);
+    }
+
+    @Benchmark
+    public int addPoints() throws SQLException {
+        return rewards.addPoints(customer(), 1, null);
+    }
+
+    @Benchmark
+    public int addPointsWithId() throws SQLException {
+        return rewards.addPoints(customer(), 1, newId(), null);
+    }
+
+    /** A till's retry: found in the set, nothing written. A plain accrual with none retained. */
+    @Benchmark
+    public int addPointsReplayed() throws SQLException {
+        return rewards.addPoints(customer(), 1, retainedIds[random.nextInt(retainedIds.length)], null);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean lookupNew() {
+        return ids.contains(newId(), System.currentTimeMillis());
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public boolean lookupSeen() {
+        return ids.contains(retainedIds[random.nextInt(retainedIds.length)], System.currentTimeMillis());
+    }
+}
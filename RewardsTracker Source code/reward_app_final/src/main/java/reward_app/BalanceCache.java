@@ -0,0 +1,392 @@
+/**
+ * BalanceCache - Bounded in-process cache of phone key to points balance.
+ * Split into independently locked segments, each evicting by LRU or LFU.
+ * Writers update it through write-through; readers fill it on a miss only
+ * if no write touched the segment while they were reading the database,
+ * so it never hands out a stale balance. Each balance carries the time its
+ * points expire; past it, a lookup misses and the balance is read again.
+ */
+package reward_app;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.atomic.LongAdder;
+
+public class BalanceCache {
+    /** Returned by {@link #get(long)} when the balance is not cached. */
+    public static final long MISS = Long.MIN_VALUE;
+
+    /** Expiry time of a balance whose points never expire. */
+    public static final long NEVER = Long.MAX_VALUE;
+
+    /**
+     * Eviction policy applied when a segment is full.
+     */
+    public enum Policy {
+        /** Evict the least recently used balance. */
+        LRU,
+        /** Evict the least frequently used balance, oldest first on ties. */
+        LFU
+    }
+
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Segment[] segments;
+    private final int mask;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates an empty cache.
+     * @param maxEntries Maximum number of cached balances (at least 1)
+     * @param policy Eviction policy
+     */
+    public BalanceCache(int maxEntries, Policy policy) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache size must be at least 1");
+        }
+        int count = 1;
+        while (count < MAX_SEGMENTS && count * 2 <= maxEntries / 64) {
+            count *= 2;
+        }
+        segments = new Segment[count];
+        int perSegment = (maxEntries + count - 1) / count;
+        for (int i = 0; i < count; i++) {
+            segments[i] = policy == Policy.LRU ? new LruSegment(perSegment) : new LfuSegment(perSegment);
+        }
+        mask = count - 1;
+    }
+
+    /**
+     * Looks up a cached balance and records a hit or miss. A balance whose
+     * points have expired is dropped and reported as a miss.
+     * @param key Customer's phone key
+     * @return Cached balance, or {@link #MISS}
+     */
+    public long get(long key) {
+        Segment segment = segmentFor(key);
+        long balance = MISS;
+        synchronized (segment) {
+            Entry entry = segment.get(key);
+            if (entry != null) {
+                if (entry.expiresAt > System.currentTimeMillis()) {
+                    balance = entry.balance;
+                } else {
+                    segment.remove(key);
+                }
+            }
+        }
+        if (balance == MISS) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return balance;
+    }
+
+    /**
+     * Returns the write version to hand to {@link #fill(long, int, long, long)}.
+     * Call it before reading the balance from the database.
+     * @param key Customer's phone key
+     * @return Current write version of the key's segment
+     */
+    public long version(long key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            return segment.version;
+        }
+    }
+
+    /**
+     * Caches a balance read from the database after a miss. Skipped if a
+     * write reached the segment since {@code version} was taken, because
+     * the value read may already be out of date.
+     * @param key Customer's phone key
+     * @param balance Balance read from the database
+     * @param expiresAt When the balance's points expire, {@link #NEVER} if they don't
+     * @param version Value of {@link #version(long)} taken before the read
+     */
+    public void fill(long key, int balance, long expiresAt, long version) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            if (segment.version == version) {
+                store(segment, key, balance, expiresAt);
+            }
+        }
+    }
+
+    /**
+     * Write-through: records a balance that was just committed.
+     * @param key Customer's phone key
+     * @param balance Committed balance
+     * @param expiresAt When the balance's points expire, {@link #NEVER} if they don't
+     */
+    public void put(long key, int balance, long expiresAt) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.version++;
+            store(segment, key, balance, expiresAt);
+        }
+    }
+
+    /**
+     * Write-through for a commit that kept the points' expiry time, e.g. a
+     * redemption: updates the balance if cached, keeping its expiry time.
+     * An uncached balance stays uncached, as its expiry time is not known.
+     * @param key Customer's phone key
+     * @param balance Committed balance
+     */
+    public void update(long key, int balance) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.version++;
+            Entry entry = segment.get(key);
+            if (entry != null) {
+                entry.balance = balance;
+            }
+        }
+    }
+
+    /**
+     * Drops a cached balance whose new value is not known.
+     * @param key Customer's phone key
+     */
+    public void invalidate(long key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.version++;
+            segment.remove(key);
+        }
+    }
+
+    /**
+     * Drops every cached balance, e.g. after the stored balances were rebuilt.
+     */
+    public void clear() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.version++;
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * @return Number of lookups answered from the cache
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return Number of lookups that had to go to the database
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return Number of balances evicted to make room
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return Number of balances currently cached
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public String toString() {
+        return "BalanceCache[size=" + size() + ", hits=" + getHitCount()
+            + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    private void store(Segment segment, long key, int balance, long expiresAt) {
+        if (segment.put(key, balance, expiresAt)) {
+            evictions.increment();
+        }
+    }
+
+    private Segment segmentFor(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return segments[(int) (h >>> 32) & mask];
+    }
+
+    /**
+     * A cached balance. frequency is only used by LFU segments.
+     */
+    private static final class Entry {
+        int balance;
+        long expiresAt;
+        int frequency = 1;
+
+        Entry(int balance, long expiresAt) {
+            this.balance = balance;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * One independently locked slice of the cache. All methods are called
+     * with the segment's monitor held.
+     */
+    private abstract static class Segment {
+        final int capacity;
+        long version;
+
+        Segment(int capacity) {
+            this.capacity = capacity;
+        }
+
+        /** @return The key's entry, counted as a use, or null */
+        abstract Entry get(long key);
+
+        /** @return true if another entry was evicted to make room */
+        abstract boolean put(long key, int balance, long expiresAt);
+
+        abstract void remove(long key);
+
+        abstract void clear();
+
+        abstract int size();
+    }
+
+    private static final class LruSegment extends Segment {
+        private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        LruSegment(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        Entry get(long key) {
+            return entries.get(key);
+        }
+
+        @Override
+        boolean put(long key, int balance, long expiresAt) {
+            entries.put(key, new Entry(balance, expiresAt));
+            if (entries.size() > capacity) {
+                long eldest = entries.keySet().iterator().next();
+                entries.remove(eldest);
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        void remove(long key) {
+            entries.remove(key);
+        }
+
+        @Override
+        void clear() {
+            entries.clear();
+        }
+
+        @Override
+        int size() {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Constant-time LFU: entries are grouped into insertion-ordered buckets
+     * by use count, and the lowest non-empty bucket is tracked.
+     */
+    private static final class LfuSegment extends Segment {
+        private final HashMap<Long, Entry> entries = new HashMap<>();
+        private final HashMap<Integer, LinkedHashSet<Long>> buckets = new HashMap<>();
+        private int minFrequency;
+
+        LfuSegment(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        Entry get(long key) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                touch(key, entry);
+            }
+            return entry;
+        }
+
+        @Override
+        boolean put(long key, int balance, long expiresAt) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                entry.balance = balance;
+                entry.expiresAt = expiresAt;
+                touch(key, entry);
+                return false;
+            }
+            boolean evicted = false;
+            if (entries.size() >= capacity) {
+                LinkedHashSet<Long> coldest = buckets.get(minFrequency);
+                if (coldest == null) {
+                    // An invalidation emptied the tracked bucket; find the new minimum
+                    minFrequency = buckets.keySet().stream().min(Integer::compare).orElseThrow();
+                    coldest = buckets.get(minFrequency);
+                }
+                long victim = coldest.iterator().next();
+                unlink(victim, minFrequency);
+                entries.remove(victim);
+                evicted = true;
+            }
+            entries.put(key, new Entry(balance, expiresAt));
+            buckets.computeIfAbsent(1, f -> new LinkedHashSet<>()).add(key);
+            minFrequency = 1;
+            return evicted;
+        }
+
+        @Override
+        void remove(long key) {
+            Entry entry = entries.remove(key);
+            if (entry != null) {
+                unlink(key, entry.frequency);
+            }
+        }
+
+        @Override
+        void clear() {
+            entries.clear();
+            buckets.clear();
+        }
+
+        @Override
+        int size() {
+            return entries.size();
+        }
+
+        private void touch(long key, Entry entry) {
+            int frequency = entry.frequency;
+            unlink(key, frequency);
+            if (frequency == minFrequency && !buckets.containsKey(frequency)) {
+                minFrequency = frequency + 1;
+            }
+            entry.frequency = frequency + 1;
+            buckets.computeIfAbsent(entry.frequency, f -> new LinkedHashSet<>()).add(key);
+        }
+
+        private void unlink(long key, int frequency) {
+            LinkedHashSet<Long> bucket = buckets.get(frequency);
+            bucket.remove(key);
+            if (bucket.isEmpty()) {
+                buckets.remove(frequency);
+            }
+        }
+    }
+}
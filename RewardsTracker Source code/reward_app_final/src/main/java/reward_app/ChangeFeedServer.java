@@ -0,0 +1,169 @@
+/**
+ * ChangeFeedServer - Streams balance changes to local subscribers over a
+ * plain socket, on this machine only (loopback).
+ * A subscriber connects and sends one line: the offset of the first
+ * change it wants, i.e. one more than the last change it saw, or an
+ * empty line for changes from now on. It then gets one CSV line per
+ * change, offset,time,phone,delta,balance (balance empty if not known),
+ * first the changes it missed and then each new one as it is written.
+ * An offset that is no longer kept, or not yet made, gets a single line
+ * "error,message" instead.
+ *
+ * Subscribers read the change files, not the ring, so a slow or stuck
+ * subscriber never holds the tills back.
+ */
+package reward_app;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+public final class ChangeFeedServer implements AutoCloseable {
+    private static final int READ_LIMIT = 4096;
+    private static final long WAIT_MILLIS = 1000;
+    private static final int REQUEST_TIMEOUT_MILLIS = 10_000;
+
+    private final ChangeLogFile log;
+    private final ServerSocket server;
+    private final Set<Socket> subscribers = ConcurrentHashMap.newKeySet();
+    private volatile boolean closed;
+
+    /**
+     * Binds to the loopback address and starts accepting subscribers.
+     * @param log Change files subscribers are served from
+     * @param port Port to listen on, 0 for any free port
+     * @throws IOException If the port cannot be bound
+     */
+    public ChangeFeedServer(ChangeLogFile log, int port) throws IOException {
+        this.log = log;
+        this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(this::accept, "rewards-change-feed");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * @return Port subscribers connect to
+     */
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    /**
+     * Stops accepting and disconnects every subscriber.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            server.close();
+        } catch (IOException e) {
+            System.out.println("Error closing change feed: " + e.getMessage());
+        }
+        for (Socket socket : subscribers) {
+            closeQuietly(socket);
+        }
+    }
+
+    private void accept() {
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                if (!closed) {
+                    System.out.println("Error accepting change feed subscriber: " + e.getMessage());
+                }
+                return;
+            }
+            subscribers.add(socket);
+            Thread thread = new Thread(() -> serve(socket), "rewards-change-feed-" + socket.getPort());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+            BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+            Writer out = new BufferedWriter(
+                new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII));
+            String request = in.readLine();
+            if (request == null) {
+                return;
+            }
+            long offset;
+            try {
+                offset = request.isBlank() ? log.end() : Long.parseLong(request.trim());
+            } catch (NumberFormatException e) {
+                offset = -1;
+            }
+            String error = null;
+            if (offset < 0) {
+                error = "Send the offset of the first change wanted, or an empty line";
+            } else if (offset < log.oldestOffset()) {
+                error = "Change " + offset + " is no longer kept; the oldest is " + log.oldestOffset();
+            } else if (offset > log.end()) {
+                error = "Change " + offset + " has not been made yet; the next is " + log.end();
+            }
+            if (error != null) {
+                out.write("error," + error + "\n");
+                out.flush();
+                return;
+            }
+            ChangeSink sink = (o, time, key, delta, balance) -> {
+                out.write(Long.toString(o));
+                out.write(',');
+                out.write(Long.toString(time));
+                out.write(',');
+                out.write(PhoneNumbers.format(key));
+                out.write(',');
+                out.write(Integer.toString(delta));
+                out.write(',');
+                if (balance != ChangeStream.UNKNOWN_BALANCE) {
+                    out.write(Integer.toString(balance));
+                }
+                out.write('\n');
+            };
+            while (!closed) {
+                if (log.await(offset, WAIT_MILLIS) <= offset) {
+                    if (log.isClosed()) {
+                        return;
+                    }
+                    continue;
+                }
+                offset = log.read(offset, READ_LIMIT, sink);
+                out.flush();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // Also a subscriber reading so slowly that its files were deleted
+            if (!closed && !socket.isClosed()) {
+                System.out.println("Error sending changes to subscriber: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            subscribers.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/**
+ * ChangeLogFile - ChangeSink that appends balance changes to files in a
+ * folder, so other systems can read them later or catch up after being
+ * away. Each change is a fixed 36-byte record (offset, time, phone key,
+ * delta, balance, CRC) in files named after the offset of their first
+ * change, e.g. changes-00000000000000000000.log. A file holds 1,048,576
+ * changes (36 MB); the oldest files are deleted beyond the number kept.
+ *
+ * Each batch is forced to disk before subscribers can read it, so an
+ * offset a subscriber has seen is never given to another change after a
+ * crash. A record torn by a crash is dropped on opening, and the stream
+ * carries on from the last whole change.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+public final class ChangeLogFile implements ChangeSink {
+    public static final String DEFAULT_DIRECTORY = "rewards-changes";
+    public static final int DEFAULT_FILES_KEPT = 16;
+    static final int RECORD_BYTES = 36;
+    private static final int CHECKED_BYTES = 32;
+    private static final String PREFIX = "changes-";
+    private static final String SUFFIX = ".log";
+    private static final long RECORDS_PER_FILE = 1 << 20;
+    private static final int READ_RECORDS = 4096;
+
+    private final Path directory;
+    private final int filesKept;
+    private final CRC32C crc = new CRC32C();
+    private final ByteBuffer buffer = ByteBuffer.allocate(1820 * RECORD_BYTES);
+
+    // Owned by the stream's thread for this sink
+    private FileChannel file;
+    private long fileFirst;
+    private long next;
+
+    // Guarded by "this": offset one past the last change written out
+    private long end;
+    private boolean closed;
+
+    /**
+     * Opens the folder, creating it if needed, and finds where the last
+     * run stopped.
+     * @param directory Folder holding the change files
+     * @param filesKept How many files to keep, at least 2
+     * @throws IOException If the folder cannot be read or the last file is damaged
+     */
+    public ChangeLogFile(Path directory, int filesKept) throws IOException {
+        if (filesKept < 2) {
+            throw new IllegalArgumentException("At least two change files must be kept");
+        }
+        this.directory = directory;
+        this.filesKept = filesKept;
+        Files.createDirectories(directory);
+        List<Path> files = files(directory);
+        if (files.isEmpty()) {
+            openFile(0);
+        } else {
+            Path last = files.get(files.size() - 1);
+            fileFirst = firstOffset(last);
+            file = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long records = file.size() / RECORD_BYTES;
+            ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES);
+            // Only the tail can be torn, as records are only ever appended
+            while (records > 0) {
+                readFully(file, record, (records - 1) * RECORD_BYTES, RECORD_BYTES);
+                if (valid(record, 0, crc) && record.getLong(0) == fileFirst + records - 1) {
+                    break;
+                }
+                records--;
+            }
+            if (records * RECORD_BYTES != file.size()) {
+                System.out.println("Dropping torn change record at " + last);
+                file.truncate(records * RECORD_BYTES);
+            }
+            file.position(records * RECORD_BYTES);
+            next = fileFirst + records;
+        }
+        end = next;
+    }
+
+    /**
+     * @return Offset the next change written must have; start the stream there
+     */
+    public long nextOffset() {
+        return next;
+    }
+
+    @Override
+    public void write(long offset, long time, long key, int delta, int balance) throws IOException {
+        if (offset != next) {
+            throw new IOException("Change " + next + " is missing, got " + offset);
+        }
+        if (next - fileFirst == RECORDS_PER_FILE) {
+            drain();
+            file.force(false);
+            file.close();
+            openFile(next);
+            deleteOldFiles();
+        }
+        if (!buffer.hasRemaining()) {
+            drain();
+        }
+        int at = buffer.position();
+        buffer.putLong(offset).putLong(time).putLong(key).putInt(delta).putInt(balance);
+        crc.reset();
+        crc.update(buffer.array(), at, CHECKED_BYTES);
+        buffer.putInt((int) crc.getValue());
+        next++;
+    }
+
+    /**
+     * Writes the batch to disk and wakes subscribers waiting for it.
+     */
+    @Override
+    public void flush() throws IOException {
+        drain();
+        file.force(false);
+        synchronized (this) {
+            end = next;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            file.close();
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return Offset one past the last change written out
+     */
+    public synchronized long end() {
+        return end;
+    }
+
+    /**
+     * @return Offset of the oldest change still kept
+     * @throws IOException If the folder cannot be read
+     */
+    public long oldestOffset() throws IOException {
+        List<Path> files = files(directory);
+        return files.isEmpty() ? end() : firstOffset(files.get(0));
+    }
+
+    /**
+     * @return Whether the stream has stopped writing here
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Waits until there are changes from an offset on, the time is up or
+     * the file is closed.
+     * @param offset First change wanted
+     * @param timeoutMillis Longest wait
+     * @return Offset one past the last change written out
+     * @throws InterruptedException If interrupted while waiting
+     */
+    public synchronized long await(long offset, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (end <= offset && !closed) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0) {
+                break;
+            }
+            wait(left);
+        }
+        return end;
+    }
+
+    /**
+     * Reads changes written out so far, oldest first. Safe from any thread.
+     * @param from First change to read
+     * @param limit Most changes to read
+     * @param reader Receives each change
+     * @return Offset after the last change read, from if there were none
+     * @throws IOException If a file cannot be read or is damaged
+     * @throws IllegalArgumentException If the change at from is no longer kept
+     */
+    public long read(long from, int limit, ChangeSink reader) throws IOException {
+        long to = Math.min(end(), from + limit);
+        if (from >= to) {
+            return from;
+        }
+        List<Path> files = files(directory);
+        int index = files.size() - 1;
+        while (index >= 0 && firstOffset(files.get(index)) > from) {
+            index--;
+        }
+        if (index < 0) {
+            throw new IllegalArgumentException("Change " + from + " is no longer kept; the oldest is " + oldestOffset());
+        }
+        ByteBuffer records = ByteBuffer.allocate(READ_RECORDS * RECORD_BYTES);
+        CRC32C check = new CRC32C();
+        long offset = from;
+        for (; index < files.size() && offset < to; index++) {
+            Path path = files.get(index);
+            long first = firstOffset(path);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                long fileEnd = Math.min(to, first + RECORDS_PER_FILE);
+                while (offset < fileEnd) {
+                    int count = (int) Math.min(READ_RECORDS, fileEnd - offset);
+                    readFully(channel, records, (offset - first) * RECORD_BYTES, count * RECORD_BYTES);
+                    for (int i = 0; i < count; i++) {
+                        int at = i * RECORD_BYTES;
+                        if (!valid(records, at, check) || records.getLong(at) != offset) {
+                            throw new IOException(path + " is damaged at change " + offset);
+                        }
+                        reader.write(offset, records.getLong(at + 8), records.getLong(at + 16),
+                            records.getInt(at + 24), records.getInt(at + 28));
+                        offset++;
+                    }
+                }
+            }
+        }
+        return offset;
+    }
+
+    private void openFile(long first) throws IOException {
+        fileFirst = first;
+        next = first;
+        file = FileChannel.open(filePath(directory, first), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.READ);
+        file.position(file.size());
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            file.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void deleteOldFiles() throws IOException {
+        List<Path> files = files(directory);
+        for (int i = 0; i < files.size() - filesKept; i++) {
+            Files.deleteIfExists(files.get(i));
+        }
+    }
+
+    private static boolean valid(ByteBuffer buffer, int offset, CRC32C check) {
+        check.reset();
+        check.update(buffer.array(), offset, CHECKED_BYTES);
+        return (int) check.getValue() == buffer.getInt(offset + CHECKED_BYTES);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int length)
+            throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Change file ended early");
+            }
+        }
+    }
+
+    private static List<Path> files(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static long firstOffset(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private static Path filePath(Path directory, long first) {
+        // Zero padded so name order is offset order
+        return directory.resolve(String.format("%s%020d%s", PREFIX, first, SUFFIX));
+    }
+}
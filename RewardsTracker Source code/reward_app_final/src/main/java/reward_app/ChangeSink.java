@@ -0,0 +1,38 @@
+/**
+ * ChangeSink - Receives balance changes from a ChangeStream, in offset
+ * order, on the sink's own thread. Changes arrive in batches: write is
+ * called for each, then flush once the batch is done, so a sink can
+ * buffer its output. Also used to read changes back from a ChangeLogFile.
+ */
+package reward_app;
+
+import java.io.IOException;
+
+@FunctionalInterface
+public interface ChangeSink extends AutoCloseable {
+    /**
+     * Takes one change.
+     * @param offset Position of the change in the stream; one more than the change before it
+     * @param time When the change was made, epoch milliseconds
+     * @param key Customer's phone key
+     * @param delta Points added, negative if taken (redeemed or expired)
+     * @param balance Balance after the change, or {@link ChangeStream#UNKNOWN_BALANCE}
+     * @throws IOException If the change cannot be passed on; the sink is then dropped
+     */
+    void write(long offset, long time, long key, int delta, int balance) throws IOException;
+
+    /**
+     * Called after each batch of writes.
+     * @throws IOException If buffered changes cannot be passed on; the sink is then dropped
+     */
+    default void flush() throws IOException {
+    }
+
+    /**
+     * Called once the stream stops, or when the sink is dropped.
+     * @throws IOException If the sink cannot be closed cleanly
+     */
+    @Override
+    default void close() throws IOException {
+    }
+}
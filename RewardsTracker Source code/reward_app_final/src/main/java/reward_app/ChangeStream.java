@@ -0,0 +1,239 @@
+/**
+ * ChangeStream - Every committed balance change, in order, for systems
+ * that follow the balances, e.g. a CRM.
+ * A bounded ring of changes written by the tills and read by any number
+ * of sinks, each on its own thread. Publishing takes an offset with one
+ * atomic increment and writes the change into plain arrays, so it never
+ * allocates or locks. A change is only overwritten once every sink has
+ * read it; if the slowest sink falls a whole ring behind, publishers wait
+ * for it (backpressure) rather than lose changes.
+ *
+ * Changes for one customer are published while the store still holds
+ * that customer's write lock, so they come out in commit order.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+public final class ChangeStream implements AutoCloseable {
+    /** Balance passed for write-behind batches, which commit without reading the balance back. */
+    public static final int UNKNOWN_BALANCE = Integer.MIN_VALUE;
+    /** Ring size used by RewardsManager: 65,536 changes, about 2 MB. */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+    private static final int MAX_BATCH = 4096;
+    // How long an idle sink sleeps before looking for new changes
+    private static final long IDLE_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final long FULL_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+    private static final VarHandle PUBLISHED = MethodHandles.arrayElementVarHandle(long[].class);
+
+    private final int mask;
+    // Offset held by each slot once its change is written, read with acquire
+    private final long[] published;
+    private final long[] times;
+    private final long[] keys;
+    private final int[] deltas;
+    private final int[] balances;
+    private final AtomicLong next;
+    private final List<Reader> readers = new CopyOnWriteArrayList<>();
+    private final LongAdder waits = new LongAdder();
+    // Lowest reader position seen, refreshed only when a publisher nears
+    // it; set to Long.MIN_VALUE to make the next publisher look again
+    private final AtomicLong gate = new AtomicLong(Long.MAX_VALUE);
+    private volatile boolean closed;
+
+    /**
+     * Creates an empty stream; add sinks before publishing so they see every change.
+     * @param capacity Changes the ring holds, a power of two
+     * @param firstOffset Offset of the first change, e.g. where a change file left off
+     * @throws IllegalArgumentException If capacity is not a power of two or firstOffset is negative
+     */
+    public ChangeStream(int capacity, long firstOffset) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        }
+        if (firstOffset < 0) {
+            throw new IllegalArgumentException("First offset must not be negative");
+        }
+        this.mask = capacity - 1;
+        this.published = new long[capacity];
+        this.times = new long[capacity];
+        this.keys = new long[capacity];
+        this.deltas = new int[capacity];
+        this.balances = new int[capacity];
+        this.next = new AtomicLong(firstOffset);
+        Arrays.fill(published, -1);
+    }
+
+    /**
+     * Publishes a committed change. Safe from any thread; returns at once
+     * unless the slowest sink is a whole ring behind.
+     * @param key Customer's phone key
+     * @param delta Points added, negative if taken
+     * @param balance Balance after the change, or {@link #UNKNOWN_BALANCE}
+     * @return Offset of the change
+     */
+    public long publish(long key, int delta, int balance) {
+        long offset = next.getAndIncrement();
+        // The slot is free once every reader is past the change a ring ago
+        long previous = offset - published.length;
+        if (previous >= gate.get()) {
+            awaitSpace(previous);
+        }
+        int slot = (int) offset & mask;
+        times[slot] = System.currentTimeMillis();
+        keys[slot] = key;
+        deltas[slot] = delta;
+        balances[slot] = balance;
+        PUBLISHED.setRelease(published, slot, offset);
+        return offset;
+    }
+
+    private void awaitSpace(long previous) {
+        boolean waited = false;
+        while (true) {
+            long seen = gate.get();
+            long lowest = Long.MAX_VALUE;
+            for (Reader reader : readers) {
+                lowest = Math.min(lowest, reader.position.get());
+            }
+            // Lost if a sink was added or dropped meanwhile; the next look sees it
+            gate.compareAndSet(seen, lowest);
+            if (previous < lowest) {
+                return;
+            }
+            if (!waited) {
+                waits.increment();
+                waited = true;
+            }
+            LockSupport.parkNanos(FULL_NANOS);
+        }
+    }
+
+    /**
+     * Starts feeding a sink every change published from now on.
+     * @param name Name for the sink's thread and error messages
+     * @param sink Sink to feed
+     */
+    public void addSink(String name, ChangeSink sink) {
+        if (closed) {
+            throw new IllegalStateException("Change stream is closed");
+        }
+        Reader reader = new Reader(name, sink, next.get());
+        readers.add(reader);
+        // Publishers must not overwrite what the new reader has yet to read
+        gate.set(Long.MIN_VALUE);
+        reader.thread.start();
+    }
+
+    /**
+     * @return Offset the next change will get
+     */
+    public long getNextOffset() {
+        return next.get();
+    }
+
+    /**
+     * @return Number of publishes that had to wait for a slow sink
+     */
+    public long getWaits() {
+        return waits.sum();
+    }
+
+    /**
+     * @return Changes the slowest sink has yet to take
+     */
+    public long getLag() {
+        long end = next.get();
+        long lag = 0;
+        for (Reader reader : readers) {
+            lag = Math.max(lag, end - reader.position.get());
+        }
+        return lag;
+    }
+
+    /**
+     * Lets every sink take the changes published so far, then stops and
+     * closes them. Publish nothing after calling this.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Reader reader : readers) {
+            LockSupport.unpark(reader.thread);
+        }
+        for (Reader reader : readers) {
+            try {
+                reader.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * One sink's position in the ring and the thread that feeds it.
+     */
+    private final class Reader {
+        final String name;
+        final ChangeSink sink;
+        // Offset of the next change to take; everything before it is taken
+        final AtomicLong position;
+        final Thread thread;
+
+        Reader(String name, ChangeSink sink, long position) {
+            this.name = name;
+            this.sink = sink;
+            this.position = new AtomicLong(position);
+            this.thread = new Thread(this::run, "rewards-changes-" + name);
+            thread.setDaemon(true);
+        }
+
+        private void run() {
+            try {
+                while (true) {
+                    // Read before checking for changes, so the final drain sees them all
+                    boolean stopping = closed;
+                    long from = position.get();
+                    long to = from;
+                    while (to - from < MAX_BATCH && (long) PUBLISHED.getAcquire(published, (int) to & mask) == to) {
+                        to++;
+                    }
+                    if (to == from) {
+                        if (stopping) {
+                            break;
+                        }
+                        LockSupport.parkNanos(IDLE_NANOS);
+                        continue;
+                    }
+                    for (long offset = from; offset < to; offset++) {
+                        int slot = (int) offset & mask;
+                        sink.write(offset, times[slot], keys[slot], deltas[slot], balances[slot]);
+                    }
+                    sink.flush();
+                    position.set(to);
+                }
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Error writing changes to " + name + ": " + e.getMessage());
+            } finally {
+                // A dropped sink no longer holds publishers back
+                readers.remove(this);
+                gate.set(Long.MIN_VALUE);
+                try {
+                    sink.close();
+                } catch (IOException e) {
+                    System.out.println("Error closing change sink " + name + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+}
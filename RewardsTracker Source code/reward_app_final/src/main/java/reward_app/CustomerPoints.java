@@ -0,0 +1,39 @@
+/**
+ * CustomerPoints - One customer's balance in a report, e.g. a row of the
+ * top customers list.
+ */
+package reward_app;
+
+public final class CustomerPoints {
+    private final long phone;
+    private final int points;
+
+    /**
+     * Creates a report row.
+     * @param phone Customer's phone key
+     * @param points Customer's balance
+     */
+    CustomerPoints(long phone, int points) {
+        this.phone = phone;
+        this.points = points;
+    }
+
+    /**
+     * @return Customer's phone key
+     */
+    public long getPhone() {
+        return phone;
+    }
+
+    /**
+     * @return Customer's balance
+     */
+    public int getPoints() {
+        return points;
+    }
+
+    @Override
+    public String toString() {
+        return "CustomerPoints[phone=" + PhoneNumbers.format(phone) + ", points=" + points + "]";
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * DailyPoints - Points issued and taken back on one day, a row of the
+ * points-per-day report. Expired points count as redeemed, as the ledger
+ * records both as deductions.
+ */
+package reward_app;
+
+import java.time.LocalDate;
+
+public final class DailyPoints {
+    private final LocalDate day;
+    private final long issued;
+    private final long redeemed;
+
+    /**
+     * Creates a report row.
+     * @param day Day, in the server's time zone
+     * @param issued Points added that day
+     * @param redeemed Points deducted that day, as a positive number
+     */
+    DailyPoints(LocalDate day, long issued, long redeemed) {
+        this.day = day;
+        this.issued = issued;
+        this.redeemed = redeemed;
+    }
+
+    /**
+     * @return Day, in the server's time zone
+     */
+    public LocalDate getDay() {
+        return day;
+    }
+
+    /**
+     * @return Points added that day
+     */
+    public long getIssued() {
+        return issued;
+    }
+
+    /**
+     * @return Points redeemed or expired that day, as a positive number
+     */
+    public long getRedeemed() {
+        return redeemed;
+    }
+
+    @Override
+    public String toString() {
+        return "DailyPoints[day=" + day + ", issued=" + issued + ", redeemed=" + redeemed + "]";
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * DeferredRewardsService - A RewardsService that is still starting up.
+ * Lets the till window open before the database is ready: each call waits
+ * for the real service and then runs on it, without blocking the caller.
+ * Calls made once it is ready go straight through. If the service fails
+ * to start, every call fails with the startup error.
+ */
+package reward_app;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+public final class DeferredRewardsService implements RewardsService {
+    private final CompletableFuture<? extends RewardsService> service;
+
+    /**
+     * @param service Completes with the service once it has started
+     */
+    public DeferredRewardsService(CompletableFuture<? extends RewardsService> service) {
+        this.service = service;
+    }
+
+    /**
+     * Starts a service on its own thread, so it can start while the
+     * window is being built.
+     * @param starter Creates the service, e.g. opens the database
+     * @return Service that runs calls once the starter returns
+     */
+    public static DeferredRewardsService start(Supplier<? extends RewardsService> starter) {
+        CompletableFuture<RewardsService> started = new CompletableFuture<>();
+        Thread thread = new Thread(() -> {
+            try {
+                started.complete(starter.get());
+            } catch (RuntimeException | Error e) {
+                System.out.println("Error starting rewards: " + e.getMessage());
+                started.completeExceptionally(e);
+            }
+        }, "rewards-startup");
+        thread.setDaemon(true);
+        thread.start();
+        return new DeferredRewardsService(started);
+    }
+
+    /**
+     * @return Future completed with the service once it has started
+     */
+    public CompletableFuture<? extends RewardsService> whenStarted() {
+        return service;
+    }
+
+    @Override
+    public CompletableFuture<Void> addPointsAsync(String phone, double amount) {
+        return service.thenCompose(started -> started.addPointsAsync(phone, amount))
+                      .exceptionallyCompose(this::unwrap);
+    }
+
+    @Override
+    public CompletableFuture<Integer> checkPointsAsync(String phone) {
+        return service.thenCompose(started -> started.checkPointsAsync(phone))
+                      .exceptionallyCompose(this::unwrap);
+    }
+
+    @Override
+    public CompletableFuture<Integer> subtractPointsAsync(String phone, int points) {
+        return service.thenCompose(started -> started.subtractPointsAsync(phone, points))
+                      .exceptionallyCompose(this::unwrap);
+    }
+
+    @Override
+    public CompletableFuture<RedemptionResult> redeemAsync(String phone, int points) {
+        return service.thenCompose(started -> started.redeemAsync(phone, points))
+                      .exceptionallyCompose(this::unwrap);
+    }
+
+    @Override
+    public CompletableFuture<List<CustomerPoints>> findCustomersAsync(String prefix, int limit) {
+        return service.thenCompose(started -> started.findCustomersAsync(prefix, limit))
+                      .exceptionallyCompose(this::unwrap);
+    }
+
+    /**
+     * Fails with the original error rather than a CompletionException
+     * around it, as the real service would, so the till shows its message.
+     */
+    private <T> CompletableFuture<T> unwrap(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return CompletableFuture.failedFuture(cause);
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * EdtStallMonitor - Measures how long the Swing Event Dispatch Thread is blocked.
+ * Installed as the system event queue, it times every dispatched event and
+ * counts those that take longer than a frame as stalls. Enable it with
+ * -Drewards.edtMonitor=true; a summary is printed when the app exits.
+ */
+package reward_app;
+
+import java.awt.AWTEvent;
+import java.awt.EventQueue;
+import java.awt.Toolkit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class EdtStallMonitor extends EventQueue {
+    // One frame at 60 Hz; anything slower is visible to the cashier
+    private static final long STALL_THRESHOLD_NANOS = 16_000_000L;
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+    private final AtomicLong stallNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Replaces the system event queue with a monitor and prints its
+     * summary on shutdown.
+     * @return The installed monitor
+     */
+    public static EdtStallMonitor install() {
+        EdtStallMonitor monitor = new EdtStallMonitor();
+        Toolkit.getDefaultToolkit().getSystemEventQueue().push(monitor);
+        Runtime.getRuntime().addShutdownHook(new Thread(
+            () -> System.out.println(monitor), "edt-stall-summary"));
+        return monitor;
+    }
+
+    @Override
+    protected void dispatchEvent(AWTEvent event) {
+        long eventsBefore = events.get();
+        long start = System.nanoTime();
+        try {
+            super.dispatchEvent(event);
+        } finally {
+            // A modal dialog pumps events from inside its dispatch; the EDT
+            // was responsive during that time, so it isn't a stall
+            boolean pumpedNested = events.get() != eventsBefore;
+            record(System.nanoTime() - start, pumpedNested);
+        }
+    }
+
+    private void record(long nanos, boolean pumpedNested) {
+        events.incrementAndGet();
+        if (pumpedNested) {
+            return;
+        }
+        if (nanos >= STALL_THRESHOLD_NANOS) {
+            stalls.incrementAndGet();
+            stallNanos.addAndGet(nanos);
+        }
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * @return Number of events dispatched
+     */
+    public long getEventCount() {
+        return events.get();
+    }
+
+    /**
+     * @return Number of events that blocked the EDT for longer than a frame
+     */
+    public long getStallCount() {
+        return stalls.get();
+    }
+
+    /**
+     * @return Total time spent in stalled events, in milliseconds
+     */
+    public double getStallMillis() {
+        return stallNanos.get() / 1_000_000.0;
+    }
+
+    /**
+     * @return Longest single event dispatch, in milliseconds
+     */
+    public double getMaxMillis() {
+        return maxNanos.get() / 1_000_000.0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("EDT: %d events, %d stalls totalling %.1f ms, longest %.1f ms",
+            getEventCount(), getStallCount(), getStallMillis(), getMaxMillis());
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * ExpirySweeper - Expires overdue points in the background.
+ * A daemon thread asks the store to expire a small batch at a time, each
+ * batch bounded by a count and a few milliseconds of work, and pauses
+ * between batches so accruals and redemptions queued behind the write
+ * lock get through. Once nothing is overdue it sleeps until the next
+ * sweep; balances that fall due in between already read as 0.
+ */
+package reward_app;
+
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public final class ExpirySweeper implements AutoCloseable {
+    static final int BATCH_BALANCES = 500;
+    static final long BATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+    static final long PAUSE_MILLIS = 10;
+
+    private final RewardsStore store;
+    private final RewardsStore.CommitListener listener;
+    private final ScheduledExecutorService sweeper;
+
+    /**
+     * Starts sweeping.
+     * @param store Store with a points lifetime set
+     * @param intervalMillis Time between sweeps once caught up
+     * @param listener Told of every expired balance, may be null
+     */
+    public ExpirySweeper(RewardsStore store, long intervalMillis, RewardsStore.CommitListener listener) {
+        this.store = store;
+        this.listener = listener;
+        sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rewards-expiry-sweep");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sweeper.scheduleWithFixedDelay(this::sweep, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Expires batches until nothing overdue is left.
+     * @return Whether the sweep finished, false if it failed or was stopped
+     */
+    public boolean sweep() {
+        try {
+            while (store.expireDue(BATCH_BALANCES, BATCH_NANOS, listener)) {
+                Thread.sleep(PAUSE_MILLIS);
+            }
+            return true;
+        } catch (SQLException e) {
+            System.out.println("Error expiring points: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Stops sweeping. Overdue balances still read as 0.
+     */
+    @Override
+    public void close() {
+        sweeper.shutdownNow();
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * ImportResult - Summary of a bulk CSV import.
+ * Reports how many rows were loaded and rejected, and how fast.
+ */
+package reward_app;
+
+public final class ImportResult {
+    private final long imported;
+    private final long rejected;
+    private final long elapsedMillis;
+
+    /**
+     * Creates an import summary.
+     * @param imported Rows written to the database
+     * @param rejected Rows written to the rejects file instead
+     * @param elapsedMillis Wall-clock duration of the import
+     */
+    ImportResult(long imported, long rejected, long elapsedMillis) {
+        this.imported = imported;
+        this.rejected = rejected;
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    /**
+     * @return Rows written to the database
+     */
+    public long getImported() {
+        return imported;
+    }
+
+    /**
+     * @return Rows written to the rejects file
+     */
+    public long getRejected() {
+        return rejected;
+    }
+
+    /**
+     * @return Wall-clock duration of the import in milliseconds
+     */
+    public long getElapsedMillis() {
+        return elapsedMillis;
+    }
+
+    /**
+     * @return Rows read (imported and rejected) per second
+     */
+    public double getRowsPerSecond() {
+        return elapsedMillis == 0 ? 0 : (imported + rejected) * 1000.0 / elapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Imported %d rows, rejected %d, in %d ms (%.0f rows/sec)",
+            imported, rejected, elapsedMillis, getRowsPerSecond());
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ * Json - Minimal reader and writer for the flat JSON objects exchanged
+ * between tills and the rewards server. Supports string, number and
+ * boolean values only; nested objects and arrays are rejected, as is
+ * anything that isn't strict JSON, e.g. NaN or text after the object.
+ */
+package reward_app;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+final class Json {
+    private static final Pattern NUMBER = Pattern.compile("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+
+    private Json() {
+    }
+
+    /**
+     * Parses a flat JSON object.
+     * @param text JSON text such as {"phone":"7051234567","points":5}
+     * @return Field name to value: String, finite Double or Boolean
+     * @throws IllegalArgumentException If the text is not exactly one flat JSON object
+     */
+    static Map<String, Object> parse(String text) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        int[] pos = {skipSpace(text, 0)};
+        expect(text, pos, '{');
+        if (peek(text, pos) == '}') {
+            pos[0]++;
+            return end(text, pos, fields);
+        }
+        while (true) {
+            String name = readString(text, pos);
+            expect(text, pos, ':');
+            fields.put(name, readValue(text, pos));
+            char next = peek(text, pos);
+            pos[0]++;
+            if (next == '}') {
+                return end(text, pos, fields);
+            }
+            if (next != ',') {
+                throw new IllegalArgumentException("Malformed JSON object");
+            }
+        }
+    }
+
+    /**
+     * @return The fields, if nothing but whitespace follows the object
+     */
+    private static Map<String, Object> end(String text, int[] pos, Map<String, Object> fields) {
+        if (skipSpace(text, pos[0]) != text.length()) {
+            throw new IllegalArgumentException("Unexpected text after JSON object");
+        }
+        return fields;
+    }
+
+    /**
+     * Writes a flat JSON object from alternating names and values.
+     * @param namesAndValues name1, value1, name2, value2, ...
+     * @return JSON text
+     */
+    static String object(Object... namesAndValues) {
+        StringBuilder out = new StringBuilder("{");
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            if (i > 0) {
+                out.append(',');
+            }
+            appendString(out, namesAndValues[i].toString());
+            out.append(':');
+            Object value = namesAndValues[i + 1];
+            if (value instanceof Number || value instanceof Boolean) {
+                out.append(value);
+            } else {
+                appendString(out, String.valueOf(value));
+            }
+        }
+        return out.append('}').toString();
+    }
+
+    private static Object readValue(String text, int[] pos) {
+        char c = peek(text, pos);
+        if (c == '"') {
+            return readString(text, pos);
+        }
+        int start = pos[0];
+        while (pos[0] < text.length() && ",} \t\r\n".indexOf(text.charAt(pos[0])) < 0) {
+            pos[0]++;
+        }
+        String literal = text.substring(start, pos[0]);
+        if (literal.equals("true") || literal.equals("false")) {
+            return Boolean.valueOf(literal);
+        }
+        // Double.valueOf alone would also take NaN, Infinity, hex and a trailing d or f
+        if (!NUMBER.matcher(literal).matches()) {
+            throw new IllegalArgumentException("Unsupported JSON value: " + literal);
+        }
+        double value = Double.parseDouble(literal);
+        if (Double.isInfinite(value)) {
+            throw new IllegalArgumentException("JSON number out of range: " + literal);
+        }
+        return value;
+    }
+
+    private static String readString(String text, int[] pos) {
+        expect(text, pos, '"');
+        StringBuilder value = new StringBuilder();
+        while (pos[0] < text.length()) {
+            char c = text.charAt(pos[0]++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c < 0x20) {
+                throw new IllegalArgumentException("Control character in JSON string");
+            }
+            if (c == '\\' && pos[0] < text.length()) {
+                char escaped = text.charAt(pos[0]++);
+                switch (escaped) {
+                    case '"': case '\\': case '/': value.append(escaped); break;
+                    case 'b': value.append('\b'); break;
+                    case 'f': value.append('\f'); break;
+                    case 'n': value.append('\n'); break;
+                    case 't': value.append('\t'); break;
+                    case 'r': value.append('\r'); break;
+                    case 'u': value.append(readHex(text, pos)); break;
+                    default: throw new IllegalArgumentException("Invalid JSON escape: \\" + escaped);
+                }
+            } else {
+                value.append(c);
+            }
+        }
+        throw new IllegalArgumentException("Unterminated JSON string");
+    }
+
+    /**
+     * @return The character given by the four hex digits of a u escape
+     */
+    private static char readHex(String text, int[] pos) {
+        if (pos[0] + 4 > text.length()) {
+            throw new IllegalArgumentException("Unterminated JSON string");
+        }
+        int code = 0;
+        for (int i = 0; i < 4; i++) {
+            char hex = text.charAt(pos[0]++);
+            // Character.digit would also take digits from other scripts
+            int digit = hex < 0x80 ? Character.digit(hex, 16) : -1;
+            if (digit < 0) {
+                throw new IllegalArgumentException("Invalid JSON escape: \\u" + text.substring(pos[0] - i - 1, pos[0]));
+            }
+            code = code * 16 + digit;
+        }
+        return (char) code;
+    }
+
+    private static void appendString(StringBuilder out, String value) {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format("\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+
+    private static void expect(String text, int[] pos, char expected) {
+        if (peek(text, pos) != expected) {
+            throw new IllegalArgumentException("Expected '" + expected + "' in JSON");
+        }
+        pos[0]++;
+    }
+
+    private static char peek(String text, int[] pos) {
+        pos[0] = skipSpace(text, pos[0]);
+        if (pos[0] >= text.length()) {
+            throw new IllegalArgumentException("Unexpected end of JSON");
+        }
+        return text.charAt(pos[0]);
+    }
+
+    private static int skipSpace(String text, int pos) {
+        while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+}
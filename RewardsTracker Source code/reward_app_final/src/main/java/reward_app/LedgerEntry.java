@@ -0,0 +1,60 @@
+/**
+ * LedgerEntry - One append-only record of a change to a customer's points.
+ * Accruals have a positive delta and redemptions a negative one.
+ */
+package reward_app;
+
+public final class LedgerEntry {
+    private final long id;
+    private final long phone;
+    private final int delta;
+    private final long createdAt;
+
+    /**
+     * Creates a ledger entry as read from the database.
+     * @param id Position in the ledger
+     * @param phone Customer's phone key
+     * @param delta Points added, negative for redemptions
+     * @param createdAt Time recorded, in epoch milliseconds
+     */
+    LedgerEntry(long id, long phone, int delta, long createdAt) {
+        this.id = id;
+        this.phone = phone;
+        this.delta = delta;
+        this.createdAt = createdAt;
+    }
+
+    /**
+     * @return Position in the ledger; later entries have larger ids
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return Customer's phone key
+     */
+    public long getPhone() {
+        return phone;
+    }
+
+    /**
+     * @return Points added, negative for redemptions
+     */
+    public int getDelta() {
+        return delta;
+    }
+
+    /**
+     * @return Time recorded, in epoch milliseconds
+     */
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    @Override
+    public String toString() {
+        return "LedgerEntry[id=" + id + ", phone=" + PhoneNumbers.format(phone)
+            + ", delta=" + delta + ", createdAt=" + createdAt + "]";
+    }
+}
@@ -0,0 +1,355 @@
+/**
+ * LongIntHashMap - Open-addressing hash map from long keys to int values.
+ * Keys and values live in flat arrays with linear probing, so there is no
+ * boxing and no per-entry object. Each entry also carries an int stamp,
+ * which MemoryStore uses for when the points were last earned. A
+ * customer costs 16 bytes per slot; 10 million balances fit in about
+ * 256 MB. Not thread-safe: MemoryStore guards it with its own lock.
+ *
+ * Keys must not be negative, which suits phone keys. Slots hold key + 1,
+ * so a freshly allocated, all-zero table is already empty and a large map
+ * needs no fill pass. Entries are never removed, as balances are never
+ * deleted.
+ */
+package reward_app;
+
+public final class LongIntHashMap {
+    /** Returned by {@link #getEntry(long)} for an absent key. */
+    public static final long MISSING = -1L;
+    private static final long EMPTY = 0L;
+    private static final int MIN_CAPACITY = 16;
+    // Grows at 3/4 full so probe sequences stay short
+    private static final int LOAD_NUMERATOR = 3;
+    private static final int LOAD_DENOMINATOR = 4;
+
+    private long[] keys;
+    private int[] values;
+    private int[] stamps;
+    private int size;
+    private int resizeAt;
+
+    /**
+     * Creates a map sized to hold the expected entries without growing.
+     * @param expectedSize Number of entries expected
+     */
+    public LongIntHashMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * Creates an empty map with a given table size, to reload entries
+     * saved with their slots by {@link #putAt}.
+     * @param capacity Table capacity, as returned by capacity()
+     * @return Empty map
+     * @throws IllegalArgumentException If capacity is not a power of two in range
+     */
+    public static LongIntHashMap withCapacity(int capacity) {
+        if (capacity < MIN_CAPACITY || capacity > 1 << 30 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Not a table capacity: " + capacity);
+        }
+        LongIntHashMap map = new LongIntHashMap(0);
+        map.allocate(capacity);
+        return map;
+    }
+
+    /**
+     * Capacity used for a number of entries: the smallest power of two
+     * that keeps the load factor under 3/4.
+     * @param entries Number of entries
+     * @return Table capacity
+     */
+    static int capacityFor(long entries) {
+        long needed = Math.max(MIN_CAPACITY, entries * LOAD_DENOMINATOR / LOAD_NUMERATOR + 1);
+        if (needed > 1 << 30) {
+            throw new IllegalArgumentException("Too many entries: " + entries);
+        }
+        return Integer.highestOneBit((int) needed - 1) << 1;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        stamps = new int[capacity];
+        resizeAt = (int) ((long) capacity * LOAD_NUMERATOR / LOAD_DENOMINATOR);
+    }
+
+    /**
+     * Looks up a value. Safe to call while another thread writes as long as
+     * the caller discards the result in that case (see MemoryStore): it
+     * never throws or loops, whatever state it observes.
+     * @param key Non-negative key
+     * @param missing Value returned if the key is absent
+     * @return The key's value, or {@code missing}
+     */
+    public int get(long key, int missing) {
+        long[] k = keys;
+        int[] v = values;
+        if (k.length != v.length) {
+            // Caught between the two arrays of a resize
+            return missing;
+        }
+        long stored = key + 1;
+        int mask = k.length - 1;
+        int i = slot(key, mask);
+        for (int probes = 0; probes <= mask; probes++) {
+            long found = k[i];
+            if (found == stored) {
+                return v[i];
+            }
+            if (found == EMPTY) {
+                return missing;
+            }
+            i = (i + 1) & mask;
+        }
+        return missing;
+    }
+
+    /**
+     * Looks up a value and its stamp together, with the same guarantees
+     * as {@link #get(long, int)}.
+     * @param key Non-negative key
+     * @return stamp << 32 | value, or {@link #MISSING}; stamps are never negative
+     */
+    public long getEntry(long key) {
+        long[] k = keys;
+        int[] v = values;
+        int[] s = stamps;
+        if (k.length != v.length || k.length != s.length) {
+            return MISSING;
+        }
+        long stored = key + 1;
+        int mask = k.length - 1;
+        int i = slot(key, mask);
+        for (int probes = 0; probes <= mask; probes++) {
+            long found = k[i];
+            if (found == stored) {
+                return (long) s[i] << 32 | (v[i] & 0xFFFFFFFFL);
+            }
+            if (found == EMPTY) {
+                return MISSING;
+            }
+            i = (i + 1) & mask;
+        }
+        return MISSING;
+    }
+
+    /**
+     * Adds to a key's value, inserting it with value 0 first if absent.
+     * A positive delta also sets the stamp, as earning points restarts
+     * their expiry clock.
+     * @param key Non-negative key
+     * @param delta Amount to add
+     * @param stamp Stamp to record if delta is positive
+     * @return The new value
+     */
+    public int add(long key, int delta, int stamp) {
+        int i = findOrInsert(key);
+        values[i] += delta;
+        if (delta > 0) {
+            stamps[i] = stamp;
+        }
+        return values[i];
+    }
+
+    /**
+     * Sets a key's value and stamp.
+     * @param key Non-negative key
+     * @param value New value
+     * @param stamp New stamp, not negative
+     */
+    public void put(long key, int value, int stamp) {
+        int i = findOrInsert(key);
+        values[i] = value;
+        stamps[i] = stamp;
+    }
+
+    /**
+     * Puts an entry straight into the slot it was copied from, with no
+     * hashing or probing, e.g. to load a snapshot into a map of the same
+     * capacity. Entries must go back exactly as copyTo gave them out; the
+     * caller checks that, e.g. with a checksum.
+     * @param slot Slot the entry was copied from
+     * @param key Non-negative key
+     * @param value Value
+     * @param stamp Stamp, not negative
+     * @throws IllegalArgumentException If the slot is out of range or taken,
+     *         the key is negative, or the table would be over-full
+     */
+    public void putAt(int slot, long key, int value, int stamp) {
+        if (slot < 0 || slot >= keys.length || keys[slot] != EMPTY || key < 0 || size >= resizeAt) {
+            throw new IllegalArgumentException("Cannot put key " + key + " in slot " + slot);
+        }
+        keys[slot] = key + 1;
+        values[slot] = value;
+        stamps[slot] = stamp;
+        size++;
+    }
+
+    /**
+     * Finds a key's slot, for reading and updating an entry in place. Slots
+     * stay valid until the next insert.
+     * @param key Non-negative key
+     * @return Slot index, or -1 if the key is absent
+     */
+    public int find(long key) {
+        long stored = key + 1;
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (true) {
+            long found = keys[i];
+            if (found == stored) {
+                return i;
+            }
+            if (found == EMPTY) {
+                return -1;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * @param slot Slot index, from 0 to capacity() - 1
+     * @return Key in that slot, or -1 if it is empty
+     */
+    public long keyAt(int slot) {
+        return keys[slot] - 1;
+    }
+
+    /**
+     * @param slot Occupied slot index
+     * @return Value in that slot
+     */
+    public int valueAt(int slot) {
+        return values[slot];
+    }
+
+    /**
+     * @param slot Occupied slot index
+     * @return Stamp in that slot
+     */
+    public int stampAt(int slot) {
+        return stamps[slot];
+    }
+
+    /**
+     * @param slot Occupied slot index
+     * @param value New value for that slot, keeping its stamp
+     */
+    public void setValueAt(int slot, int value) {
+        values[slot] = value;
+    }
+
+    /**
+     * @return Number of keys
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return Number of slots in the table
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * Copies the live entries in slot order, e.g. for a snapshot.
+     * Reinserting them in this order into a map of the same capacity
+     * fills the table front to back, which keeps loading cache friendly.
+     * @param keysOut Receives the keys; at least size() long
+     * @param valuesOut Receives the values; at least size() long
+     * @param stampsOut Receives the stamps; at least size() long
+     * @return Number of entries copied
+     */
+    public int copyTo(long[] keysOut, int[] valuesOut, int[] stampsOut) {
+        return copyTo(keysOut, valuesOut, stampsOut, null);
+    }
+
+    /**
+     * Copies the live entries in slot order along with their slots, so
+     * they can be put back with {@link #putAt}.
+     * @param keysOut Receives the keys; at least size() long
+     * @param valuesOut Receives the values; at least size() long
+     * @param stampsOut Receives the stamps; at least size() long
+     * @param slotsOut Receives the slots; at least size() long, or null
+     * @return Number of entries copied
+     */
+    public int copyTo(long[] keysOut, int[] valuesOut, int[] stampsOut, int[] slotsOut) {
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY) {
+                keysOut[n] = keys[i] - 1;
+                valuesOut[n] = values[i];
+                stampsOut[n] = stamps[i];
+                if (slotsOut != null) {
+                    slotsOut[n] = i;
+                }
+                n++;
+            }
+        }
+        return n;
+    }
+
+    private int findOrInsert(long key) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Keys must not be negative");
+        }
+        long stored = key + 1;
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        while (true) {
+            long found = keys[i];
+            if (found == stored) {
+                return i;
+            }
+            if (found == EMPTY) {
+                if (size >= resizeAt) {
+                    grow();
+                    return findOrInsert(key);
+                }
+                keys[i] = stored;
+                size++;
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+    }
+
+    /**
+     * Doubles the table. The new arrays are filled before they are
+     * published, so a concurrent get sees either the old table or the new.
+     */
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        int[] oldStamps = stamps;
+        int capacity = oldKeys.length * 2;
+        long[] newKeys = new long[capacity];
+        int[] newValues = new int[capacity];
+        int[] newStamps = new int[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            long key = oldKeys[j];
+            if (key != EMPTY) {
+                int i = slot(key - 1, mask);
+                while (newKeys[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                newKeys[i] = key;
+                newValues[i] = oldValues[j];
+                newStamps[i] = oldStamps[j];
+            }
+        }
+        keys = newKeys;
+        values = newValues;
+        stamps = newStamps;
+        resizeAt = (int) ((long) capacity * LOAD_NUMERATOR / LOAD_DENOMINATOR);
+    }
+
+    private static int slot(long key, int mask) {
+        // Phone keys share prefixes; mix so neighbouring numbers spread out
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,944 @@
+/**
+ * MemoryStore - Every balance held in RAM, persisted asynchronously.
+ * Balances live in a LongIntHashMap; each change is applied there and
+ * appended to a PointsLog, which a background thread forces to disk every
+ * few milliseconds. A snapshot of the whole map is written after every
+ * 250,000 changes, so startup loads the newest snapshot and replays at
+ * most that many log records after it. Snapshots keep each balance's
+ * slot in the table, so loading one copies entries back into place with
+ * no rehashing.
+ *
+ * A balance read takes no lock in the common case; writes are serialized
+ * by one lock and cost a hash update plus a buffer append. A crash loses
+ * at most the last sync interval of changes (-Drewards.memory.syncMillis,
+ * default 10); RewardsManager.flush() waits until everything is on disk.
+ *
+ * Each balance is stamped with the minute its points were last earned,
+ * rounded up so points never expire early. With a points lifetime set,
+ * overdue balances read as 0 and expireDue sweeps the table a slice at a
+ * time; there is no expiry index to keep, as a pass over every slot
+ * takes milliseconds.
+ *
+ * Client transaction IDs are logged after the change they came with and
+ * saved in snapshots, so a retry is still recognized after a restart.
+ *
+ * Files, in the rewards-memory folder by default:
+ * - log-*.wal: the ledger, see PointsLog; kept, as they are the history
+ * - snapshot-*.snap: balances as of a log record; the newest two are kept
+ * - store.lock: held while open, as only one process may use the folder
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.LongConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+public class MemoryStore implements RewardsStore {
+    public static final String DEFAULT_DIRECTORY = "rewards-memory";
+    static final long DEFAULT_SYNC_MILLIS = 10;
+    static final long DEFAULT_SNAPSHOT_RECORDS = 250_000;
+    private static final int SNAPSHOT_MAGIC = 0x52575350;
+    private static final int SNAPSHOT_VERSION = 4;
+    // magic, version, last log record, entry count, table capacity; then
+    // blocks of up to IO_ENTRIES keys followed by their balances, earned
+    // stamps and table slots, so each block loads with bulk copies; then
+    // the transaction ID count and blocks of generations followed by IDs;
+    // then a CRC of everything before it. Version 1 snapshots have no
+    // stamps, versions 1 and 2 no transaction IDs, and versions 1 to 3 no
+    // capacity or slots.
+    private static final int SNAPSHOT_HEADER_BYTES = 32;
+    private static final int V3_HEADER_BYTES = 24;
+    private static final int ENTRY_BYTES = 20;
+    private static final int V3_ENTRY_BYTES = 16;
+    private static final int V1_ENTRY_BYTES = 12;
+    private static final int TXN_ID_BYTES = 16;
+    private static final int IO_ENTRIES = 1 << 16;
+    private static final int SNAPSHOTS_KEPT = 2;
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".snap";
+    private static final String LOCK_FILE = "store.lock";
+    private static final long STAMP_MILLIS = 60_000;
+    // Slots checked between looks at the clock while sweeping
+    private static final int SWEEP_STRIDE = 4096;
+
+    private final Path directory;
+    private final long snapshotRecords;
+    private final RewardsMetrics metrics = new RewardsMetrics();
+    // Guarded by the write lock
+    private TransactionIds txnIds = TransactionIds.configured(1);
+    // Writers hold it exclusively; readers validate an optimistic stamp
+    private final StampedLock lock = new StampedLock();
+    private final AtomicBoolean snapshotRunning = new AtomicBoolean();
+    private final ExecutorService snapshotter = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rewards-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private LongIntHashMap balances;
+    private PointsLog log;
+    private FileChannel lockChannel;
+    private Thread drainOnExit;
+    private volatile long snapshotSeq;
+    private volatile long lifetimeMillis;
+    // Guarded by the write lock
+    private int sweepCursor;
+    // Oldest stamp expired so far in the current pass
+    private int sweepOldest = Integer.MAX_VALUE;
+    private long writeLockedAt;
+    private SQLException initError;
+
+    /**
+     * Opens or creates a store in the given folder, with the sync interval
+     * and snapshot frequency from -Drewards.memory.syncMillis and
+     * -Drewards.memory.snapshotRecords.
+     * @param directory Folder holding the log and snapshots
+     */
+    public MemoryStore(Path directory) {
+        this(directory, Long.getLong("rewards.memory.syncMillis", DEFAULT_SYNC_MILLIS),
+            Long.getLong("rewards.memory.snapshotRecords", DEFAULT_SNAPSHOT_RECORDS));
+    }
+
+    /**
+     * Opens or creates a store, loading the newest snapshot and replaying
+     * the log after it.
+     * @param directory Folder holding the log and snapshots
+     * @param syncMillis Longest time a change waits before it is forced to disk
+     * @param snapshotRecords Log records between snapshots
+     */
+    public MemoryStore(Path directory, long syncMillis, long snapshotRecords) {
+        if (snapshotRecords < 1) {
+            throw new IllegalArgumentException("Snapshot interval must be positive");
+        }
+        this.directory = directory;
+        this.snapshotRecords = snapshotRecords;
+        try {
+            Files.createDirectories(directory);
+            lockDirectory();
+            recover();
+            long now = System.currentTimeMillis();
+            long lastSeq = PointsLog.replay(directory, snapshotSeq, (seq, key, delta, createdAt) -> {
+                if ((key & PointsLog.TXN_FLAG) != 0) {
+                    txnIds.restore(key & ~PointsLog.TXN_FLAG, txnIds.generation(createdAt), now);
+                } else {
+                    balances.add(key, delta, stamp(createdAt));
+                }
+            });
+            log = new PointsLog(directory, Math.max(lastSeq, snapshotSeq) + 1, syncMillis);
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Error loading rewards from " + directory + ": " + e.getMessage());
+            initError = new SQLException("Error loading rewards from " + directory, e);
+            unlockDirectory();
+            return;
+        }
+        drainOnExit = new Thread(this::syncQuietly, "rewards-log-drain");
+        Runtime.getRuntime().addShutdownHook(drainOnExit);
+    }
+
+    /**
+     * Takes an exclusive lock on the folder; a second store appending to the
+     * same log would interleave records and corrupt it.
+     */
+    private void lockDirectory() throws IOException {
+        lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            unlockDirectory();
+            throw new IOException(directory + " is already in use by another rewards store");
+        }
+    }
+
+    private void unlockDirectory() {
+        if (lockChannel != null) {
+            try {
+                // Closing the channel releases the lock
+                lockChannel.close();
+            } catch (IOException e) {
+                System.out.println("Error releasing " + LOCK_FILE + ": " + e.getMessage());
+            }
+            lockChannel = null;
+        }
+    }
+
+    /**
+     * Loads the newest snapshot that reads back intact, or starts empty.
+     */
+    private void recover() throws IOException {
+        List<Path> snapshots = snapshots();
+        for (int i = snapshots.size() - 1; i >= 0; i--) {
+            try {
+                loadSnapshot(snapshots.get(i));
+                return;
+            } catch (IOException e) {
+                System.out.println("Skipping damaged snapshot " + snapshots.get(i) + ": " + e.getMessage());
+            }
+        }
+        balances = new LongIntHashMap(0);
+        snapshotSeq = 0;
+    }
+
+    private void loadSnapshot(Path path) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocate(IO_ENTRIES * ENTRY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long[] keys = new long[IO_ENTRIES];
+        int[] points = new int[IO_ENTRIES];
+        int[] stamps = new int[IO_ENTRIES];
+        int[] slots = new int[IO_ENTRIES];
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            readFully(channel, buffer, V3_HEADER_BYTES);
+            int version = buffer.getInt(4);
+            if (buffer.getInt(0) != SNAPSHOT_MAGIC || version < 1 || version > SNAPSHOT_VERSION) {
+                throw new IOException("not a rewards snapshot");
+            }
+            int headerBytes = version < 4 ? V3_HEADER_BYTES : SNAPSHOT_HEADER_BYTES;
+            int entryBytes = version == 1 ? V1_ENTRY_BYTES : version < 4 ? V3_ENTRY_BYTES : ENTRY_BYTES;
+            long seq = buffer.getLong(8);
+            long count = buffer.getLong(16);
+            crc.update(buffer.array(), 0, V3_HEADER_BYTES);
+            long capacity = 0;
+            if (version >= 4) {
+                readFully(channel, buffer, Long.BYTES);
+                crc.update(buffer.array(), 0, Long.BYTES);
+                capacity = buffer.getLong(0);
+            }
+            long balancesEnd = headerBytes + count * entryBytes;
+            if (version < 3 ? channel.size() != balancesEnd + 4 : channel.size() < balancesEnd + Long.BYTES + 4) {
+                throw new IOException("wrong length");
+            }
+            if (version == 1) {
+                // Taken before earnings were stamped: start the clock when it was written
+                Arrays.fill(stamps, stamp(Files.getLastModifiedTime(path).toMillis()));
+            }
+            LongIntHashMap loaded;
+            if (version >= 4) {
+                if (capacity > Integer.MAX_VALUE || count > capacity) {
+                    throw new IOException("bad table capacity");
+                }
+                loaded = LongIntHashMap.withCapacity((int) capacity);
+            } else {
+                loaded = new LongIntHashMap((int) count);
+            }
+            long remaining = count;
+            while (remaining > 0) {
+                int entries = (int) Math.min(IO_ENTRIES, remaining);
+                readFully(channel, buffer, entries * entryBytes);
+                crc.update(buffer.array(), 0, entries * entryBytes);
+                buffer.asLongBuffer().get(keys, 0, entries);
+                buffer.position(entries * Long.BYTES);
+                buffer.asIntBuffer().get(points, 0, entries);
+                if (version != 1) {
+                    buffer.position(entries * (Long.BYTES + Integer.BYTES));
+                    buffer.asIntBuffer().get(stamps, 0, entries);
+                }
+                if (version >= 4) {
+                    buffer.position(entries * V3_ENTRY_BYTES);
+                    buffer.asIntBuffer().get(slots, 0, entries);
+                    for (int i = 0; i < entries; i++) {
+                        loaded.putAt(slots[i], keys[i], points[i], stamps[i]);
+                    }
+                } else {
+                    for (int i = 0; i < entries; i++) {
+                        loaded.put(keys[i], points[i], stamps[i]);
+                    }
+                }
+                remaining -= entries;
+            }
+            TransactionIds loadedIds = TransactionIds.configured(1);
+            if (version >= 3) {
+                readFully(channel, buffer, Long.BYTES);
+                crc.update(buffer.array(), 0, Long.BYTES);
+                long idCount = buffer.getLong(0);
+                if (channel.size() != balancesEnd + Long.BYTES + idCount * TXN_ID_BYTES + 4) {
+                    throw new IOException("wrong length");
+                }
+                long now = System.currentTimeMillis();
+                long[] gens = keys;
+                long[] ids = new long[IO_ENTRIES];
+                for (long left = idCount; left > 0; ) {
+                    int entries = (int) Math.min(IO_ENTRIES, left);
+                    readFully(channel, buffer, entries * TXN_ID_BYTES);
+                    crc.update(buffer.array(), 0, entries * TXN_ID_BYTES);
+                    buffer.asLongBuffer().get(gens, 0, entries);
+                    buffer.position(entries * Long.BYTES);
+                    buffer.asLongBuffer().get(ids, 0, entries);
+                    for (int i = 0; i < entries; i++) {
+                        loadedIds.restore(ids[i], gens[i], now);
+                    }
+                    left -= entries;
+                }
+            }
+            readFully(channel, buffer, 4);
+            if (buffer.getInt(0) != (int) crc.getValue()) {
+                throw new IOException("checksum mismatch");
+            }
+            balances = loaded;
+            txnIds = loadedIds;
+            snapshotSeq = seq;
+        }
+    }
+
+    /**
+     * Writes a snapshot of every balance. Writers wait only while the map
+     * is copied; the file is written after they resume. Runs by itself
+     * every 250,000 changes; call it to shorten the next startup.
+     * @return Last log record the snapshot covers
+     * @throws SQLException If the snapshot could not be written
+     */
+    public long snapshot() throws SQLException {
+        checkOpen();
+        long[] keys;
+        int[] points;
+        int[] stamps;
+        int[] slots;
+        int count;
+        int capacity;
+        long[] txnGens;
+        long[] txnIdList;
+        int txnCount;
+        long seq;
+        long stamp = lock.readLock();
+        try {
+            count = balances.size();
+            capacity = balances.capacity();
+            keys = new long[count];
+            points = new int[count];
+            stamps = new int[count];
+            slots = new int[count];
+            balances.copyTo(keys, points, stamps, slots);
+            txnGens = new long[txnIds.size()];
+            txnIdList = new long[txnGens.length];
+            txnCount = txnIds.copyTo(txnGens, txnIdList);
+            seq = log.lastSeq();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        try {
+            // Never let a snapshot get ahead of the history on disk
+            log.sync();
+            Path target = directory.resolve(String.format("%s%020d%s", SNAPSHOT_PREFIX, seq, SNAPSHOT_SUFFIX));
+            Path temp = directory.resolve(target.getFileName() + ".tmp");
+            writeSnapshot(temp, seq, capacity, keys, points, stamps, slots, count, txnGens, txnIdList, txnCount);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            snapshotSeq = seq;
+            List<Path> snapshots = snapshots();
+            for (int i = 0; i < snapshots.size() - SNAPSHOTS_KEPT; i++) {
+                Files.delete(snapshots.get(i));
+            }
+        } catch (IOException e) {
+            throw new SQLException("Error writing snapshot: " + e.getMessage(), e);
+        }
+        return seq;
+    }
+
+    private static void writeSnapshot(Path temp, long seq, int capacity, long[] keys, int[] points, int[] stamps,
+                                      int[] slots, int count, long[] txnGens, long[] txnIdList, int txnCount)
+            throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = ByteBuffer.allocate(IO_ENTRIES * ENTRY_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                 StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer.putInt(SNAPSHOT_MAGIC).putInt(SNAPSHOT_VERSION).putLong(seq).putLong(count).putLong(capacity);
+            crc.update(buffer.array(), 0, buffer.position());
+            writeFully(channel, buffer);
+            for (int from = 0; from < count; from += IO_ENTRIES) {
+                int entries = Math.min(IO_ENTRIES, count - from);
+                buffer.asLongBuffer().put(keys, from, entries);
+                buffer.position(entries * Long.BYTES);
+                buffer.asIntBuffer().put(points, from, entries);
+                buffer.position(entries * (Long.BYTES + Integer.BYTES));
+                buffer.asIntBuffer().put(stamps, from, entries);
+                buffer.position(entries * V3_ENTRY_BYTES);
+                buffer.asIntBuffer().put(slots, from, entries);
+                buffer.position(entries * ENTRY_BYTES);
+                crc.update(buffer.array(), 0, buffer.position());
+                writeFully(channel, buffer);
+            }
+            buffer.putLong(txnCount);
+            crc.update(buffer.array(), 0, buffer.position());
+            writeFully(channel, buffer);
+            for (int from = 0; from < txnCount; from += IO_ENTRIES) {
+                int entries = Math.min(IO_ENTRIES, txnCount - from);
+                buffer.asLongBuffer().put(txnGens, from, entries);
+                buffer.position(entries * Long.BYTES);
+                buffer.asLongBuffer().put(txnIdList, from, entries);
+                buffer.position(entries * TXN_ID_BYTES);
+                crc.update(buffer.array(), 0, buffer.position());
+                writeFully(channel, buffer);
+            }
+            buffer.putInt((int) crc.getValue());
+            writeFully(channel, buffer);
+            channel.force(true);
+        }
+    }
+
+    @Override
+    public long getPointsLifetime() {
+        return lifetimeMillis;
+    }
+
+    @Override
+    public void setPointsLifetime(long lifetimeMillis) {
+        if (lifetimeMillis < 0) {
+            throw new IllegalArgumentException("Points lifetime must not be negative");
+        }
+        this.lifetimeMillis = lifetimeMillis;
+    }
+
+    @Override
+    public int addPoints(long key, int points, long txnId, CommitListener listener) throws SQLException {
+        checkOpen();
+        long stamp = writeLock();
+        try {
+            long now = System.currentTimeMillis();
+            if (txnId != TransactionIds.NONE && txnIds.contains(txnId, now)) {
+                return REPLAYED;
+            }
+            int cutoff = cutoff(now);
+            int slot = balances.find(key);
+            int expired = slot < 0 ? 0 : expireIfDue(slot, key, now, cutoff);
+            int balance = add(key, points, now, cutoff);
+            if (txnId != TransactionIds.NONE) {
+                log.appendTransactionId(txnId, now);
+                txnIds.add(txnId, now);
+            }
+            if (listener != null) {
+                if (expired > 0) {
+                    listener.committed(key, -expired, 0);
+                }
+                listener.committed(key, points, balance);
+            }
+            return balance;
+        } catch (IOException e) {
+            throw new SQLException("Points could not be saved: " + e.getMessage(), e);
+        } finally {
+            unlockWrite(stamp);
+            snapshotIfDue();
+        }
+    }
+
+    /**
+     * Logs and applies one change, expiring the customer's points first
+     * if they are overdue. Call holding the write lock.
+     */
+    private int add(long key, int points, long now, int cutoff) throws IOException {
+        int slot = balances.find(key);
+        if (slot >= 0) {
+            expireIfDue(slot, key, now, cutoff);
+        }
+        log.append(key, points, now);
+        return balances.add(key, points, stamp(now));
+    }
+
+    /**
+     * Zeroes an overdue balance and logs the points taken. Call holding
+     * the write lock.
+     * @return Points taken, 0 if the balance was not overdue
+     */
+    private int expireIfDue(int slot, long key, long now, int cutoff) throws IOException {
+        int points = balances.valueAt(slot);
+        if (points <= 0 || balances.stampAt(slot) > cutoff) {
+            return 0;
+        }
+        log.append(key, -points, now);
+        balances.setValueAt(slot, 0);
+        metrics.pointsExpired(1, points);
+        return points;
+    }
+
+    @Override
+    public void addAll(long[] keys, int[] points, int from, int to, CommitListener expired)
+            throws SQLException {
+        checkOpen();
+        long now = System.currentTimeMillis();
+        int cutoff = cutoff(now);
+        int[] taken = new int[to - from];
+        long stamp = writeLock();
+        try {
+            // Appends only fail up front, when the log is already failing,
+            // so either every row is applied or none is
+            for (int i = from; i < to; i++) {
+                int slot = balances.find(keys[i]);
+                if (slot >= 0) {
+                    taken[i - from] = expireIfDue(slot, keys[i], now, cutoff);
+                }
+                add(keys[i], points[i], now, cutoff);
+            }
+            if (expired != null) {
+                for (int i = from; i < to; i++) {
+                    if (taken[i - from] > 0) {
+                        expired.committed(keys[i], -taken[i - from], 0);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new SQLException("Points could not be saved: " + e.getMessage(), e);
+        } finally {
+            unlockWrite(stamp);
+            snapshotIfDue();
+        }
+    }
+
+    @Override
+    public int getBalance(long key) throws SQLException {
+        checkOpen();
+        long stamp = lock.tryOptimisticRead();
+        long entry = balances.getEntry(key);
+        if (!lock.validate(stamp)) {
+            // A write overlapped the read; read again holding the lock
+            stamp = lock.readLock();
+            try {
+                entry = balances.getEntry(key);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        if (entry == LongIntHashMap.MISSING) {
+            return 0;
+        }
+        int balance = (int) entry;
+        boolean expired = (int) (entry >>> 32) <= cutoff(System.currentTimeMillis());
+        return expired && balance > 0 ? 0 : balance;
+    }
+
+    @Override
+    public long getExpiryTime(long key) throws SQLException {
+        checkOpen();
+        long lifetime = lifetimeMillis;
+        if (lifetime == 0) {
+            return Long.MAX_VALUE;
+        }
+        long stamp = lock.readLock();
+        long entry;
+        try {
+            entry = balances.getEntry(key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        if (entry == LongIntHashMap.MISSING || (int) entry <= 0) {
+            return Long.MAX_VALUE;
+        }
+        // Overdue once the stamp is at or before cutoff(now)
+        return (entry >>> 32) * STAMP_MILLIS + lifetime;
+    }
+
+    @Override
+    public int redeem(long key, int points, long txnId, CommitListener listener) throws SQLException {
+        checkOpen();
+        long stamp = writeLock();
+        try {
+            long now = System.currentTimeMillis();
+            if (txnId != TransactionIds.NONE && txnIds.contains(txnId, now)) {
+                return REPLAYED;
+            }
+            int slot = balances.find(key);
+            if (slot < 0) {
+                return NOT_APPLIED;
+            }
+            int expired = expireIfDue(slot, key, now, cutoff(now));
+            if (expired > 0 && listener != null) {
+                listener.committed(key, -expired, 0);
+            }
+            int current = balances.valueAt(slot);
+            if (current < points) {
+                return NOT_APPLIED;
+            }
+            log.append(key, -points, now);
+            if (txnId != TransactionIds.NONE) {
+                log.appendTransactionId(txnId, now);
+                txnIds.add(txnId, now);
+            }
+            int balance = current - points;
+            balances.setValueAt(slot, balance);
+            if (listener != null) {
+                listener.committed(key, -points, balance);
+            }
+            return balance;
+        } catch (IOException e) {
+            throw new SQLException("Redemption could not be saved: " + e.getMessage(), e);
+        } finally {
+            unlockWrite(stamp);
+            snapshotIfDue();
+        }
+    }
+
+    @Override
+    public List<LedgerEntry> getHistory(long key, int limit) throws SQLException {
+        checkOpen();
+        try {
+            return log.history(key, limit);
+        } catch (IOException e) {
+            throw new SQLException("Error reading points log: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reads the log file by file without taking the lock. Only records
+     * already on disk are read, and transaction ID records are skipped.
+     */
+    @Override
+    public long readLedger(int partition, long afterId, int limit, PointsLog.Replayer reader) throws SQLException {
+        checkOpen();
+        try {
+            return log.read(afterId, limit, (seq, key, delta, createdAt) -> {
+                if ((key & PointsLog.TXN_FLAG) == 0) {
+                    reader.apply(seq, key, delta, createdAt);
+                }
+            });
+        } catch (IOException e) {
+            throw new SQLException("Error reading points log: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Copies the keys under the read lock, then lists them after writers
+     * have resumed.
+     */
+    @Override
+    public long readKeys(LongConsumer reader) throws SQLException {
+        checkOpen();
+        long[] keys;
+        int count = 0;
+        long stamp = lock.readLock();
+        try {
+            LongIntHashMap map = balances;
+            keys = new long[map.size()];
+            for (int slot = 0; slot < map.capacity(); slot++) {
+                long key = map.keyAt(slot);
+                if (key >= 0) {
+                    keys[count++] = key;
+                }
+            }
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        for (int i = 0; i < count; i++) {
+            reader.accept(keys[i]);
+        }
+        return count;
+    }
+
+    /**
+     * Replays the whole log into a fresh map and swaps it in. Writes wait
+     * until it finishes, so run it outside busy hours.
+     */
+    @Override
+    public long rebuildBalances() throws SQLException {
+        checkOpen();
+        long stamp = lock.writeLock();
+        try {
+            log.sync();
+            LongIntHashMap rebuilt = new LongIntHashMap(balances.size());
+            PointsLog.replay(directory, 0, (seq, key, delta, createdAt) -> {
+                if ((key & PointsLog.TXN_FLAG) == 0) {
+                    rebuilt.add(key, delta, stamp(createdAt));
+                }
+            });
+            balances = rebuilt;
+            sweepCursor = 0;
+            return rebuilt.size();
+        } catch (IOException e) {
+            throw new SQLException("Error replaying points log: " + e.getMessage(), e);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public long exportCsv(Path target) throws IOException, SQLException {
+        checkOpen();
+        long[] keys;
+        int[] points;
+        int[] stamps;
+        int count;
+        long stamp = lock.readLock();
+        try {
+            count = balances.size();
+            keys = new long[count];
+            points = new int[count];
+            stamps = new int[count];
+            balances.copyTo(keys, points, stamps);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+        int cutoff = cutoff(System.currentTimeMillis());
+        for (int i = 0; i < count; i++) {
+            if (points[i] > 0 && stamps[i] <= cutoff) {
+                points[i] = 0;
+            }
+        }
+        // Sort slot positions by key: 34-bit keys above 30-bit positions,
+        // compared unsigned by flipping the sign bit
+        long[] order = new long[count];
+        for (int i = 0; i < count; i++) {
+            order[i] = (keys[i] << 30 | i) ^ Long.MIN_VALUE;
+        }
+        Arrays.parallelSort(order);
+        long[] sortedKeys = new long[count];
+        int[] sortedPoints = new int[count];
+        for (int i = 0; i < count; i++) {
+            long packed = order[i] ^ Long.MIN_VALUE;
+            int index = (int) (packed & ((1 << 30) - 1));
+            sortedKeys[i] = keys[index];
+            sortedPoints[i] = points[index];
+        }
+        return RewardsBulkIO.exportCsv(sortedKeys, sortedPoints, count, target);
+    }
+
+    /**
+     * Expires overdue balances in the next slice of the table, moving on
+     * from where the last call stopped and wrapping round at the end.
+     */
+    @Override
+    public boolean expireDue(int maxBalances, long budgetNanos, CommitListener listener) throws SQLException {
+        checkOpen();
+        long now = System.currentTimeMillis();
+        int cutoff = cutoff(now);
+        if (cutoff == Integer.MIN_VALUE) {
+            return false;
+        }
+        long deadline = System.nanoTime() + budgetNanos;
+        int expired = 0;
+        long points = 0;
+        long lag;
+        boolean more;
+        long stamp = writeLock();
+        try {
+            LongIntHashMap map = balances;
+            int capacity = map.capacity();
+            int slot = Math.min(sweepCursor, capacity);
+            int end = Math.min(capacity, slot + SWEEP_STRIDE);
+            while (slot < capacity && expired < maxBalances) {
+                long key = map.keyAt(slot);
+                if (key >= 0 && map.valueAt(slot) > 0 && map.stampAt(slot) <= cutoff) {
+                    sweepOldest = Math.min(sweepOldest, map.stampAt(slot));
+                    int taken = map.valueAt(slot);
+                    log.append(key, -taken, now);
+                    map.setValueAt(slot, 0);
+                    if (listener != null) {
+                        listener.committed(key, -taken, 0);
+                    }
+                    expired++;
+                    points += taken;
+                }
+                if (++slot == end) {
+                    if (System.nanoTime() >= deadline) {
+                        break;
+                    }
+                    end = Math.min(capacity, slot + SWEEP_STRIDE);
+                }
+            }
+            more = slot < capacity;
+            sweepCursor = more ? slot : 0;
+            // The pass so far, so the gauge does not dip between slices
+            lag = sweepOldest > cutoff ? 0 : (long) (cutoff - sweepOldest) * STAMP_MILLIS;
+            if (!more) {
+                sweepOldest = Integer.MAX_VALUE;
+            }
+        } catch (IOException e) {
+            throw new SQLException("Expired points could not be saved: " + e.getMessage(), e);
+        } finally {
+            unlockWrite(stamp);
+        }
+        if (expired > 0) {
+            metrics.pointsExpired(expired, points);
+            snapshotIfDue();
+        }
+        metrics.sweepLagged(lag);
+        return more;
+    }
+
+    @Override
+    public void sync() throws SQLException {
+        checkOpen();
+        try {
+            log.sync();
+        } catch (IOException e) {
+            throw new SQLException("Points could not be saved: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public int getPartitionCount() {
+        return 1;
+    }
+
+    @Override
+    public int partitionOf(long key) {
+        return 0;
+    }
+
+    @Override
+    public RewardsMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return Number of customers held
+     */
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return balances == null ? 0 : balances.size();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Writes a final snapshot if anything changed since the last one, so
+     * the next startup has no log to replay, then closes the log.
+     */
+    @Override
+    public void close() {
+        snapshotter.shutdown();
+        try {
+            // Let a background snapshot finish before the final one
+            snapshotter.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (initError == null) {
+            try {
+                if (log.lastSeq() > snapshotSeq) {
+                    snapshot();
+                }
+            } catch (SQLException e) {
+                System.out.println(e.getMessage());
+            }
+            try {
+                log.close();
+            } catch (IOException e) {
+                System.out.println("Error closing points log: " + e.getMessage());
+            }
+            unlockDirectory();
+        }
+        if (drainOnExit != null) {
+            try {
+                // Also lets a closed store be garbage collected
+                Runtime.getRuntime().removeShutdownHook(drainOnExit);
+            } catch (IllegalStateException e) {
+                // Already shutting down
+            }
+            drainOnExit = null;
+        }
+        metrics.unpublish();
+    }
+
+    /**
+     * Starts a background snapshot once enough changes have built up
+     * since the last one. Called after a write releases the lock.
+     */
+    private void snapshotIfDue() {
+        if (log.lastSeq() - snapshotSeq < snapshotRecords || !snapshotRunning.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            snapshotter.execute(() -> {
+                try {
+                    snapshot();
+                } catch (SQLException e) {
+                    System.out.println(e.getMessage());
+                } finally {
+                    snapshotRunning.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Closing; close() takes the final snapshot
+            snapshotRunning.set(false);
+        }
+    }
+
+    private long writeLock() {
+        long stamp = lock.writeLock();
+        writeLockedAt = System.nanoTime();
+        return stamp;
+    }
+
+    private void unlockWrite(long stamp) {
+        long held = System.nanoTime() - writeLockedAt;
+        lock.unlockWrite(stamp);
+        metrics.writeLockHeld(held);
+    }
+
+    /**
+     * @return Earned stamp for a time: minutes since the epoch, rounded up
+     */
+    private static int stamp(long millis) {
+        return (int) Math.floorDiv(millis + STAMP_MILLIS - 1, STAMP_MILLIS);
+    }
+
+    /**
+     * @return Stamp at or before which points are overdue, or
+     *         Integer.MIN_VALUE if points never expire
+     */
+    private int cutoff(long now) {
+        long lifetime = lifetimeMillis;
+        return lifetime == 0 ? Integer.MIN_VALUE : (int) Math.floorDiv(now - lifetime, STAMP_MILLIS);
+    }
+
+    private void syncQuietly() {
+        try {
+            log.sync();
+        } catch (IOException e) {
+            System.out.println("Error saving points on shutdown: " + e.getMessage());
+        }
+    }
+
+    private void checkOpen() throws SQLException {
+        if (initError != null) {
+            throw new SQLException("Rewards store is not available", initError);
+        }
+    }
+
+    private List<Path> snapshots() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX);
+            }).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, int length) throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("ends early");
+            }
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * OperationStats - Call counts and latency histogram for one operation.
+ * Only completed calls feed the histogram, so a burst of rejected input
+ * doesn't make the percentiles look better than the tills experienced.
+ */
+package reward_app;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class OperationStats implements OperationStatsMBean {
+    private final String name;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    OperationStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return Operation name, e.g. addPoints
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Latencies of completed calls, in nanoseconds
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    void completed(long nanos) {
+        latency.record(nanos);
+    }
+
+    void rejected() {
+        rejected.increment();
+    }
+
+    void failed() {
+        errors.increment();
+    }
+
+    @Override
+    public long getCount() {
+        return latency.getCount();
+    }
+
+    @Override
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    @Override
+    public long getErrorCount() {
+        return errors.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return latency.getMeanNanos() / 1e6;
+    }
+
+    @Override
+    public double getP50Millis() {
+        return latency.getPercentileNanos(50) / 1e6;
+    }
+
+    @Override
+    public double getP99Millis() {
+        return latency.getPercentileNanos(99) / 1e6;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return latency.getMaxNanos() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + latency + " rejected=" + getRejectedCount() + " errors=" + getErrorCount();
+    }
+}
@@ -0,0 +1,42 @@
+/**
+ * OperationStatsMBean - JMX view of one RewardsManager operation.
+ * Latencies are in milliseconds, measured since the manager started.
+ */
+package reward_app;
+
+public interface OperationStatsMBean {
+    /**
+     * @return Number of calls that completed
+     */
+    long getCount();
+
+    /**
+     * @return Number of calls rejected for invalid input
+     */
+    long getRejectedCount();
+
+    /**
+     * @return Number of calls that failed with a database or other error
+     */
+    long getErrorCount();
+
+    /**
+     * @return Mean latency of completed calls
+     */
+    double getMeanMillis();
+
+    /**
+     * @return Median latency of completed calls
+     */
+    double getP50Millis();
+
+    /**
+     * @return 99th percentile latency of completed calls
+     */
+    double getP99Millis();
+
+    /**
+     * @return Longest completed call
+     */
+    double getMaxMillis();
+}
@@ -0,0 +1,366 @@
+/**
+ * PhoneIndex - Every customer's phone number, sorted, for finding
+ * customers by the first digits of their number as a cashier types.
+ * Numbers are kept as the last 7 digits in an int, grouped by the 3-digit
+ * area code: 4 bytes per customer, about 40 MB for 10 million. A prefix
+ * is a range of numbers, found by binary search in a few microseconds.
+ *
+ * New customers go into a small sorted list first and are merged in
+ * 65,536 at a time, into a new array built beside the old one, so
+ * searches never wait for a merge. Customers are never removed; one whose
+ * balance expired is still found, with 0 points.
+ */
+package reward_app;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public final class PhoneIndex {
+    /** Most customers one search returns. */
+    public static final int MAX_RESULTS = 100;
+    private static final int DIGITS = 10;
+    private static final int AREAS = 1000;
+    private static final long LINES_PER_AREA = 10_000_000L;
+    private static final int MERGE_AT = 1 << 16;
+    private static final long[] NONE = new long[0];
+
+    // Guards the fields below; held only while reading or swapping them
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // One merge or rebuild at a time
+    private final ReentrantLock mergeLock = new ReentrantLock();
+    private Areas areas = Areas.EMPTY;
+    // Sorted keys being merged into areas, still searched until swapped in
+    private long[] merging = NONE;
+    // Sorted keys not yet merged
+    private long[] pending = new long[1024];
+    private int pendingCount;
+
+    /**
+     * Replaces the index with every customer in the store. Searches keep
+     * using the old contents, and customers can be added, while the store
+     * is read; allow about 8 bytes per customer extra meanwhile.
+     * @param store Store to read phone numbers from
+     * @throws SQLException If the phone numbers could not be read
+     */
+    public void build(RewardsStore store) throws SQLException {
+        mergeLock.lock();
+        try {
+            KeyBuffer keys = new KeyBuffer();
+            store.readKeys(keys::add);
+            Areas built = Areas.of(keys.sorted());
+            lock.writeLock().lock();
+            try {
+                areas = built;
+                // Drop customers added during the read that it already found
+                int kept = 0;
+                for (int i = 0; i < pendingCount; i++) {
+                    if (!built.contains(pending[i])) {
+                        pending[kept++] = pending[i];
+                    }
+                }
+                pendingCount = kept;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            mergeLock.unlock();
+        }
+        mergeIfFull();
+    }
+
+    /**
+     * Adds a customer if not already indexed. Cheap for an existing
+     * customer, which is the common case, as only a read lock is taken.
+     * @param key Customer's phone key
+     */
+    public void add(long key) {
+        lock.readLock().lock();
+        try {
+            if (contains(key)) {
+                return;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            if (contains(key)) {
+                return;
+            }
+            int at = -Arrays.binarySearch(pending, 0, pendingCount, key) - 1;
+            if (pendingCount == pending.length) {
+                pending = Arrays.copyOf(pending, pending.length * 2);
+            }
+            System.arraycopy(pending, at, pending, at + 1, pendingCount - at);
+            pending[at] = key;
+            pendingCount++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        mergeIfFull();
+    }
+
+    /**
+     * Finds customers whose number starts with the given digits.
+     * @param prefix First digits of the number; spaces, dashes, dots and parentheses are ignored
+     * @param limit Most customers to return, 1 to {@link #MAX_RESULTS}
+     * @return Phone keys of the matching customers in number order, at most limit
+     * @throws IllegalArgumentException If the prefix holds other characters or more than 10 digits,
+     *                                  or limit is out of range
+     */
+    public long[] search(CharSequence prefix, int limit) {
+        if (limit < 1 || limit > MAX_RESULTS) {
+            throw new IllegalArgumentException("Limit must be between 1 and " + MAX_RESULTS);
+        }
+        long value = 0;
+        int digits = 0;
+        for (int i = 0; i < prefix.length(); i++) {
+            char c = prefix.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++digits > DIGITS) {
+                    throw new IllegalArgumentException("Phone number must be 10 digits");
+                }
+                value = value * 10 + (c - '0');
+            } else if (c != ' ' && c != '-' && c != '.' && c != '(' && c != ')') {
+                throw new IllegalArgumentException("Phone search takes digits only");
+            }
+        }
+        long scale = 1;
+        for (int i = digits; i < DIGITS; i++) {
+            scale *= 10;
+        }
+        long from = value * scale;
+        long to = from + scale;
+
+        lock.readLock().lock();
+        try {
+            // Three sorted sources, merged until limit keys are found
+            Areas current = areas;
+            int a = current.position(from);
+            int aEnd = current.position(to);
+            int m = lowerBound(merging, merging.length, from);
+            int mEnd = lowerBound(merging, merging.length, to);
+            int p = lowerBound(pending, pendingCount, from);
+            int pEnd = lowerBound(pending, pendingCount, to);
+            long[] found = new long[Math.min(limit, (aEnd - a) + (mEnd - m) + (pEnd - p))];
+            int area = a < aEnd ? current.areaOf(a) : 0;
+            for (int n = 0; n < found.length; n++) {
+                while (a < aEnd && a >= current.starts[area + 1]) {
+                    area++;
+                }
+                long fromAreas = a < aEnd ? current.keyAt(area, a) : Long.MAX_VALUE;
+                long fromMerging = m < mEnd ? merging[m] : Long.MAX_VALUE;
+                long fromPending = p < pEnd ? pending[p] : Long.MAX_VALUE;
+                if (fromAreas <= fromMerging && fromAreas <= fromPending) {
+                    found[n] = fromAreas;
+                    a++;
+                } else if (fromMerging <= fromPending) {
+                    found[n] = fromMerging;
+                    m++;
+                } else {
+                    found[n] = fromPending;
+                    p++;
+                }
+            }
+            return found;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return Number of customers indexed
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return areas.lines.length + merging.length + pendingCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Called with the lock held.
+     */
+    private boolean contains(long key) {
+        return areas.contains(key)
+            || Arrays.binarySearch(merging, key) >= 0
+            || Arrays.binarySearch(pending, 0, pendingCount, key) >= 0;
+    }
+
+    /**
+     * Merges the pending keys into a new copy of the areas once there are
+     * enough of them. Searches use the old copy and the pending keys until
+     * the new one is swapped in. Skipped if a merge is already running;
+     * that one or the next add picks these keys up.
+     */
+    private void mergeIfFull() {
+        if (!mergeLock.tryLock()) {
+            return;
+        }
+        try {
+            Areas from;
+            long[] keys;
+            lock.writeLock().lock();
+            try {
+                if (pendingCount < MERGE_AT) {
+                    return;
+                }
+                from = areas;
+                keys = Arrays.copyOf(pending, pendingCount);
+                merging = keys;
+                pendingCount = 0;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            Areas merged = from.merge(keys);
+            lock.writeLock().lock();
+            try {
+                areas = merged;
+                merging = NONE;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            mergeLock.unlock();
+        }
+    }
+
+    /**
+     * @return Index of the first of the count sorted keys that is at least key
+     */
+    private static int lowerBound(long[] keys, int count, long key) {
+        int at = Arrays.binarySearch(keys, 0, count, key);
+        return at >= 0 ? at : -at - 1;
+    }
+
+    /**
+     * Immutable sorted phone numbers. Area a's numbers are the last 7
+     * digits in lines[starts[a]] to lines[starts[a + 1] - 1], ascending.
+     */
+    private static final class Areas {
+        static final Areas EMPTY = new Areas(new int[AREAS + 1], new int[0]);
+
+        final int[] starts;
+        final int[] lines;
+
+        Areas(int[] starts, int[] lines) {
+            this.starts = starts;
+            this.lines = lines;
+        }
+
+        /**
+         * @param keys Distinct phone keys, ascending
+         */
+        static Areas of(long[] keys) {
+            int[] starts = new int[AREAS + 1];
+            int[] lines = new int[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                starts[(int) (keys[i] / LINES_PER_AREA) + 1]++;
+                lines[i] = (int) (keys[i] % LINES_PER_AREA);
+            }
+            for (int a = 0; a < AREAS; a++) {
+                starts[a + 1] += starts[a];
+            }
+            return new Areas(starts, lines);
+        }
+
+        /**
+         * Number of indexed keys below key, i.e. where key is or would go.
+         */
+        int position(long key) {
+            int area = (int) (key / LINES_PER_AREA);
+            if (area >= AREAS) {
+                return lines.length;
+            }
+            int at = Arrays.binarySearch(lines, starts[area], starts[area + 1], (int) (key % LINES_PER_AREA));
+            return at >= 0 ? at : -at - 1;
+        }
+
+        boolean contains(long key) {
+            int area = (int) (key / LINES_PER_AREA);
+            return area < AREAS
+                && Arrays.binarySearch(lines, starts[area], starts[area + 1], (int) (key % LINES_PER_AREA)) >= 0;
+        }
+
+        /**
+         * @param position Index into lines, below lines.length
+         * @return Area the position falls in
+         */
+        int areaOf(int position) {
+            int at = Arrays.binarySearch(starts, position);
+            if (at < 0) {
+                return -at - 2;
+            }
+            // Skip empty areas that start at the same position
+            while (starts[at + 1] == position) {
+                at++;
+            }
+            return at;
+        }
+
+        long keyAt(int area, int position) {
+            return area * LINES_PER_AREA + lines[position];
+        }
+
+        /**
+         * @param keys Distinct phone keys not in this copy, ascending
+         * @return A new copy holding both
+         */
+        Areas merge(long[] keys) {
+            int[] merged = new int[lines.length + keys.length];
+            int[] mergedStarts = new int[AREAS + 1];
+            int n = 0;
+            int k = 0;
+            for (int a = 0; a < AREAS; a++) {
+                mergedStarts[a] = n;
+                long areaEnd = (a + 1) * LINES_PER_AREA;
+                int i = starts[a];
+                int end = starts[a + 1];
+                while (i < end || (k < keys.length && keys[k] < areaEnd)) {
+                    if (k < keys.length && keys[k] < areaEnd
+                            && (i == end || keys[k] % LINES_PER_AREA < lines[i])) {
+                        merged[n++] = (int) (keys[k++] % LINES_PER_AREA);
+                    } else {
+                        merged[n++] = lines[i++];
+                    }
+                }
+            }
+            mergedStarts[AREAS] = n;
+            return new Areas(mergedStarts, merged);
+        }
+    }
+
+    /**
+     * Growable list of phone keys read from the store.
+     */
+    private static final class KeyBuffer {
+        private long[] keys = new long[1 << 16];
+        private int count;
+
+        void add(long key) {
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, keys.length * 2);
+            }
+            keys[count++] = key;
+        }
+
+        /**
+         * @return The keys sorted, without duplicates or invalid keys
+         */
+        long[] sorted() {
+            Arrays.parallelSort(keys, 0, count);
+            int kept = 0;
+            for (int i = 0; i < count; i++) {
+                long key = keys[i];
+                if (key >= 0 && key < AREAS * LINES_PER_AREA && (kept == 0 || keys[kept - 1] != key)) {
+                    keys[kept++] = key;
+                }
+            }
+            return Arrays.copyOf(keys, kept);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * PhoneNumbers - Validation and normalization of customer phone numbers.
+ * Checks and parses a phone number in a single pass without allocating,
+ * producing a canonical primitive long key used by caches, batches and
+ * indexes in place of the phone text.
+ */
+package reward_app;
+
+public final class PhoneNumbers {
+    /** Returned by {@link #parse(CharSequence)} for an invalid phone number. */
+    public static final long INVALID = -1L;
+
+    private static final int DIGITS = 10;
+
+    private PhoneNumbers() {
+    }
+
+    /**
+     * Parses a phone number into its canonical key.
+     * Accepts 10 digits optionally separated by spaces, dashes, dots or
+     * parentheses, e.g. 7051234567, (705)-123-4567 or 705.123.4567.
+     * A leading +1 or 1 country code is dropped.
+     *
+     * @param phone Phone number as typed
+     * @return The 10 digits as a long, or {@link #INVALID}
+     */
+    public static long parse(CharSequence phone) {
+        if (phone == null) {
+            return INVALID;
+        }
+        int length = phone.length();
+        int start = 0;
+        if (length > 0 && phone.charAt(0) == '+') {
+            start = 1;
+        }
+        long key = 0;
+        int digits = 0;
+        for (int i = start; i < length; i++) {
+            char c = phone.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++digits > DIGITS + 1) {
+                    return INVALID;
+                }
+                key = key * 10 + (c - '0');
+            } else if (c != ' ' && c != '-' && c != '.' && c != '(' && c != ')') {
+                return INVALID;
+            }
+        }
+        if (digits == DIGITS + 1) {
+            // Only a North American country code may precede the 10 digits
+            long countryCode = key / 10_000_000_000L;
+            return countryCode == 1 ? key - 10_000_000_000L : INVALID;
+        }
+        if (digits != DIGITS || start == 1) {
+            return INVALID;
+        }
+        return key;
+    }
+
+    /**
+     * Checks whether a phone number can be parsed.
+     * @param phone Phone number as typed
+     * @return true if {@link #parse(CharSequence)} accepts it
+     */
+    public static boolean isValid(CharSequence phone) {
+        return parse(phone) != INVALID;
+    }
+
+    /**
+     * Formats a key as the canonical 10-digit text stored in the database.
+     * @param key Key returned by {@link #parse(CharSequence)}
+     * @return 10 digits, zero padded
+     */
+    public static String format(long key) {
+        char[] text = new char[DIGITS];
+        for (int i = DIGITS - 1; i >= 0; i--) {
+            text[i] = (char) ('0' + key % 10);
+            key /= 10;
+        }
+        return new String(text);
+    }
+}
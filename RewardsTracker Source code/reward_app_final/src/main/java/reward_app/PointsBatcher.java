@@ -0,0 +1,404 @@
+/**
+ * PointsBatcher - Write-behind queue for point accruals.
+ * Writes queued accruals to the store in a single transaction (group
+ * commit) once the batch reaches its size limit or its time limit
+ * expires. Each accrual keeps its own ledger entry; the points per phone
+ * number are also summed, for balance reads and the cache.
+ */
+package reward_app;
+
+import java.sql.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+public class PointsBatcher implements AutoCloseable {
+    /**
+     * Reads a stored balance; used to combine it with queued accruals.
+     */
+    @FunctionalInterface
+    public interface BalanceReader {
+        int read() throws SQLException;
+    }
+
+    private static final int INITIAL_ROWS = 64;
+    // Full batches that may wait behind the one being written
+    private static final int QUEUED_BATCHES = 8;
+
+    private final RewardsStore store;
+    private final BiConsumer<Map<Long, Integer>, Map<Long, Integer>> onCommit;
+    private final int maxBatchSize;
+    private final int maxQueued;
+    private final long maxDelayMillis;
+    private final Thread flusher;
+
+    // Guarded by "this"
+    private Map<Long, Integer> pending = new HashMap<>();
+    private Map<Long, Integer> inFlight = new HashMap<>();
+    // Queued accruals in arrival order, pendingAccruals of them
+    private long[] pendingKeys = new long[INITIAL_ROWS];
+    private int[] pendingRows = new int[INITIAL_ROWS];
+    private int pendingAccruals;
+    // Balance reads under way; no batch is taken while there are any
+    private int activeReads;
+    // Reads waiting for the batch being written; they go before the next
+    private int waitingReads;
+    // Set while the flusher waits to take a batch, holding back new reads
+    private boolean taking;
+    private long firstPendingAt;
+    private long enqueuedSeq;
+    private long durableSeq;
+    private long flushRequestedSeq;
+    private SQLException lastError;
+    private boolean closed;
+
+    /**
+     * Starts a batcher writing to the given database.
+     * @param db Database the accruals are flushed to
+     * @param maxBatchSize Number of queued accruals that triggers a flush
+     * @param maxDelayMillis Longest time an accrual may wait before it is flushed
+     * @param onCommit Called with the points per phone key of each committed
+     *                 batch, and the points expired per phone key by it,
+     *                 before readers can see the batch as committed
+     */
+    public PointsBatcher(RewardsDatabase db, int maxBatchSize, long maxDelayMillis,
+                         BiConsumer<Map<Long, Integer>, Map<Long, Integer>> onCommit) {
+        this(new ShardedDatabase(db), maxBatchSize, maxDelayMillis, onCommit);
+    }
+
+    /**
+     * Starts a batcher writing to one partition of a store. Every accrual
+     * queued must belong to the same partition.
+     * @param store Store the accruals are flushed to
+     * @param maxBatchSize Number of queued accruals that triggers a flush
+     * @param maxDelayMillis Longest time an accrual may wait before it is flushed
+     * @param onCommit Called with the points per phone key of each committed
+     *                 batch, and the points expired per phone key by it,
+     *                 before readers can see the batch as committed
+     */
+    public PointsBatcher(RewardsStore store, int maxBatchSize, long maxDelayMillis,
+                         BiConsumer<Map<Long, Integer>, Map<Long, Integer>> onCommit) {
+        if (maxBatchSize < 1 || maxDelayMillis < 1) {
+            throw new IllegalArgumentException("Batch size and delay must be positive");
+        }
+        this.store = store;
+        this.onCommit = onCommit;
+        this.maxBatchSize = maxBatchSize;
+        this.maxQueued = (int) Math.min(Integer.MAX_VALUE, (long) maxBatchSize * QUEUED_BATCHES);
+        this.maxDelayMillis = maxDelayMillis;
+        this.flusher = new Thread(this::runFlusher, "rewards-batch-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Queues an accrual. The points are not durable until a flush commits them.
+     * Waits while several full batches are already queued, so a flusher
+     * that falls behind slows callers down instead of filling the heap.
+     * @param key Customer's phone key
+     * @param points Points to add
+     * @return Sequence number to pass to {@link #awaitDurable(long)}
+     * @throws SQLException If the queue is full and the last flush failed
+     * @throws IllegalStateException If the batcher has been closed
+     */
+    public synchronized long enqueue(long key, int points) throws SQLException {
+        boolean interrupted = false;
+        while (pendingAccruals >= maxQueued && !closed) {
+            if (lastError != null || !flusher.isAlive()) {
+                throw new SQLException("Batched accruals could not be saved", lastError);
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (closed) {
+            throw new IllegalStateException("Batcher is closed");
+        }
+        if (pendingAccruals == 0) {
+            firstPendingAt = System.currentTimeMillis();
+        }
+        if (pendingAccruals == pendingKeys.length) {
+            pendingKeys = Arrays.copyOf(pendingKeys, pendingAccruals * 2);
+            pendingRows = Arrays.copyOf(pendingRows, pendingAccruals * 2);
+        }
+        pendingKeys[pendingAccruals] = key;
+        pendingRows[pendingAccruals] = points;
+        pending.merge(key, points, Integer::sum);
+        pendingAccruals++;
+        enqueuedSeq++;
+        // Wake the flusher to start the delay timer or flush a full batch
+        if (pendingAccruals == 1 || pendingAccruals >= maxBatchSize) {
+            notifyAll();
+        }
+        return enqueuedSeq;
+    }
+
+    /**
+     * Returns points queued for a customer that are not yet committed.
+     * Used so balance reads see accruals still sitting in the queue.
+     * @param key Customer's phone key
+     * @return Sum of pending and in-flight accruals
+     */
+    public synchronized int pendingPoints(long key) {
+        return pending.getOrDefault(key, 0) + inFlight.getOrDefault(key, 0);
+    }
+
+    /**
+     * Reads a stored balance and adds the accruals still queued for it.
+     * A customer with accruals in the batch being written waits for it to
+     * be published, as the read may or may not include them, and is then
+     * let in before the next batch is taken. No batch is taken during the
+     * read. So queued points are never counted twice or missed, and nobody
+     * else waits on the batch's transaction.
+     * @param key Customer's phone key
+     * @param reader Reads the committed balance from the database
+     * @return Committed balance plus queued accruals
+     * @throws SQLException If the read fails
+     */
+    public int balanceWithPending(long key, BalanceReader reader) throws SQLException {
+        boolean interrupted = false;
+        synchronized (this) {
+            while (!inFlight.containsKey(key) && taking) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (inFlight.containsKey(key)) {
+                waitingReads++;
+                while (inFlight.containsKey(key)) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                waitingReads--;
+            }
+            activeReads++;
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            int balance = reader.read();
+            synchronized (this) {
+                return balance + pending.getOrDefault(key, 0);
+            }
+        } finally {
+            synchronized (this) {
+                if (--activeReads == 0) {
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forces everything queued so far to be written and waits until it is durable.
+     * @throws SQLException If the flush failed
+     */
+    public void flush() throws SQLException {
+        long seq;
+        synchronized (this) {
+            seq = enqueuedSeq;
+            flushRequestedSeq = Math.max(flushRequestedSeq, seq);
+            notifyAll();
+        }
+        awaitDurable(seq);
+    }
+
+    /**
+     * Waits until the accrual with the given sequence number has been committed.
+     * @param seq Sequence number returned by {@link #enqueue(long, int)}
+     * @throws SQLException If the batch holding the accrual failed to commit
+     */
+    public synchronized void awaitDurable(long seq) throws SQLException {
+        boolean interrupted = false;
+        while (durableSeq < seq) {
+            if (lastError != null) {
+                throw new SQLException("Batched accruals could not be saved", lastError);
+            }
+            if (!flusher.isAlive()) {
+                throw new SQLException("Batcher stopped before accruals were saved");
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops accepting accruals, drains the queue and stops the flusher thread.
+     * @throws SQLException If the final flush failed
+     */
+    @Override
+    public void close() throws SQLException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (durableSeq < enqueuedSeq) {
+                throw new SQLException("Batched accruals could not be saved", lastError);
+            }
+        }
+    }
+
+    /**
+     * Flusher loop: waits for a size, time or explicit trigger and commits the batch.
+     */
+    private void runFlusher() {
+        while (true) {
+            Map<Long, Integer> batch;
+            long[] batchKeys;
+            int[] batchRows;
+            int batchAccruals;
+            long batchSeq;
+            synchronized (this) {
+                while (!shouldFlush()) {
+                    if (closed && pendingAccruals == 0) {
+                        return;
+                    }
+                    long waitMillis = pendingAccruals == 0
+                        ? 0
+                        : Math.max(1, firstPendingAt + maxDelayMillis - System.currentTimeMillis());
+                    try {
+                        wait(waitMillis);
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                // Reads under way must finish with the queue they started with
+                taking = true;
+                while (activeReads > 0 || waitingReads > 0) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        closed = true;
+                    }
+                }
+                taking = false;
+                batch = pending;
+                batchKeys = pendingKeys;
+                batchRows = pendingRows;
+                batchAccruals = pendingAccruals;
+                batchSeq = enqueuedSeq;
+                inFlight = batch;
+                pending = new HashMap<>();
+                pendingKeys = new long[INITIAL_ROWS];
+                pendingRows = new int[INITIAL_ROWS];
+                pendingAccruals = 0;
+                // Lets in the reads held back while the batch was taken, and
+                // callers waiting for room in the queue
+                notifyAll();
+            }
+
+            // Written without holding the monitor; readers of the customers
+            // in the batch wait in balanceWithPending until it is published
+            SQLException error = null;
+            try {
+                onCommit.accept(batch, writeBatch(batch, batchKeys, batchRows, batchAccruals));
+            } catch (SQLException e) {
+                error = e;
+            }
+
+            synchronized (this) {
+                inFlight = new HashMap<>();
+                if (error == null) {
+                    durableSeq = batchSeq;
+                    lastError = null;
+                } else {
+                    System.out.println("Error flushing batched points: " + error.getMessage());
+                    // Put the accruals back, ahead of newer ones, so the next flush retries them
+                    batch.forEach((key, points) -> pending.merge(key, points, Integer::sum));
+                    long[] keys = Arrays.copyOf(batchKeys, batchAccruals + pendingAccruals);
+                    int[] rows = Arrays.copyOf(batchRows, batchAccruals + pendingAccruals);
+                    System.arraycopy(pendingKeys, 0, keys, batchAccruals, pendingAccruals);
+                    System.arraycopy(pendingRows, 0, rows, batchAccruals, pendingAccruals);
+                    pendingKeys = keys;
+                    pendingRows = rows;
+                    pendingAccruals += batchAccruals;
+                    // Retry on the time limit rather than spinning on explicit requests
+                    firstPendingAt = System.currentTimeMillis();
+                    flushRequestedSeq = durableSeq;
+                    lastError = error;
+                }
+                notifyAll();
+                if (error != null && closed) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Decides whether the queued accruals should be written now.
+     * Caller must hold the monitor.
+     */
+    private boolean shouldFlush() {
+        if (pendingAccruals == 0) {
+            return false;
+        }
+        return closed
+            || pendingAccruals >= maxBatchSize
+            || flushRequestedSeq > durableSeq
+            || System.currentTimeMillis() - firstPendingAt >= maxDelayMillis;
+    }
+
+    /**
+     * Writes one batch in a single transaction, with one ledger entry per
+     * accrual. The accruals are grouped by customer, keeping their order,
+     * so each customer's balance is updated once.
+     * @param batch Phone number to points delta
+     * @param keys Phone key of each accrual, in arrival order
+     * @param points Points of each accrual
+     * @param count Number of accruals
+     * @return Phone number to points expired before the batch's were added
+     * @throws SQLException If the transaction fails; it is rolled back
+     */
+    private Map<Long, Integer> writeBatch(Map<Long, Integer> batch, long[] keys, int[] points, int count)
+            throws SQLException {
+        // Counting sort: each customer's accruals start after the previous customer's
+        Map<Long, int[]> next = new HashMap<>(batch.size() * 2);
+        for (int i = 0; i < count; i++) {
+            next.computeIfAbsent(keys[i], key -> new int[1])[0]++;
+        }
+        int start = 0;
+        for (int[] slot : next.values()) {
+            int accruals = slot[0];
+            slot[0] = start;
+            start += accruals;
+        }
+        long[] groupedKeys = new long[count];
+        int[] groupedPoints = new int[count];
+        for (int i = 0; i < count; i++) {
+            int at = next.get(keys[i])[0]++;
+            groupedKeys[at] = keys[i];
+            groupedPoints[at] = points[i];
+        }
+        Map<Long, Integer> expired = new HashMap<>();
+        store.addAll(groupedKeys, groupedPoints, 0, count, (key, delta, balance) -> expired.put(key, -delta));
+        return expired;
+    }
+}
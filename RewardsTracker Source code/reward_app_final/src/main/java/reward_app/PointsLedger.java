@@ -0,0 +1,286 @@
+/**
+ * PointsLedger - Append-only history of every points change.
+ * The rewards table is a snapshot of the ledger that writers keep up to
+ * date in the same transaction as each append, so balance reads stay a
+ * single-row lookup. The ledger is used to audit a customer's history
+ * and to rebuild the snapshot from scratch.
+ */
+package reward_app;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class PointsLedger {
+    static final String CREATE_TABLE_SQL = "CREATE TABLE IF NOT EXISTS ledger "
+                                         + "(id INTEGER PRIMARY KEY, "
+                                         + "phone TEXT NOT NULL, "
+                                         + "delta INTEGER NOT NULL, "
+                                         + "created_at INTEGER NOT NULL, "
+                                         + "origin INTEGER)";
+    // Covers the per-customer sums and last earnings used by audits and rebuilds
+    static final String CREATE_INDEX_SQL = "CREATE INDEX IF NOT EXISTS ledger_phone_earned "
+                                         + "ON ledger (phone, delta, created_at)";
+    // Superseded by ledger_phone_earned, which has the same prefix
+    static final String DROP_OLD_INDEX_SQL = "DROP INDEX IF EXISTS ledger_phone";
+
+    /** ledger.origin of points expired at this till; see PointsReplica. */
+    static final int EXPIRED = -1;
+    private static final String APPEND_EXPIRY_SQL = "INSERT INTO ledger (phone, delta, created_at, origin) "
+                                                  + "VALUES (?, ?, ?, " + EXPIRED + ")";
+    private static final String SEED_SQL = "INSERT INTO ledger (phone, delta, created_at) "
+                                         + "SELECT phone, points, ? FROM rewards "
+                                         + "WHERE NOT EXISTS (SELECT 1 FROM ledger)";
+    private static final String HISTORY_SQL = "SELECT id, delta, created_at FROM ledger "
+                                            + "WHERE phone = ? ORDER BY id DESC LIMIT ?";
+    private static final String SINCE_SQL = "SELECT id, phone, delta, created_at FROM ledger "
+                                          + "WHERE id > ? ORDER BY id LIMIT ?";
+    private static final String SUM_SQL = "SELECT COALESCE(SUM(delta), 0) FROM ledger WHERE phone = ?";
+    private static final String HIGH_WATER_SQL = "SELECT COALESCE(MAX(id), 0) FROM ledger";
+    // A balance's earned_at is its last earning, or NULL once nothing is left to expire
+    private static final String STREAM_SQL = "SELECT phone, SUM(delta), "
+                                           + "CASE WHEN SUM(delta) > 0 THEN MAX(CASE WHEN delta > 0 THEN created_at END) END "
+                                           + "FROM ledger WHERE id <= ? GROUP BY phone";
+    private static final String CREATE_REBUILD_SQL = "CREATE TABLE rewards_rebuild "
+                                                   + "(phone TEXT PRIMARY KEY, points INTEGER, earned_at INTEGER)";
+    private static final String INSERT_REBUILD_SQL = "INSERT INTO rewards_rebuild (phone, points, earned_at) "
+                                                   + "VALUES (?, ?, ?)";
+    private static final String CATCH_UP_SQL = "INSERT INTO rewards_rebuild (phone, points, earned_at) "
+                                             + "SELECT phone, SUM(delta), MAX(CASE WHEN delta > 0 THEN created_at END) "
+                                             + "FROM ledger WHERE id > ? GROUP BY phone "
+                                             + "ON CONFLICT(phone) DO UPDATE SET points = points + excluded.points, "
+                                             + "earned_at = COALESCE(excluded.earned_at, earned_at)";
+
+    // Stands for a NULL earned_at while a chunk is buffered
+    private static final long NOT_EARNED = Long.MIN_VALUE;
+
+    private PointsLedger() {
+    }
+
+    /**
+     * Gives a database created before the ledger existed one opening entry
+     * per customer. Does nothing once the ledger has entries.
+     * @param connection Connection with both tables in place
+     * @throws SQLException If the seed fails
+     */
+    static void seedOpeningBalances(Connection connection) throws SQLException {
+        try (PreparedStatement pstmt = connection.prepareStatement(SEED_SQL)) {
+            pstmt.setLong(1, System.currentTimeMillis());
+            pstmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Appends one entry on a connection that is inside a write transaction.
+     * @param conn Write connection
+     * @param key Customer's phone key
+     * @param delta Points added, negative for redemptions
+     * @throws SQLException If the insert fails
+     */
+    static void append(PooledConnection conn, long key, int delta) throws SQLException {
+        PreparedStatement pstmt = conn.appendLedgerStatement();
+        pstmt.setString(1, PhoneNumbers.format(key));
+        pstmt.setInt(2, delta);
+        pstmt.setLong(3, System.currentTimeMillis());
+        pstmt.executeUpdate();
+    }
+
+    /**
+     * Appends the points taken by an expiry, marked as such, on a
+     * connection that is inside a write transaction.
+     * @param conn Write connection
+     * @param key Customer's phone key
+     * @param points Points taken, positive
+     * @throws SQLException If the insert fails
+     */
+    static void appendExpiry(PooledConnection conn, long key, int points) throws SQLException {
+        PreparedStatement pstmt = conn.prepare(APPEND_EXPIRY_SQL);
+        pstmt.setString(1, PhoneNumbers.format(key));
+        pstmt.setInt(2, -points);
+        pstmt.setLong(3, System.currentTimeMillis());
+        pstmt.executeUpdate();
+    }
+
+    /**
+     * Returns a customer's most recent ledger entries, newest first.
+     * @param db Database to read from
+     * @param key Customer's phone key
+     * @param limit Maximum number of entries
+     * @return Ledger entries
+     * @throws SQLException If database operation fails
+     */
+    public static List<LedgerEntry> history(RewardsDatabase db, long key, int limit) throws SQLException {
+        List<LedgerEntry> entries = new ArrayList<>();
+        try (PooledConnection conn = db.acquire()) {
+            PreparedStatement pstmt = conn.prepare(HISTORY_SQL);
+            pstmt.setString(1, PhoneNumbers.format(key));
+            pstmt.setInt(2, limit);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    entries.add(new LedgerEntry(rs.getLong(1), key, rs.getInt(2), rs.getLong(3)));
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Reads the entries appended after a ledger id, oldest first.
+     * @param db Database to read from
+     * @param afterId Entries up to and including this id are skipped
+     * @param limit Maximum number of entries
+     * @param reader Receives each entry
+     * @return Id of the last entry read, afterId if there were none
+     * @throws SQLException If database operation fails
+     */
+    static long readSince(RewardsDatabase db, long afterId, int limit, PointsLog.Replayer reader)
+            throws SQLException {
+        long lastId = afterId;
+        try (PooledConnection conn = db.acquire()) {
+            PreparedStatement pstmt = conn.prepare(SINCE_SQL);
+            pstmt.setLong(1, afterId);
+            pstmt.setInt(2, limit);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    lastId = rs.getLong(1);
+                    reader.apply(lastId, PhoneNumbers.parse(rs.getString(2)), rs.getInt(3), rs.getLong(4));
+                }
+            }
+        }
+        return lastId;
+    }
+
+    /**
+     * Sums a customer's ledger, for checking a disputed balance against the snapshot.
+     * @param db Database to read from
+     * @param key Customer's phone key
+     * @return Balance according to the ledger
+     * @throws SQLException If database operation fails
+     */
+    public static int ledgerBalance(RewardsDatabase db, long key) throws SQLException {
+        try (PooledConnection conn = db.acquire()) {
+            PreparedStatement pstmt = conn.prepare(SUM_SQL);
+            pstmt.setString(1, PhoneNumbers.format(key));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                rs.next();
+                return rs.getInt(1);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds every balance in the rewards table from the ledger.
+     * Per-customer sums are streamed from a read snapshot in phone order and
+     * written to a side table in chunks, so memory stays bounded and tills
+     * keep writing between chunks. A final short write transaction applies
+     * the entries appended meanwhile and swaps the side table in. Its
+     * earned_at index keeps the name it was created under, as SQLite
+     * can't rename an index; RewardsDatabase finds it by column.
+     *
+     * @param db Database to rebuild
+     * @param chunkSize Customers written per transaction
+     * @return Number of balances written, streamed plus caught up
+     * @throws SQLException If database operation fails; the rewards table is left untouched
+     */
+    public static long rebuildBalances(RewardsDatabase db, int chunkSize) throws SQLException {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("Chunk size must be at least 1");
+        }
+        if (db.getPoolSize() < 2) {
+            // The streaming reader and the chunk writer each need a connection
+            throw new IllegalStateException("Rebuilding balances needs a pool of at least 2 connections");
+        }
+        try (PooledConnection writer = db.acquireWriter();
+             Statement stmt = writer.getConnection().createStatement()) {
+            stmt.execute("DROP TABLE IF EXISTS rewards_rebuild");
+            stmt.execute(CREATE_REBUILD_SQL);
+            // Filled chunk by chunk with the table rather than built in one long write
+            stmt.execute("CREATE INDEX rewards_earned_" + System.currentTimeMillis()
+                         + " ON rewards_rebuild (earned_at)");
+        }
+
+        long highWater;
+        long customers = 0;
+        String[] phones = new String[chunkSize];
+        int[] points = new int[chunkSize];
+        long[] earned = new long[chunkSize];
+        try (PooledConnection reader = db.acquire()) {
+            reader.prepare("BEGIN").execute();
+            try {
+                try (ResultSet rs = reader.prepare(HIGH_WATER_SQL).executeQuery()) {
+                    rs.next();
+                    highWater = rs.getLong(1);
+                }
+                PreparedStatement stream = reader.prepare(STREAM_SQL);
+                stream.setLong(1, highWater);
+                try (ResultSet rs = stream.executeQuery()) {
+                    int buffered = 0;
+                    while (rs.next()) {
+                        phones[buffered] = rs.getString(1);
+                        points[buffered] = rs.getInt(2);
+                        earned[buffered] = rs.getLong(3);
+                        if (rs.wasNull()) {
+                            earned[buffered] = NOT_EARNED;
+                        }
+                        if (++buffered == chunkSize) {
+                            writeChunk(db, phones, points, earned, buffered);
+                            customers += buffered;
+                            buffered = 0;
+                        }
+                    }
+                    writeChunk(db, phones, points, earned, buffered);
+                    customers += buffered;
+                }
+            } finally {
+                reader.prepare("COMMIT").execute();
+            }
+        }
+
+        try (PooledConnection writer = db.acquireWriter()) {
+            writer.begin();
+            try (Statement stmt = writer.getConnection().createStatement()) {
+                PreparedStatement catchUp = writer.prepare(CATCH_UP_SQL);
+                catchUp.setLong(1, highWater);
+                customers += catchUp.executeUpdate();
+                stmt.execute("DROP TABLE rewards");
+                stmt.execute("ALTER TABLE rewards_rebuild RENAME TO rewards");
+                writer.commit();
+            } catch (SQLException e) {
+                writer.rollback();
+                throw e;
+            }
+        }
+        return customers;
+    }
+
+    /**
+     * Writes one chunk of rebuilt balances in its own transaction.
+     */
+    private static void writeChunk(RewardsDatabase db, String[] phones, int[] points, long[] earned, int count)
+            throws SQLException {
+        if (count == 0) {
+            return;
+        }
+        try (PooledConnection writer = db.acquireWriter()) {
+            writer.begin();
+            try {
+                PreparedStatement pstmt = writer.prepare(INSERT_REBUILD_SQL);
+                for (int i = 0; i < count; i++) {
+                    pstmt.setString(1, phones[i]);
+                    pstmt.setInt(2, points[i]);
+                    if (earned[i] == NOT_EARNED) {
+                        pstmt.setNull(3, Types.INTEGER);
+                    } else {
+                        pstmt.setLong(3, earned[i]);
+                    }
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                writer.commit();
+            } catch (SQLException e) {
+                writer.rollback();
+                throw e;
+            }
+        }
+    }
+}
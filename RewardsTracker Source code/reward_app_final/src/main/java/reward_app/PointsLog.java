@@ -0,0 +1,494 @@
+/**
+ * PointsLog - Append-only log of points changes behind MemoryStore.
+ * Each change is a fixed 24-byte record (phone key, delta, time, CRC)
+ * in segment files named after the sequence number of their first record,
+ * e.g. log-00000000000000000001.wal. The log is the store's ledger: a
+ * record's sequence number is its ledger id, and segments are kept.
+ * A change made with a client transaction ID is followed by a record of
+ * the ID: its hash with {@link #TXN_FLAG} set in place of the key, delta
+ * 0. Coming second, the ID is only ever on disk if its change is too.
+ *
+ * Appends only copy the record into a buffer. A writer thread writes the
+ * buffer and forces it to disk every few milliseconds (group commit), so
+ * a crash loses at most that window; {@link #sync()} waits for it.
+ * A record torn by a crash is dropped when the log is replayed.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+public class PointsLog implements AutoCloseable {
+    static final int RECORD_BYTES = 24;
+    /** Set in the key of a transaction ID record; phone keys never have it. */
+    static final long TXN_FLAG = Long.MIN_VALUE;
+    private static final int CHECKED_BYTES = 20;
+    private static final String PREFIX = "log-";
+    private static final String SUFFIX = ".wal";
+    private static final long SEGMENT_BYTES = 64L << 20;
+    // Writes early rather than let a burst grow the buffer without limit
+    private static final int WRITE_AT_BYTES = 1 << 20;
+    private static final int READ_RECORDS = 1 << 16;
+
+    /**
+     * Receives records as the log is replayed.
+     */
+    @FunctionalInterface
+    public interface Replayer {
+        void apply(long seq, long key, int delta, long createdAt);
+    }
+
+    private final Path directory;
+    private final long syncMillis;
+    private final CRC32C crc = new CRC32C();
+    private final Thread writer;
+
+    // Guarded by "this"
+    private ByteBuffer pending = ByteBuffer.allocate(64 * 1024);
+    private ByteBuffer spare = ByteBuffer.allocate(64 * 1024);
+    private long nextSeq;
+    private long pendingFirstSeq;
+    private long firstPendingAt;
+    private long durableSeq;
+    private long syncRequestedSeq;
+    private IOException lastError;
+    private boolean closed;
+
+    // Owned by the writer thread
+    private FileChannel segment;
+
+    /**
+     * Opens the log for appending after it has been replayed.
+     * @param directory Folder holding the segments
+     * @param nextSeq Sequence number of the next record, one past the last replayed
+     * @param syncMillis Longest time an appended record waits before it is written
+     */
+    public PointsLog(Path directory, long nextSeq, long syncMillis) {
+        if (syncMillis < 1) {
+            throw new IllegalArgumentException("Sync interval must be positive");
+        }
+        this.directory = directory;
+        this.syncMillis = syncMillis;
+        this.nextSeq = nextSeq;
+        this.pendingFirstSeq = nextSeq;
+        this.durableSeq = nextSeq - 1;
+        this.writer = new Thread(this::runWriter, "rewards-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Appends a record to the buffer. The caller serializes appends, so
+     * records are numbered in the order the changes were applied.
+     * @param key Customer's phone key
+     * @param delta Points added, negative for redemptions
+     * @param createdAt Time of the change, in epoch milliseconds
+     * @return Sequence number of the record
+     * @throws IOException If the log is closed or recent writes to disk are failing
+     */
+    public synchronized long append(long key, int delta, long createdAt) throws IOException {
+        if (closed) {
+            throw new IOException("Points log is closed");
+        }
+        if (lastError != null) {
+            throw new IOException("Points log cannot be written", lastError);
+        }
+        if (pending.remaining() < RECORD_BYTES) {
+            ByteBuffer bigger = ByteBuffer.allocate(pending.capacity() * 2);
+            pending.flip();
+            bigger.put(pending);
+            pending = bigger;
+        }
+        if (pending.position() == 0) {
+            firstPendingAt = System.currentTimeMillis();
+            notifyAll();
+        }
+        int offset = pending.position();
+        pending.putLong(key).putInt(delta).putLong(createdAt);
+        crc.reset();
+        crc.update(pending.array(), offset, CHECKED_BYTES);
+        pending.putInt((int) crc.getValue());
+        if (pending.position() >= WRITE_AT_BYTES) {
+            notifyAll();
+        }
+        return nextSeq++;
+    }
+
+    /**
+     * Appends a record of the client transaction ID the change just
+     * appended came with.
+     * @param txnId Hashed transaction ID
+     * @param createdAt Time of the change, in epoch milliseconds
+     * @return Sequence number of the record
+     * @throws IOException If the log is closed or recent writes to disk are failing
+     */
+    public long appendTransactionId(long txnId, long createdAt) throws IOException {
+        return append(txnId | TXN_FLAG, 0, createdAt);
+    }
+
+    /**
+     * @return Sequence number of the last record appended, 0 if none
+     */
+    public synchronized long lastSeq() {
+        return nextSeq - 1;
+    }
+
+    /**
+     * Waits until every record appended so far is on disk.
+     * @throws IOException If the records could not be written
+     */
+    public synchronized void sync() throws IOException {
+        long seq = nextSeq - 1;
+        syncRequestedSeq = Math.max(syncRequestedSeq, seq);
+        notifyAll();
+        boolean interrupted = false;
+        while (durableSeq < seq) {
+            if (lastError != null) {
+                throw new IOException("Points log cannot be written", lastError);
+            }
+            if (!writer.isAlive()) {
+                throw new IOException("Points log writer stopped before records were saved");
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops accepting records, writes what is buffered and closes the segment.
+     * @throws IOException If the buffered records could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (durableSeq < nextSeq - 1) {
+                throw new IOException("Points log records could not be saved", lastError);
+            }
+        }
+    }
+
+    /**
+     * Writer loop: waits for a sync request, a full buffer or the sync
+     * interval, then writes the buffer and forces it to disk.
+     */
+    private void runWriter() {
+        try {
+            while (true) {
+                ByteBuffer batch;
+                long batchFirstSeq;
+                long batchLastSeq;
+                synchronized (this) {
+                    while (!shouldWrite()) {
+                        if (closed && pending.position() == 0) {
+                            return;
+                        }
+                        long waitMillis = pending.position() == 0
+                            ? 0
+                            : Math.max(1, firstPendingAt + syncMillis - System.currentTimeMillis());
+                        try {
+                            wait(waitMillis);
+                        } catch (InterruptedException e) {
+                            closed = true;
+                        }
+                    }
+                    batch = pending;
+                    batchFirstSeq = pendingFirstSeq;
+                    batchLastSeq = nextSeq - 1;
+                    pending = spare;
+                    pending.clear();
+                    pendingFirstSeq = nextSeq;
+                }
+
+                IOException error = null;
+                batch.flip();
+                try {
+                    write(batch, batchFirstSeq);
+                } catch (IOException e) {
+                    error = e;
+                }
+
+                synchronized (this) {
+                    if (error == null) {
+                        spare = batch;
+                        durableSeq = batchLastSeq;
+                        lastError = null;
+                    } else {
+                        System.out.println("Error writing points log: " + error.getMessage());
+                        // Keep the records in front of anything appended since and retry
+                        batch.rewind();
+                        ByteBuffer merged = ByteBuffer.allocate(batch.remaining() + pending.capacity());
+                        pending.flip();
+                        merged.put(batch).put(pending);
+                        pending = merged;
+                        pendingFirstSeq = batchFirstSeq;
+                        firstPendingAt = System.currentTimeMillis();
+                        syncRequestedSeq = durableSeq;
+                        lastError = error;
+                    }
+                    notifyAll();
+                    if (error != null && closed) {
+                        return;
+                    }
+                }
+            }
+        } finally {
+            closeSegment();
+        }
+    }
+
+    /**
+     * Decides whether the buffer should be written now.
+     * Caller must hold the monitor.
+     */
+    private boolean shouldWrite() {
+        if (pending.position() == 0) {
+            return false;
+        }
+        return closed
+            || pending.position() >= WRITE_AT_BYTES
+            || syncRequestedSeq > durableSeq
+            || System.currentTimeMillis() - firstPendingAt >= syncMillis;
+    }
+
+    /**
+     * Writes whole records to the current segment, starting a new segment
+     * first if it is full, and forces them to disk. A failed write is cut
+     * back off the segment so the retry starts on a record boundary.
+     */
+    private void write(ByteBuffer batch, long firstSeq) throws IOException {
+        if (segment == null || segment.size() >= SEGMENT_BYTES) {
+            closeSegment();
+            segment = FileChannel.open(segmentPath(directory, firstSeq), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        long start = segment.size();
+        try {
+            while (batch.hasRemaining()) {
+                segment.write(batch, segment.size());
+            }
+            segment.force(false);
+        } catch (IOException e) {
+            try {
+                segment.truncate(start);
+            } catch (IOException ignored) {
+                // The torn record is dropped on replay in any case
+            }
+            throw e;
+        }
+    }
+
+    private void closeSegment() {
+        if (segment != null) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                System.out.println("Error closing points log: " + e.getMessage());
+            }
+            segment = null;
+        }
+    }
+
+    /**
+     * Returns a customer's most recent records, newest first. Scans the
+     * segments backwards, so it is meant for audits rather than every sale.
+     * @param key Customer's phone key
+     * @param limit Maximum number of entries
+     * @return Ledger entries
+     * @throws IOException If the log cannot be read
+     */
+    public List<LedgerEntry> history(long key, int limit) throws IOException {
+        sync();
+        List<LedgerEntry> entries = new ArrayList<>();
+        List<Path> segments = segments(directory);
+        ByteBuffer buffer = ByteBuffer.allocate(READ_RECORDS * RECORD_BYTES);
+        CRC32C check = new CRC32C();
+        for (int s = segments.size() - 1; s >= 0 && entries.size() < limit; s--) {
+            long firstSeq = firstSeq(segments.get(s));
+            try (FileChannel channel = FileChannel.open(segments.get(s), StandardOpenOption.READ)) {
+                long end = channel.size() / RECORD_BYTES;
+                while (end > 0 && entries.size() < limit) {
+                    long start = Math.max(0, end - READ_RECORDS);
+                    readFully(channel, buffer, start * RECORD_BYTES, (int) (end - start) * RECORD_BYTES);
+                    for (int i = (int) (end - start) - 1; i >= 0 && entries.size() < limit; i--) {
+                        int offset = i * RECORD_BYTES;
+                        if (buffer.getLong(offset) == key && valid(buffer, offset, check)) {
+                            entries.add(new LedgerEntry(firstSeq + start + i, key,
+                                buffer.getInt(offset + 8), buffer.getLong(offset + 12)));
+                        }
+                    }
+                    end = start;
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Reads records already on disk after a sequence number, in order,
+     * while the log stays open for appends. Records still in the buffer
+     * are left for a later call.
+     * @param afterSeq Records up to and including this one are skipped
+     * @param limit Most records to read
+     * @param replayer Receives each record
+     * @return Sequence number of the last record read, afterSeq if none
+     * @throws IOException If the log cannot be read or is damaged
+     */
+    public long read(long afterSeq, int limit, Replayer replayer) throws IOException {
+        long lastSeq;
+        synchronized (this) {
+            lastSeq = Math.min(durableSeq, afterSeq + limit);
+        }
+        long seq = afterSeq + 1;
+        if (seq > lastSeq) {
+            return afterSeq;
+        }
+        List<Path> segments = segments(directory);
+        ByteBuffer buffer = ByteBuffer.allocate(READ_RECORDS * RECORD_BYTES);
+        CRC32C check = new CRC32C();
+        for (int s = 0; s < segments.size() && seq <= lastSeq; s++) {
+            long firstSeq = firstSeq(segments.get(s));
+            long endSeq = s + 1 < segments.size() ? firstSeq(segments.get(s + 1)) : lastSeq + 1;
+            if (endSeq <= seq) {
+                continue;
+            }
+            try (FileChannel channel = FileChannel.open(segments.get(s), StandardOpenOption.READ)) {
+                while (seq < Math.min(endSeq, lastSeq + 1)) {
+                    int count = (int) Math.min(READ_RECORDS, Math.min(endSeq, lastSeq + 1) - seq);
+                    readFully(channel, buffer, (seq - firstSeq) * RECORD_BYTES, count * RECORD_BYTES);
+                    for (int i = 0; i < count; i++) {
+                        int offset = i * RECORD_BYTES;
+                        if (!valid(buffer, offset, check)) {
+                            throw new IOException(segments.get(s) + " is damaged at record " + (seq + i));
+                        }
+                        replayer.apply(seq + i, buffer.getLong(offset),
+                            buffer.getInt(offset + 8), buffer.getLong(offset + 12));
+                    }
+                    seq += count;
+                }
+            }
+        }
+        return seq - 1;
+    }
+
+    /**
+     * Replays every record after a sequence number, in order. A torn or
+     * damaged tail of the last segment, left by a crash mid-write, is cut
+     * off; damage anywhere else fails the replay.
+     * @param directory Folder holding the segments
+     * @param afterSeq Records up to and including this one are skipped
+     * @param replayer Receives each record
+     * @return Sequence number of the last record in the log, 0 if empty
+     * @throws IOException If the log cannot be read or is damaged
+     */
+    public static long replay(Path directory, long afterSeq, Replayer replayer) throws IOException {
+        List<Path> segments = segments(directory);
+        ByteBuffer buffer = ByteBuffer.allocate(READ_RECORDS * RECORD_BYTES);
+        CRC32C check = new CRC32C();
+        long lastSeq = 0;
+        for (int s = 0; s < segments.size(); s++) {
+            Path path = segments.get(s);
+            long firstSeq = firstSeq(path);
+            if (lastSeq != 0 && firstSeq != lastSeq + 1) {
+                throw new IOException("Points log is missing records " + (lastSeq + 1) + " to " + (firstSeq - 1));
+            }
+            boolean last = s == segments.size() - 1;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long size = channel.size();
+                long records = size / RECORD_BYTES;
+                // Records before afterSeq only need checking for the tail
+                long skip = Math.max(0, Math.min(records, afterSeq - firstSeq + 1));
+                long index = skip;
+                while (index < records) {
+                    int count = (int) Math.min(READ_RECORDS, records - index);
+                    readFully(channel, buffer, index * RECORD_BYTES, count * RECORD_BYTES);
+                    for (int i = 0; i < count; i++) {
+                        int offset = i * RECORD_BYTES;
+                        if (!valid(buffer, offset, check)) {
+                            records = index + i;
+                            break;
+                        }
+                        replayer.apply(firstSeq + index + i, buffer.getLong(offset),
+                            buffer.getInt(offset + 8), buffer.getLong(offset + 12));
+                    }
+                    index = Math.min(index + count, records);
+                }
+                if (records * RECORD_BYTES != size) {
+                    if (!last) {
+                        throw new IOException(path + " is damaged at record " + (firstSeq + records));
+                    }
+                    System.out.println("Dropping torn points log record at " + path);
+                    channel.truncate(records * RECORD_BYTES);
+                    channel.force(true);
+                }
+                if (records > 0) {
+                    lastSeq = firstSeq + records - 1;
+                } else if (lastSeq == 0) {
+                    lastSeq = firstSeq - 1;
+                }
+            }
+        }
+        return lastSeq;
+    }
+
+    private static boolean valid(ByteBuffer buffer, int offset, CRC32C check) {
+        check.reset();
+        check.update(buffer.array(), offset, CHECKED_BYTES);
+        return (int) check.getValue() == buffer.getInt(offset + CHECKED_BYTES);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int length)
+            throws IOException {
+        buffer.clear().limit(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Points log ended early");
+            }
+        }
+    }
+
+    private static List<Path> segments(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> {
+                String name = path.getFileName().toString();
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static long firstSeq(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    private static Path segmentPath(Path directory, long firstSeq) {
+        // Zero padded so name order is log order
+        return directory.resolve(String.format("%s%020d%s", PREFIX, firstSeq, SUFFIX));
+    }
+}
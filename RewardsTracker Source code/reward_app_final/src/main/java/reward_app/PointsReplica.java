@@ -0,0 +1,506 @@
+/**
+ * PointsReplica - One till's copy of the balances, kept as a conflict-free
+ * counter per customer so tills that each write to their own rewards.db
+ * can merge their changes and agree.
+ * For each customer and each till (node) that changed the balance, the
+ * replica_counters table holds the points that till has added and taken
+ * in total. Only the till itself raises its own counters, and merging
+ * takes the larger of two copies of a counter, so merges can be repeated
+ * and run in any order and every till ends with the same counters. A
+ * balance is its value when sync was turned on plus, for every node,
+ * added minus taken.
+ *
+ * Every ledger entry made on this till raises its own counters, by a
+ * trigger in the same transaction, whatever wrote it: purchases,
+ * redemptions, batches and imports. Changes merged from other tills are
+ * written to the ledger with the node they came from in ledger.origin,
+ * so they are not counted again, and reports and rebuilds still add up.
+ *
+ * Expiries are the exception: every till with expiry on expires the same
+ * overdue points, so they are counted as taken by a node shared by all
+ * tills, EXPIRY_NODE. Two tills that expire the same points raise it to
+ * the same value, and the merge, taking the larger copy, takes them once.
+ * If a customer spends at one till in the moments between two tills
+ * expiring their points, the other till expires more than is left, and
+ * the balance ends that much below 0.
+ *
+ * Each counter row carries the version of its last change here. A delta
+ * is every row changed after a version the peer already has, one row per
+ * customer and node however many changes were made. Rows go in phone
+ * order with each key as the step from the last, about 4 bytes a row.
+ * Rows merged from other tills get new versions here too, so changes
+ * pass on through tills that have not all met.
+ *
+ * Tills start from copies of the same database (or empty ones); balances
+ * already there when sync is turned on are not sent. Two tills can spend
+ * the same points while apart, so a merged balance can go below 0; see
+ * PointsSync for the limit on redemptions while offline.
+ */
+package reward_app;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class PointsReplica {
+    private static final int MAGIC = 0x52574431;
+    // Rows merged per write transaction, so tills are not held up for long
+    private static final int MERGE_ROWS = 5_000;
+
+    static final String CREATE_NODE_SQL = "CREATE TABLE IF NOT EXISTS replica_node (node INTEGER NOT NULL)";
+    static final String CREATE_COUNTERS_SQL = "CREATE TABLE IF NOT EXISTS replica_counters "
+                                            + "(phone TEXT NOT NULL, "
+                                            + "node INTEGER NOT NULL, "
+                                            + "added INTEGER NOT NULL, "
+                                            + "taken INTEGER NOT NULL, "
+                                            + "version INTEGER NOT NULL, "
+                                            + "PRIMARY KEY (phone, node))";
+    static final String CREATE_VERSION_INDEX_SQL = "CREATE INDEX IF NOT EXISTS replica_counters_version "
+                                                 + "ON replica_counters (version)";
+    static final String CREATE_PEERS_SQL = "CREATE TABLE IF NOT EXISTS replica_peers "
+                                         + "(address TEXT PRIMARY KEY, "
+                                         + "node INTEGER NOT NULL, "
+                                         + "received INTEGER NOT NULL, "
+                                         + "synced_at INTEGER NOT NULL)";
+    static final String CREATE_OFFLINE_SQL = "CREATE TABLE IF NOT EXISTS replica_offline "
+                                           + "(phone TEXT PRIMARY KEY, points INTEGER NOT NULL)";
+    /** Node whose counters hold the points expired at any till. */
+    static final long EXPIRY_NODE = 0;
+    // "WHERE true" keeps SQLite from reading ON CONFLICT as a join constraint
+    static final String CREATE_TRIGGER_SQL = "CREATE TRIGGER IF NOT EXISTS replica_count "
+                                           + "AFTER INSERT ON ledger WHEN NEW.origin IS NULL BEGIN "
+                                           + "INSERT INTO replica_counters (phone, node, added, taken, version) "
+                                           + "SELECT NEW.phone, node, MAX(NEW.delta, 0), MAX(-NEW.delta, 0), "
+                                           + "(SELECT COALESCE(MAX(version), 0) + 1 FROM replica_counters) "
+                                           + "FROM replica_node WHERE true "
+                                           + "ON CONFLICT (phone, node) DO UPDATE SET added = added + excluded.added, "
+                                           + "taken = taken + excluded.taken, version = excluded.version; END";
+    static final String CREATE_EXPIRY_TRIGGER_SQL = "CREATE TRIGGER IF NOT EXISTS replica_count_expiry "
+                                                  + "AFTER INSERT ON ledger WHEN NEW.origin = " + PointsLedger.EXPIRED
+                                                  + " BEGIN "
+                                                  + "INSERT INTO replica_counters (phone, node, added, taken, version) "
+                                                  + "VALUES (NEW.phone, " + EXPIRY_NODE + ", 0, -NEW.delta, "
+                                                  + "(SELECT COALESCE(MAX(version), 0) + 1 FROM replica_counters)) "
+                                                  + "ON CONFLICT (phone, node) DO UPDATE SET "
+                                                  + "taken = taken + excluded.taken, version = excluded.version; END";
+
+    private static final String DELTA_SQL = "SELECT phone, node, added, taken, version FROM replica_counters "
+                                          + "WHERE version > ? ORDER BY phone, node";
+    private static final String HIGH_WATER_SQL = "SELECT COALESCE(MAX(version), 0) FROM replica_counters";
+    private static final String COUNTER_SQL = "SELECT added, taken FROM replica_counters WHERE phone = ? AND node = ?";
+    private static final String MERGE_SQL = "INSERT INTO replica_counters (phone, node, added, taken, version) "
+                                          + "VALUES (?, ?, ?, ?, ?) ON CONFLICT (phone, node) DO UPDATE SET "
+                                          + "added = excluded.added, taken = excluded.taken, version = excluded.version";
+    private static final String MERGE_LEDGER_SQL = "INSERT INTO ledger (phone, delta, created_at, origin) "
+                                                 + "VALUES (?, ?, ?, ?)";
+    private static final String PEER_SQL = "SELECT node, received FROM replica_peers WHERE address = ?";
+    private static final String SAVE_PEER_SQL = "INSERT INTO replica_peers (address, node, received, synced_at) "
+                                              + "VALUES (?, ?, ?, ?) ON CONFLICT (address) DO UPDATE SET "
+                                              + "node = excluded.node, received = excluded.received, "
+                                              + "synced_at = excluded.synced_at";
+    private static final String OFFLINE_SQL = "SELECT points FROM replica_offline WHERE phone = ?";
+    // Adds the points only if the total stays within the limit (?3)
+    private static final String RESERVE_OFFLINE_SQL = "INSERT INTO replica_offline (phone, points) "
+                                                    + "SELECT ?1, ?2 WHERE ?2 <= ?3 "
+                                                    + "ON CONFLICT (phone) DO UPDATE SET points = points + excluded.points "
+                                                    + "WHERE points + excluded.points <= ?3";
+    private static final String RELEASE_OFFLINE_SQL = "UPDATE replica_offline SET points = MAX(points - ?, 0) "
+                                                    + "WHERE phone = ?";
+
+    private final RewardsDatabase db;
+    private final long node;
+
+    /**
+     * Turns sync on for a database, adding its tables and trigger the
+     * first time and giving the till a random node ID.
+     * @param db This till's database
+     * @throws SQLException If the tables cannot be created
+     */
+    public PointsReplica(RewardsDatabase db) throws SQLException {
+        this.db = db;
+        try (PooledConnection conn = db.acquireWriter()) {
+            conn.begin();
+            try {
+                Connection connection = conn.getConnection();
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute(CREATE_NODE_SQL);
+                    stmt.execute(CREATE_COUNTERS_SQL);
+                    stmt.execute(CREATE_VERSION_INDEX_SQL);
+                    stmt.execute(CREATE_PEERS_SQL);
+                    stmt.execute(CREATE_OFFLINE_SQL);
+                    stmt.execute(CREATE_TRIGGER_SQL);
+                    stmt.execute(CREATE_EXPIRY_TRIGGER_SQL);
+                    long id;
+                    try (ResultSet rs = stmt.executeQuery("SELECT node FROM replica_node")) {
+                        id = rs.next() ? rs.getLong(1) : 0;
+                    }
+                    if (id == 0) {
+                        id = newNodeId();
+                        stmt.execute("INSERT INTO replica_node (node) VALUES (" + id + ")");
+                    }
+                    node = id;
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return This till's node ID, the same across restarts
+     */
+    public long getNode() {
+        return node;
+    }
+
+    /**
+     * Writes every counter changed here after a version, in phone order,
+     * from one consistent snapshot.
+     * @param since Version the peer already has, 0 for everything; a
+     *              version this till has not reached also gets everything
+     * @param out Stream to write to; flushed but not closed
+     * @return Version the peer has once it merges the delta
+     * @throws SQLException If the counters cannot be read
+     * @throws IOException If the stream cannot be written
+     */
+    public long writeDelta(long since, OutputStream out) throws SQLException, IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeLong(node);
+        long high;
+        Map<Long, Integer> nodes = new HashMap<>();
+        try (PooledConnection conn = db.acquire()) {
+            try (ResultSet rs = conn.prepare(HIGH_WATER_SQL).executeQuery()) {
+                high = rs.next() ? rs.getLong(1) : 0;
+            }
+            // Ahead of this till: it was restored from a backup, so send everything
+            if (since > high) {
+                since = 0;
+            }
+            high = since;
+            long lastKey = 0;
+            PreparedStatement pstmt = conn.prepare(DELTA_SQL);
+            pstmt.setLong(1, since);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    long rowNode = rs.getLong(2);
+                    Integer index = nodes.get(rowNode);
+                    if (index == null) {
+                        // A node is named once, then referred to by its place
+                        index = nodes.size();
+                        nodes.put(rowNode, index);
+                        writeVarLong(data, index + 1);
+                        data.writeLong(rowNode);
+                    } else {
+                        writeVarLong(data, index + 1);
+                    }
+                    // Keys ascend, so each is sent as the step from the one before
+                    long key = PhoneNumbers.parse(rs.getString(1));
+                    writeVarLong(data, key - lastKey);
+                    lastKey = key;
+                    writeVarLong(data, rs.getLong(3));
+                    writeVarLong(data, rs.getLong(4));
+                    high = Math.max(high, rs.getLong(5));
+                }
+            }
+        }
+        writeVarLong(data, 0);
+        data.writeLong(high);
+        data.flush();
+        return high;
+    }
+
+    /**
+     * Merges a delta from a peer and records how far this till has got
+     * with it. Rows are merged a few thousand per transaction; if the
+     * delta breaks off, the rows merged so far stay and the next delta
+     * from the peer starts where the last complete one ended.
+     * @param address Peer the delta came from, as it is asked for deltas
+     * @param in Delta written by {@link #writeDelta}
+     * @param listener Told of every balance the merge changes, or null
+     * @return Number of counters that changed here
+     * @throws SQLException If the merge cannot be stored
+     * @throws IOException If the delta cannot be read or is not a delta
+     */
+    public int applyDelta(String address, InputStream in, RewardsStore.CommitListener listener)
+            throws SQLException, IOException {
+        DataInputStream data = new DataInputStream(in);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a points delta");
+        }
+        long sender = data.readLong();
+        if (sender == node) {
+            throw new IOException("Peer has this till's node ID; give one of them a new ID by "
+                + "deleting its replica_node row");
+        }
+        List<Long> nodes = new ArrayList<>();
+        long[] rowNodes = new long[MERGE_ROWS];
+        long[] keys = new long[MERGE_ROWS];
+        long[] added = new long[MERGE_ROWS];
+        long[] taken = new long[MERGE_ROWS];
+        int changed = 0;
+        long lastKey = 0;
+        while (true) {
+            int rows = 0;
+            long tag;
+            while (rows < MERGE_ROWS && (tag = readVarLong(data)) != 0) {
+                int index = (int) tag - 1;
+                if (index == nodes.size()) {
+                    nodes.add(data.readLong());
+                } else if (index < 0 || index > nodes.size()) {
+                    throw new IOException("Points delta refers to an unknown node");
+                }
+                rowNodes[rows] = nodes.get(index);
+                lastKey += readVarLong(data);
+                keys[rows] = lastKey;
+                added[rows] = readVarLong(data);
+                taken[rows] = readVarLong(data);
+                rows++;
+            }
+            changed += merge(rowNodes, keys, added, taken, rows, listener);
+            if (rows < MERGE_ROWS) {
+                break;
+            }
+        }
+        long high = data.readLong();
+        try (PooledConnection conn = db.acquireWriter()) {
+            PreparedStatement pstmt = conn.prepare(SAVE_PEER_SQL);
+            pstmt.setString(1, address);
+            pstmt.setLong(2, sender);
+            pstmt.setLong(3, high);
+            pstmt.setLong(4, System.currentTimeMillis());
+            pstmt.executeUpdate();
+        }
+        return changed;
+    }
+
+    /**
+     * Merges a batch of counters in one transaction, raising balances by
+     * what the larger counters add and recording it in the ledger.
+     */
+    private int merge(long[] rowNodes, long[] keys, long[] added, long[] taken, int rows,
+                      RewardsStore.CommitListener listener) throws SQLException {
+        if (rows == 0) {
+            return 0;
+        }
+        int changed = 0;
+        long now = System.currentTimeMillis();
+        // Per merged change: key, points and resulting balance, for the listener
+        long[] changedKeys = new long[rows * 2];
+        int[] deltas = new int[rows * 2];
+        int[] balances = new int[rows * 2];
+        int told = 0;
+        try (PooledConnection conn = db.acquireWriter()) {
+            conn.begin();
+            try {
+                long version;
+                try (ResultSet rs = conn.prepare(HIGH_WATER_SQL).executeQuery()) {
+                    version = rs.next() ? rs.getLong(1) : 0;
+                }
+                PreparedStatement counter = conn.prepare(COUNTER_SQL);
+                PreparedStatement mergeCounter = conn.prepare(MERGE_SQL);
+                PreparedStatement ledger = conn.prepare(MERGE_LEDGER_SQL);
+                PreparedStatement balance = conn.addPointsStatement();
+                for (int i = 0; i < rows; i++) {
+                    String phone = PhoneNumbers.format(keys[i]);
+                    counter.setString(1, phone);
+                    counter.setLong(2, rowNodes[i]);
+                    long oldAdded = 0;
+                    long oldTaken = 0;
+                    try (ResultSet rs = counter.executeQuery()) {
+                        if (rs.next()) {
+                            oldAdded = rs.getLong(1);
+                            oldTaken = rs.getLong(2);
+                        }
+                    }
+                    long moreAdded = Math.max(0, added[i] - oldAdded);
+                    long moreTaken = Math.max(0, taken[i] - oldTaken);
+                    if (moreAdded == 0 && moreTaken == 0) {
+                        continue;
+                    }
+                    mergeCounter.setString(1, phone);
+                    mergeCounter.setLong(2, rowNodes[i]);
+                    mergeCounter.setLong(3, oldAdded + moreAdded);
+                    mergeCounter.setLong(4, oldTaken + moreTaken);
+                    mergeCounter.setLong(5, ++version);
+                    mergeCounter.executeUpdate();
+                    // Earned and spent points are recorded apart, as reports count them apart
+                    if (moreAdded > 0) {
+                        int result = apply(balance, ledger, phone, (int) moreAdded, now, rowNodes[i]);
+                        changedKeys[told] = keys[i];
+                        deltas[told] = (int) moreAdded;
+                        balances[told++] = result;
+                    }
+                    if (moreTaken > 0) {
+                        int result = apply(balance, ledger, phone, (int) -moreTaken, now, rowNodes[i]);
+                        changedKeys[told] = keys[i];
+                        deltas[told] = (int) -moreTaken;
+                        balances[told++] = result;
+                    }
+                    changed++;
+                }
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+            if (listener != null) {
+                for (int i = 0; i < told; i++) {
+                    listener.committed(changedKeys[i], deltas[i], balances[i]);
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Changes a balance by merged points and records them in the ledger.
+     * Merged earnings restart the customer's expiry clock, as any earning does.
+     * @return The new balance
+     */
+    private static int apply(PreparedStatement balance, PreparedStatement ledger, String phone, int points,
+                             long now, long origin) throws SQLException {
+        balance.setString(1, phone);
+        balance.setInt(2, points);
+        if (points > 0) {
+            balance.setLong(3, now);
+        } else {
+            balance.setNull(3, Types.INTEGER);
+        }
+        int result;
+        try (ResultSet rs = balance.executeQuery()) {
+            rs.next();
+            result = rs.getInt(1);
+        }
+        ledger.setString(1, phone);
+        ledger.setInt(2, points);
+        ledger.setLong(3, now);
+        ledger.setLong(4, origin);
+        ledger.executeUpdate();
+        return result;
+    }
+
+    /**
+     * @param address Peer as it is asked for deltas
+     * @return The peer's node ID and the version of it this till has, or
+     *         {0, 0} if it has never merged a delta from there
+     * @throws SQLException If the peers cannot be read
+     */
+    public long[] getPeer(String address) throws SQLException {
+        try (PooledConnection conn = db.acquire()) {
+            PreparedStatement pstmt = conn.prepare(PEER_SQL);
+            pstmt.setString(1, address);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? new long[] {rs.getLong(1), rs.getLong(2)} : new long[] {0, 0};
+            }
+        }
+    }
+
+    /**
+     * @param key Customer's phone key
+     * @return Points redeemed here for the customer while offline, since this till was last in touch
+     * @throws SQLException If they cannot be read
+     */
+    public int getOfflineRedeemed(long key) throws SQLException {
+        try (PooledConnection conn = db.acquire()) {
+            PreparedStatement pstmt = conn.prepare(OFFLINE_SQL);
+            pstmt.setString(1, PhoneNumbers.format(key));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                return rs.next() ? rs.getInt(1) : 0;
+            }
+        }
+    }
+
+    /**
+     * Counts points about to be redeemed while offline against the
+     * customer's limit, unless they would take the customer past it. The
+     * check and the count are one statement, so concurrent redemptions
+     * cannot both pass the limit.
+     * @param key Customer's phone key
+     * @param points Points to redeem
+     * @param limit Points the customer may redeem while offline
+     * @return Whether the points were counted
+     * @throws SQLException If they cannot be stored
+     */
+    public boolean reserveOfflineRedeemed(long key, int points, int limit) throws SQLException {
+        try (PooledConnection conn = db.acquireWriter()) {
+            PreparedStatement pstmt = conn.prepare(RESERVE_OFFLINE_SQL);
+            pstmt.setString(1, PhoneNumbers.format(key));
+            pstmt.setInt(2, points);
+            pstmt.setInt(3, limit);
+            return pstmt.executeUpdate() == 1;
+        }
+    }
+
+    /**
+     * Takes back points counted by reserveOfflineRedeemed whose redemption
+     * did not apply.
+     * @param key Customer's phone key
+     * @param points Points counted
+     * @throws SQLException If they cannot be stored
+     */
+    public void releaseOfflineRedeemed(long key, int points) throws SQLException {
+        try (PooledConnection conn = db.acquireWriter()) {
+            PreparedStatement pstmt = conn.prepare(RELEASE_OFFLINE_SQL);
+            pstmt.setInt(1, points);
+            pstmt.setString(2, PhoneNumbers.format(key));
+            pstmt.executeUpdate();
+        }
+    }
+
+    /**
+     * Clears the offline redemptions once this till is back in touch, as
+     * from then on they are in the balances peers see.
+     * @throws SQLException If they cannot be cleared
+     */
+    public void clearOfflineRedeemed() throws SQLException {
+        try (PooledConnection conn = db.acquireWriter()) {
+            conn.prepare("DELETE FROM replica_offline").executeUpdate();
+        }
+    }
+
+    private static long newNodeId() {
+        long id;
+        do {
+            id = new SecureRandom().nextLong() & Long.MAX_VALUE;
+        } while (id == 0);
+        return id;
+    }
+
+    // Seven bits a byte, low first; small counters and keys take few bytes
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new EOFException("Points delta has a malformed number");
+    }
+}
@@ -0,0 +1,383 @@
+/**
+ * PointsRules - How many points a purchase earns, compiled from rule lines.
+ * Without rules a purchase earns its amount rounded to whole points, as
+ * it always has. Rule file format, one rule per line, # for comments:
+ *
+ *   tier silver 1000                      (customers with 1000+ points)
+ *   tier gold 5000
+ *   multiply 1.5 tier gold
+ *   multiply 2 category electronics from 2026-11-27 until 2026-11-30
+ *   bonus 25 category coffee              (added once per purchase)
+ *   cap 500                               (most points one purchase earns)
+ *
+ * Conditions are tier, category, from and until (dates or date-times,
+ * local time, until exclusive); a rule applies when all of its own match.
+ * Matching multipliers are multiplied together, bonuses are added and the
+ * lowest matching cap wins:
+ *   points = min(cap, round(amount * multipliers) + bonuses)
+ * Bonuses and caps only apply to positive amounts, so refunds are not
+ * rewarded. A customer's tier is the highest whose minimum their balance
+ * reaches; unknown categories match no category condition.
+ *
+ * Compiling splits time at every from/until and works out the combined
+ * multiplier, bonus and cap for each period, tier and category up front,
+ * so evaluating a purchase is one table read, whatever the number of
+ * rules. The period is found by binary search, skipped when the purchase
+ * falls in the same period as the last one, as purchases priced "now"
+ * nearly always do. Instances are safe to share between threads.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+public final class PointsRules {
+    /** Category of purchases with no category, or one no rule names. */
+    public static final int NO_CATEGORY = 0;
+    /** One point per dollar, rounded. */
+    public static final PointsRules DEFAULT = compile(List.of());
+
+    // Keeps a pathological rule file from compiling into gigabytes
+    private static final int MAX_TABLE_ENTRIES = 1 << 22;
+    private static final int NO_CAP = Integer.MAX_VALUE;
+
+    private final int ruleCount;
+    private final boolean usesTiers;
+    // Lowest balance of each tier above the base tier, ascending
+    private final int[] tierMinimums;
+    private final Map<String, Integer> categories;
+    private final int categoryCount;
+    private final int tierCount;
+    // Instants where the set of active rules changes, ascending
+    private final long[] boundaries;
+    // Two longs per (period * tierCount + tier) * categoryCount + category:
+    // the multiplier's bits, then bonus << 32 | cap, so one purchase reads
+    // one cache line
+    private final long[] table;
+    // Period of the last purchase; a stale value only costs a search
+    private int lastPeriod;
+
+    private PointsRules(int ruleCount, boolean usesTiers, int[] tierMinimums, Map<String, Integer> categories,
+                        long[] boundaries, long[] table) {
+        this.ruleCount = ruleCount;
+        this.usesTiers = usesTiers;
+        this.tierMinimums = tierMinimums;
+        this.categories = categories;
+        this.categoryCount = categories.size() + 1;
+        this.tierCount = tierMinimums.length + 1;
+        this.boundaries = boundaries;
+        this.table = table;
+    }
+
+    /**
+     * Reads and compiles a rule file.
+     * @param file Rule file, UTF-8
+     * @return Compiled rules
+     * @throws IOException If the file cannot be read
+     * @throws IllegalArgumentException If a line is not a valid rule, naming the line
+     */
+    public static PointsRules load(Path file) throws IOException {
+        return compile(Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Compiles rule lines in the rule file format.
+     * @param lines Rule lines
+     * @return Compiled rules
+     * @throws IllegalArgumentException If a line is not a valid rule, naming the line
+     */
+    public static PointsRules compile(List<String> lines) {
+        Map<String, Integer> tierLines = new HashMap<>();
+        Map<String, Integer> tierMinimum = new HashMap<>();
+        List<String[]> ruleWords = new ArrayList<>();
+        List<Integer> ruleLines = new ArrayList<>();
+        for (int n = 0; n < lines.size(); n++) {
+            String line = lines.get(n);
+            int comment = line.indexOf('#');
+            String[] words = (comment >= 0 ? line.substring(0, comment) : line).trim().split("\\s+");
+            if (words[0].isEmpty()) {
+                continue;
+            }
+            if (words[0].equals("tier")) {
+                if (words.length != 3) {
+                    throw lineError(n, "expected: tier <name> <minimum balance>");
+                }
+                if (tierMinimum.put(words[1], parseInt(words[2], n)) != null) {
+                    throw lineError(n, "tier " + words[1] + " is defined twice");
+                }
+                tierLines.put(words[1], n);
+            } else {
+                ruleWords.add(words);
+                ruleLines.add(n);
+            }
+        }
+
+        // Tier 0 is everyone below the lowest minimum
+        List<String> tierNames = new ArrayList<>(tierMinimum.keySet());
+        tierNames.sort((a, b) -> Integer.compare(tierMinimum.get(a), tierMinimum.get(b)));
+        int[] minimums = new int[tierNames.size()];
+        Map<String, Integer> tierIds = new HashMap<>();
+        for (int t = 0; t < minimums.length; t++) {
+            minimums[t] = tierMinimum.get(tierNames.get(t));
+            if (t > 0 && minimums[t] == minimums[t - 1]) {
+                throw lineError(tierLines.get(tierNames.get(t)), "two tiers have the same minimum balance");
+            }
+            tierIds.put(tierNames.get(t), t + 1);
+        }
+
+        List<Rule> rules = new ArrayList<>();
+        Map<String, Integer> categoryIds = new HashMap<>();
+        TreeSet<Long> instants = new TreeSet<>();
+        boolean usesTiers = false;
+        for (int r = 0; r < ruleWords.size(); r++) {
+            Rule rule = parseRule(ruleWords.get(r), ruleLines.get(r), tierIds, categoryIds);
+            rules.add(rule);
+            usesTiers |= rule.tier >= 0;
+            if (rule.from != Long.MIN_VALUE) {
+                instants.add(rule.from);
+            }
+            if (rule.until != Long.MAX_VALUE) {
+                instants.add(rule.until);
+            }
+        }
+
+        long[] boundaries = instants.stream().mapToLong(Long::longValue).toArray();
+        int periods = boundaries.length + 1;
+        int tiers = minimums.length + 1;
+        int categories = categoryIds.size() + 1;
+        long entries = (long) periods * tiers * categories;
+        if (entries > MAX_TABLE_ENTRIES) {
+            throw new IllegalArgumentException("Too many combinations of dates, tiers and categories: " + entries);
+        }
+        double[] multipliers = new double[(int) entries];
+        int[] bonuses = new int[(int) entries];
+        int[] caps = new int[(int) entries];
+        Arrays.fill(multipliers, 1.0);
+        Arrays.fill(caps, NO_CAP);
+        for (Rule rule : rules) {
+            for (int p = 0; p < periods; p++) {
+                // Period p starts at boundaries[p - 1]; rules only start and end on boundaries
+                long start = p == 0 ? Long.MIN_VALUE : boundaries[p - 1];
+                if (start < rule.from || start >= rule.until) {
+                    continue;
+                }
+                for (int t = 0; t < tiers; t++) {
+                    if (rule.tier >= 0 && rule.tier != t) {
+                        continue;
+                    }
+                    for (int c = 0; c < categories; c++) {
+                        if (rule.category >= 0 && rule.category != c) {
+                            continue;
+                        }
+                        int i = (p * tiers + t) * categories + c;
+                        rule.applyTo(i, multipliers, bonuses, caps);
+                    }
+                }
+            }
+        }
+        long[] table = new long[2 * (int) entries];
+        for (int i = 0; i < entries; i++) {
+            table[2 * i] = Double.doubleToRawLongBits(multipliers[i]);
+            table[2 * i + 1] = (long) bonuses[i] << 32 | (caps[i] & 0xFFFFFFFFL);
+        }
+        return new PointsRules(rules.size(), usesTiers, minimums, Map.copyOf(categoryIds), boundaries, table);
+    }
+
+    /**
+     * Works out the points for one purchase.
+     * @param amount Purchase amount
+     * @param balance Customer's balance before the purchase; ignored unless {@link #usesTiers()}
+     * @param category Purchase category from {@link #category(String)}
+     * @param timeMillis Time of the purchase
+     * @return Points earned
+     */
+    public int points(double amount, int balance, int category, long timeMillis) {
+        int tier = 0;
+        int[] minimums = tierMinimums;
+        while (tier < minimums.length && balance >= minimums[tier]) {
+            tier++;
+        }
+        int i = 2 * ((period(timeMillis) * tierCount + tier) * categoryCount + category);
+        long points = Math.round(amount * Double.longBitsToDouble(table[i]));
+        if (amount <= 0) {
+            return (int) points;
+        }
+        long bonusAndCap = table[i + 1];
+        return (int) Math.min((int) bonusAndCap, points + (int) (bonusAndCap >> 32));
+    }
+
+    /**
+     * Looks up a category name once per purchase, so rules themselves
+     * never compare strings.
+     * @param name Category name, or null
+     * @return Category id for {@link #points(double, int, int, long)}
+     */
+    public int category(String name) {
+        if (name == null) {
+            return NO_CATEGORY;
+        }
+        Integer id = categories.get(name);
+        return id == null ? NO_CATEGORY : id;
+    }
+
+    /**
+     * @return Whether any rule depends on the customer's tier, so callers
+     *         can skip reading the balance when none does
+     */
+    public boolean usesTiers() {
+        return usesTiers;
+    }
+
+    /**
+     * @return Number of multiply, bonus and cap rules
+     */
+    public int getRuleCount() {
+        return ruleCount;
+    }
+
+    private int period(long timeMillis) {
+        // Number of boundaries at or before the time
+        long[] b = boundaries;
+        int last = lastPeriod;
+        if ((last == 0 || b[last - 1] <= timeMillis) && (last == b.length || timeMillis < b[last])) {
+            return last;
+        }
+        int low = 0;
+        int high = b.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (b[middle] <= timeMillis) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        lastPeriod = low;
+        return low;
+    }
+
+    private static Rule parseRule(String[] words, int line, Map<String, Integer> tierIds,
+                                  Map<String, Integer> categoryIds) {
+        if (words.length < 2 || words.length % 2 != 0) {
+            throw lineError(line, "expected: multiply|bonus|cap <value> [tier|category|from|until <value>]...");
+        }
+        Rule rule = new Rule();
+        rule.kind = words[0];
+        switch (rule.kind) {
+            case "multiply":
+                rule.factor = parseDouble(words[1], line);
+                break;
+            case "bonus":
+            case "cap":
+                rule.amount = parseInt(words[1], line);
+                break;
+            default:
+                throw lineError(line, "unknown rule " + rule.kind);
+        }
+        for (int w = 2; w < words.length; w += 2) {
+            String value = words[w + 1];
+            switch (words[w]) {
+                case "tier":
+                    Integer tier = tierIds.get(value);
+                    if (tier == null) {
+                        throw lineError(line, "unknown tier " + value);
+                    }
+                    rule.tier = tier;
+                    break;
+                case "category":
+                    rule.category = categoryIds.computeIfAbsent(value, name -> categoryIds.size() + 1);
+                    break;
+                case "from":
+                    rule.from = parseInstant(value, line);
+                    break;
+                case "until":
+                    rule.until = parseInstant(value, line);
+                    break;
+                default:
+                    throw lineError(line, "unknown condition " + words[w]);
+            }
+        }
+        if (rule.from >= rule.until) {
+            throw lineError(line, "from must be before until");
+        }
+        return rule;
+    }
+
+    private static long parseInstant(String value, int line) {
+        try {
+            LocalDateTime time = value.indexOf('T') >= 0
+                ? LocalDateTime.parse(value)
+                : LocalDate.parse(value).atStartOfDay();
+            return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw lineError(line, "expected a date like 2026-11-27 or 2026-11-27T18:00, not " + value);
+        }
+    }
+
+    private static int parseInt(String value, int line) {
+        try {
+            int parsed = Integer.parseInt(value);
+            if (parsed < 0) {
+                throw lineError(line, "must not be negative: " + value);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw lineError(line, "expected a whole number, not " + value);
+        }
+    }
+
+    private static double parseDouble(String value, int line) {
+        try {
+            double parsed = Double.parseDouble(value);
+            if (!(parsed >= 0) || Double.isInfinite(parsed)) {
+                throw lineError(line, "must not be negative: " + value);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw lineError(line, "expected a number, not " + value);
+        }
+    }
+
+    private static IllegalArgumentException lineError(int line, String message) {
+        return new IllegalArgumentException("Line " + (line + 1) + ": " + message);
+    }
+
+    /**
+     * One parsed multiply, bonus or cap line. -1 means any tier or category.
+     */
+    private static final class Rule {
+        String kind;
+        double factor;
+        int amount;
+        int tier = -1;
+        int category = -1;
+        long from = Long.MIN_VALUE;
+        long until = Long.MAX_VALUE;
+
+        void applyTo(int i, double[] multipliers, int[] bonuses, int[] caps) {
+            switch (kind) {
+                case "multiply":
+                    multipliers[i] *= factor;
+                    break;
+                case "bonus":
+                    bonuses[i] = (int) Math.min(NO_CAP - 1L, (long) bonuses[i] + amount);
+                    break;
+                default:
+                    caps[i] = Math.min(caps[i], amount);
+                    break;
+            }
+        }
+    }
+}
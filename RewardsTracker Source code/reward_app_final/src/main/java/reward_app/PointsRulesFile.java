@@ -0,0 +1,102 @@
+/**
+ * PointsRulesFile - Keeps PointsRules in step with a rule file.
+ * A background thread checks the file every few seconds and compiles it
+ * again when it changes. The new rules are handed over in one reference
+ * swap, so accruals never wait for a reload; a purchase is priced by
+ * either the old rules or the new, never a mix.
+ *
+ * A file with mistakes is reported and ignored, leaving the rules in
+ * force until it is fixed. Deleting the file goes back to one point per
+ * dollar.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+public final class PointsRulesFile implements AutoCloseable {
+    public static final String DEFAULT_FILE = "rewards-rules.txt";
+    static final long DEFAULT_POLL_SECONDS = 5;
+
+    private final Path file;
+    private final Consumer<PointsRules> onLoad;
+    private final ScheduledExecutorService poller;
+    // Modification time and size of the file last read, or null if absent
+    private String loadedVersion;
+
+    /**
+     * Loads the file now, or the default rules if it does not exist, then
+     * watches it for changes.
+     * @param file Rule file
+     * @param pollSeconds How often to check the file for changes
+     * @param onLoad Given the rules now and after every successful reload
+     */
+    public PointsRulesFile(Path file, long pollSeconds, Consumer<PointsRules> onLoad) {
+        this.file = file;
+        this.onLoad = onLoad;
+        onLoad.accept(PointsRules.DEFAULT);
+        reload();
+        poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rewards-rules-reload");
+            thread.setDaemon(true);
+            return thread;
+        });
+        poller.scheduleWithFixedDelay(this::reload, pollSeconds, pollSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Compiles the file again if it changed since it was last read.
+     * @return Whether new rules were handed over
+     */
+    public synchronized boolean reload() {
+        String version = version();
+        if (Objects.equals(version, loadedVersion)) {
+            return false;
+        }
+        loadedVersion = version;
+        if (version == null) {
+            onLoad.accept(PointsRules.DEFAULT);
+            System.out.println("No reward rules in " + file + ", earning one point per dollar");
+            return true;
+        }
+        try {
+            PointsRules rules = PointsRules.load(file);
+            onLoad.accept(rules);
+            System.out.println("Loaded " + rules.getRuleCount() + " reward rules from " + file);
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Error loading reward rules from " + file + ", keeping the current rules: "
+                               + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Stops watching the file. The rules last loaded stay in force.
+     */
+    @Override
+    public void close() {
+        poller.shutdownNow();
+    }
+
+    private String version() {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.lastModifiedTime() + "/" + attributes.size();
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            // Unreadable for now; try again next time
+            System.out.println("Error checking reward rules file " + file + ": " + e.getMessage());
+            return loadedVersion;
+        }
+    }
+}
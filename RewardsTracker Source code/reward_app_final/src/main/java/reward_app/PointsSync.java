@@ -0,0 +1,300 @@
+/**
+ * PointsSync - Keeps tills that each have their own rewards.db in step,
+ * by swapping PointsReplica deltas over HTTP, so a till carries on when
+ * the store network drops and catches up when it returns.
+ * Each till serves GET /sync?node=N&since=V with the counters changed
+ * after version V (everything if N is not its node ID), and every few
+ * seconds asks each peer for what changed there since the last time. A
+ * peer that cannot be reached is asked again next time; nothing is lost.
+ *
+ * A till is offline when it has neither reached a peer nor been reached
+ * by one for three sync intervals. While offline, a customer can redeem
+ * at most the offline limit at this till, so points spent at two tills
+ * apart can only be overdrawn by that much. The count restarts once the
+ * till is back in touch.
+ */
+package reward_app;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+public final class PointsSync implements AutoCloseable {
+    public static final long DEFAULT_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    /** Offline limit that lets customers redeem their whole balance while offline. */
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+    /** Returned by {@link #reserve} when the points are over the offline limit. */
+    public static final int REFUSED = -1;
+    private static final int OFFLINE_INTERVALS = 3;
+    private static final int BUFFER_BYTES = 1 << 16;
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(2);
+    private static final Duration RESPONSE_TIMEOUT = Duration.ofSeconds(30);
+
+    private final PointsReplica replica;
+    private final List<String> peers;
+    private final long offlineAfterMillis;
+    private final int offlineLimit;
+    private final RewardsStore.CommitListener listener;
+    private final HttpClient http;
+    private final HttpServer server;
+    private final ScheduledExecutorService puller;
+    // Peers whose last sync failed, so each outage is reported once
+    private final Set<String> unreachable = ConcurrentHashMap.newKeySet();
+    private volatile long lastContact;
+    // Whether replica_offline may hold redemptions to clear; it may after a restart
+    private volatile boolean redeemedOffline = true;
+
+    /**
+     * Starts serving deltas and pulling them from peers.
+     * @param replica This till's replica
+     * @param port Port to serve deltas on, or 0 not to serve
+     * @param peers Other tills' addresses, e.g. http://till2:8181
+     * @param intervalMillis Time between pulls from each peer
+     * @param offlineLimit Points a customer may redeem here while offline; 0 for none,
+     *                     {@link #UNLIMITED} for no limit
+     * @param listener Told of every balance a merge changes, or null
+     * @throws IOException If the port cannot be bound
+     */
+    public PointsSync(PointsReplica replica, int port, List<String> peers, long intervalMillis, int offlineLimit,
+                      RewardsStore.CommitListener listener) throws IOException {
+        if (intervalMillis <= 0 || offlineLimit < 0) {
+            throw new IllegalArgumentException("Sync interval must be positive and offline limit not negative");
+        }
+        this.replica = replica;
+        this.peers = new ArrayList<>();
+        for (String peer : peers) {
+            String address = peer.trim();
+            while (address.endsWith("/")) {
+                address = address.substring(0, address.length() - 1);
+            }
+            if (!address.isEmpty()) {
+                this.peers.add(address);
+            }
+        }
+        this.offlineAfterMillis = OFFLINE_INTERVALS * intervalMillis;
+        this.offlineLimit = offlineLimit;
+        this.listener = listener;
+        this.http = HttpClient.newBuilder().connectTimeout(CONNECT_TIMEOUT).build();
+        if (port > 0) {
+            server = HttpServer.create(new InetSocketAddress(port), 0);
+            server.createContext("/sync", this::serve);
+            server.start();
+        } else {
+            server = null;
+        }
+        puller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rewards-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (!this.peers.isEmpty()) {
+            puller.scheduleWithFixedDelay(this::syncNow, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return This till's replica
+     */
+    public PointsReplica getReplica() {
+        return replica;
+    }
+
+    /**
+     * @return Port deltas are served on, or 0 if not served
+     */
+    public int getPort() {
+        return server == null ? 0 : server.getAddress().getPort();
+    }
+
+    /**
+     * Pulls from every peer once.
+     * @return Number of peers reached
+     */
+    public int syncNow() {
+        int reached = 0;
+        for (String peer : peers) {
+            try {
+                syncWith(peer);
+                reached++;
+                if (unreachable.remove(peer)) {
+                    System.out.println("Sync with " + peer + " restored");
+                }
+            } catch (IOException | SQLException | RuntimeException e) {
+                if (unreachable.add(peer)) {
+                    // A refused connection has no message of its own
+                    String reason = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+                    System.out.println("Error syncing with " + peer + ": " + reason);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return reached;
+    }
+
+    /**
+     * Pulls and merges what changed at one peer since the last pull.
+     * @param peer Peer's address, e.g. http://till2:8181
+     * @return Number of counters that changed here
+     * @throws IOException If the peer cannot be reached or answers with an error
+     * @throws SQLException If the merge cannot be stored
+     * @throws InterruptedException If interrupted while waiting for the peer
+     */
+    public int syncWith(String peer) throws IOException, SQLException, InterruptedException {
+        long[] known = replica.getPeer(peer);
+        HttpRequest request = HttpRequest.newBuilder(URI.create(peer + "/sync?node=" + known[0] + "&since=" + known[1]))
+            .timeout(RESPONSE_TIMEOUT)
+            .GET()
+            .build();
+        HttpResponse<InputStream> response = http.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        try (InputStream body = new BufferedInputStream(response.body(), BUFFER_BYTES)) {
+            if (response.statusCode() != 200) {
+                throw new IOException("HTTP " + response.statusCode() + ": "
+                    + new String(body.readAllBytes(), StandardCharsets.UTF_8));
+            }
+            int changed = replica.applyDelta(peer, body, listener);
+            contacted();
+            return changed;
+        }
+    }
+
+    /**
+     * @return Whether this till has been in touch with a peer lately
+     */
+    public boolean isOnline() {
+        return System.currentTimeMillis() - lastContact <= offlineAfterMillis;
+    }
+
+    /**
+     * @param key Customer's phone key
+     * @return Points the customer may still redeem here, {@link #UNLIMITED}
+     *         while online or without an offline limit
+     * @throws SQLException If the offline redemptions cannot be read
+     */
+    public int redeemable(long key) throws SQLException {
+        if (offlineLimit == UNLIMITED || isOnline()) {
+            return UNLIMITED;
+        }
+        return Math.max(0, offlineLimit - replica.getOfflineRedeemed(key));
+    }
+
+    /**
+     * Counts points against the offline limit before they are redeemed, if
+     * offline. Counting first means concurrent redemptions at this till
+     * cannot pass the limit together.
+     * @param key Customer's phone key
+     * @param points Points to redeem
+     * @return Points counted, to {@link #release} if the redemption does not
+     *         apply: 0 while online or without an offline limit, or
+     *         {@link #REFUSED} if the points are over the limit
+     * @throws SQLException If the redemption cannot be counted
+     */
+    public int reserve(long key, int points) throws SQLException {
+        if (offlineLimit == UNLIMITED || isOnline() || points == 0) {
+            return 0;
+        }
+        redeemedOffline = true;
+        return replica.reserveOfflineRedeemed(key, points, offlineLimit) ? points : REFUSED;
+    }
+
+    /**
+     * Takes back points counted by {@link #reserve} when the redemption did not apply.
+     * @param key Customer's phone key
+     * @param reserved Value returned by {@link #reserve}
+     * @throws SQLException If the points cannot be taken back
+     */
+    public void release(long key, int reserved) throws SQLException {
+        if (reserved > 0) {
+            replica.releaseOfflineRedeemed(key, reserved);
+        }
+    }
+
+    /**
+     * Stops serving and pulling. A pull in progress is left to finish.
+     */
+    @Override
+    public void close() {
+        puller.shutdown();
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            long node;
+            long since;
+            try {
+                node = Long.parseLong(param(exchange, "node", "0"));
+                since = Long.parseLong(param(exchange, "since", "0"));
+            } catch (NumberFormatException e) {
+                byte[] message = "node and since must be numbers".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(400, message.length);
+                exchange.getResponseBody().write(message);
+                return;
+            }
+            // The asker knew another database here; what it has is no use
+            if (node != replica.getNode()) {
+                since = 0;
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = new BufferedOutputStream(exchange.getResponseBody(), BUFFER_BYTES);
+            try {
+                replica.writeDelta(since, out);
+            } catch (SQLException e) {
+                // The status is already sent; a cut-off delta is rejected by the asker
+                System.out.println("Error sending points delta: " + e.getMessage());
+                return;
+            }
+            out.flush();
+            contacted();
+        }
+    }
+
+    private void contacted() {
+        lastContact = System.currentTimeMillis();
+        if (redeemedOffline) {
+            try {
+                replica.clearOfflineRedeemed();
+                redeemedOffline = false;
+            } catch (SQLException e) {
+                System.out.println("Error clearing offline redemptions: " + e.getMessage());
+            }
+        }
+    }
+
+    private static String param(HttpExchange exchange, String name, String fallback) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0 && pair.substring(0, eq).equals(name)) {
+                    return pair.substring(eq + 1);
+                }
+            }
+        }
+        return fallback;
+    }
+}
@@ -0,0 +1,184 @@
+/**
+ * PooledConnection - A connection borrowed from the RewardsDatabase pool.
+ * Keeps the prepared statements for the hot rewards operations ready so
+ * they are parsed once per connection instead of once per call.
+ * Closing it returns the connection to the pool.
+ */
+package reward_app;
+
+import java.sql.*;
+import java.util.HashMap;
+import java.util.Map;
+
+public class PooledConnection implements AutoCloseable {
+    // Earning (a positive amount) restarts the points' expiry clock
+    static final String ADD_POINTS_SQL = "INSERT INTO rewards (phone, points, earned_at) VALUES (?, ?, ?) "
+                                       + "ON CONFLICT(phone) DO UPDATE SET points = points + excluded.points, "
+                                       + "earned_at = COALESCE(excluded.earned_at, earned_at) "
+                                       + "RETURNING points";
+    static final String CHECK_POINTS_SQL = "SELECT points, earned_at FROM rewards WHERE phone = ?";
+    // Points earned at or before the cutoff have expired and can't be spent
+    static final String REDEEM_SQL = "UPDATE rewards SET points = points - ? "
+                                   + "WHERE phone = ? AND points >= ? "
+                                   + "AND (earned_at IS NULL OR earned_at > ?) RETURNING points";
+
+    static final String APPEND_LEDGER_SQL = "INSERT INTO ledger (phone, delta, created_at) VALUES (?, ?, ?)";
+
+    private final RewardsDatabase db;
+    private final Connection connection;
+    private final PreparedStatement addPoints;
+    private final PreparedStatement checkPoints;
+    private final PreparedStatement redeem;
+    private final PreparedStatement appendLedger;
+    private final PreparedStatement begin;
+    private final PreparedStatement commit;
+    private final PreparedStatement rollback;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private boolean holdsWriteLock;
+    private long writeLockedAt;
+    private boolean inTransaction;
+
+    /**
+     * Wraps a configured connection and prepares the hot statements.
+     * @param db Pool the connection belongs to
+     * @param connection Open connection with the schema in place
+     * @throws SQLException If a statement cannot be prepared
+     */
+    PooledConnection(RewardsDatabase db, Connection connection) throws SQLException {
+        this.db = db;
+        this.connection = connection;
+        this.addPoints = prepare(ADD_POINTS_SQL);
+        this.checkPoints = prepare(CHECK_POINTS_SQL);
+        this.redeem = prepare(REDEEM_SQL);
+        this.appendLedger = prepare(APPEND_LEDGER_SQL);
+        this.begin = prepare("BEGIN IMMEDIATE");
+        this.commit = prepare("COMMIT");
+        this.rollback = prepare("ROLLBACK");
+    }
+
+    /**
+     * @return Upsert adding points and returning the new balance:
+     *         (phone, points, earned_at or NULL if the points are not earned)
+     */
+    public PreparedStatement addPointsStatement() {
+        return addPoints;
+    }
+
+    /**
+     * @return Balance and last earning lookup: (phone)
+     */
+    public PreparedStatement checkPointsStatement() {
+        return checkPoints;
+    }
+
+    /**
+     * @return Conditional deduction returning the new balance:
+     *         (points, phone, points, expiry cutoff)
+     */
+    public PreparedStatement redeemStatement() {
+        return redeem;
+    }
+
+    /**
+     * @return Ledger append: (phone, delta, created_at)
+     */
+    public PreparedStatement appendLedgerStatement() {
+        return appendLedger;
+    }
+
+    /**
+     * Starts a write transaction. Only call on a connection from
+     * {@link RewardsDatabase#acquireWriter()}.
+     * @throws SQLException If the transaction cannot be started
+     */
+    public void begin() throws SQLException {
+        begin.execute();
+        inTransaction = true;
+    }
+
+    /**
+     * Commits the current transaction.
+     * @throws SQLException If the commit fails
+     */
+    public void commit() throws SQLException {
+        commit.execute();
+        inTransaction = false;
+    }
+
+    /**
+     * Rolls back the current transaction. Errors are reported but not thrown
+     * so the original failure reaches the caller.
+     */
+    public void rollback() {
+        if (!inTransaction) {
+            return;
+        }
+        inTransaction = false;
+        try {
+            rollback.execute();
+        } catch (SQLException e) {
+            System.out.println("Error rolling back transaction: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns a prepared statement for any other SQL, preparing it on first use.
+     * The statement belongs to this connection and must not be closed by the caller.
+     * @param sql SQL text
+     * @return Cached prepared statement
+     * @throws SQLException If the statement cannot be prepared
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement pstmt = statements.get(sql);
+        if (pstmt == null) {
+            pstmt = connection.prepareStatement(sql);
+            statements.put(sql, pstmt);
+        }
+        return pstmt;
+    }
+
+    /**
+     * @return Underlying JDBC connection, for transaction control
+     */
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Returns the connection to the pool.
+     */
+    @Override
+    public void close() {
+        db.release(this);
+    }
+
+    boolean holdsWriteLock() {
+        return holdsWriteLock;
+    }
+
+    void setHoldsWriteLock(boolean holdsWriteLock) {
+        this.holdsWriteLock = holdsWriteLock;
+    }
+
+    long getWriteLockedAt() {
+        return writeLockedAt;
+    }
+
+    void setWriteLockedAt(long writeLockedAt) {
+        this.writeLockedAt = writeLockedAt;
+    }
+
+    /**
+     * Closes the statements and the underlying connection.
+     */
+    void closeConnection() {
+        try {
+            for (PreparedStatement pstmt : statements.values()) {
+                pstmt.close();
+            }
+            connection.close();
+        } catch (SQLException e) {
+            System.out.println("Error closing database connection: " + e.getMessage());
+        }
+    }
+}
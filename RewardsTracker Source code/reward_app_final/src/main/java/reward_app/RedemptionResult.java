@@ -0,0 +1,40 @@
+/**
+ * RedemptionResult - Outcome of a single points redemption.
+ * Reports whether the deduction was applied and the balance
+ * the customer was left with afterwards.
+ */
+package reward_app;
+
+public final class RedemptionResult {
+    private final boolean applied;
+    private final int balance;
+
+    /**
+     * Creates a redemption outcome.
+     * @param applied true if the points were deducted
+     * @param balance Customer's balance after the attempt
+     */
+    RedemptionResult(boolean applied, int balance) {
+        this.applied = applied;
+        this.balance = balance;
+    }
+
+    /**
+     * @return true if the points were deducted, false if the balance was too low
+     */
+    public boolean isApplied() {
+        return applied;
+    }
+
+    /**
+     * @return Balance after the redemption, or the unchanged balance if it was rejected
+     */
+    public int getBalance() {
+        return balance;
+    }
+
+    @Override
+    public String toString() {
+        return "RedemptionResult[applied=" + applied + ", balance=" + balance + "]";
+    }
+}
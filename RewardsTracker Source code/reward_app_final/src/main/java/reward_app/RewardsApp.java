@@ -2,13 +2,22 @@
  * RewardsApp - Main GUI application for the Rewards Tracker system.
  * This class implements a tabbed interface for managing customer reward points
  * with functionality for adding, checking, and redeeming points.
+ * The window opens straight away; the database is opened on a background
+ * thread at the same time, and calls made before it is ready wait for it.
+ * Phone fields suggest matching customers once a few digits are typed.
  */
 package reward_app;
 
 import javax.swing.*;
 import javax.swing.border.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import java.awt.*;
 import java.awt.event.*;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import java.util.function.Consumer;
 
 public class RewardsApp extends JFrame {
     // Color constants for UI theming
@@ -25,12 +34,25 @@ public class RewardsApp extends JFrame {
     private static final Font TAB_FONT = new Font("Brandon Grotesque", Font.BOLD, 14);
     private static final Font INPUT_FONT = new Font("Montserrat", Font.PLAIN, 14);
     private static final Font BUTTON_FONT = new Font("Brandon Grotesque", Font.BOLD, 16);
+
+    // Phone suggestions start after this many digits and show this many customers
+    private static final int SUGGEST_AFTER_DIGITS = 3;
+    private static final int MAX_SUGGESTIONS = 8;
     
-    private RewardsManager manager;
+    private RewardsService manager;
     private JTabbedPane tabbedPane;
+    private final StartupProbe probe = StartupProbe.configured();
 
     public RewardsApp() {
-        manager = new RewardsManager();
+        this(DeferredRewardsService.start(RewardsManager::new));
+    }
+
+    /**
+     * Creates the till window on top of a local manager or a remote server.
+     * @param service Where points operations are sent
+     */
+    public RewardsApp(RewardsService service) {
+        manager = service;
         setupUI();
     }
 
@@ -56,6 +78,9 @@ public class RewardsApp extends JFrame {
                 super.paintComponent(g);
                 g.setColor(PRIMARY_BLUE);
                 g.fillRect(0, 0, getWidth(), getHeight());
+                if (probe != null) {
+                    probe.painted(manager);
+                }
             }
         };
         headerPanel.setBorder(BorderFactory.createMatteBorder(0, 0, 1, 0, TAB_TEXT));
@@ -157,20 +182,22 @@ public class RewardsApp extends JFrame {
         JButton addButton = createStyledButton("Add Points");
 
         addComponentToPanel(panel, "Customer's Phone Number (10 digits)", phoneField);
+        addPhoneSuggestions(phoneField);
         addComponentToPanel(panel, "Purchase Amount ($)", amountField);
         panel.add(Box.createVerticalStrut(20));
         panel.add(addButton);
 
         addButton.addActionListener(e -> {
             try {
-                manager.addPoints(phoneField.getText(), 
+                CompletableFuture<Void> request = manager.addPointsAsync(phoneField.getText(),
                     Double.parseDouble(amountField.getText()));
-                JOptionPane.showMessageDialog(this, "Points added successfully!");
-                phoneField.setText("");
-                amountField.setText("");
+                whenDone(addButton, request, ignored -> {
+                    JOptionPane.showMessageDialog(this, "Points added successfully!");
+                    phoneField.setText("");
+                    amountField.setText("");
+                });
             } catch (Exception ex) {
-                JOptionPane.showMessageDialog(this, ex.getMessage(), 
-                    "Error", JOptionPane.ERROR_MESSAGE);
+                showError(ex);
             }
         });
 
@@ -190,22 +217,17 @@ public class RewardsApp extends JFrame {
         JLabel resultLabel = createStyledResultLabel();
 
         addComponentToPanel(panel, "Customer's Phone Number (10 digits)", phoneField);
+        addPhoneSuggestions(phoneField);
         panel.add(Box.createVerticalStrut(20));
         panel.add(checkButton);
         panel.add(Box.createVerticalStrut(20));
         panel.add(resultLabel);
 
-        checkButton.addActionListener(e -> {
-            try {
-                int points = manager.checkPoints(phoneField.getText());
+        checkButton.addActionListener(e -> 
+            whenDone(checkButton, manager.checkPointsAsync(phoneField.getText()), points ->
                 resultLabel.setText(points == 0 ? 
                     "New customer - No points yet" : 
-                    "Current points: " + points);
-            } catch (Exception ex) {
-                JOptionPane.showMessageDialog(this, ex.getMessage(), 
-                    "Error", JOptionPane.ERROR_MESSAGE);
-            }
-        });
+                    "Current points: " + points)));
 
         return panel;
     }
@@ -223,6 +245,7 @@ public class RewardsApp extends JFrame {
         JButton redeemButton = createStyledButton("Redeem Points");
 
         addComponentToPanel(panel, "Customer's Phone Number (10 digits)", phoneField);
+        addPhoneSuggestions(phoneField);
         addComponentToPanel(panel, "Points to Redeem", pointsField);
         panel.add(Box.createVerticalStrut(20));
         panel.add(redeemButton);
@@ -233,22 +256,113 @@ public class RewardsApp extends JFrame {
                 if (points <= 0) {
                     throw new IllegalArgumentException("Points must be greater than 0");
                 }
-                manager.subtractPoints(phoneField.getText(), points);
-                JOptionPane.showMessageDialog(this, "Points redeemed successfully!");
-                phoneField.setText("");
-                pointsField.setText("");
+                CompletableFuture<Integer> request = manager.subtractPointsAsync(phoneField.getText(), points);
+                whenDone(redeemButton, request, balance -> {
+                    JOptionPane.showMessageDialog(this, "Points redeemed successfully!");
+                    phoneField.setText("");
+                    pointsField.setText("");
+                });
             } catch (NumberFormatException ex) {
                 JOptionPane.showMessageDialog(this, "Please enter a valid number", 
                     "Error", JOptionPane.ERROR_MESSAGE);
             } catch (Exception ex) {
-                JOptionPane.showMessageDialog(this, ex.getMessage(), 
-                    "Error", JOptionPane.ERROR_MESSAGE);
+                showError(ex);
             }
         });
 
         return panel;
     }
 
+    /**
+     * Lists customers whose number starts with what has been typed in a
+     * phone field, with their points, below the field. Picking one fills
+     * in the whole number.
+     * @param phoneField Field to suggest customers for
+     */
+    private void addPhoneSuggestions(JTextField phoneField) {
+        JPopupMenu suggestions = new JPopupMenu();
+        suggestions.setFocusable(false);
+        phoneField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                suggest(phoneField, suggestions);
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                suggest(phoneField, suggestions);
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+    }
+
+    /**
+     * Looks up the customers matching a phone field's text and shows them.
+     * @param phoneField Field being typed in
+     * @param suggestions Popup listing the matches
+     */
+    private void suggest(JTextField phoneField, JPopupMenu suggestions) {
+        String typed = phoneField.getText();
+        int digits = (int) typed.chars().filter(Character::isDigit).count();
+        if (digits < SUGGEST_AFTER_DIGITS || digits >= 10 || !phoneField.hasFocus()) {
+            suggestions.setVisible(false);
+            return;
+        }
+        CompletableFuture<List<CustomerPoints>> search = manager.findCustomersAsync(typed, MAX_SUGGESTIONS);
+        search.whenComplete((found, error) -> SwingUtilities.invokeLater(() -> {
+            // Answers for text that has changed since are out of date
+            if (!typed.equals(phoneField.getText())) {
+                return;
+            }
+            suggestions.setVisible(false);
+            suggestions.removeAll();
+            // A failed search just shows nothing; the lookup itself reports errors
+            if (error != null || found.isEmpty()) {
+                return;
+            }
+            for (CustomerPoints customer : found) {
+                String phone = PhoneNumbers.format(customer.getPhone());
+                JMenuItem item = new JMenuItem("(" + phone.substring(0, 3) + ")-" + phone.substring(3, 6)
+                    + "-" + phone.substring(6) + "    " + customer.getPoints() + " points");
+                item.setFont(INPUT_FONT);
+                item.addActionListener(e -> phoneField.setText(phone));
+                suggestions.add(item);
+            }
+            suggestions.show(phoneField, 0, phoneField.getHeight());
+        }));
+    }
+
+    /**
+     * Disables a button while a database request is in flight and handles
+     * the result back on the Event Dispatch Thread.
+     * @param button Button that started the request
+     * @param request Pending request from the manager's async API
+     * @param onSuccess Runs on the EDT with the request's result
+     */
+    private <T> void whenDone(JButton button, CompletableFuture<T> request, Consumer<T> onSuccess) {
+        button.setEnabled(false);
+        request.whenComplete((result, error) -> SwingUtilities.invokeLater(() -> {
+            button.setEnabled(true);
+            if (error != null) {
+                showError(error);
+            } else {
+                onSuccess.accept(result);
+            }
+        }));
+    }
+
+    /**
+     * Shows an error dialog with the failure's message.
+     * @param error Failure to report
+     */
+    private void showError(Throwable error) {
+        JOptionPane.showMessageDialog(this, error.getMessage(), 
+            "Error", JOptionPane.ERROR_MESSAGE);
+    }
+
     /**
      * Creates a styled text field with placeholder text that shows when empty.
      * @param placeholder Text to display when field is empty
@@ -304,7 +418,7 @@ public class RewardsApp extends JFrame {
             protected void paintComponent(Graphics g) {
                 Graphics2D g2 = (Graphics2D) g.create();
                 g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
-                g2.setColor(isHovered ? PRIMARY_BLUE.darker() : PRIMARY_BLUE);
+                g2.setColor(!isEnabled() ? TAB_TEXT : isHovered ? PRIMARY_BLUE.darker() : PRIMARY_BLUE);
                 g2.fillRoundRect(0, 0, getWidth(), getHeight(), 10, 10);
                 g2.dispose();
                 super.paintComponent(g);
@@ -394,7 +508,44 @@ public class RewardsApp extends JFrame {
         }
     }
 
-    public static void main(String[] args) {
-        SwingUtilities.invokeLater(() -> new RewardsApp().setVisible(true));
+    /**
+     * Starts the till. With no arguments it opens rewards.db next to the jar.
+     * --server [port] runs the headless rewards server for several tills;
+     * --remote URL opens the till against such a server.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--server")) {
+            RewardsServer.runHeadless(args.length > 1 ? Integer.parseInt(args[1]) : 8080);
+            return;
+        }
+        if (Boolean.getBoolean("rewards.edtMonitor")) {
+            EdtStallMonitor.install();
+        }
+        if (args.length > 1 && args[0].equals("--remote")) {
+            String url = args[1];
+            open(() -> new RewardsHttpClient(url));
+            return;
+        }
+        open(() -> {
+            RewardsManager manager = new RewardsManager();
+            manager.getMetrics().publish("till");
+            return manager;
+        });
+    }
+
+    /**
+     * Starts the service in the background and opens the window meanwhile.
+     * Loading the SQLite driver and opening the database take about as
+     * long as starting Swing, so a cold start costs the longer of the two.
+     */
+    private static void open(Supplier<? extends RewardsService> starter) {
+        DeferredRewardsService service = DeferredRewardsService.start(starter);
+        StartupProbe probe = StartupProbe.configured();
+        if (probe != null && GraphicsEnvironment.isHeadless()) {
+            System.out.println("No display; timing the first query only");
+            probe.query(service).join();
+            return;
+        }
+        SwingUtilities.invokeLater(() -> new RewardsApp(service).setVisible(true));
     }
 }
\ No newline at end of file
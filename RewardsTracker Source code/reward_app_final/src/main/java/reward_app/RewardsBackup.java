@@ -0,0 +1,741 @@
+/**
+ * RewardsBackup - Backs up a rewards database while the tills keep
+ * working, and restores a backup after checking it.
+ * A backup is a point-in-time copy, as the database was when the backup
+ * finished. It copies the tables into a new database file 250 rows at a
+ * time. After each step it pauses for at least as long as the step took,
+ * and long enough to write no faster than a set rate. It never holds the
+ * tills up: it never takes the write lock, in WAL mode reads don't block
+ * writers, and each read is short, so the -wal file can still be reset.
+ * Rows added meanwhile are caught up from the ledger in one last short
+ * read, and the indexes are built afterwards from the copy alone, paced
+ * the same way. The copy records how many rows each table had, is
+ * gzipped if asked and only then takes its final name, so a backup that
+ * stopped partway never looks complete.
+ *
+ * Restoring unpacks the backup next to the database, runs SQLite's
+ * integrity check, compares every table's rows with the counts recorded,
+ * then moves the old files to a pre-restore folder and the copy into
+ * place. Run it with the tills closed.
+ *
+ * Usage: java -cp RewardsTracker.jar reward_app.RewardsBackup backup [folder] [rewards.db]
+ *        java -cp RewardsTracker.jar reward_app.RewardsBackup verify backup.db.gz
+ *        java -cp RewardsTracker.jar reward_app.RewardsBackup restore backup.db.gz [rewards.db]
+ */
+package reward_app;
+
+import org.sqlite.ProgressHandler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+public final class RewardsBackup implements AutoCloseable {
+    static final String DEFAULT_DIRECTORY = "rewards-backups";
+    public static final long DEFAULT_BYTES_PER_SECOND = 5L << 20;
+    public static final int DEFAULT_KEPT = 7;
+    /** Rate that lets a backup run as fast as it can. */
+    public static final long UNLIMITED = 0;
+    private static final int CHUNK_ROWS = 250;
+    // Most passes catching up with the tills before the final snapshot
+    private static final int CATCH_UP_PASSES = 5;
+    private static final int BUFFER_BYTES = 1 << 16;
+    private static final long FORCE_BYTES = 1L << 20;
+    // SQLite virtual machine steps between pauses while building the copy's indexes
+    private static final int INDEX_STEP_OPS = 10_000;
+    // Index pages for the copy stay in memory rather than being re-read per row
+    private static final int COPY_CACHE_KIB = 64 * 1024;
+    private static final int BUSY_TIMEOUT_MILLIS = 5000;
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final DateTimeFormatter STAMP = DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss");
+    private static final String[] SQLITE_SUFFIXES = {"", "-wal", "-shm"};
+    private static final String INFO_TABLE = "backup_info";
+    private static final String LEDGER_TABLE = "ledger";
+    // Tables whose rows only change along with a ledger entry for the same
+    // phone; any other table is copied whole in the final snapshot
+    private static final Set<String> PHONE_TABLES = Set.of("rewards", "replica_counters");
+    private static final String CREATE_INFO_SQL = "CREATE TABLE copy." + INFO_TABLE
+                                                + " (tbl TEXT PRIMARY KEY, rows INTEGER NOT NULL, "
+                                                + "taken_at INTEGER NOT NULL)";
+    private static final String INSERT_INFO_SQL = "INSERT INTO copy." + INFO_TABLE
+                                                + " (tbl, rows, taken_at) VALUES (?, ?, ?)";
+    // Tables, then indexes, then triggers, which are made last so none fires on copied rows
+    private static final String SCHEMA_SQL = "SELECT type, name, sql FROM main.sqlite_master "
+                                           + "WHERE sql IS NOT NULL AND name NOT LIKE 'sqlite_%' "
+                                           + "ORDER BY CASE type WHEN 'table' THEN 0 WHEN 'index' THEN 1 "
+                                           + "WHEN 'view' THEN 2 ELSE 3 END, rowid";
+    private static final Pattern CREATE_PREFIX = Pattern.compile(
+        "^(CREATE\\s+(?:UNIQUE\\s+)?(?:TABLE|INDEX|VIEW|TRIGGER)\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?)",
+        Pattern.CASE_INSENSITIVE);
+
+    private final List<Path> databases;
+    private final Path folder;
+    private final boolean compress;
+    private final long bytesPerSecond;
+    private final int kept;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Starts backing up on a schedule, the first backup one interval from now.
+     * @param databases Database files to back up, e.g. every shard
+     * @param folder Folder to keep the backups in
+     * @param intervalMillis Time between backups
+     * @param compress Whether to gzip each backup
+     * @param bytesPerSecond Most bytes a backup writes per second, or {@link #UNLIMITED}
+     * @param kept Backups of each database to keep; older ones are deleted
+     */
+    public RewardsBackup(List<Path> databases, Path folder, long intervalMillis, boolean compress,
+                         long bytesPerSecond, int kept) {
+        if (intervalMillis <= 0 || bytesPerSecond < 0 || kept < 1) {
+            throw new IllegalArgumentException("Backup interval and backups kept must be positive, "
+                + "and the rate not negative");
+        }
+        this.databases = List.copyOf(databases);
+        this.folder = folder;
+        this.compress = compress;
+        this.bytesPerSecond = bytesPerSecond;
+        this.kept = kept;
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rewards-backup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::backupNow, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Backs up every database once and deletes the oldest backups.
+     * @return Whether every database was backed up
+     */
+    public boolean backupNow() {
+        boolean done = true;
+        for (Path db : databases) {
+            try {
+                Path backup = backup(db, folder, compress, bytesPerSecond);
+                System.out.println("Backed up " + db + " to " + backup);
+                prune(db, folder, kept);
+            } catch (IOException | SQLException e) {
+                System.out.println("Error backing up " + db + ": " + e.getMessage());
+                done = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return done;
+    }
+
+    /**
+     * Stops the schedule, and any backup in progress at its next step.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Copies a database as it is now to a new file in the folder, e.g.
+     * rewards-20261017-101500.db.gz, without stopping its writers.
+     * @param db Database file to back up
+     * @param folder Folder for the backup; created if missing
+     * @param compress Whether to gzip the backup
+     * @param bytesPerSecond Most bytes written per second, or {@link #UNLIMITED}
+     * @return The backup file
+     * @throws IOException If the backup file cannot be written
+     * @throws SQLException If the database cannot be read
+     * @throws InterruptedException If interrupted between steps; the partial file is deleted
+     */
+    public static Path backup(Path db, Path folder, boolean compress, long bytesPerSecond)
+            throws IOException, SQLException, InterruptedException {
+        if (!Files.exists(db)) {
+            throw new IOException("No database at " + db);
+        }
+        Files.createDirectories(folder);
+        String name = db.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String stem = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : ".db";
+        Path copy = folder.resolve(stem + "-" + LocalDateTime.now().format(STAMP) + extension);
+        Path target = compress ? Paths.get(copy + GZIP_SUFFIX) : copy;
+        Path part = Paths.get(copy + ".part");
+        Path gzipPart = Paths.get(target + ".part");
+        try {
+            Files.deleteIfExists(part);
+            copy(db, part, new Throttle(bytesPerSecond, part));
+            force(part);
+            if (compress) {
+                gzip(part, gzipPart, new Throttle(bytesPerSecond, gzipPart));
+                Files.delete(part);
+                Files.move(gzipPart, target, StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                Files.move(part, target, StandardCopyOption.ATOMIC_MOVE);
+            }
+            return target;
+        } finally {
+            Files.deleteIfExists(part);
+            Files.deleteIfExists(gzipPart);
+        }
+    }
+
+    /**
+     * Checks a backup without restoring it.
+     * @param backup Backup file, gzipped or not
+     * @return Rows per table in the backup
+     * @throws IOException If the backup cannot be read or its gzip checksum is wrong
+     * @throws SQLException If the backup is damaged or a table's rows don't match its record
+     */
+    public static Map<String, Long> verify(Path backup) throws IOException, SQLException {
+        if (!backup.getFileName().toString().endsWith(GZIP_SUFFIX)) {
+            return check(backup);
+        }
+        Path unpacked = Files.createTempFile(backup.toAbsolutePath().getParent(), "verify", ".db");
+        try {
+            unpack(backup, unpacked);
+            return check(unpacked);
+        } finally {
+            Files.deleteIfExists(unpacked);
+        }
+    }
+
+    /**
+     * Replaces a database with a checked backup. The database's own files
+     * are kept in a pre-restore folder beside it.
+     * @param backup Backup file, gzipped or not
+     * @param db Database file to replace, e.g. rewards.db
+     * @return Rows per table restored
+     * @throws IOException If the files cannot be written or moved
+     * @throws SQLException If the backup is damaged; the database is left in place
+     */
+    public static Map<String, Long> restore(Path backup, Path db) throws IOException, SQLException {
+        Path folder = db.toAbsolutePath().getParent();
+        String name = db.getFileName().toString();
+        Path restoring = folder.resolve(name + ".restoring");
+        Map<String, Long> rows;
+        try {
+            unpack(backup, restoring);
+            rows = check(restoring);
+            try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + restoring);
+                 Statement stmt = connection.createStatement()) {
+                stmt.execute("DROP TABLE " + INFO_TABLE);
+            }
+            force(restoring);
+            if (Files.exists(db)) {
+                Path old = folder.resolve("pre-restore-" + System.currentTimeMillis());
+                Files.createDirectory(old);
+                for (String suffix : SQLITE_SUFFIXES) {
+                    Path file = folder.resolve(name + suffix);
+                    if (Files.exists(file)) {
+                        Files.move(file, old.resolve(name + suffix));
+                    }
+                }
+                System.out.println("Original files kept in " + old);
+            }
+            Files.move(restoring, db, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(restoring);
+        }
+        return rows;
+    }
+
+    /**
+     * Copies a database into a new file, with its schema, as it was at the
+     * end of the copy, and records each table's rows.
+     * The bulk of the rows are copied a chunk at a time, each chunk from
+     * its own short read, as a snapshot held for the whole copy would keep
+     * the tills' -wal file from being checkpointed and slow every lookup.
+     * The copy then catches up the way a ledger rebuild does: ledger
+     * entries are only ever appended, and the balances and counters that
+     * changed are those of the customers with ledger entries since the
+     * copy began. That is done in chunks too, a few times over, so the
+     * final snapshot only has the last moment's changes to copy.
+     */
+    private static void copy(Path db, Path copy, Throttle throttle)
+            throws IOException, SQLException, InterruptedException {
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + db)) {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MILLIS);
+            }
+            try (PreparedStatement attach = connection.prepareStatement("ATTACH DATABASE ? AS copy")) {
+                attach.setString(1, copy.toString());
+                attach.execute();
+            }
+            try {
+                try (Statement stmt = connection.createStatement()) {
+                    // The copy is forced to disk and checked before it is used
+                    stmt.execute("PRAGMA copy.journal_mode = OFF");
+                    stmt.execute("PRAGMA copy.synchronous = OFF");
+                    stmt.execute("PRAGMA copy.cache_size = -" + COPY_CACHE_KIB);
+                }
+                long schemaVersion = schemaVersion(connection);
+                long ledgerStart = maxRowid(connection, "main." + LEDGER_TABLE);
+                List<String[]> schema = new ArrayList<>();
+                try (Statement stmt = connection.createStatement();
+                     ResultSet rs = stmt.executeQuery(SCHEMA_SQL)) {
+                    while (rs.next()) {
+                        schema.add(new String[] {rs.getString(1), rs.getString(2), rs.getString(3)});
+                    }
+                }
+                List<String> tables = new ArrayList<>();
+                try (Statement stmt = connection.createStatement()) {
+                    for (String[] object : schema) {
+                        if (object[0].equals("table")) {
+                            tables.add(object[1]);
+                        }
+                        if (object[0].equals("table")) {
+                            stmt.execute(inCopy(object[2]));
+                        }
+                    }
+                }
+                for (String table : tables) {
+                    if (table.equals(LEDGER_TABLE) || PHONE_TABLES.contains(table)) {
+                        copyChunks(connection, table, Long.MIN_VALUE, throttle);
+                    }
+                }
+                long caughtUp = ledgerStart;
+                for (int pass = 0; pass < CATCH_UP_PASSES; pass++) {
+                    long ledgerEnd = maxRowid(connection, "main." + LEDGER_TABLE);
+                    if (ledgerEnd - caughtUp <= CHUNK_ROWS) {
+                        break;
+                    }
+                    copyChunks(connection, LEDGER_TABLE, maxRowid(connection, "copy." + LEDGER_TABLE), throttle);
+                    copyChanged(connection, tables, caughtUp, ledgerEnd, throttle);
+                    caughtUp = ledgerEnd;
+                }
+
+                connection.setAutoCommit(false);
+                try {
+                    // The first read fixes the snapshot the backup is of
+                    if (schemaVersion(connection) != schemaVersion) {
+                        throw new SQLException("The database schema changed during the backup; try again");
+                    }
+                    try (Statement stmt = connection.createStatement()) {
+                        for (String table : tables) {
+                            String columns = columns(connection, table);
+                            String insert = "INSERT INTO copy." + quote(table) + " (" + columns + ") SELECT "
+                                          + columns + " FROM main." + quote(table);
+                            if (table.equals(LEDGER_TABLE)) {
+                                stmt.execute(insert + " WHERE rowid > "
+                                    + maxRowid(connection, "copy." + quote(table)));
+                            } else if (PHONE_TABLES.contains(table)) {
+                                stmt.execute("INSERT OR REPLACE" + insert.substring("INSERT".length())
+                                    + " WHERE phone IN (SELECT phone FROM main." + LEDGER_TABLE
+                                    + " WHERE rowid > " + caughtUp + ")");
+                            } else {
+                                stmt.execute(insert);
+                            }
+                        }
+                    }
+                    connection.commit();
+                } catch (SQLException | RuntimeException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+
+                long takenAt = System.currentTimeMillis();
+                IndexPacer pacer = new IndexPacer(throttle, copy);
+                ProgressHandler.setHandler(connection, INDEX_STEP_OPS, pacer);
+                try (Statement stmt = connection.createStatement()) {
+                    // One sort per index, from the copy alone, beats updating it row by row
+                    for (String[] object : schema) {
+                        if (!object[0].equals("table")) {
+                            stmt.execute(inCopy(object[2]));
+                        }
+                    }
+                    stmt.execute(CREATE_INFO_SQL);
+                } catch (SQLException e) {
+                    pacer.rethrow();
+                    throw e;
+                } finally {
+                    ProgressHandler.clearHandler(connection);
+                }
+                try (Statement stmt = connection.createStatement();
+                     PreparedStatement info = connection.prepareStatement(INSERT_INFO_SQL)) {
+                    for (String table : tables) {
+                        try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM copy." + quote(table))) {
+                            rs.next();
+                            info.setString(1, table);
+                            info.setLong(2, rs.getLong(1));
+                        }
+                        info.setLong(3, takenAt);
+                        info.executeUpdate();
+                    }
+                }
+            } finally {
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("DETACH DATABASE copy");
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies one table's rows in rowid order, a chunk per statement.
+     * @param after Rows up to and including this rowid are skipped
+     */
+    private static void copyChunks(Connection connection, String table, long after, Throttle throttle)
+            throws IOException, SQLException, InterruptedException {
+        String columns = columns(connection, table);
+        String sql = "INSERT INTO copy." + quote(table) + " (" + columns + ") SELECT " + columns
+                   + " FROM main." + quote(table) + " WHERE rowid > ? ORDER BY rowid LIMIT " + CHUNK_ROWS;
+        long last = after;
+        try (PreparedStatement chunk = connection.prepareStatement(sql)) {
+            while (true) {
+                chunk.setLong(1, last);
+                if (chunk.executeUpdate() < CHUNK_ROWS) {
+                    return;
+                }
+                last = maxRowid(connection, "copy." + quote(table));
+                throttle.wrote(copySize(connection));
+            }
+        }
+    }
+
+    /**
+     * Copies again the balances and counters of the customers with ledger
+     * entries in a range, a chunk of entries per statement.
+     */
+    private static void copyChanged(Connection connection, List<String> tables, long afterId, long toId,
+                                    Throttle throttle) throws IOException, SQLException, InterruptedException {
+        List<PreparedStatement> chunks = new ArrayList<>();
+        try {
+            for (String table : tables) {
+                if (PHONE_TABLES.contains(table)) {
+                    String columns = columns(connection, table);
+                    chunks.add(connection.prepareStatement("INSERT OR REPLACE INTO copy." + quote(table)
+                        + " (" + columns + ") SELECT " + columns + " FROM main." + quote(table)
+                        + " WHERE phone IN (SELECT phone FROM main." + LEDGER_TABLE
+                        + " WHERE rowid > ? AND rowid <= ?)"));
+                }
+            }
+            for (long from = afterId; from < toId; from += CHUNK_ROWS) {
+                for (PreparedStatement chunk : chunks) {
+                    chunk.setLong(1, from);
+                    chunk.setLong(2, Math.min(from + CHUNK_ROWS, toId));
+                    chunk.executeUpdate();
+                }
+                throttle.wrote(copySize(connection));
+            }
+        } finally {
+            for (PreparedStatement chunk : chunks) {
+                chunk.close();
+            }
+        }
+    }
+
+    /**
+     * @return Bytes in the copy so far, counting pages SQLite has not written out yet
+     */
+    private static long copySize(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            long pages;
+            try (ResultSet rs = stmt.executeQuery("PRAGMA copy.page_count")) {
+                rs.next();
+                pages = rs.getLong(1);
+            }
+            try (ResultSet rs = stmt.executeQuery("PRAGMA copy.page_size")) {
+                rs.next();
+                return pages * rs.getLong(1);
+            }
+        }
+    }
+
+    /**
+     * @return The table's columns for an INSERT ... SELECT, with the rowid
+     *         unless an INTEGER PRIMARY KEY already is the rowid
+     */
+    private static String columns(Connection connection, String table) throws SQLException {
+        List<String> columns = new ArrayList<>();
+        boolean rowidAlias = false;
+        int keyColumns = 0;
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA main.table_info(" + quote(table) + ")")) {
+            while (rs.next()) {
+                columns.add(quote(rs.getString("name")));
+                if (rs.getInt("pk") > 0) {
+                    keyColumns++;
+                    rowidAlias = rs.getString("type").equalsIgnoreCase("INTEGER");
+                }
+            }
+        }
+        return (rowidAlias && keyColumns == 1 ? "" : "rowid, ") + String.join(", ", columns);
+    }
+
+    private static long maxRowid(Connection connection, String table) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COALESCE(MAX(rowid), 0) FROM " + table)) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    private static long schemaVersion(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA main.schema_version")) {
+            rs.next();
+            return rs.getLong(1);
+        }
+    }
+
+    /**
+     * Checks a backup database: SQLite's integrity check, then every
+     * table's rows against the counts recorded when it was taken.
+     */
+    private static Map<String, Long> check(Path copy) throws SQLException {
+        Map<String, Long> rows = new LinkedHashMap<>();
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + copy);
+             Statement stmt = connection.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("PRAGMA integrity_check")) {
+                String result = rs.next() ? rs.getString(1) : "no result";
+                if (!result.equals("ok")) {
+                    throw new SQLException(copy + " is damaged: " + result);
+                }
+            }
+            Map<String, Long> recorded = new LinkedHashMap<>();
+            try (ResultSet rs = stmt.executeQuery("SELECT tbl, rows FROM " + INFO_TABLE)) {
+                while (rs.next()) {
+                    recorded.put(rs.getString(1), rs.getLong(2));
+                }
+            } catch (SQLException e) {
+                throw new SQLException(copy + " is not a rewards backup: " + e.getMessage(), e);
+            }
+            for (Map.Entry<String, Long> table : recorded.entrySet()) {
+                long count;
+                try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + quote(table.getKey()))) {
+                    rs.next();
+                    count = rs.getLong(1);
+                }
+                if (count != table.getValue()) {
+                    throw new SQLException(copy + " has " + count + " rows in " + table.getKey()
+                        + " but " + table.getValue() + " were backed up");
+                }
+                rows.put(table.getKey(), count);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Deletes all but the newest backups of a database.
+     */
+    private static void prune(Path db, Path folder, int kept) throws IOException {
+        String name = db.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String stem = dot > 0 ? name.substring(0, dot) : name;
+        Pattern own = Pattern.compile(Pattern.quote(stem) + "-\\d{8}-\\d{6}\\..*");
+        List<Path> backups = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                if (own.matcher(fileName).matches() && !fileName.endsWith(".part")) {
+                    backups.add(file);
+                }
+            }
+        }
+        // The timestamp sorts by name
+        backups.sort(null);
+        for (int i = 0; i < backups.size() - kept; i++) {
+            Files.delete(backups.get(i));
+        }
+    }
+
+    private static void gzip(Path from, Path to, Throttle throttle) throws IOException, InterruptedException {
+        byte[] buffer = new byte[BUFFER_BYTES];
+        long read = 0;
+        try (InputStream in = Files.newInputStream(from);
+             OutputStream file = Files.newOutputStream(to);
+             GZIPOutputStream out = new GZIPOutputStream(file, BUFFER_BYTES) {
+                 {
+                     // Level 1 packs a rewards database nearly as well as the default, several times faster
+                     def.setLevel(Deflater.BEST_SPEED);
+                 }
+             }) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                out.write(buffer, 0, n);
+                read += n;
+                throttle.wrote(read);
+            }
+        }
+        force(to);
+    }
+
+    /**
+     * Copies a backup to a database file, unzipping it if needed; the gzip
+     * checksum is checked at the end.
+     */
+    private static void unpack(Path backup, Path to) throws IOException {
+        try (InputStream file = Files.newInputStream(backup)) {
+            InputStream in = backup.getFileName().toString().endsWith(GZIP_SUFFIX)
+                ? new GZIPInputStream(file, BUFFER_BYTES)
+                : file;
+            Files.copy(in, to, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void force(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * @param sql CREATE statement from sqlite_master
+     * @return The same statement creating the object in the copy
+     */
+    static String inCopy(String sql) {
+        Matcher matcher = CREATE_PREFIX.matcher(sql);
+        if (!matcher.find()) {
+            throw new IllegalArgumentException("Unexpected schema statement: " + sql);
+        }
+        return matcher.group(1) + "copy." + sql.substring(matcher.end());
+    }
+
+    private static String quote(String identifier) {
+        return "\"" + identifier.replace("\"", "\"\"") + "\"";
+    }
+
+    /**
+     * Paces one pass of a backup, one short step at a time. After each step
+     * it forces the file to disk once another MB is written, then sleeps
+     * until the bytes written since the pass began are under the rate, and
+     * at least as long as the step took, so the tills' commits and
+     * checkpoints get the disk at least half the time. Left to the OS,
+     * gigabytes of the copy would wait in memory and the tills' next fsync
+     * would have to write them out first. An unlimited pass never sleeps.
+     */
+    private static final class Throttle {
+        private final long bytesPerSecond;
+        private final Path file;
+        private final long started = System.nanoTime();
+        private long stepStarted = started;
+        private long forced;
+
+        Throttle(long bytesPerSecond, Path file) {
+            this.bytesPerSecond = bytesPerSecond;
+            this.file = file;
+        }
+
+        /**
+         * @param total Bytes written so far in this pass
+         */
+        void wrote(long total) throws IOException, InterruptedException {
+            if (Thread.interrupted()) {
+                throw new InterruptedException("Backup stopped");
+            }
+            if (total - forced >= FORCE_BYTES) {
+                force(file);
+                forced = total;
+            }
+            if (bytesPerSecond == UNLIMITED) {
+                return;
+            }
+            long now = System.nanoTime();
+            long wait = Math.max(now - stepStarted, started + total * 1_000_000_000L / bytesPerSecond - now);
+            TimeUnit.NANOSECONDS.sleep(wait);
+            stepStarted = System.nanoTime();
+        }
+    }
+
+    /**
+     * Paces the index build, which is one statement per index, by pausing
+     * it every few thousand SQLite steps like a pass of the copy. An
+     * interrupt or failed force stops the statement and is rethrown.
+     */
+    private static final class IndexPacer extends ProgressHandler {
+        private final Throttle throttle;
+        private final Path file;
+        private Exception failure;
+
+        IndexPacer(Throttle throttle, Path file) {
+            this.throttle = throttle;
+            this.file = file;
+        }
+
+        @Override
+        protected int progress() {
+            try {
+                throttle.wrote(Files.size(file));
+                return 0;
+            } catch (IOException | InterruptedException e) {
+                failure = e;
+                return 1;
+            }
+        }
+
+        /**
+         * Throws what stopped the build, if the pacer stopped it.
+         */
+        void rethrow() throws IOException, InterruptedException {
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            if (failure instanceof InterruptedException) {
+                throw (InterruptedException) failure;
+            }
+        }
+    }
+
+    /**
+     * Command-line entry point for operators.
+     * @param args backup [folder] [rewards.db], verify backup, or restore backup [rewards.db]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || (!args[0].equals("backup") && args.length < 2)) {
+            System.out.println("Usage: RewardsBackup backup [folder] [rewards.db]");
+            System.out.println("       RewardsBackup verify backup.db.gz");
+            System.out.println("       RewardsBackup restore backup.db.gz [rewards.db]");
+            System.exit(2);
+        }
+        switch (args[0]) {
+            case "backup": {
+                Path folder = Paths.get(args.length > 1 ? args[1] : DEFAULT_DIRECTORY);
+                Path db = Paths.get(args.length > 2 ? args[2] : RewardsDatabase.DB_NAME);
+                long rate = Long.getLong("rewards.backupMBps", DEFAULT_BYTES_PER_SECOND >> 20) << 20;
+                boolean compress = Boolean.parseBoolean(System.getProperty("rewards.backupCompress", "true"));
+                System.out.println("Backed up to " + backup(db, folder, compress, rate));
+                break;
+            }
+            case "verify":
+                System.out.println("Backup is sound: " + verify(Paths.get(args[1])) + " rows");
+                break;
+            case "restore": {
+                Path db = Paths.get(args.length > 2 ? args[2] : RewardsDatabase.DB_NAME);
+                System.out.println("Restored " + restore(Paths.get(args[1]), db) + " rows");
+                break;
+            }
+            default:
+                System.out.println("Unknown command: " + args[0]);
+                System.exit(2);
+        }
+    }
+}
@@ -0,0 +1,441 @@
+/**
+ * RewardsBulkIO - Streaming bulk import and export of the rewards table.
+ * Import reads a CSV of phone,points rows through a large buffer, validates
+ * chunks of rows in parallel and writes them in large transactions, sending
+ * bad rows to a rejects file. Memory stays bounded by the number of chunks
+ * in flight, whatever the size of the file. With several shards each chunk
+ * is split so every shard gets its rows in one transaction. Import works
+ * on any RewardsStore; export of a SQLite store streams from the database.
+ *
+ * Usage: java -cp RewardsTracker.jar reward_app.RewardsBulkIO import file.csv [rejects.csv]
+ *        java -cp RewardsTracker.jar reward_app.RewardsBulkIO export file.csv
+ */
+package reward_app;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.*;
+
+public final class RewardsBulkIO {
+    // At most 2^15 so a row index packs into the sort key, see sortByPartitionAndPhone
+    private static final int CHUNK_ROWS = 20_000;
+    private static final int IO_BUFFER_CHARS = 1 << 20;
+    // Expired points the sweeper hasn't reached yet are exported as 0
+    private static final String EXPORT_SQL = "SELECT phone, "
+                                           + "CASE WHEN points > 0 AND earned_at <= ? THEN 0 ELSE points END "
+                                           + "FROM rewards ORDER BY phone";
+    private static final Future<ParsedChunk> END = CompletableFuture.completedFuture(null);
+
+    private RewardsBulkIO() {
+    }
+
+    /**
+     * One chunk of CSV lines after validation.
+     */
+    private static final class ParsedChunk {
+        final long[] keys;
+        final int[] points;
+        // Partition of each row once sorted
+        int[] partitions;
+        int rows;
+        final List<String> rejects = new ArrayList<>();
+
+        ParsedChunk(int capacity) {
+            keys = new long[capacity];
+            points = new int[capacity];
+        }
+    }
+
+    /**
+     * Imports a CSV of phone,points rows into a single database.
+     * See {@link #importCsv(RewardsStore, Path, Path)}.
+     *
+     * @param db Database to import into
+     * @param source CSV file to read
+     * @param rejects File that receives line number, reason and text of each bad row
+     * @return Row counts and throughput
+     * @throws IOException If a file cannot be read or written
+     * @throws SQLException If database operation fails; chunks already committed stay imported
+     */
+    public static ImportResult importCsv(RewardsDatabase db, Path source, Path rejects)
+            throws IOException, SQLException {
+        return importCsv(new ShardedDatabase(db), source, rejects);
+    }
+
+    /**
+     * Imports a CSV of phone,points rows, adding the points to existing
+     * balances. A header row is skipped. Every imported row is also
+     * recorded in the ledger.
+     *
+     * @param store Store to import into
+     * @param source CSV file to read
+     * @param rejects File that receives line number, reason and text of each bad row
+     * @return Row counts and throughput
+     * @throws IOException If a file cannot be read or written
+     * @throws SQLException If database operation fails; chunks already committed stay imported
+     */
+    public static ImportResult importCsv(RewardsStore store, Path source, Path rejects)
+            throws IOException, SQLException {
+        return importCsv(store, source, rejects, null);
+    }
+
+    /**
+     * Imports a CSV like {@link #importCsv(RewardsStore, Path, Path)},
+     * reporting the overdue balances expired on the way.
+     *
+     * @param store Store to import into
+     * @param source CSV file to read
+     * @param rejects File that receives line number, reason and text of each bad row
+     * @param expired Told each expired customer's points taken, or null
+     * @return Row counts and throughput
+     * @throws IOException If a file cannot be read or written
+     * @throws SQLException If database operation fails; chunks already committed stay imported
+     */
+    public static ImportResult importCsv(RewardsStore store, Path source, Path rejects,
+                                         RewardsStore.CommitListener expired) throws IOException, SQLException {
+        long start = System.currentTimeMillis();
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        ExecutorService parsers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "rewards-import-parser");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Holds chunks in file order; its bound is what keeps memory flat
+        BlockingQueue<Future<ParsedChunk>> chunks = new ArrayBlockingQueue<>(threads + 1);
+        Thread reader = new Thread(() -> readChunks(source, parsers, chunks, store),
+            "rewards-import-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        long imported = 0;
+        long rejected = 0;
+        try (BufferedWriter rejectsOut = Files.newBufferedWriter(rejects, StandardCharsets.UTF_8)) {
+            while (true) {
+                Future<ParsedChunk> next = chunks.take();
+                if (next == END) {
+                    break;
+                }
+                ParsedChunk chunk = next.get();
+                for (String reject : chunk.rejects) {
+                    rejectsOut.write(reject);
+                    rejectsOut.newLine();
+                }
+                rejected += chunk.rejects.size();
+                writeChunk(store, chunk, expired);
+                imported += chunk.rows;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Import failed: " + cause.getMessage(), cause);
+        } finally {
+            // Unblock and stop the reader if the import ended early
+            reader.interrupt();
+            chunks.clear();
+            parsers.shutdownNow();
+        }
+        return new ImportResult(imported, rejected, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Exports the rewards table of a single database.
+     * See {@link #exportCsv(ShardedDatabase, Path)}.
+     *
+     * @param db Database to export
+     * @param target CSV file to write
+     * @return Number of rows written
+     * @throws IOException If the file cannot be written
+     * @throws SQLException If database operation fails
+     */
+    public static long exportCsv(RewardsDatabase db, Path target) throws IOException, SQLException {
+        return exportCsv(new ShardedDatabase(db), target);
+    }
+
+    /**
+     * Exports the rewards table as phone,points rows ordered by phone.
+     * Each shard is streamed from one consistent read, so tills can keep
+     * writing; shards are merged by phone as they are read.
+     *
+     * @param shards Shards to export
+     * @param target CSV file to write
+     * @return Number of rows written
+     * @throws IOException If the file cannot be written
+     * @throws SQLException If database operation fails
+     */
+    public static long exportCsv(ShardedDatabase shards, Path target) throws IOException, SQLException {
+        long rows = 0;
+        List<PooledConnection> connections = new ArrayList<>();
+        try (BufferedWriter out = new BufferedWriter(
+                 Files.newBufferedWriter(target, StandardCharsets.UTF_8), IO_BUFFER_CHARS)) {
+            // Phones are fixed-width digit strings, so text order is phone order
+            PriorityQueue<ExportCursor> cursors = new PriorityQueue<>();
+            long cutoff = shards.expiryCutoff(System.currentTimeMillis());
+            for (int i = 0; i < shards.getShardCount(); i++) {
+                PooledConnection conn = shards.getShard(i).acquire();
+                connections.add(conn);
+                PreparedStatement export = conn.prepare(EXPORT_SQL);
+                export.setLong(1, cutoff);
+                ExportCursor cursor = new ExportCursor(export.executeQuery());
+                if (cursor.next()) {
+                    cursors.add(cursor);
+                }
+            }
+            out.write("phone,points");
+            out.newLine();
+            while (!cursors.isEmpty()) {
+                ExportCursor cursor = cursors.poll();
+                out.write(cursor.phone);
+                out.write(',');
+                out.write(Integer.toString(cursor.points));
+                out.newLine();
+                rows++;
+                if (cursor.next()) {
+                    cursors.add(cursor);
+                }
+            }
+        } finally {
+            for (PooledConnection conn : connections) {
+                conn.close();
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Writes balances held in memory as phone,points rows in phone order.
+     * @param keys Phone keys, sorted ascending
+     * @param points Balance of each key
+     * @param count Number of balances
+     * @param target CSV file to write
+     * @return Number of rows written
+     * @throws IOException If the file cannot be written
+     */
+    static long exportCsv(long[] keys, int[] points, int count, Path target) throws IOException {
+        try (BufferedWriter out = new BufferedWriter(
+                 Files.newBufferedWriter(target, StandardCharsets.UTF_8), IO_BUFFER_CHARS)) {
+            out.write("phone,points");
+            out.newLine();
+            for (int i = 0; i < count; i++) {
+                out.write(PhoneNumbers.format(keys[i]));
+                out.write(',');
+                out.write(Integer.toString(points[i]));
+                out.newLine();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * One shard's export rows, ordered by its current phone.
+     */
+    private static final class ExportCursor implements Comparable<ExportCursor> {
+        private final ResultSet rs;
+        String phone;
+        int points;
+
+        ExportCursor(ResultSet rs) {
+            this.rs = rs;
+        }
+
+        /**
+         * Moves to the next row, closing the result set after the last.
+         */
+        boolean next() throws SQLException {
+            if (!rs.next()) {
+                rs.close();
+                return false;
+            }
+            phone = rs.getString(1);
+            points = rs.getInt(2);
+            return true;
+        }
+
+        @Override
+        public int compareTo(ExportCursor other) {
+            return phone.compareTo(other.phone);
+        }
+    }
+
+    /**
+     * Reader side of the pipeline: cuts the file into chunks of lines and
+     * hands each to the parser pool, blocking while too many are in flight.
+     */
+    private static void readChunks(Path source, ExecutorService parsers,
+                                   BlockingQueue<Future<ParsedChunk>> chunks, RewardsStore store) {
+        try (BufferedReader in = new BufferedReader(
+                 Files.newBufferedReader(source, StandardCharsets.UTF_8), IO_BUFFER_CHARS)) {
+            long lineNumber = 0;
+            String[] lines = new String[CHUNK_ROWS];
+            int count = 0;
+            long firstLine = 1;
+            String line;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                if (lineNumber == 1 && isHeader(line)) {
+                    firstLine = 2;
+                    continue;
+                }
+                lines[count++] = line;
+                if (count == CHUNK_ROWS) {
+                    submit(parsers, chunks, lines, count, firstLine, store);
+                    lines = new String[CHUNK_ROWS];
+                    firstLine = lineNumber + 1;
+                    count = 0;
+                }
+            }
+            if (count > 0) {
+                submit(parsers, chunks, lines, count, firstLine, store);
+            }
+            chunks.put(END);
+        } catch (IOException e) {
+            putQuietly(chunks, CompletableFuture.failedFuture(e));
+            putQuietly(chunks, END);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void submit(ExecutorService parsers, BlockingQueue<Future<ParsedChunk>> chunks,
+                               String[] lines, int count, long firstLine, RewardsStore store)
+            throws InterruptedException {
+        chunks.put(parsers.submit(() -> parse(lines, count, firstLine, store)));
+    }
+
+    private static void putQuietly(BlockingQueue<Future<ParsedChunk>> chunks, Future<ParsedChunk> item) {
+        try {
+            chunks.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Validates one chunk of lines. Runs on a parser thread.
+     */
+    private static ParsedChunk parse(String[] lines, int count, long firstLine, RewardsStore store) {
+        ParsedChunk chunk = new ParsedChunk(count);
+        for (int i = 0; i < count; i++) {
+            String line = lines[i];
+            String reason = null;
+            int comma = line.indexOf(',');
+            if (comma < 0) {
+                reason = "missing points column";
+            } else {
+                int end = line.indexOf(',', comma + 1);
+                long key = PhoneNumbers.parse(unquote(line.substring(0, comma)));
+                String pointsText = unquote(line.substring(comma + 1, end < 0 ? line.length() : end));
+                if (key == PhoneNumbers.INVALID) {
+                    reason = "invalid phone number";
+                } else {
+                    try {
+                        int points = Integer.parseInt(pointsText);
+                        if (points < 0) {
+                            reason = "negative points";
+                        } else {
+                            chunk.keys[chunk.rows] = key;
+                            chunk.points[chunk.rows] = points;
+                            chunk.rows++;
+                        }
+                    } catch (NumberFormatException e) {
+                        reason = "points is not a whole number";
+                    }
+                }
+            }
+            if (reason != null) {
+                chunk.rejects.add((firstLine + i) + "," + reason + "," + line);
+            }
+        }
+        sortByPartitionAndPhone(chunk, store);
+        return chunk;
+    }
+
+    /**
+     * Orders a chunk's rows by partition, then phone, so each shard's rows
+     * are contiguous and the writer inserts into the B-tree indexes
+     * sequentially instead of at random pages.
+     */
+    private static void sortByPartitionAndPhone(ParsedChunk chunk, RewardsStore store) {
+        // Partitions fit in 8 bits (see MAX_SHARDS), phone keys in 34 and
+        // row indexes in 15, so all pack into one long
+        long[] order = new long[chunk.rows];
+        for (int i = 0; i < chunk.rows; i++) {
+            long partition = store.partitionOf(chunk.keys[i]);
+            order[i] = partition << 49 | chunk.keys[i] << 15 | i;
+        }
+        Arrays.sort(order);
+        int[] points = chunk.points.clone();
+        chunk.partitions = new int[chunk.rows];
+        for (int i = 0; i < chunk.rows; i++) {
+            int row = (int) (order[i] & 0x7FFF);
+            chunk.partitions[i] = (int) (order[i] >>> 49);
+            chunk.keys[i] = (order[i] >>> 15) & ((1L << 34) - 1);
+            chunk.points[i] = points[row];
+        }
+    }
+
+    private static String unquote(String field) {
+        String trimmed = field.trim();
+        if (trimmed.length() >= 2 && trimmed.charAt(0) == '"' && trimmed.charAt(trimmed.length() - 1) == '"') {
+            return trimmed.substring(1, trimmed.length() - 1).trim();
+        }
+        return trimmed;
+    }
+
+    private static boolean isHeader(String line) {
+        return line.toLowerCase().contains("phone") && !PhoneNumbers.isValid(unquote(line.split(",", 2)[0]));
+    }
+
+    /**
+     * Writes one validated chunk and its ledger entries, in a single
+     * batch per partition.
+     */
+    private static void writeChunk(RewardsStore store, ParsedChunk chunk, RewardsStore.CommitListener expired)
+            throws SQLException {
+        int from = 0;
+        while (from < chunk.rows) {
+            int partition = chunk.partitions[from];
+            int to = from;
+            while (to < chunk.rows && chunk.partitions[to] == partition) {
+                to++;
+            }
+            store.addAll(chunk.keys, chunk.points, from, to, expired);
+            from = to;
+        }
+    }
+
+    /**
+     * Command-line entry point for operators, working on rewards.db in the
+     * current folder.
+     * @param args import file.csv [rejects.csv] | export file.csv
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || !(args[0].equals("import") || args[0].equals("export"))) {
+            System.out.println("Usage: RewardsBulkIO import file.csv [rejects.csv]");
+            System.out.println("       RewardsBulkIO export file.csv");
+            System.exit(2);
+        }
+        RewardsManager manager = new RewardsManager();
+        Path file = Paths.get(args[1]);
+        if (args[0].equals("import")) {
+            Path rejects = args.length > 2 ? Paths.get(args[2]) : Paths.get(args[1] + ".rejects");
+            System.out.println(manager.importCsv(file, rejects));
+        } else {
+            System.out.println("Exported " + manager.exportCsv(file) + " rows");
+        }
+    }
+}
@@ -1,61 +1,385 @@
 /**
  * RewardsDatabase - Data access layer for the Rewards Tracker system.
- * Manages SQLite database connection and schema creation.
- * Provides connection instance for database operations.
+ * Manages a small pool of SQLite connections and schema creation.
+ * Readers share the pool concurrently; writers are serialized through
+ * a single in-process write lock so they never contend inside SQLite.
+ * Waits for connections, the write lock and SQLite's own locks, and how
+ * long each writer holds the write lock, are counted in the database's
+ * RewardsMetrics.
  */
 package reward_app;
 
+import org.sqlite.BusyHandler;
+
 import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class RewardsDatabase {
-    private Connection connection;
-    private static final String DB_NAME = "rewards.db";
+    static final String DB_NAME = "rewards.db";
+    static final int DEFAULT_POOL_SIZE = 4;
+    static final String DEFAULT_SYNCHRONOUS = "NORMAL";
+    static final int DEFAULT_BUSY_TIMEOUT_MILLIS = 5000;
+    private static final List<String> SYNCHRONOUS_LEVELS = List.of("OFF", "NORMAL", "FULL", "EXTRA");
+    // Same back-off SQLite's built-in busy timeout uses
+    private static final int[] BUSY_DELAYS_MILLIS = {1, 2, 5, 10, 15, 20, 25, 25, 25, 50, 50, 100};
+    static final String CREATE_EARNED_INDEX_SQL = "CREATE INDEX IF NOT EXISTS rewards_earned ON rewards (earned_at)";
+    // Last earning per customer, for balances created before earned_at existed
+    private static final String BACKFILL_EARNED_SQL = "UPDATE rewards SET earned_at = earned.created_at "
+                                                    + "FROM (SELECT phone, MAX(created_at) AS created_at "
+                                                    + "FROM ledger WHERE delta > 0 GROUP BY phone) AS earned "
+                                                    + "WHERE rewards.phone = earned.phone AND rewards.points > 0";
+    private static final String CREATE_SHARD_INFO_SQL = "CREATE TABLE IF NOT EXISTS shard_info "
+                                                      + "(shard INTEGER NOT NULL, shards INTEGER NOT NULL)";
+
+    private final String path;
+    private final String synchronous;
+    private final int busyTimeoutMillis;
+    private final BlockingQueue<PooledConnection> idle;
+    private final List<PooledConnection> all = new ArrayList<>();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final RewardsMetrics metrics;
+    private final int shard;
+    private final int shardCount;
+    // Guarded by the write lock
+    private final TransactionIds txnIds;
+    private SQLException initError;
 
     /**
-     * Initializes database connection and ensures schema exists.
+     * Initializes database connection pool and ensures schema exists.
      * Creates new database file if it doesn't exist.
      */
     public RewardsDatabase() {
-        createDatabase();
+        this(DB_NAME, DEFAULT_POOL_SIZE, DEFAULT_SYNCHRONOUS, DEFAULT_BUSY_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Initializes a connection pool for the given database file.
+     * @param path Path of the SQLite database file
+     * @param poolSize Number of pooled connections (at least 1)
+     * @param synchronous SQLite synchronous level: OFF, NORMAL, FULL or EXTRA
+     * @param busyTimeoutMillis How long SQLite waits on a lock held by another process
+     */
+    public RewardsDatabase(String path, int poolSize, String synchronous, int busyTimeoutMillis) {
+        this(path, poolSize, synchronous, busyTimeoutMillis, new RewardsMetrics(), 0, 1);
     }
 
     /**
-     * Establishes connection to SQLite database.
+     * Initializes a connection pool for one shard of a ShardedDatabase.
+     * A file already stamped with a different shard layout fails to open.
+     * @param path Path of the shard's SQLite file
+     * @param poolSize Number of pooled connections (at least 1)
+     * @param synchronous SQLite synchronous level: OFF, NORMAL, FULL or EXTRA
+     * @param busyTimeoutMillis How long SQLite waits on a lock held by another process
+     * @param metrics Metrics shared by every shard
+     * @param shard Index of this shard
+     * @param shardCount Number of shards in the layout; 1 for a plain single file
+     */
+    RewardsDatabase(String path, int poolSize, String synchronous, int busyTimeoutMillis,
+                    RewardsMetrics metrics, int shard, int shardCount) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("Pool size must be at least 1");
+        }
+        if (!SYNCHRONOUS_LEVELS.contains(synchronous)) {
+            throw new IllegalArgumentException("Synchronous level must be one of " + SYNCHRONOUS_LEVELS);
+        }
+        this.path = path;
+        this.synchronous = synchronous;
+        this.busyTimeoutMillis = busyTimeoutMillis;
+        this.metrics = metrics;
+        this.shard = shard;
+        this.shardCount = shardCount;
+        this.txnIds = TransactionIds.configured(shardCount);
+        this.idle = new ArrayBlockingQueue<>(poolSize);
+        createDatabase(poolSize);
+    }
+
+    /**
+     * Opens the pooled connections to the SQLite database.
      * Creates new database file if it doesn't exist.
-     * Loads SQLite JDBC driver and initializes connection.
+     * Loads SQLite JDBC driver, applies pragmas and prepares statements.
      */
-    private void createDatabase() {
+    private void createDatabase(int poolSize) {
         try {
             Class.forName("org.sqlite.JDBC");
-            connection = DriverManager.getConnection("jdbc:sqlite:" + DB_NAME);
-            createTable();
+            for (int i = 0; i < poolSize; i++) {
+                Connection connection = DriverManager.getConnection("jdbc:sqlite:" + path);
+                configure(connection);
+                if (i == 0) {
+                    createTable(connection);
+                    if (shardCount > 1) {
+                        checkShard(connection);
+                    }
+                    txnIds.load(connection);
+                }
+                PooledConnection pooled = new PooledConnection(this, connection);
+                all.add(pooled);
+                idle.add(pooled);
+            }
         } catch (Exception e) {
             System.out.println("Error connecting to database: " + e.getMessage());
+            initError = e instanceof SQLException
+                ? (SQLException) e
+                : new SQLException("Error connecting to database", e);
         }
     }
 
     /**
-     * Creates rewards table if it doesn't exist.
+     * Applies the pragmas used for concurrent access:
+     * WAL journal so readers don't block the writer, the configured
+     * synchronous level and a busy timeout for other processes.
+     */
+    private void configure(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("PRAGMA journal_mode = WAL");
+            stmt.execute("PRAGMA synchronous = " + synchronous);
+        }
+        // Takes the place of PRAGMA busy_timeout so each retry is counted
+        BusyHandler.setHandler(connection, new BusyRetry());
+    }
+
+    /**
+     * Creates rewards and ledger tables if they don't exist.
      * Table schema:
-     * - phone: TEXT PRIMARY KEY (customer's phone number)
-     * - points: INTEGER (customer's current point balance)
+     * - rewards.phone: TEXT PRIMARY KEY (customer's phone number)
+     * - rewards.points: INTEGER (customer's current point balance, a
+     *   snapshot kept in step with the ledger)
+     * - rewards.earned_at: INTEGER (epoch milliseconds of the last
+     *   earning, NULL once the points have expired; indexed for the
+     *   expiry sweeper)
+     * - ledger.id: INTEGER PRIMARY KEY (append order)
+     * - ledger.phone: TEXT (customer's phone number)
+     * - ledger.delta: INTEGER (points added, negative for redemptions)
+     * - ledger.created_at: INTEGER (epoch milliseconds)
+     * - ledger.origin: INTEGER (NULL for changes made here, the node of
+     *   another till for changes merged from it, -1 for expiries; see
+     *   PointsReplica)
+     * - txn_ids.gen, txn_ids.id: INTEGER (client transaction IDs applied
+     *   recently, see TransactionIds)
+     * A database created before the ledger existed gets one opening
+     * entry per customer so the ledger still sums to every balance, and
+     * one created before earned_at existed takes it from the ledger.
+     * Older ledgers get the origin column.
      */
-    private void createTable() {
+    private void createTable(Connection connection) {
         String sql = "CREATE TABLE IF NOT EXISTS rewards "
                   + "(phone TEXT PRIMARY KEY, "
-                  + "points INTEGER)";
+                  + "points INTEGER, "
+                  + "earned_at INTEGER)";
         try (Statement stmt = connection.createStatement()) {
             stmt.execute(sql);
+            stmt.execute(PointsLedger.CREATE_TABLE_SQL);
+            stmt.execute(TransactionIds.CREATE_TABLE_SQL);
+            stmt.execute(PointsLedger.CREATE_INDEX_SQL);
+            stmt.execute(PointsLedger.DROP_OLD_INDEX_SQL);
+            PointsLedger.seedOpeningBalances(connection);
+            if (!hasColumn(connection, "ledger", "origin")) {
+                stmt.execute("ALTER TABLE ledger ADD COLUMN origin INTEGER");
+            }
+            if (!hasColumn(connection, "rewards", "earned_at")) {
+                stmt.execute("BEGIN IMMEDIATE");
+                try {
+                    stmt.execute("ALTER TABLE rewards ADD COLUMN earned_at INTEGER");
+                    stmt.execute(BACKFILL_EARNED_SQL);
+                    stmt.execute("COMMIT");
+                } catch (SQLException e) {
+                    stmt.execute("ROLLBACK");
+                    throw e;
+                }
+            }
+            // A rebuilt table carries its index under another name
+            if (earnedIndex(connection) == null) {
+                stmt.execute(CREATE_EARNED_INDEX_SQL);
+            }
         } catch (SQLException e) {
             System.out.println("Error creating table: " + e.getMessage());
         }
     }
 
+    private static boolean hasColumn(Connection connection, String table, String column) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (rs.getString("name").equals(column)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @param connection Connection to the database
+     * @return Name of the index on rewards.earned_at, or null if there is none
+     * @throws SQLException If the schema cannot be read
+     */
+    static String earnedIndex(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type = 'index' "
+                                              + "AND tbl_name = 'rewards' AND sql LIKE '%(earned_at)'")) {
+            return rs.next() ? rs.getString(1) : null;
+        }
+    }
+
+    /**
+     * Stamps a new shard file with its place in the layout, or checks an
+     * existing one against it, so a shard count change can't silently
+     * route customers to the wrong file.
+     */
+    private void checkShard(Connection connection) throws SQLException {
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute(CREATE_SHARD_INFO_SQL);
+            try (ResultSet rs = stmt.executeQuery("SELECT shard, shards FROM shard_info")) {
+                if (rs.next()) {
+                    if (rs.getInt(1) != shard || rs.getInt(2) != shardCount) {
+                        throw new SQLException(path + " is shard " + rs.getInt(1) + " of " + rs.getInt(2)
+                            + ", expected shard " + shard + " of " + shardCount
+                            + "; use ShardTool to change the number of shards");
+                    }
+                    return;
+                }
+            }
+            stmt.execute("INSERT INTO shard_info (shard, shards) VALUES (" + shard + ", " + shardCount + ")");
+        }
+    }
+
+    /**
+     * Borrows a connection for reading. Close it to return it to the pool.
+     * @return Pooled connection with its prepared statements ready
+     * @throws SQLException If the database could not be opened or the wait was interrupted
+     */
+    public PooledConnection acquire() throws SQLException {
+        if (initError != null) {
+            throw new SQLException("Database is not available", initError);
+        }
+        try {
+            PooledConnection pooled = idle.poll();
+            if (pooled == null) {
+                long start = System.nanoTime();
+                pooled = idle.poll(busyTimeoutMillis, TimeUnit.MILLISECONDS);
+                metrics.connectionWaited(System.nanoTime() - start);
+                if (pooled == null) {
+                    metrics.connectionTimedOut();
+                    throw new SQLException("Timed out waiting for a database connection");
+                }
+            }
+            metrics.connectionAcquired();
+            return pooled;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection", e);
+        }
+    }
+
+    /**
+     * Borrows a connection for writing. Holds the write lock until the
+     * connection is closed, so only one writer runs at a time.
+     * @return Pooled connection with its prepared statements ready
+     * @throws SQLException If the database could not be opened or the wait was interrupted
+     */
+    public PooledConnection acquireWriter() throws SQLException {
+        if (!writeLock.tryLock()) {
+            long start = System.nanoTime();
+            writeLock.lock();
+            metrics.writeLockWaited(System.nanoTime() - start);
+        }
+        try {
+            PooledConnection pooled = acquire();
+            pooled.setHoldsWriteLock(true);
+            pooled.setWriteLockedAt(System.nanoTime());
+            return pooled;
+        } catch (SQLException | RuntimeException e) {
+            writeLock.unlock();
+            throw e;
+        }
+    }
+
     /**
-     * Provides access to database connection.
-     * @return Active database connection instance
+     * Returns a borrowed connection to the pool, releasing the write lock if held.
+     * Called by {@link PooledConnection#close()}.
      */
-    public Connection getConnection() {
-        return connection;
+    void release(PooledConnection pooled) {
+        boolean writer = pooled.holdsWriteLock();
+        pooled.setHoldsWriteLock(false);
+        idle.offer(pooled);
+        if (writer) {
+            long held = System.nanoTime() - pooled.getWriteLockedAt();
+            writeLock.unlock();
+            metrics.writeLockHeld(held);
+        }
+    }
+
+    /**
+     * @return Path of the SQLite database file
+     */
+    String getPath() {
+        return path;
+    }
+
+    /**
+     * @return Number of pooled connections
+     */
+    public int getPoolSize() {
+        return all.size();
+    }
+
+    /**
+     * @return Client transaction IDs applied recently; only use them
+     *         holding a connection from {@link #acquireWriter()}
+     */
+    TransactionIds transactionIds() {
+        return txnIds;
+    }
+
+    /**
+     * @return Metrics for this database and the managers using it
+     */
+    public RewardsMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Closes every pooled connection. Connections still borrowed are closed too.
+     */
+    public void close() {
+        for (PooledConnection pooled : all) {
+            pooled.closeConnection();
+        }
+        idle.clear();
+        metrics.unpublish();
+    }
+
+    /**
+     * Busy handler that sleeps and retries while another process holds
+     * the database lock, giving up after the busy timeout.
+     */
+    private final class BusyRetry extends BusyHandler {
+        private long waitedMillis;
+
+        @Override
+        protected int callback(int previousCalls) {
+            if (previousCalls == 0) {
+                waitedMillis = 0;
+            }
+            if (waitedMillis >= busyTimeoutMillis) {
+                metrics.busyTimedOut();
+                return 0;
+            }
+            int delay = BUSY_DELAYS_MILLIS[Math.min(previousCalls, BUSY_DELAYS_MILLIS.length - 1)];
+            delay = (int) Math.min(delay, busyTimeoutMillis - waitedMillis);
+            metrics.busyRetried();
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+            waitedMillis += delay;
+            return 1;
+        }
     }
-}
\ No newline at end of file
+}
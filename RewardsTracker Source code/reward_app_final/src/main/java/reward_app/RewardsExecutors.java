@@ -0,0 +1,35 @@
+/**
+ * RewardsExecutors - Executors for blocking database and network work.
+ * Uses a virtual thread per task when the JVM supports it (Java 21+)
+ * and falls back to a cached pool of daemon platform threads otherwise.
+ */
+package reward_app;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public final class RewardsExecutors {
+    private RewardsExecutors() {
+    }
+
+    /**
+     * Creates an executor suited to tasks that spend their time blocked on I/O.
+     * @param name Prefix for thread names
+     * @return Virtual-thread executor on Java 21+, otherwise a cached daemon pool
+     */
+    public static ExecutorService newIoExecutor(String name) {
+        try {
+            // Looked up reflectively so the build keeps targeting Java 17
+            Object executor = Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            return (ExecutorService) executor;
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
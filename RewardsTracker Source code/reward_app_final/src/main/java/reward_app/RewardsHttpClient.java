@@ -0,0 +1,183 @@
+/**
+ * RewardsHttpClient - RewardsService backed by a shared RewardsServer.
+ * Lets a till's UI work against the store's rewards server instead of
+ * a local database file. Errors reported by the server surface as the
+ * same exception types the local manager would throw.
+ *
+ * Every purchase and redemption is sent with a new transaction ID. If the
+ * server can't be reached or doesn't answer in time, the request is sent
+ * once more with the same ID, so it is never applied twice.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+public class RewardsHttpClient implements RewardsService {
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private final URI base;
+    private final HttpClient http;
+
+    /**
+     * Creates a client for the server at the given address.
+     * @param baseUrl Server address, e.g. http://192.168.1.20:8080
+     */
+    public RewardsHttpClient(String baseUrl) {
+        this.base = URI.create(baseUrl.endsWith("/") ? baseUrl : baseUrl + "/");
+        // The server only speaks HTTP/1.1; the default would send an h2c
+        // upgrade request with every new connection, only to be ignored
+        this.http = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(TIMEOUT)
+            .executor(RewardsExecutors.newIoExecutor("rewards-client"))
+            .build();
+    }
+
+    @Override
+    public CompletableFuture<Void> addPointsAsync(String phone, double amount) {
+        String txn = UUID.randomUUID().toString();
+        return postRetrying("points/add", Json.object("phone", phone, "amount", amount, "txn", txn))
+            .thenApply(response -> null);
+    }
+
+    @Override
+    public CompletableFuture<Integer> checkPointsAsync(String phone) {
+        String query = "points?phone=" + URLEncoder.encode(String.valueOf(phone), StandardCharsets.UTF_8);
+        HttpRequest request = HttpRequest.newBuilder(base.resolve(query)).timeout(TIMEOUT).GET().build();
+        return send(request).thenApply(response -> intField(response, "points"));
+    }
+
+    @Override
+    public CompletableFuture<Integer> subtractPointsAsync(String phone, int points) {
+        return redeemAsync(phone, points).thenApply(result -> {
+            if (!result.isApplied()) {
+                throw new IllegalArgumentException("Not enough points available");
+            }
+            return result.getBalance();
+        });
+    }
+
+    @Override
+    public CompletableFuture<RedemptionResult> redeemAsync(String phone, int points) {
+        String txn = UUID.randomUUID().toString();
+        return postRetrying("points/redeem", Json.object("phone", phone, "points", points, "txn", txn))
+            .thenApply(response -> new RedemptionResult(
+                Boolean.TRUE.equals(response.get("applied")), intField(response, "points")));
+    }
+
+    @Override
+    public CompletableFuture<List<CustomerPoints>> findCustomersAsync(String prefix, int limit) {
+        String query = "points/search?phone=" + URLEncoder.encode(String.valueOf(prefix), StandardCharsets.UTF_8)
+                     + "&limit=" + limit;
+        HttpRequest request = HttpRequest.newBuilder(base.resolve(query)).timeout(TIMEOUT).GET().build();
+        return send(request, RewardsHttpClient::parseCustomers);
+    }
+
+    /**
+     * Reads the phone,points CSV the server answers a search with.
+     */
+    private static List<CustomerPoints> parseCustomers(String csv) {
+        List<CustomerPoints> customers = new ArrayList<>();
+        String[] lines = csv.split("\n");
+        for (int i = 1; i < lines.length; i++) {
+            int comma = lines[i].indexOf(',');
+            long phone = PhoneNumbers.parse(lines[i].substring(0, Math.max(comma, 0)));
+            if (phone == PhoneNumbers.INVALID) {
+                throw new IllegalArgumentException("Malformed search result: " + lines[i]);
+            }
+            customers.add(new CustomerPoints(phone, Integer.parseInt(lines[i].substring(comma + 1))));
+        }
+        return customers;
+    }
+
+    /**
+     * Posts a request carrying a transaction ID, sending it once more if
+     * it never got an answer. The server ignores the second copy if the
+     * first one was applied.
+     */
+    private CompletableFuture<Map<String, Object>> postRetrying(String path, String body) {
+        CompletableFuture<Map<String, Object>> result = new CompletableFuture<>();
+        post(path, body).whenComplete((response, error) -> {
+            if (error == null) {
+                result.complete(response);
+            } else if (error instanceof SQLException && error.getCause() instanceof IOException) {
+                post(path, body).whenComplete((retried, retryError) -> {
+                    if (retryError == null) {
+                        result.complete(retried);
+                    } else {
+                        result.completeExceptionally(retryError);
+                    }
+                });
+            } else {
+                result.completeExceptionally(error);
+            }
+        });
+        return result;
+    }
+
+    private CompletableFuture<Map<String, Object>> post(String path, String body) {
+        HttpRequest request = HttpRequest.newBuilder(base.resolve(path))
+            .timeout(TIMEOUT)
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(body))
+            .build();
+        return send(request);
+    }
+
+    private CompletableFuture<Map<String, Object>> send(HttpRequest request) {
+        return send(request, Json::parse);
+    }
+
+    /**
+     * Sends a request and maps the server's status back to the exceptions
+     * the local manager throws: 400 to IllegalArgumentException and any
+     * other failure to SQLException. Error bodies are always JSON.
+     * @param reader Reads a successful response's body
+     */
+    private <T> CompletableFuture<T> send(HttpRequest request, Function<String, T> reader) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        http.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((response, error) -> {
+            if (error != null) {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                result.completeExceptionally(new SQLException(
+                    "Rewards server unreachable: " + cause.getMessage(), cause));
+                return;
+            }
+            try {
+                if (response.statusCode() == 200) {
+                    result.complete(reader.apply(response.body()));
+                    return;
+                }
+                Map<String, Object> fields = Json.parse(response.body());
+                if (response.statusCode() == 400) {
+                    result.completeExceptionally(new IllegalArgumentException((String) fields.get("error")));
+                } else {
+                    result.completeExceptionally(new SQLException((String) fields.get("error")));
+                }
+            } catch (IllegalArgumentException e) {
+                result.completeExceptionally(new IOException("Unreadable server response", e));
+            }
+        });
+        return result;
+    }
+
+    private static int intField(Map<String, Object> response, String name) {
+        Object value = response.get(name);
+        return value instanceof Double ? ((Double) value).intValue() : 0;
+    }
+}
@@ -1,108 +1,1105 @@
 /**
  * RewardsManager - Business logic layer for the Rewards Tracker system.
  * Handles all points-related operations and database interactions.
- * Validates input and manages points calculations.
+ * Validates input and manages points calculations; storage itself is
+ * behind a RewardsStore. Every public operation is timed in the store's
+ * RewardsMetrics.
  */
 package reward_app;
 
-import java.sql.*;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
 
-public class RewardsManager {
-    private RewardsDatabase db;
+import reward_app.RewardsMetrics.Operation;
+
+public class RewardsManager implements RewardsService {
+    static final long DEFAULT_SWEEP_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    // How much sooner than computed a written-through balance leaves the cache
+    private static final long EXPIRY_MARGIN_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final RewardsStore store;
+    private final RewardsMetrics metrics;
+    private final ExecutorService executor = RewardsExecutors.newIoExecutor("rewards-db");
+    // One write-behind queue per partition, indexed like the partitions
+    private volatile PointsBatcher[] batchers;
+    private volatile BalanceCache cache;
+    // Swapped whole on reload, so accruals never wait for one
+    private volatile PointsRules rules = PointsRules.DEFAULT;
+    private PointsRulesFile rulesFile;
+    private ExpirySweeper sweeper;
+    private volatile RewardsAnalytics analytics;
+    private volatile PhoneIndex phoneIndex;
+    // Set by the first search, which starts reading every number into the index
+    private volatile boolean phonesWanted;
+    private volatile ChangeStream changes;
+    private ChangeFeedServer changeFeed;
+    private volatile PointsSync sync;
+    private RewardsBackup backups;
+    private final RewardsStore.CommitListener writeThrough = this::writeThrough;
 
     /**
      * Initializes the rewards manager and establishes database connection.
+     * Opens rewards.db, the shard files when -Drewards.shards is set, or
+     * the in-memory store when -Drewards.storage=memory is set, and follows
+     * the reward rules in rewards-rules.txt (or -Drewards.rules) if present.
+     * Points expire after -Drewards.expiryDays without earning, if set,
+     * and reports are kept within -Drewards.reportSeconds, if set.
+     * Customers can be found by part of their number unless
+     * -Drewards.phoneSearch=false is set; the index is only built once
+     * someone searches. With -Drewards.changes=true every balance change
+     * is written to the rewards-changes folder, and served on
+     * -Drewards.changesPort if set. Tills with their own databases keep
+     * in step when -Drewards.syncPort or -Drewards.syncPeers is set. The
+     * database is backed up every -Drewards.backupHours, if set.
      */
     public RewardsManager() {
-        db = new RewardsDatabase();
+        this(RewardsStore.open());
+        enableRulesFile(Paths.get(System.getProperty("rewards.rules", PointsRulesFile.DEFAULT_FILE)),
+                        PointsRulesFile.DEFAULT_POLL_SECONDS);
+        long expiryDays = Long.getLong("rewards.expiryDays", 0);
+        if (expiryDays > 0) {
+            enableExpiry(TimeUnit.DAYS.toMillis(expiryDays), DEFAULT_SWEEP_MILLIS);
+        }
+        long reportSeconds = Long.getLong("rewards.reportSeconds", 0);
+        if (reportSeconds > 0) {
+            enableAnalytics(TimeUnit.SECONDS.toMillis(reportSeconds));
+        }
+        if (Boolean.parseBoolean(System.getProperty("rewards.phoneSearch", "true"))) {
+            enablePhoneSearch();
+        }
+        if (Boolean.getBoolean("rewards.changes")) {
+            try {
+                enableChanges(Paths.get(ChangeLogFile.DEFAULT_DIRECTORY), Integer.getInteger("rewards.changesPort", 0));
+            } catch (IOException e) {
+                throw new IllegalStateException("Change feed could not be started: " + e.getMessage(), e);
+            }
+        }
+        int syncPort = Integer.getInteger("rewards.syncPort", 0);
+        String syncPeers = System.getProperty("rewards.syncPeers", "");
+        if (syncPort > 0 || !syncPeers.isBlank()) {
+            try {
+                enableSync(syncPort, List.of(syncPeers.split(",")),
+                           TimeUnit.SECONDS.toMillis(Long.getLong("rewards.syncSeconds", 10)),
+                           Integer.getInteger("rewards.offlineRedeemLimit", 0));
+            } catch (IOException | SQLException e) {
+                throw new IllegalStateException("Sync could not be started: " + e.getMessage(), e);
+            }
+        }
+        long backupHours = Long.getLong("rewards.backupHours", 0);
+        if (backupHours > 0) {
+            enableBackups(Paths.get(System.getProperty("rewards.backupDir", RewardsBackup.DEFAULT_DIRECTORY)),
+                          TimeUnit.HOURS.toMillis(backupHours),
+                          Boolean.parseBoolean(System.getProperty("rewards.backupCompress", "true")),
+                          Long.getLong("rewards.backupMBps", RewardsBackup.DEFAULT_BYTES_PER_SECOND >> 20) << 20,
+                          Integer.getInteger("rewards.backupsKept", RewardsBackup.DEFAULT_KEPT));
+        }
+    }
+
+    /**
+     * Initializes the rewards manager on an already configured database.
+     * @param db Database to store points in
+     */
+    public RewardsManager(RewardsDatabase db) {
+        this(new ShardedDatabase(db));
+    }
+
+    /**
+     * Initializes the rewards manager on any store, e.g. shard files or memory.
+     * @param store Store to keep points in
+     */
+    public RewardsManager(RewardsStore store) {
+        this.store = store;
+        this.metrics = store.getMetrics();
+    }
+
+    /**
+     * Switches addPoints to write-behind mode. Accruals are queued and committed
+     * together, each with its own ledger entry, once maxBatchSize accruals are
+     * queued or the oldest has waited maxDelayMillis. An accrual is only durable after
+     * {@link #flush()} returns or the batch commits on its own; queued accruals
+     * are drained when the JVM shuts down or {@link #close()} is called.
+     * Each partition (shard) of the store gets its own queue and flusher thread.
+     * 
+     * @param maxBatchSize Number of queued accruals that triggers a flush
+     * @param maxDelayMillis Longest time an accrual may wait before it is flushed
+     * @throws IllegalStateException If batching is already enabled
+     */
+    public synchronized void enableBatching(int maxBatchSize, long maxDelayMillis) {
+        if (batchers != null) {
+            throw new IllegalStateException("Batching is already enabled");
+        }
+        PointsBatcher[] created = new PointsBatcher[store.getPartitionCount()];
+        for (int i = 0; i < created.length; i++) {
+            created[i] = new PointsBatcher(store, maxBatchSize, maxDelayMillis, this::batchCommitted);
+        }
+        batchers = created;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                close();
+            } catch (SQLException e) {
+                System.out.println("Error saving queued points on shutdown: " + e.getMessage());
+            }
+        }, "rewards-batch-drain"));
+    }
+
+    /**
+     * Puts a bounded balance cache in front of checkPoints. addPoints and
+     * subtractPoints write the committed balance through to it, so it never
+     * answers with a stale balance, nor with points that have expired.
+     * 
+     * @param maxEntries Maximum number of cached balances
+     * @param policy Eviction policy used when the cache is full
+     * @throws IllegalStateException If caching is already enabled
+     */
+    public synchronized void enableCache(int maxEntries, BalanceCache.Policy policy) {
+        if (cache != null) {
+            throw new IllegalStateException("Caching is already enabled");
+        }
+        cache = new BalanceCache(maxEntries, policy);
+    }
+
+    /**
+     * Prices purchases with the rules in a file, reloading them whenever
+     * the file changes. Until the file exists, a purchase earns one point
+     * per dollar.
+     * 
+     * @param file Rule file, see PointsRules for the format
+     * @param pollSeconds How often to check the file for changes
+     * @throws IllegalStateException If a rule file is already followed
+     */
+    public synchronized void enableRulesFile(Path file, long pollSeconds) {
+        if (rulesFile != null) {
+            throw new IllegalStateException("A rule file is already in use");
+        }
+        rulesFile = new PointsRulesFile(file, pollSeconds, loaded -> rules = loaded);
+    }
+
+    /**
+     * Expires a customer's points once lifetimeMillis has passed since they
+     * last earned any; earning again restarts the clock for the whole
+     * balance. Overdue balances read as 0 and cannot be redeemed straight
+     * away, while a background sweeper zeroes them in the store a small
+     * batch at a time. Cached balances are dropped once their points are
+     * due, so the cache never shows overdue points either.
+     * 
+     * @param lifetimeMillis How long points last without earning
+     * @param sweepIntervalMillis Time between sweeps once caught up
+     * @throws IllegalStateException If expiry is already enabled
+     * @throws IllegalArgumentException If lifetimeMillis is not positive
+     */
+    public synchronized void enableExpiry(long lifetimeMillis, long sweepIntervalMillis) {
+        if (sweeper != null) {
+            throw new IllegalStateException("Expiry is already enabled");
+        }
+        if (lifetimeMillis <= 0) {
+            throw new IllegalArgumentException("Points lifetime must be positive");
+        }
+        store.setPointsLifetime(lifetimeMillis);
+        BalanceCache current = cache;
+        if (current != null) {
+            // Balances cached so far were taken to last for ever
+            current.clear();
+        }
+        sweeper = new ExpirySweeper(store, sweepIntervalMillis, writeThrough);
+    }
+
+    /**
+     * Keeps a read-only copy of the balances for reports (top customers,
+     * points liability, points per day), refreshed from the ledger in the
+     * background. Reports scan the copy, never the store, so they don't
+     * slow the tills down; they trail the store by up to refreshMillis.
+     * 
+     * @param refreshMillis Time between refreshes
+     * @throws IllegalStateException If reports are already enabled
+     * @throws IllegalArgumentException If refreshMillis is not positive
+     */
+    public synchronized void enableAnalytics(long refreshMillis) {
+        if (analytics != null) {
+            throw new IllegalStateException("Reports are already enabled");
+        }
+        if (refreshMillis <= 0) {
+            throw new IllegalArgumentException("Refresh interval must be positive");
+        }
+        analytics = new RewardsAnalytics(store, refreshMillis);
+    }
+
+    /**
+     * Lets {@link #findCustomers} look customers up by the first digits of
+     * their number. The index of every number is built in the background
+     * on the first search, so a till that never searches never reads them
+     * all. Until it is ready only customers added since the till started
+     * are found; after that each new customer is indexed as their first
+     * points are added. Takes about 40 MB per 10 million customers.
+     * 
+     * @throws IllegalStateException If phone search is already enabled
+     */
+    public synchronized void enablePhoneSearch() {
+        if (phoneIndex != null) {
+            throw new IllegalStateException("Phone search is already enabled");
+        }
+        phoneIndex = new PhoneIndex();
+    }
+
+    /**
+     * Publishes every committed balance change, in order, to a stream whose
+     * sinks run on their own threads, so the tills never wait for them.
+     * Changes are written to files in the given folder, continuing from the
+     * last offset there, and served to local subscribers on port if it is
+     * positive (see ChangeFeedServer). Accruals queued by write-behind mode
+     * are published once their batch commits, without a balance. Bulk
+     * imports are not published. Changes still in the ring are written out
+     * when the JVM shuts down or {@link #close()} is called.
+     * 
+     * @param directory Folder for the change files
+     * @param port Port for subscribers, or 0 for files only
+     * @throws IOException If the change files cannot be opened or the port cannot be bound
+     * @throws IllegalStateException If changes are already published
+     */
+    public synchronized void enableChanges(Path directory, int port) throws IOException {
+        if (changes != null) {
+            throw new IllegalStateException("Changes are already published");
+        }
+        ChangeLogFile log = new ChangeLogFile(directory, ChangeLogFile.DEFAULT_FILES_KEPT);
+        if (port > 0) {
+            try {
+                changeFeed = new ChangeFeedServer(log, port);
+            } catch (IOException e) {
+                log.close();
+                throw e;
+            }
+        }
+        ChangeStream stream = new ChangeStream(ChangeStream.DEFAULT_CAPACITY, log.nextOffset());
+        stream.addSink("file", log);
+        changes = stream;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                close();
+            } catch (SQLException e) {
+                System.out.println("Error saving queued points on shutdown: " + e.getMessage());
+            }
+        }, "rewards-changes-drain"));
+    }
+
+    /**
+     * Keeps this till's balances in step with other tills that each have
+     * their own database, so every till keeps working when the network
+     * drops and they agree again once it is back. Changes are kept as
+     * per-till counters (see PointsReplica) and swapped with the peers
+     * every intervalMillis (see PointsSync). While no peer has been in
+     * touch for three intervals, a customer can redeem at most
+     * offlineRedeemLimit points at this till.
+     * Needs a single SQLite database; start every till from a copy of the
+     * same database, or an empty one, before turning sync on.
+     * 
+     * @param port Port other tills pull changes from, or 0 not to serve them
+     * @param peers Other tills' addresses, e.g. http://till2:8181
+     * @param intervalMillis Time between pulls from each peer
+     * @param offlineRedeemLimit Points a customer may redeem here while offline,
+     *                           {@link PointsSync#UNLIMITED} for no limit
+     * @throws IOException If the port cannot be bound
+     * @throws SQLException If the sync tables cannot be created
+     * @throws IllegalStateException If sync is already on, or the store is not a single SQLite database
+     */
+    public synchronized void enableSync(int port, List<String> peers, long intervalMillis, int offlineRedeemLimit)
+            throws IOException, SQLException {
+        if (sync != null) {
+            throw new IllegalStateException("Sync is already enabled");
+        }
+        if (!(store instanceof ShardedDatabase) || store.getPartitionCount() != 1) {
+            throw new IllegalStateException("Sync needs a single SQLite database");
+        }
+        PointsReplica replica = new PointsReplica(((ShardedDatabase) store).shardFor(0));
+        sync = new PointsSync(replica, port, peers, intervalMillis, offlineRedeemLimit, (key, delta, balance) -> {
+            // Points merged from a peer leave the local earning time alone
+            committed(key, delta, balance, false);
+            indexPhone(key);
+        });
+    }
+
+    /**
+     * Backs up every database file of the store in the background every
+     * intervalMillis, without pausing the tills (see RewardsBackup).
+     * 
+     * @param folder Folder to keep the backups in
+     * @param intervalMillis Time between backups
+     * @param compress Whether to gzip each backup
+     * @param bytesPerSecond Most bytes a backup writes per second, or {@link RewardsBackup#UNLIMITED}
+     * @param kept Backups of each file to keep
+     * @throws IllegalStateException If backups are already on, or the store is not SQLite
+     */
+    public synchronized void enableBackups(Path folder, long intervalMillis, boolean compress, long bytesPerSecond,
+                                           int kept) {
+        if (backups != null) {
+            throw new IllegalStateException("Backups are already enabled");
+        }
+        if (!(store instanceof ShardedDatabase)) {
+            throw new IllegalStateException("Backups need SQLite storage");
+        }
+        ShardedDatabase shards = (ShardedDatabase) store;
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < shards.getShardCount(); i++) {
+            files.add(Paths.get(shards.getShard(i).getPath()));
+        }
+        backups = new RewardsBackup(files, folder, intervalMillis, compress, bytesPerSecond, kept);
+    }
+
+    /**
+     * @return Scheduled backups, or null if disabled
+     */
+    public RewardsBackup getBackups() {
+        return backups;
+    }
+
+    /**
+     * Prices purchases with fixed rules, e.g. compiled by a test.
+     * @param rules Rules to use from now on
+     */
+    public void setRules(PointsRules rules) {
+        this.rules = rules;
+    }
+
+    /**
+     * @return The rules purchases are priced with right now
+     */
+    public PointsRules getRules() {
+        return rules;
+    }
+
+    /**
+     * @return The balance cache with its hit, miss and eviction counters, or null if disabled
+     */
+    public BalanceCache getCache() {
+        return cache;
+    }
+
+    /**
+     * @return The copy reports are answered from, or null if disabled
+     */
+    public RewardsAnalytics getAnalytics() {
+        return analytics;
+    }
+
+    /**
+     * @return The index phone search uses, or null if disabled
+     */
+    public PhoneIndex getPhoneIndex() {
+        return phoneIndex;
+    }
+
+    /**
+     * @return Sync with other tills, or null if disabled
+     */
+    public PointsSync getSync() {
+        return sync;
+    }
+
+    /**
+     * @return The stream balance changes are published to, or null if disabled
+     */
+    public ChangeStream getChanges() {
+        return changes;
+    }
+
+    /**
+     * @return Operation counts, latencies and connection waits for this manager's store
+     */
+    public RewardsMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Waits until every accrual queued so far has been committed and every
+     * change made so far is on disk.
+     * @throws SQLException If the queued accruals could not be saved
+     */
+    public void flush() throws SQLException {
+        PointsBatcher[] current = batchers;
+        if (current != null) {
+            for (PointsBatcher batcher : current) {
+                batcher.flush();
+            }
+        }
+        store.sync();
+    }
+
+    /**
+     * Drains any queued accruals and stops write-behind mode, rule reloads,
+     * the expiry sweeper, report refreshes, sync, backups and the change feed.
+     * @throws SQLException If the queued accruals could not be saved
+     */
+    public synchronized void close() throws SQLException {
+        if (rulesFile != null) {
+            rulesFile.close();
+            rulesFile = null;
+        }
+        if (sweeper != null) {
+            sweeper.close();
+            sweeper = null;
+        }
+        if (analytics != null) {
+            analytics.close();
+            analytics = null;
+        }
+        if (sync != null) {
+            sync.close();
+            sync = null;
+        }
+        if (backups != null) {
+            backups.close();
+            backups = null;
+        }
+        try {
+            PointsBatcher[] current = batchers;
+            if (current != null) {
+                batchers = null;
+                // Drain every shard even if one fails, then report the first failure
+                SQLException failure = null;
+                for (PointsBatcher batcher : current) {
+                    try {
+                        batcher.close();
+                    } catch (SQLException e) {
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+        } finally {
+            // After the drain, so the last batches are published too
+            closeChanges();
+        }
+    }
+
+    /**
+     * Stops serving subscribers, then lets the sinks take every change
+     * published so far and closes them.
+     */
+    private void closeChanges() {
+        if (changeFeed != null) {
+            changeFeed.close();
+            changeFeed = null;
+        }
+        ChangeStream current = changes;
+        if (current != null) {
+            changes = null;
+            current.close();
+        }
     }
 
     /**
      * Adds points to a customer's account based on purchase amount.
      * Creates new customer record if phone number doesn't exist.
      * 
-     * @param phone Customer's phone number (must be 10 digits)
-     * @param amount Purchase amount (converted to whole points)
+     * @param phone Customer's phone number (10 digits, separators allowed)
+     * @param amount Purchase amount (converted to points by the reward rules)
      * @throws SQLException If database operation fails
      * @throws IllegalArgumentException If phone number is invalid
      */
     public void addPoints(String phone, double amount) throws SQLException {
-        if (!isValidPhone(phone)) {
-            throw new IllegalArgumentException("Phone number must be 10 digits");
+        addPoints(phone, amount, null);
+    }
+
+    /**
+     * Adds points for a purchase in a category, e.g. one with a category bonus.
+     * 
+     * @param phone Customer's phone number (10 digits, separators allowed)
+     * @param amount Purchase amount (converted to points by the reward rules)
+     * @param category Purchase category, or null
+     * @throws SQLException If database operation fails
+     * @throws IllegalArgumentException If phone number is invalid
+     */
+    public void addPoints(String phone, double amount, String category) throws SQLException {
+        addPoints(phone, amount, category, null);
+    }
+
+    /**
+     * Adds points for a purchase unless a change with the same transaction
+     * ID was applied recently (24 hours by default, see TransactionIds), so
+     * a till can safely send the purchase again after a timeout.
+     * 
+     * @param phone Customer's phone number (10 digits, separators allowed)
+     * @param amount Purchase amount (converted to points by the reward rules)
+     * @param category Purchase category, or null
+     * @param txnId Client transaction ID made once per purchase, e.g. a UUID, or null
+     * @return false if the ID was already applied and nothing was added
+     * @throws SQLException If database operation fails
+     * @throws IllegalArgumentException If phone number or transaction ID is invalid
+     */
+    public boolean addPoints(String phone, double amount, String category, String txnId) throws SQLException {
+        long start = metrics.start();
+        try {
+            long key = parsePhone(phone);
+            long txn = TransactionIds.hash(txnId);
+            boolean added = addPoints(key, pointsFor(key, amount, category), txn);
+            metrics.completed(Operation.ADD_POINTS, start);
+            return added;
+        } catch (SQLException | RuntimeException e) {
+            metrics.failed(Operation.ADD_POINTS, start, e);
+            throw e;
         }
+    }
+
+    /**
+     * Prices a purchase with the current rules. Tier rules need the
+     * customer's balance, which is only read when such rules exist.
+     */
+    private int pointsFor(long key, double amount, String category) throws SQLException {
+        PointsRules current = rules;
+        int balance = current.usesTiers() ? checkPoints(key) : 0;
+        return current.points(amount, balance, current.category(category), System.currentTimeMillis());
+    }
 
-        int points = (int) Math.round(amount);
-        String sql = "INSERT INTO rewards (phone, points) VALUES (?, ?) "
-                  + "ON CONFLICT(phone) DO UPDATE SET points = points + ?";
-        
-        try (PreparedStatement pstmt = db.getConnection().prepareStatement(sql)) {
-            pstmt.setString(1, phone);
-            pstmt.setInt(2, points);
-            pstmt.setInt(3, points);
-            pstmt.executeUpdate();
+    private boolean addPoints(long key, int points, long txnId) throws SQLException {
+        // Queued accruals carry no ID, so one with an ID is written now
+        PointsBatcher current = batcherFor(key);
+        if (current != null && txnId == TransactionIds.NONE) {
+            current.enqueue(key, points);
+            indexPhone(key);
+            return true;
+        }
+        int balance = store.addPoints(key, points, txnId, commitListener());
+        indexPhone(key);
+        if (balance == RewardsStore.REPLAYED) {
+            metrics.transactionReplayed();
+            return false;
         }
+        return true;
     }
 
     /**
      * Retrieves current point balance for a customer.
      * Returns 0 for new customers.
      * 
-     * @param phone Customer's phone number (must be 10 digits)
+     * @param phone Customer's phone number (10 digits, separators allowed)
      * @return Current point balance
      * @throws SQLException If database operation fails
      * @throws IllegalArgumentException If phone number is invalid
      */
     public int checkPoints(String phone) throws SQLException {
-        if (!isValidPhone(phone)) {
-            throw new IllegalArgumentException("Phone number must be 10 digits");
+        long start = metrics.start();
+        try {
+            int balance = checkPoints(parsePhone(phone));
+            metrics.completed(Operation.CHECK_POINTS, start);
+            return balance;
+        } catch (SQLException | RuntimeException e) {
+            metrics.failed(Operation.CHECK_POINTS, start, e);
+            throw e;
+        }
+    }
+
+    private int checkPoints(long key) throws SQLException {
+        // Include accruals still waiting in the write-behind queue
+        PointsBatcher current = batcherFor(key);
+        if (current != null) {
+            return current.balanceWithPending(key, () -> cachedBalance(key));
         }
+        return cachedBalance(key);
+    }
 
-        String sql = "SELECT points FROM rewards WHERE phone = ?";
-        try (PreparedStatement pstmt = db.getConnection().prepareStatement(sql)) {
-            pstmt.setString(1, phone);
-            ResultSet rs = pstmt.executeQuery();
-            return rs.next() ? rs.getInt("points") : 0;
+    /**
+     * Returns the committed balance from the cache, reading it from the
+     * database and caching it on a miss.
+     * @param key Customer's phone key
+     * @return Committed balance
+     * @throws SQLException If database operation fails
+     */
+    private int cachedBalance(long key) throws SQLException {
+        BalanceCache current = cache;
+        if (current == null) {
+            return readBalance(key);
         }
+        long cached = current.get(key);
+        if (cached != BalanceCache.MISS) {
+            return (int) cached;
+        }
+        long version = current.version(key);
+        int balance = readBalance(key);
+        // A balance of 0 or less has nothing left to expire
+        long expiresAt = balance > 0 ? store.getExpiryTime(key) : BalanceCache.NEVER;
+        current.fill(key, balance, expiresAt, version);
+        return balance;
+    }
+
+    /**
+     * Reads the stored balance for a phone key.
+     * @param key Customer's phone key
+     * @return Stored balance, 0 if the customer has no record
+     * @throws SQLException If database operation fails
+     */
+    private int readBalance(long key) throws SQLException {
+        return store.getBalance(key);
     }
 
     /**
      * Deducts points from customer's account for redemption.
-     * Validates sufficient points are available before deducting.
+     * Fails without changing the balance if not enough points are available.
      * 
-     * @param phone Customer's phone number (must be 10 digits)
+     * @param phone Customer's phone number (10 digits, separators allowed)
      * @param points Number of points to redeem (must be positive)
+     * @return Balance remaining after the redemption
      * @throws SQLException If database operation fails
      * @throws IllegalArgumentException If points invalid or insufficient
      */
-    public void subtractPoints(String phone, int points) throws SQLException {
-        if (!isValidPhone(phone)) {
-            throw new IllegalArgumentException("Phone number must be 10 digits");
+    public int subtractPoints(String phone, int points) throws SQLException {
+        return subtractPoints(phone, points, null);
+    }
+
+    /**
+     * Deducts points unless a redemption with the same transaction ID was
+     * applied recently, in which case the current balance is returned.
+     * 
+     * @param phone Customer's phone number (10 digits, separators allowed)
+     * @param points Number of points to redeem (must be positive)
+     * @param txnId Client transaction ID made once per redemption, e.g. a UUID, or null
+     * @return Balance remaining after the redemption
+     * @throws SQLException If database operation fails
+     * @throws IllegalArgumentException If points or transaction ID invalid, or points insufficient
+     */
+    public int subtractPoints(String phone, int points, String txnId) throws SQLException {
+        long start = metrics.start();
+        try {
+            RedemptionResult result = redeem(parsePhone(phone), points, TransactionIds.hash(txnId));
+            if (!result.isApplied()) {
+                throw new IllegalArgumentException("Not enough points available");
+            }
+            metrics.completed(Operation.SUBTRACT_POINTS, start);
+            return result.getBalance();
+        } catch (SQLException | RuntimeException e) {
+            metrics.failed(Operation.SUBTRACT_POINTS, start, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Attempts to deduct points in a single conditional update.
+     * The store checks the balance and deducts atomically, so concurrent
+     * redemptions against the same customer can never overdraw it.
+     * 
+     * @param phone Customer's phone number (10 digits, separators allowed)
+     * @param points Number of points to redeem (must be positive)
+     * @return Whether the redemption applied and the resulting balance
+     * @throws SQLException If database operation fails
+     * @throws IllegalArgumentException If phone number or points are invalid,
+     *         or the points are over the offline limit (see {@link #enableSync})
+     */
+    public RedemptionResult redeem(String phone, int points) throws SQLException {
+        return redeem(phone, points, null);
+    }
+
+    /**
+     * Attempts a redemption unless one with the same transaction ID was
+     * applied recently, in which case it reports the earlier redemption
+     * as applied, with the current balance.
+     * 
+     * @param phone Customer's phone number (10 digits, separators allowed)
+     * @param points Number of points to redeem (must be positive)
+     * @param txnId Client transaction ID made once per redemption, e.g. a UUID, or null
+     * @return Whether the redemption applied and the resulting balance
+     * @throws SQLException If database operation fails
+     * @throws IllegalArgumentException If phone number, points or transaction ID are
+     *         invalid, or the points are over the offline limit (see {@link #enableSync})
+     */
+    public RedemptionResult redeem(String phone, int points, String txnId) throws SQLException {
+        long start = metrics.start();
+        try {
+            RedemptionResult result = redeem(parsePhone(phone), points, TransactionIds.hash(txnId));
+            metrics.completed(Operation.REDEEM, start);
+            return result;
+        } catch (SQLException | RuntimeException e) {
+            metrics.failed(Operation.REDEEM, start, e);
+            throw e;
         }
+    }
+
+    private RedemptionResult redeem(long key, int points, long txnId) throws SQLException {
         if (points < 0) {
             throw new IllegalArgumentException("Points must be positive");
         }
+        PointsSync syncing = sync;
+        // Counted against the offline limit up front, and taken back unless spent
+        int reserved = syncing == null ? 0 : syncing.reserve(key, points);
+        if (reserved == PointsSync.REFUSED) {
+            throw new IllegalArgumentException("This till is offline; up to " + syncing.redeemable(key)
+                + " points can be redeemed for this customer until it is back in touch");
+        }
+        boolean spent = false;
+        try {
+            // Queued accruals must be committed before they can be spent
+            PointsBatcher current = batcherFor(key);
+            if (current != null && current.pendingPoints(key) != 0) {
+                current.flush();
+            }
+
+            int balance = store.redeem(key, points, txnId, commitListener());
+            if (balance == RewardsStore.REPLAYED) {
+                // Counted when it first applied
+                metrics.transactionReplayed();
+                return new RedemptionResult(true, checkPoints(key));
+            }
+            if (balance != RewardsStore.NOT_APPLIED) {
+                spent = true;
+                return new RedemptionResult(true, balance);
+            }
+            // Rejected: report the balance that blocked the redemption
+            return new RedemptionResult(false, checkPoints(key));
+        } finally {
+            if (!spent && reserved > 0) {
+                syncing.release(key, reserved);
+            }
+        }
+    }
+
+    /**
+     * Returns a customer's most recent points changes, newest first.
+     * 
+     * @param phone Customer's phone number (10 digits, separators allowed)
+     * @param limit Maximum number of entries
+     * @return Ledger entries for the customer
+     * @throws SQLException If database operation fails
+     * @throws IllegalArgumentException If phone number is invalid
+     */
+    public List<LedgerEntry> getHistory(String phone, int limit) throws SQLException {
+        long start = metrics.start();
+        try {
+            long key = parsePhone(phone);
+            List<LedgerEntry> history = store.getHistory(key, limit);
+            metrics.completed(Operation.GET_HISTORY, start);
+            return history;
+        } catch (SQLException | RuntimeException e) {
+            metrics.failed(Operation.GET_HISTORY, start, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Rebuilds every stored balance from the ledger, e.g. after a dispute
+     * or a manual edit of the rewards table. Tills can keep working while
+     * it runs; the cache is cleared once the rebuilt balances are in place.
+     * 
+     * @return Number of balances written
+     * @throws SQLException If database operation fails
+     */
+    public long rebuildBalances() throws SQLException {
+        long start = metrics.start();
+        try {
+            flush();
+            long written = store.rebuildBalances();
+            BalanceCache current = cache;
+            if (current != null) {
+                current.clear();
+            }
+            // Customers that only the ledger knew about now have a balance
+            indexPhones();
+            metrics.completed(Operation.REBUILD_BALANCES, start);
+            return written;
+        } catch (SQLException | RuntimeException e) {
+            metrics.failed(Operation.REBUILD_BALANCES, start, e);
+            throw e;
+        }
+    }
 
-        int currentPoints = checkPoints(phone);
-        if (currentPoints < points) {
-            throw new IllegalArgumentException("Not enough points available");
+    /**
+     * Bulk-imports a CSV of phone,points rows, adding the points to existing
+     * balances. Bad rows go to the rejects file; the cache is cleared afterwards.
+     * 
+     * @param source CSV file to read
+     * @param rejects File that receives the rejected rows
+     * @return Row counts and throughput
+     * @throws IOException If a file cannot be read or written
+     * @throws SQLException If database operation fails
+     */
+    public ImportResult importCsv(Path source, Path rejects) throws IOException, SQLException {
+        long start = metrics.start();
+        try {
+            flush();
+            ImportResult result = RewardsBulkIO.importCsv(store, source, rejects, commitListener());
+            metrics.completed(Operation.IMPORT_CSV, start);
+            return result;
+        } catch (IOException | SQLException | RuntimeException e) {
+            metrics.failed(Operation.IMPORT_CSV, start, e);
+            throw e;
+        } finally {
+            BalanceCache current = cache;
+            if (current != null) {
+                current.clear();
+            }
+            indexPhones();
         }
+    }
 
-        String sql = "UPDATE rewards SET points = points - ? WHERE phone = ?";
-        try (PreparedStatement pstmt = db.getConnection().prepareStatement(sql)) {
-            pstmt.setInt(1, points);
-            pstmt.setString(2, phone);
-            pstmt.executeUpdate();
+    /**
+     * Exports every balance as phone,points rows.
+     * 
+     * @param target CSV file to write
+     * @return Number of rows written
+     * @throws IOException If the file cannot be written
+     * @throws SQLException If database operation fails
+     */
+    public long exportCsv(Path target) throws IOException, SQLException {
+        long start = metrics.start();
+        try {
+            flush();
+            long rows = store.exportCsv(target);
+            metrics.completed(Operation.EXPORT_CSV, start);
+            return rows;
+        } catch (IOException | SQLException | RuntimeException e) {
+            metrics.failed(Operation.EXPORT_CSV, start, e);
+            throw e;
         }
     }
 
     /**
-     * Validates phone number format.
-     * Checks for exactly 10 digits with no other characters.
+     * Finds customers whose phone number starts with the given digits, e.g.
+     * while a cashier is still typing it, with their current balances.
+     * 
+     * @param prefix First digits of the number, separators allowed
+     * @param limit Most customers to return, 1 to {@link PhoneIndex#MAX_RESULTS}
+     * @return Matching customers in number order
+     * @throws SQLException If a balance could not be read
+     * @throws IllegalArgumentException If the prefix or limit is invalid
+     * @throws IllegalStateException If phone search is not enabled
+     */
+    public List<CustomerPoints> findCustomers(String prefix, int limit) throws SQLException {
+        long start = metrics.start();
+        try {
+            PhoneIndex index = phoneIndex;
+            if (index == null) {
+                throw new IllegalStateException("Phone search is not enabled");
+            }
+            if (prefix == null) {
+                throw new IllegalArgumentException("Phone number is required");
+            }
+            if (!phonesWanted) {
+                requestPhones();
+            }
+            List<CustomerPoints> found = new ArrayList<>();
+            for (long key : index.search(prefix, limit)) {
+                found.add(new CustomerPoints(key, checkPoints(key)));
+            }
+            metrics.completed(Operation.FIND_CUSTOMERS, start);
+            return found;
+        } catch (SQLException | RuntimeException e) {
+            metrics.failed(Operation.FIND_CUSTOMERS, start, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Asynchronous {@link #addPoints(String, double)}, run on the manager's executor.
+     * The future fails with the same exception the synchronous call would throw.
+     * 
+     * @param phone Customer's phone number (10 digits, separators allowed)
+     * @param amount Purchase amount (converted to points by the reward rules)
+     * @return Future completed once the points are added
+     */
+    @Override
+    public CompletableFuture<Void> addPointsAsync(String phone, double amount) {
+        return runAsync(() -> {
+            addPoints(phone, amount);
+            return null;
+        });
+    }
+
+    /**
+     * Asynchronous {@link #checkPoints(String)}, run on the manager's executor.
+     * 
+     * @param phone Customer's phone number (10 digits, separators allowed)
+     * @return Future holding the current point balance
+     */
+    @Override
+    public CompletableFuture<Integer> checkPointsAsync(String phone) {
+        return runAsync(() -> checkPoints(phone));
+    }
+
+    /**
+     * Asynchronous {@link #subtractPoints(String, int)}, run on the manager's executor.
+     * 
+     * @param phone Customer's phone number (10 digits, separators allowed)
+     * @param points Number of points to redeem (must be positive)
+     * @return Future holding the balance remaining after the redemption
+     */
+    @Override
+    public CompletableFuture<Integer> subtractPointsAsync(String phone, int points) {
+        return runAsync(() -> subtractPoints(phone, points));
+    }
+
+    /**
+     * Asynchronous {@link #redeem(String, int)}, run on the manager's executor.
+     * 
+     * @param phone Customer's phone number (10 digits, separators allowed)
+     * @param points Number of points to redeem (must be positive)
+     * @return Future holding whether the redemption applied and the resulting balance
+     */
+    @Override
+    public CompletableFuture<RedemptionResult> redeemAsync(String phone, int points) {
+        return runAsync(() -> redeem(phone, points));
+    }
+
+    /**
+     * Asynchronous {@link #findCustomers(String, int)}, run on the manager's executor.
+     * 
+     * @param prefix First digits of the number, separators allowed
+     * @param limit Most customers to return
+     * @return Future holding the matching customers in number order
+     */
+    @Override
+    public CompletableFuture<List<CustomerPoints>> findCustomersAsync(String prefix, int limit) {
+        return runAsync(() -> findCustomers(prefix, limit));
+    }
+
+    /**
+     * Database work that may throw, for {@link #runAsync(DatabaseCall)}.
+     */
+    @FunctionalInterface
+    private interface DatabaseCall<T> {
+        T call() throws Exception;
+    }
+
+    /**
+     * Runs a call on the executor, failing the future with the call's own
+     * exception rather than a wrapper.
+     */
+    private <T> CompletableFuture<T> runAsync(DatabaseCall<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                future.complete(call.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * @return The write-behind queue for the customer's partition, or null if batching is off
+     */
+    private PointsBatcher batcherFor(long key) {
+        PointsBatcher[] current = batchers;
+        if (current == null) {
+            return null;
+        }
+        return current.length == 1 ? current[0] : current[store.partitionOf(key)];
+    }
+
+    /**
+     * Adds a customer to phone search, if enabled.
+     */
+    private void indexPhone(long key) {
+        PhoneIndex index = phoneIndex;
+        if (index != null) {
+            index.add(key);
+        }
+    }
+
+    /**
+     * Starts building phone search from the store, the first time it is used.
+     */
+    private synchronized void requestPhones() {
+        if (!phonesWanted) {
+            phonesWanted = true;
+            indexPhones();
+        }
+    }
+
+    /**
+     * Rebuilds phone search from the store on the executor, if enabled and
+     * searched yet. Searches keep working on the old contents meanwhile.
+     */
+    private void indexPhones() {
+        PhoneIndex index = phoneIndex;
+        if (index != null && phonesWanted) {
+            executor.execute(() -> {
+                try {
+                    index.build(store);
+                } catch (SQLException | RuntimeException e) {
+                    System.out.println("Error building phone search: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * @return The listener stores call on commit, or null if nothing needs it
+     */
+    private RewardsStore.CommitListener commitListener() {
+        return cache == null && changes == null ? null : writeThrough;
+    }
+
+    /**
+     * Records a just-committed balance in the cache and publishes the change.
+     * Called by the store before it lets the next write through.
+     */
+    private void writeThrough(long key, int delta, int balance) {
+        // The store restarts the expiry clock whenever points are earned
+        committed(key, delta, balance, delta > 0);
+    }
+
+    /**
+     * Records a committed balance in the cache and publishes the change.
+     * @param earned Whether the write restarted the customer's expiry clock
+     */
+    private void committed(long key, int delta, int balance, boolean earned) {
+        BalanceCache current = cache;
+        if (current != null) {
+            long lifetime = store.getPointsLifetime();
+            if (lifetime == 0 || balance <= 0) {
+                current.put(key, balance, BalanceCache.NEVER);
+            } else if (earned) {
+                // The store stamped the earning before this call; expire early rather than late
+                current.put(key, balance, System.currentTimeMillis() + lifetime - EXPIRY_MARGIN_MILLIS);
+            } else {
+                current.update(key, balance);
+            }
+        }
+        ChangeStream stream = changes;
+        if (stream != null) {
+            stream.publish(key, delta, balance);
+        }
+    }
+
+    /**
+     * Drops cached balances changed by a committed write-behind batch and
+     * publishes its accruals, after the expiries the batch made first.
+     */
+    private void batchCommitted(Map<Long, Integer> batch, Map<Long, Integer> expired) {
+        BalanceCache current = cache;
+        if (current != null) {
+            for (long key : batch.keySet()) {
+                current.invalidate(key);
+            }
+        }
+        ChangeStream stream = changes;
+        if (stream != null) {
+            expired.forEach((key, points) -> stream.publish(key, -points, 0));
+            batch.forEach((key, points) -> stream.publish(key, points, ChangeStream.UNKNOWN_BALANCE));
+        }
+    }
+
+    /**
+     * Validates a phone number and converts it to its canonical key.
+     * Accepts 10 digits with common separators, e.g. (705)-123-4567.
      * 
      * @param phone Phone number to validate
-     * @return true if phone number is valid, false otherwise
+     * @return Canonical phone key
+     * @throws IllegalArgumentException If phone number is invalid
      */
-    private boolean isValidPhone(String phone) {
-        return phone != null && phone.matches("\\d{10}");
+    private long parsePhone(String phone) {
+        long key = PhoneNumbers.parse(phone);
+        if (key == PhoneNumbers.INVALID) {
+            throw new IllegalArgumentException("Phone number must be 10 digits");
+        }
+        return key;
     }
 }
\ No newline at end of file
@@ -0,0 +1,418 @@
+/**
+ * RewardsMetrics - Counters and latency histograms for one rewards database.
+ * RewardsManager times every operation; the stores count connection and
+ * write-lock waits, how long the write lock is held, SQLite busy retries,
+ * expired points and replayed transactions. Recording is lock-free and allocation-free so it
+ * can stay on in production.
+ *
+ * The figures can be read three ways:
+ * - JMX, under the reward_app domain, once {@link #publish(String)} is called
+ * - GET /metrics on a RewardsServer, in Prometheus text format
+ * - a periodic dump to the console, with -Drewards.metricsLogSeconds=60
+ * Calls slower than -Drewards.slowCallMillis (default 1000) are logged as they happen.
+ */
+package reward_app;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+public class RewardsMetrics implements RewardsMetricsMBean {
+    private static final String DOMAIN = "reward_app";
+    private static final long DEFAULT_SLOW_CALL_MILLIS = 1000;
+
+    /**
+     * The operations RewardsManager times.
+     */
+    public enum Operation {
+        ADD_POINTS("addPoints"),
+        CHECK_POINTS("checkPoints"),
+        SUBTRACT_POINTS("subtractPoints"),
+        REDEEM("redeem"),
+        GET_HISTORY("getHistory"),
+        REBUILD_BALANCES("rebuildBalances"),
+        IMPORT_CSV("importCsv"),
+        EXPORT_CSV("exportCsv"),
+        FIND_CUSTOMERS("findCustomers");
+
+        private final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+
+        /**
+         * @return Name of the RewardsManager method
+         */
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private final OperationStats[] operations;
+    private final LongAdder acquisitions = new LongAdder();
+    private final LatencyHistogram connectionWait = new LatencyHistogram();
+    private final LongAdder connectionTimeouts = new LongAdder();
+    private final LatencyHistogram writeLockWait = new LatencyHistogram();
+    private final LatencyHistogram writeLockHold = new LatencyHistogram();
+    private final LongAdder expiredBalances = new LongAdder();
+    private final LongAdder expiredPoints = new LongAdder();
+    private volatile long sweepLagMillis;
+    private final LongAdder replayedTransactions = new LongAdder();
+    private final LongAdder busyRetries = new LongAdder();
+    private final LongAdder busyTimeouts = new LongAdder();
+    private final long slowCallNanos;
+    private final List<ObjectName> registered = new ArrayList<>();
+    private volatile boolean enabled = true;
+    private ScheduledExecutorService logger;
+
+    /**
+     * Creates an empty set of metrics.
+     */
+    public RewardsMetrics() {
+        Operation[] values = Operation.values();
+        operations = new OperationStats[values.length];
+        for (Operation operation : values) {
+            operations[operation.ordinal()] = new OperationStats(operation.getLabel());
+        }
+        slowCallNanos = TimeUnit.MILLISECONDS.toNanos(
+            Long.getLong("rewards.slowCallMillis", DEFAULT_SLOW_CALL_MILLIS));
+    }
+
+    /**
+     * Marks the start of an operation.
+     * @return Start time to pass to {@link #completed} or {@link #failed}, 0 when disabled
+     */
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records an operation that returned normally.
+     * @param operation Operation that ran
+     * @param start Value returned by {@link #start()}
+     */
+    void completed(Operation operation, long start) {
+        if (start == 0) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        operations[operation.ordinal()].completed(nanos);
+        if (nanos >= slowCallNanos) {
+            System.out.println(String.format(Locale.ROOT, "Slow %s: %.1f ms",
+                operation.getLabel(), nanos / 1e6));
+        }
+    }
+
+    /**
+     * Records an operation that threw. Invalid input counts as rejected,
+     * anything else as an error.
+     * @param operation Operation that ran
+     * @param start Value returned by {@link #start()}
+     * @param error Exception the operation threw
+     */
+    void failed(Operation operation, long start, Exception error) {
+        if (start == 0) {
+            return;
+        }
+        OperationStats stats = operations[operation.ordinal()];
+        if (error instanceof IllegalArgumentException) {
+            stats.rejected();
+            return;
+        }
+        stats.failed();
+        System.out.println(String.format(Locale.ROOT, "Failed %s after %.1f ms: %s",
+            operation.getLabel(), (System.nanoTime() - start) / 1e6, error.getMessage()));
+    }
+
+    void connectionAcquired() {
+        acquisitions.increment();
+    }
+
+    void connectionWaited(long nanos) {
+        connectionWait.record(nanos);
+    }
+
+    void connectionTimedOut() {
+        connectionTimeouts.increment();
+    }
+
+    void writeLockWaited(long nanos) {
+        writeLockWait.record(nanos);
+    }
+
+    void writeLockHeld(long nanos) {
+        writeLockHold.record(nanos);
+    }
+
+    /**
+     * @param balances Number of balances expired
+     * @param points Points they held
+     */
+    void pointsExpired(int balances, long points) {
+        expiredBalances.add(balances);
+        expiredPoints.add(points);
+    }
+
+    /**
+     * @param lagMillis How long past its expiry the most overdue balance in
+     *                  a sweep batch was, 0 when nothing was overdue
+     */
+    void sweepLagged(long lagMillis) {
+        sweepLagMillis = lagMillis;
+    }
+
+    void transactionReplayed() {
+        replayedTransactions.increment();
+    }
+
+    void busyRetried() {
+        busyRetries.increment();
+    }
+
+    void busyTimedOut() {
+        busyTimeouts.increment();
+    }
+
+    /**
+     * @param operation Operation to look up
+     * @return Counts and latencies for that operation
+     */
+    public OperationStats get(Operation operation) {
+        return operations[operation.ordinal()];
+    }
+
+    @Override
+    public long getConnectionAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    @Override
+    public long getConnectionWaits() {
+        return connectionWait.getCount();
+    }
+
+    @Override
+    public double getConnectionWaitP99Millis() {
+        return connectionWait.getPercentileNanos(99) / 1e6;
+    }
+
+    @Override
+    public long getConnectionTimeouts() {
+        return connectionTimeouts.sum();
+    }
+
+    @Override
+    public long getWriteLockWaits() {
+        return writeLockWait.getCount();
+    }
+
+    @Override
+    public double getWriteLockWaitP99Millis() {
+        return writeLockWait.getPercentileNanos(99) / 1e6;
+    }
+
+    @Override
+    public double getWriteLockHoldP99Millis() {
+        return writeLockHold.getPercentileNanos(99) / 1e6;
+    }
+
+    @Override
+    public double getWriteLockHoldMaxMillis() {
+        return writeLockHold.getMaxNanos() / 1e6;
+    }
+
+    @Override
+    public long getExpiredBalances() {
+        return expiredBalances.sum();
+    }
+
+    @Override
+    public long getExpiredPoints() {
+        return expiredPoints.sum();
+    }
+
+    @Override
+    public long getSweepLagMillis() {
+        return sweepLagMillis;
+    }
+
+    @Override
+    public long getReplayedTransactions() {
+        return replayedTransactions.sum();
+    }
+
+    @Override
+    public long getBusyRetries() {
+        return busyRetries.sum();
+    }
+
+    @Override
+    public long getBusyTimeouts() {
+        return busyTimeouts.sum();
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server and, if
+     * rewards.metricsLogSeconds is set, starts printing them periodically.
+     * @param database Name the MBeans are registered under, e.g. till or server
+     */
+    public synchronized void publish(String database) {
+        if (!registered.isEmpty()) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        String quoted = ObjectName.quote(database);
+        try {
+            register(server, new ObjectName(DOMAIN + ":type=Database,name=" + quoted), this);
+            for (OperationStats stats : operations) {
+                register(server, new ObjectName(DOMAIN + ":type=Operation,database=" + quoted
+                    + ",name=" + stats.getName()), stats);
+            }
+        } catch (JMException e) {
+            System.out.println("Error registering metrics: " + e.getMessage());
+        }
+        long period = Long.getLong("rewards.metricsLogSeconds", 0);
+        if (period > 0 && logger == null) {
+            logger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "rewards-metrics-log");
+                thread.setDaemon(true);
+                return thread;
+            });
+            logger.scheduleAtFixedRate(() -> System.out.println(this), period, period, TimeUnit.SECONDS);
+        }
+    }
+
+    private void register(MBeanServer server, ObjectName name, Object bean) throws JMException {
+        if (!server.isRegistered(name)) {
+            server.registerMBean(bean, name);
+            registered.add(name);
+        }
+    }
+
+    /**
+     * Removes the JMX registrations and stops the periodic dump.
+     */
+    public synchronized void unpublish() {
+        if (!registered.isEmpty()) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            for (ObjectName name : registered) {
+                try {
+                    server.unregisterMBean(name);
+                } catch (JMException e) {
+                    System.out.println("Error unregistering metrics: " + e.getMessage());
+                }
+            }
+            registered.clear();
+        }
+        if (logger != null) {
+            logger.shutdownNow();
+            logger = null;
+        }
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format.
+     * Latency quantiles cover everything recorded since startup.
+     * @return Metrics text
+     */
+    public String toText() {
+        StringBuilder out = new StringBuilder();
+        out.append("# HELP rewards_operation_seconds Latency of completed RewardsManager calls\n");
+        out.append("# TYPE rewards_operation_seconds summary\n");
+        for (OperationStats stats : operations) {
+            LatencyHistogram latency = stats.getLatency();
+            String label = "operation=\"" + stats.getName() + "\"";
+            sample(out, "rewards_operation_seconds{" + label + ",quantile=\"0.5\"}",
+                latency.getPercentileNanos(50) / 1e9);
+            sample(out, "rewards_operation_seconds{" + label + ",quantile=\"0.99\"}",
+                latency.getPercentileNanos(99) / 1e9);
+            sample(out, "rewards_operation_seconds_sum{" + label + "}", latency.getSumNanos() / 1e9);
+            sample(out, "rewards_operation_seconds_count{" + label + "}", latency.getCount());
+        }
+        out.append("# TYPE rewards_operation_rejected_total counter\n");
+        for (OperationStats stats : operations) {
+            sample(out, "rewards_operation_rejected_total{operation=\"" + stats.getName() + "\"}",
+                stats.getRejectedCount());
+        }
+        out.append("# TYPE rewards_operation_errors_total counter\n");
+        for (OperationStats stats : operations) {
+            sample(out, "rewards_operation_errors_total{operation=\"" + stats.getName() + "\"}",
+                stats.getErrorCount());
+        }
+        counter(out, "rewards_connection_acquisitions_total", getConnectionAcquisitions());
+        counter(out, "rewards_connection_waits_total", getConnectionWaits());
+        counter(out, "rewards_connection_timeouts_total", getConnectionTimeouts());
+        gauge(out, "rewards_connection_wait_p99_seconds", connectionWait.getPercentileNanos(99) / 1e9);
+        counter(out, "rewards_write_lock_waits_total", getWriteLockWaits());
+        gauge(out, "rewards_write_lock_wait_p99_seconds", writeLockWait.getPercentileNanos(99) / 1e9);
+        gauge(out, "rewards_write_lock_hold_p99_seconds", writeLockHold.getPercentileNanos(99) / 1e9);
+        gauge(out, "rewards_write_lock_hold_max_seconds", writeLockHold.getMaxNanos() / 1e9);
+        counter(out, "rewards_expired_balances_total", getExpiredBalances());
+        counter(out, "rewards_expired_points_total", getExpiredPoints());
+        gauge(out, "rewards_expiry_sweep_lag_seconds", sweepLagMillis / 1e3);
+        counter(out, "rewards_replayed_transactions_total", getReplayedTransactions());
+        counter(out, "rewards_sqlite_busy_retries_total", getBusyRetries());
+        counter(out, "rewards_sqlite_busy_timeouts_total", getBusyTimeouts());
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, long value) {
+        out.append("# TYPE ").append(name).append(" counter\n");
+        sample(out, name, value);
+    }
+
+    private static void gauge(StringBuilder out, String name, double value) {
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        sample(out, name, value);
+    }
+
+    private static void sample(StringBuilder out, String name, double value) {
+        out.append(name).append(' ').append(String.format(Locale.ROOT, "%.9g", value)).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder("Rewards metrics:");
+        for (OperationStats stats : operations) {
+            if (stats.getCount() + stats.getRejectedCount() + stats.getErrorCount() > 0) {
+                out.append("\n  ").append(stats);
+            }
+        }
+        out.append("\n  connections: acquired=").append(getConnectionAcquisitions())
+            .append(" waited=").append(getConnectionWaits())
+            .append(" timeouts=").append(getConnectionTimeouts())
+            .append(" wait ").append(connectionWait);
+        out.append("\n  write lock: waited=").append(getWriteLockWaits()).append(" wait ").append(writeLockWait);
+        out.append("\n  write lock held: ").append(writeLockHold);
+        out.append("\n  expiry: balances=").append(getExpiredBalances())
+            .append(" points=").append(getExpiredPoints())
+            .append(" sweep lag=").append(sweepLagMillis).append("ms");
+        out.append("\n  replayed transactions: ").append(getReplayedTransactions());
+        out.append("\n  sqlite busy: retries=").append(getBusyRetries())
+            .append(" timeouts=").append(getBusyTimeouts());
+        return out.toString();
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * RewardsMetricsMBean - JMX view of database-level rewards metrics.
+ * Per-operation figures are registered separately as OperationStatsMBean.
+ */
+package reward_app;
+
+public interface RewardsMetricsMBean {
+    /**
+     * @return Number of pooled connections handed out
+     */
+    long getConnectionAcquisitions();
+
+    /**
+     * @return Number of acquisitions that had to wait for a free connection
+     */
+    long getConnectionWaits();
+
+    /**
+     * @return 99th percentile wait for a free connection, among those that waited
+     */
+    double getConnectionWaitP99Millis();
+
+    /**
+     * @return Number of acquisitions that gave up waiting
+     */
+    long getConnectionTimeouts();
+
+    /**
+     * @return Number of writers that queued behind another writer
+     */
+    long getWriteLockWaits();
+
+    /**
+     * @return 99th percentile wait for the write lock, among those that waited
+     */
+    double getWriteLockWaitP99Millis();
+
+    /**
+     * @return 99th percentile time a writer held the write lock
+     */
+    double getWriteLockHoldP99Millis();
+
+    /**
+     * @return Longest time a writer held the write lock since startup
+     */
+    double getWriteLockHoldMaxMillis();
+
+    /**
+     * @return Number of balances the expiry sweeper has expired
+     */
+    long getExpiredBalances();
+
+    /**
+     * @return Points removed by expiry
+     */
+    long getExpiredPoints();
+
+    /**
+     * @return How long past its expiry the most overdue balance in the
+     *         sweeper's latest batch was; 0 once it has caught up
+     */
+    long getSweepLagMillis();
+
+    /**
+     * @return Number of changes ignored because their transaction ID was
+     *         already applied, i.e. retries caught
+     */
+    long getReplayedTransactions();
+
+    /**
+     * @return Number of times SQLite found the database locked and retried
+     */
+    long getBusyRetries();
+
+    /**
+     * @return Number of statements that gave up because the database stayed locked
+     */
+    long getBusyTimeouts();
+
+    /**
+     * @return Whether operations are being timed
+     */
+    boolean isEnabled();
+
+    /**
+     * Turns operation timing on or off; counters of waits and retries keep running.
+     * @param enabled Whether to time operations
+     */
+    void setEnabled(boolean enabled);
+}
@@ -0,0 +1,338 @@
+/**
+ * RewardsServer - Headless HTTP/JSON service exposing RewardsManager to many tills.
+ * Lets several registers share one rewards database instead of each
+ * opening its own file. Requests are served on the I/O executor
+ * (virtual threads where available).
+ *
+ * Endpoints:
+ * - GET  /points?phone=7051234567           -> {"phone":"7051234567","points":12}
+ * - POST /points/add    {"phone":..,"amount":13.95} -> {"phone":..,"ok":true,"replayed":false}
+ *   (optionally with "category":"coffee" for category reward rules)
+ * - POST /points/redeem {"phone":..,"points":5}     -> {"phone":..,"applied":true,"points":21}
+ * Either POST may carry a "txn" ID, made once per purchase or redemption;
+ * sending it again within the dedup window changes nothing.
+ * - GET  /points/search?phone=705123&limit=N -> CSV of phone,points for numbers
+ *   starting with those digits, in number order
+ * - GET  /metrics -> operation counts and latencies in Prometheus text format
+ * With reports enabled (-Drewards.reportSeconds), answered from RewardsAnalytics:
+ * - GET  /reports/liability   -> {"points":..,"customers":..,"refreshedAt":..}
+ * - GET  /reports/top?limit=N -> CSV of phone,points, largest balance first
+ * - GET  /reports/daily?days=N -> CSV of day,issued,redeemed for the last N days
+ * Invalid input, including malformed JSON, answers 400, an unknown endpoint
+ * 404 and any other failure 500, each with {"error":message}.
+ */
+package reward_app;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+
+public class RewardsServer {
+    private static final int MAX_BODY_BYTES = 4096;
+    private static final int ACCEPT_BACKLOG = 256;
+    private static final int DEFAULT_TOP = 10;
+    private static final int DEFAULT_DAYS = 30;
+    private static final int DEFAULT_MATCHES = 10;
+    private static final String JSON = "application/json";
+    private static final String CSV = "text/csv; charset=utf-8";
+
+    private final RewardsManager manager;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Binds the server; call {@link #start()} to begin serving.
+     * @param manager Manager that performs the operations
+     * @param address Address and port to listen on
+     * @throws IOException If the port cannot be bound
+     */
+    public RewardsServer(RewardsManager manager, InetSocketAddress address) throws IOException {
+        this.manager = manager;
+        this.server = HttpServer.create(address, ACCEPT_BACKLOG);
+        this.executor = RewardsExecutors.newIoExecutor("rewards-http");
+        server.setExecutor(executor);
+        server.createContext("/points", this::handle);
+        server.createContext("/points/search", this::handleSearch);
+        server.createContext("/metrics", this::handleMetrics);
+        server.createContext("/reports", this::handleReports);
+    }
+
+    /**
+     * Starts accepting requests.
+     */
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * @return Port the server is listening on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Stops accepting requests, waiting up to a second for those in progress.
+     */
+    public void stop() {
+        server.stop(1);
+        executor.shutdown();
+    }
+
+    /**
+     * Runs the server headless until the JVM is stopped, e.g. with
+     * {@code java -jar RewardsTracker.jar --server 8080}. Turns on
+     * TCP_NODELAY for the JVM's HTTP servers unless set on the command line.
+     * @param port Port to listen on
+     * @throws IOException If the port cannot be bound
+     */
+    public static void runHeadless(int port) throws IOException {
+        // Responses go out as a header write then a body write; without
+        // TCP_NODELAY the body waits on the client's delayed ACK (~40 ms).
+        // The JDK reads this once, when the first HttpServer is made, so it
+        // is set before the manager can start one for sync.
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        RewardsManager manager = new RewardsManager();
+        manager.getMetrics().publish("server");
+        RewardsServer server = new RewardsServer(manager, new InetSocketAddress(port));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            try {
+                manager.close();
+            } catch (SQLException e) {
+                System.out.println("Error saving queued points on shutdown: " + e.getMessage());
+            }
+        }, "rewards-server-stop"));
+        server.start();
+        System.out.println("Rewards server listening on port " + server.getPort());
+    }
+
+    /**
+     * Routes one request and writes its JSON response.
+     */
+    private void handle(HttpExchange exchange) throws IOException {
+        String body;
+        try {
+            body = route(exchange);
+        } catch (SQLException | RuntimeException e) {
+            sendFailure(exchange, e);
+            return;
+        }
+        send(exchange, 200, JSON, body);
+    }
+
+    /**
+     * Answers a metrics scrape.
+     */
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        String text;
+        try {
+            text = manager.getMetrics().toText();
+        } catch (RuntimeException e) {
+            sendFailure(exchange, e);
+            return;
+        }
+        send(exchange, 200, "text/plain; version=0.0.4; charset=utf-8", text);
+    }
+
+    /**
+     * Answers a report from the analytics copy; lists come back as CSV.
+     * Reports never touch the store, so they can't hold up the tills.
+     */
+    private void handleReports(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        RewardsAnalytics analytics = manager.getAnalytics();
+        String contentType = CSV;
+        String body;
+        try {
+            if (!method.equals("GET")) {
+                throw new UnsupportedOperationException("No such endpoint: " + method + " " + path);
+            }
+            if (analytics == null) {
+                throw new UnsupportedOperationException("Reports are not enabled, see -Drewards.reportSeconds");
+            }
+            if (path.equals("/reports/liability")) {
+                contentType = JSON;
+                body = Json.object("points", analytics.pointsLiability(),
+                    "customers", analytics.customersWithPoints(), "refreshedAt", analytics.getRefreshedAt());
+            } else if (path.equals("/reports/top")) {
+                StringBuilder csv = new StringBuilder("phone,points\n");
+                for (CustomerPoints customer : analytics.topCustomers(intParameter(exchange, "limit", DEFAULT_TOP))) {
+                    csv.append(PhoneNumbers.format(customer.getPhone())).append(',')
+                       .append(customer.getPoints()).append('\n');
+                }
+                body = csv.toString();
+            } else if (path.equals("/reports/daily")) {
+                int days = intParameter(exchange, "days", DEFAULT_DAYS);
+                LocalDate today = LocalDate.now();
+                StringBuilder csv = new StringBuilder("day,issued,redeemed\n");
+                for (DailyPoints row : analytics.pointsPerDay(today.minusDays(days - 1L), today)) {
+                    csv.append(row.getDay()).append(',').append(row.getIssued()).append(',')
+                       .append(row.getRedeemed()).append('\n');
+                }
+                body = csv.toString();
+            } else {
+                throw new UnsupportedOperationException("No such endpoint: GET " + path);
+            }
+        } catch (RuntimeException e) {
+            sendFailure(exchange, e);
+            return;
+        }
+        send(exchange, 200, contentType, body);
+    }
+
+    /**
+     * Answers a search by the first digits of a phone number as CSV.
+     */
+    private void handleSearch(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        String body;
+        try {
+            if (!method.equals("GET") || !path.equals("/points/search")) {
+                throw new UnsupportedOperationException("No such endpoint: " + method + " " + path);
+            }
+            List<CustomerPoints> found = manager.findCustomers(queryParameter(exchange, "phone"),
+                intParameter(exchange, "limit", DEFAULT_MATCHES));
+            StringBuilder csv = new StringBuilder("phone,points\n");
+            for (CustomerPoints customer : found) {
+                csv.append(PhoneNumbers.format(customer.getPhone())).append(',')
+                   .append(customer.getPoints()).append('\n');
+            }
+            body = csv.toString();
+        } catch (IllegalStateException e) {
+            // Phone search is turned off
+            sendFailure(exchange, new UnsupportedOperationException(e.getMessage(), e));
+            return;
+        } catch (SQLException | RuntimeException e) {
+            sendFailure(exchange, e);
+            return;
+        }
+        send(exchange, 200, CSV, body);
+    }
+
+    /**
+     * Answers a failed request: 400 for invalid input, 404 for an unknown
+     * endpoint and 500, logged, for anything else.
+     */
+    private static void sendFailure(HttpExchange exchange, Exception e) throws IOException {
+        if (e instanceof IllegalArgumentException) {
+            send(exchange, 400, JSON, Json.object("error", e.getMessage()));
+        } else if (e instanceof UnsupportedOperationException) {
+            send(exchange, 404, JSON, Json.object("error", e.getMessage()));
+        } else {
+            System.out.println("Error serving " + exchange.getRequestURI() + ": " + e);
+            String kind = e instanceof SQLException ? "Database error: " : "Server error: ";
+            send(exchange, 500, JSON, Json.object("error", kind + e.getMessage()));
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private String route(HttpExchange exchange) throws IOException, SQLException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        if (method.equals("GET") && path.equals("/points")) {
+            String phone = queryParameter(exchange, "phone");
+            return Json.object("phone", phone, "points", manager.checkPoints(phone));
+        }
+        if (method.equals("POST") && path.equals("/points/add")) {
+            Map<String, Object> request = readBody(exchange);
+            String phone = stringField(request, "phone");
+            boolean added = manager.addPoints(phone, numberField(request, "amount"),
+                optionalStringField(request, "category"), optionalStringField(request, "txn"));
+            return Json.object("phone", phone, "ok", true, "replayed", !added);
+        }
+        if (method.equals("POST") && path.equals("/points/redeem")) {
+            Map<String, Object> request = readBody(exchange);
+            String phone = stringField(request, "phone");
+            double points = numberField(request, "points");
+            if (points != Math.rint(points) || Math.abs(points) > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Points must be a whole number");
+            }
+            RedemptionResult result = manager.redeem(phone, (int) points, optionalStringField(request, "txn"));
+            return Json.object("phone", phone, "applied", result.isApplied(), "points", result.getBalance());
+        }
+        throw new UnsupportedOperationException("No such endpoint: " + method + " " + path);
+    }
+
+    private static Map<String, Object> readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] bytes = in.readNBytes(MAX_BODY_BYTES + 1);
+            if (bytes.length > MAX_BODY_BYTES) {
+                throw new IllegalArgumentException("Request body too large");
+            }
+            return Json.parse(new String(bytes, StandardCharsets.UTF_8));
+        }
+    }
+
+    private static String queryParameter(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String pair : query.split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0 && pair.substring(0, equals).equals(name)) {
+                    return URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+                }
+            }
+        }
+        throw new IllegalArgumentException("Missing parameter: " + name);
+    }
+
+    private static int intParameter(HttpExchange exchange, String name, int defaultValue) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null || !("&" + query).contains("&" + name + "=")) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(queryParameter(exchange, name));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Parameter must be a whole number: " + name);
+        }
+    }
+
+    private static String optionalStringField(Map<String, Object> request, String name) {
+        Object value = request.get(name);
+        if (value != null && !(value instanceof String)) {
+            throw new IllegalArgumentException("Field must be a string: " + name);
+        }
+        return (String) value;
+    }
+
+    private static String stringField(Map<String, Object> request, String name) {
+        Object value = request.get(name);
+        if (!(value instanceof String)) {
+            throw new IllegalArgumentException("Missing field: " + name);
+        }
+        return (String) value;
+    }
+
+    private static double numberField(Map<String, Object> request, String name) {
+        Object value = request.get(name);
+        if (!(value instanceof Double) || !Double.isFinite((Double) value)) {
+            throw new IllegalArgumentException("Missing number: " + name);
+        }
+        return (Double) value;
+    }
+}
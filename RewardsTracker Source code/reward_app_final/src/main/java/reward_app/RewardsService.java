@@ -0,0 +1,51 @@
+/**
+ * RewardsService - The points operations a till needs, as asynchronous calls.
+ * Implemented by RewardsManager for a local database and by
+ * RewardsHttpClient for a shared rewards server, so the UI works the
+ * same way against either.
+ */
+package reward_app;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+public interface RewardsService {
+    /**
+     * Adds points for a purchase.
+     * @param phone Customer's phone number (10 digits, separators allowed)
+     * @param amount Purchase amount (converted to points by the reward rules)
+     * @return Future completed once the points are added
+     */
+    CompletableFuture<Void> addPointsAsync(String phone, double amount);
+
+    /**
+     * Looks up a customer's balance.
+     * @param phone Customer's phone number (10 digits, separators allowed)
+     * @return Future holding the current point balance
+     */
+    CompletableFuture<Integer> checkPointsAsync(String phone);
+
+    /**
+     * Redeems points, failing with IllegalArgumentException if the balance is too low.
+     * @param phone Customer's phone number (10 digits, separators allowed)
+     * @param points Number of points to redeem (must be positive)
+     * @return Future holding the balance remaining after the redemption
+     */
+    CompletableFuture<Integer> subtractPointsAsync(String phone, int points);
+
+    /**
+     * Attempts to redeem points, reporting rather than failing if the balance is too low.
+     * @param phone Customer's phone number (10 digits, separators allowed)
+     * @param points Number of points to redeem (must be positive)
+     * @return Future holding whether the redemption applied and the resulting balance
+     */
+    CompletableFuture<RedemptionResult> redeemAsync(String phone, int points);
+
+    /**
+     * Finds customers by the first digits of their phone number.
+     * @param prefix First digits of the number, separators allowed
+     * @param limit Most customers to return, 1 to {@link PhoneIndex#MAX_RESULTS}
+     * @return Future holding the matching customers and balances, in number order
+     */
+    CompletableFuture<List<CustomerPoints>> findCustomersAsync(String prefix, int limit);
+}
@@ -0,0 +1,260 @@
+/**
+ * RewardsStore - Where balances and their ledger are kept.
+ * RewardsManager validates input, caches and times calls; everything it
+ * needs from storage goes through this interface. Two implementations:
+ * - ShardedDatabase: SQLite files, every change committed to disk (default)
+ * - MemoryStore: every balance in RAM, persisted through a log and snapshots
+ * Pick one with -Drewards.storage=sqlite or -Drewards.storage=memory.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+public interface RewardsStore {
+    /** Returned by {@link #redeem(long, int, CommitListener)} when the balance is too low. */
+    int NOT_APPLIED = -1;
+    /** Returned instead of a balance when the change's transaction ID was already applied. */
+    int REPLAYED = Integer.MIN_VALUE;
+
+    /**
+     * Told the points and new balance of a single-customer change before
+     * the store lets the next write to that customer through, so calls
+     * arrive in commit order. Used to write balances through to a cache
+     * and to publish changes.
+     */
+    @FunctionalInterface
+    interface CommitListener {
+        /**
+         * @param key Customer's phone key
+         * @param delta Points added, negative if taken (redeemed or expired)
+         * @param balance Balance after the change
+         */
+        void committed(long key, int delta, int balance);
+    }
+
+    /**
+     * Opens the store selected by -Drewards.storage, in the current folder.
+     * @return rewards.db (or its shards), or the rewards-memory folder
+     * @throws IllegalArgumentException If the storage name is not known
+     */
+    static RewardsStore open() {
+        String storage = System.getProperty("rewards.storage", "sqlite");
+        switch (storage) {
+            case "sqlite":
+                return ShardedDatabase.open();
+            case "memory":
+                return new MemoryStore(Paths.get(MemoryStore.DEFAULT_DIRECTORY));
+            default:
+                throw new IllegalArgumentException("rewards.storage must be sqlite or memory, not " + storage);
+        }
+    }
+
+    /**
+     * Adds points to a balance and records the change in the ledger.
+     * Creates the customer if needed.
+     * @param key Customer's phone key
+     * @param points Points to add
+     * @param listener Told the new balance once committed, or null
+     * @return Balance after the change
+     * @throws SQLException If the change could not be stored
+     */
+    default int addPoints(long key, int points, CommitListener listener) throws SQLException {
+        return addPoints(key, points, TransactionIds.NONE, listener);
+    }
+
+    /**
+     * Adds points unless a change with the same client transaction ID was
+     * applied within the dedup window. The ID is checked and recorded
+     * atomically with the change.
+     * @param key Customer's phone key
+     * @param points Points to add
+     * @param txnId Hashed transaction ID from TransactionIds.hash, or TransactionIds.NONE
+     * @param listener Told the new balance once committed, or null
+     * @return Balance after the change, or {@link #REPLAYED}
+     * @throws SQLException If the change could not be stored
+     */
+    int addPoints(long key, int points, long txnId, CommitListener listener) throws SQLException;
+
+    /**
+     * Adds points to many customers at once, like
+     * {@link #addAll(long[], int[], int, int, CommitListener)} with no listener.
+     * @param keys Customers' phone keys
+     * @param points Points to add to each
+     * @param from First row to apply
+     * @param to One past the last row to apply
+     * @throws SQLException If the rows could not be stored; none are applied
+     * @throws IllegalArgumentException If the rows span partitions
+     */
+    default void addAll(long[] keys, int[] points, int from, int to) throws SQLException {
+        addAll(keys, points, from, to, null);
+    }
+
+    /**
+     * Adds points to many customers at once, e.g. a write-behind batch or
+     * an import chunk. All rows must belong to the same partition; they are
+     * applied together and each gets one ledger entry, also when a
+     * customer has several rows. Overdue balances are expired first, like
+     * {@link #addPoints}.
+     * @param keys Customers' phone keys
+     * @param points Points to add to each
+     * @param from First row to apply
+     * @param to One past the last row to apply
+     * @param expired Told each expired customer's points taken (and a balance
+     *                of 0) once the rows are committed, or null
+     * @throws SQLException If the rows could not be stored; none are applied
+     * @throws IllegalArgumentException If the rows span partitions
+     */
+    void addAll(long[] keys, int[] points, int from, int to, CommitListener expired) throws SQLException;
+
+    /**
+     * @param key Customer's phone key
+     * @return Stored balance, 0 if the customer has no record
+     * @throws SQLException If the balance could not be read
+     */
+    int getBalance(long key) throws SQLException;
+
+    /**
+     * Tells when a customer's balance will expire, so a cached copy of it
+     * can be dropped in time.
+     * @param key Customer's phone key
+     * @return Time at which the points expire, Long.MAX_VALUE if they never
+     *         will (no lifetime set, nothing to expire, or no record)
+     * @throws SQLException If the balance could not be read
+     */
+    long getExpiryTime(long key) throws SQLException;
+
+    /**
+     * Deducts points only if the balance covers them, recording the change
+     * in the ledger. The check and the deduction are atomic.
+     * @param key Customer's phone key
+     * @param points Points to deduct
+     * @param listener Told the new balance if the deduction is committed, or null
+     * @return Balance after the deduction, or {@link #NOT_APPLIED}
+     * @throws SQLException If the change could not be stored
+     */
+    default int redeem(long key, int points, CommitListener listener) throws SQLException {
+        return redeem(key, points, TransactionIds.NONE, listener);
+    }
+
+    /**
+     * Deducts points like {@link #redeem(long, int, CommitListener)} unless
+     * a change with the same client transaction ID was applied within the
+     * dedup window. A rejected redemption does not record its ID, so it
+     * can be tried again.
+     * @param key Customer's phone key
+     * @param points Points to deduct
+     * @param txnId Hashed transaction ID from TransactionIds.hash, or TransactionIds.NONE
+     * @param listener Told the new balance if the deduction is committed, or null
+     * @return Balance after the deduction, {@link #NOT_APPLIED} or {@link #REPLAYED}
+     * @throws SQLException If the change could not be stored
+     */
+    int redeem(long key, int points, long txnId, CommitListener listener) throws SQLException;
+
+    /**
+     * @param key Customer's phone key
+     * @param limit Maximum number of entries
+     * @return The customer's most recent ledger entries, newest first
+     * @throws SQLException If the ledger could not be read
+     */
+    List<LedgerEntry> getHistory(long key, int limit) throws SQLException;
+
+    /**
+     * Reads one partition's ledger entries after a position, oldest first,
+     * so a copy of the data can be kept up to date incrementally. Uses a
+     * reader, never the write lock.
+     * @param partition Partition to read, from 0 to getPartitionCount() - 1
+     * @param afterId Entries up to and including this ledger id are skipped
+     * @param limit Most entries to read
+     * @param reader Receives each entry
+     * @return Ledger id of the last entry read, afterId if there were none
+     * @throws SQLException If the ledger could not be read
+     */
+    long readLedger(int partition, long afterId, int limit, PointsLog.Replayer reader) throws SQLException;
+
+    /**
+     * Lists every customer's phone key, in no particular order, e.g. to
+     * build a search index. Tills can keep writing meanwhile; a customer
+     * added during the call may or may not be listed.
+     * @param reader Receives each key
+     * @return Number of keys listed
+     * @throws SQLException If the keys could not be read
+     */
+    long readKeys(LongConsumer reader) throws SQLException;
+
+    /**
+     * Recomputes every balance from the ledger.
+     * @return Number of balances written
+     * @throws SQLException If the rebuild fails; balances are left as they were
+     */
+    long rebuildBalances() throws SQLException;
+
+    /**
+     * Writes every balance as phone,points rows in phone order.
+     * @param target CSV file to write
+     * @return Number of rows written
+     * @throws IOException If the file cannot be written
+     * @throws SQLException If the balances could not be read
+     */
+    long exportCsv(Path target) throws IOException, SQLException;
+
+    /**
+     * Makes points expire once a balance has gone this long without
+     * earning any. From then on reads, redemptions and exports treat an
+     * overdue balance as 0 straight away; {@link #expireDue} removes the
+     * points and records the expiry in the ledger.
+     * @param lifetimeMillis How long points last after the last earning, 0 for ever
+     */
+    void setPointsLifetime(long lifetimeMillis);
+
+    /**
+     * @return How long points last after the last earning, 0 for ever
+     */
+    long getPointsLifetime();
+
+    /**
+     * Expires one batch of overdue balances, most overdue first where the
+     * store can tell, each recorded in the ledger as a deduction. The
+     * write lock is held for about budgetNanos at most, then released so
+     * tills can get in before the next batch.
+     * @param maxBalances Most balances to expire in this batch
+     * @param budgetNanos Time after which the batch stops early
+     * @param listener Told each expired customer's points taken and new balance, or null
+     * @return Whether there may be more to expire, i.e. the batch stopped early
+     * @throws SQLException If the expiry could not be stored
+     */
+    boolean expireDue(int maxBalances, long budgetNanos, CommitListener listener) throws SQLException;
+
+    /**
+     * Waits until every change made so far is on disk.
+     * @throws SQLException If the changes could not be saved
+     */
+    void sync() throws SQLException;
+
+    /**
+     * Customers are split into partitions that can be written independently;
+     * RewardsManager runs one write-behind queue per partition.
+     * @return Number of partitions
+     */
+    int getPartitionCount();
+
+    /**
+     * @param key Customer's phone key
+     * @return Partition holding that customer, from 0 to getPartitionCount() - 1
+     */
+    int partitionOf(long key);
+
+    /**
+     * @return Operation counts and latencies for this store
+     */
+    RewardsMetrics getMetrics();
+
+    /**
+     * Saves anything pending and releases the store's files.
+     */
+    void close();
+}
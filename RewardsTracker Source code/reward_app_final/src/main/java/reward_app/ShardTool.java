@@ -0,0 +1,230 @@
+/**
+ * ShardTool - Moves a rewards database to a different number of shards.
+ * Copies every balance and ledger entry into a new layout built in a
+ * side folder, checks the totals match, then swaps the new files in and
+ * keeps the old ones in a backup folder. Run it with the tills closed.
+ *
+ * Usage: java -cp RewardsTracker.jar reward_app.ShardTool fromShards toShards [rewards.db]
+ * e.g.   java -cp RewardsTracker.jar reward_app.ShardTool 1 4
+ * then start the application with -Drewards.shards=4.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.*;
+
+public final class ShardTool {
+    private static final int COMMIT_ROWS = 50_000;
+    private static final String SELECT_REWARDS_SQL = "SELECT phone, points, earned_at FROM rewards";
+    private static final String SELECT_LEDGER_SQL = "SELECT phone, delta, created_at FROM ledger ORDER BY id";
+    private static final String INSERT_REWARD_SQL = "INSERT INTO rewards (phone, points, earned_at) VALUES (?, ?, ?)";
+    private static final String TOTALS_SQL = "SELECT (SELECT COUNT(*) FROM rewards), "
+                                           + "(SELECT COALESCE(SUM(points), 0) FROM rewards), "
+                                           + "(SELECT COUNT(*) FROM ledger), "
+                                           + "(SELECT COALESCE(SUM(delta), 0) FROM ledger)";
+    private static final String[] SQLITE_SUFFIXES = {"", "-wal", "-shm"};
+
+    private ShardTool() {
+    }
+
+    /**
+     * Rewrites a database from one shard layout to another.
+     * @param base Base database path, e.g. rewards.db
+     * @param fromShards Current number of shards
+     * @param toShards New number of shards
+     * @return Number of customers moved
+     * @throws IOException If the files cannot be moved
+     * @throws SQLException If copying fails or the copy doesn't match the original
+     */
+    public static long reshard(Path base, int fromShards, int toShards) throws IOException, SQLException {
+        Path folder = base.toAbsolutePath().getParent();
+        String name = base.getFileName().toString();
+        if (!Files.exists(folder.resolve(ShardedDatabase.shardPath(name, 0, fromShards)))) {
+            throw new IOException("No " + fromShards + "-shard database found for " + base);
+        }
+        Path work = folder.resolve("resharding");
+        Path backup = folder.resolve("pre-reshard-" + System.currentTimeMillis());
+        if (Files.exists(work)) {
+            throw new IOException(work + " already exists; remove it after checking a previous run");
+        }
+        Files.createDirectory(work);
+
+        ShardedDatabase source = ShardedDatabase.open(base.toString(), fromShards, 2, "NORMAL", 5000);
+        // The copy is verified before it is used, so it needn't be synced as it goes
+        ShardedDatabase target = ShardedDatabase.open(work.resolve(name).toString(), toShards, 1, "OFF", 5000);
+        long[] before;
+        try {
+            copy(source, target);
+            before = totals(source);
+            long[] after = totals(target);
+            for (int i = 0; i < before.length; i++) {
+                if (before[i] != after[i]) {
+                    throw new SQLException("Resharded copy doesn't match the original (customers, points, "
+                        + "ledger entries, ledger points): " + java.util.Arrays.toString(before)
+                        + " vs " + java.util.Arrays.toString(after) + "; original left in place");
+                }
+            }
+        } finally {
+            source.close();
+            target.close();
+        }
+
+        Files.createDirectory(backup);
+        for (int i = 0; i < fromShards; i++) {
+            moveDatabaseFiles(folder, backup, ShardedDatabase.shardPath(name, i, fromShards));
+        }
+        for (int i = 0; i < toShards; i++) {
+            moveDatabaseFiles(work, folder, ShardedDatabase.shardPath(name, i, toShards));
+        }
+        Files.delete(work);
+        System.out.println("Original files kept in " + backup);
+        return before[0];
+    }
+
+    /**
+     * Streams each source shard's balances, then its ledger in order, into
+     * whichever target shard now owns each customer.
+     */
+    private static void copy(ShardedDatabase source, ShardedDatabase target) throws SQLException {
+        ShardWriter[] writers = new ShardWriter[target.getShardCount()];
+        try {
+            for (int i = 0; i < writers.length; i++) {
+                writers[i] = new ShardWriter(target.getShard(i));
+            }
+            for (int i = 0; i < source.getShardCount(); i++) {
+                try (PooledConnection conn = source.getShard(i).acquire()) {
+                    try (ResultSet rs = conn.prepare(SELECT_REWARDS_SQL).executeQuery()) {
+                        while (rs.next()) {
+                            String phone = rs.getString(1);
+                            writerFor(writers, phone).addReward(phone, rs.getInt(2), rs.getObject(3));
+                        }
+                    }
+                    // Ledger order per customer is kept, so history still reads newest first
+                    try (ResultSet rs = conn.prepare(SELECT_LEDGER_SQL).executeQuery()) {
+                        while (rs.next()) {
+                            String phone = rs.getString(1);
+                            writerFor(writers, phone).addLedger(phone, rs.getInt(2), rs.getLong(3));
+                        }
+                    }
+                }
+            }
+            for (ShardWriter writer : writers) {
+                writer.commit();
+            }
+        } finally {
+            for (ShardWriter writer : writers) {
+                if (writer != null) {
+                    writer.close();
+                }
+            }
+        }
+    }
+
+    private static ShardWriter writerFor(ShardWriter[] writers, String phone) throws SQLException {
+        long key = PhoneNumbers.parse(phone);
+        if (key == PhoneNumbers.INVALID) {
+            throw new SQLException("Stored phone number is not valid: " + phone);
+        }
+        return writers[ShardedDatabase.shardOf(key, writers.length)];
+    }
+
+    /**
+     * Sums customers, balances and ledger entries across all shards.
+     */
+    private static long[] totals(ShardedDatabase shards) throws SQLException {
+        long[] totals = new long[4];
+        for (int i = 0; i < shards.getShardCount(); i++) {
+            try (PooledConnection conn = shards.getShard(i).acquire();
+                 ResultSet rs = conn.prepare(TOTALS_SQL).executeQuery()) {
+                rs.next();
+                for (int column = 0; column < totals.length; column++) {
+                    totals[column] += rs.getLong(column + 1);
+                }
+            }
+        }
+        return totals;
+    }
+
+    private static void moveDatabaseFiles(Path from, Path to, String fileName) throws IOException {
+        for (String suffix : SQLITE_SUFFIXES) {
+            Path file = from.resolve(fileName + suffix);
+            if (Files.exists(file)) {
+                Files.move(file, to.resolve(fileName + suffix));
+            }
+        }
+    }
+
+    /**
+     * Batched inserts into one target shard, committed every COMMIT_ROWS rows.
+     */
+    private static final class ShardWriter {
+        private final PooledConnection conn;
+        private final PreparedStatement rewards;
+        private final PreparedStatement ledger;
+        private int pending;
+
+        ShardWriter(RewardsDatabase db) throws SQLException {
+            conn = db.acquireWriter();
+            conn.begin();
+            rewards = conn.prepare(INSERT_REWARD_SQL);
+            ledger = conn.appendLedgerStatement();
+        }
+
+        void addReward(String phone, int points, Object earnedAt) throws SQLException {
+            rewards.setString(1, phone);
+            rewards.setInt(2, points);
+            rewards.setObject(3, earnedAt);
+            rewards.addBatch();
+            rowAdded();
+        }
+
+        void addLedger(String phone, int delta, long createdAt) throws SQLException {
+            ledger.setString(1, phone);
+            ledger.setInt(2, delta);
+            ledger.setLong(3, createdAt);
+            ledger.addBatch();
+            rowAdded();
+        }
+
+        private void rowAdded() throws SQLException {
+            if (++pending >= COMMIT_ROWS) {
+                commit();
+                conn.begin();
+            }
+        }
+
+        void commit() throws SQLException {
+            rewards.executeBatch();
+            ledger.executeBatch();
+            conn.commit();
+            pending = 0;
+        }
+
+        void close() {
+            conn.rollback();
+            conn.close();
+        }
+    }
+
+    /**
+     * Command-line entry point for operators.
+     * @param args fromShards toShards [rewards.db]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: ShardTool fromShards toShards [rewards.db]");
+            System.exit(2);
+        }
+        int from = Integer.parseInt(args[0]);
+        int to = Integer.parseInt(args[1]);
+        Path base = Paths.get(args.length > 2 ? args[2] : RewardsDatabase.DB_NAME);
+        long customers = reshard(base, from, to);
+        System.out.println("Moved " + customers + " customers from " + from + " to " + to + " shards");
+        if (to > 1) {
+            System.out.println("Start the application with -Drewards.shards=" + to);
+        }
+    }
+}
@@ -0,0 +1,573 @@
+/**
+ * ShardedDatabase - Customers hash-partitioned by phone across SQLite files.
+ * SQLite allows one writer per file, so a single rewards.db caps write
+ * throughput at one core. With N shards each file has its own pool and
+ * write lock, and writes for customers on different shards run in parallel.
+ * A customer's balance and ledger always live in the same shard.
+ *
+ * Shard i of N is stored next to the base file, e.g. rewards-shard-0.db.
+ * A single shard is just the base file itself, so existing installs are
+ * unchanged. Use ShardTool to move data between layouts.
+ *
+ * With a points lifetime set, each balance's earned_at is checked when
+ * it is read or changed; overdue points count as 0 and are expired in
+ * the ledger before new points are added. expireDue walks the earned_at
+ * index oldest first.
+ *
+ * Client transaction IDs are kept by the customer's shard and recorded
+ * in the same transaction as the change they came with.
+ */
+package reward_app;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.*;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+public class ShardedDatabase implements RewardsStore {
+    /** Upper bound on shards, so a shard index packs into import sort keys. */
+    public static final int MAX_SHARDS = 256;
+    private static final int REBUILD_CHUNK_SIZE = 50_000;
+    private static final String UPSERT_SQL = "INSERT INTO rewards (phone, points, earned_at) VALUES (?, ?, ?) "
+                                           + "ON CONFLICT(phone) DO UPDATE SET points = points + excluded.points, "
+                                           + "earned_at = COALESCE(excluded.earned_at, earned_at)";
+    private static final String DUE_SQL = "SELECT phone, points, earned_at FROM rewards "
+                                        + "WHERE earned_at <= ? ORDER BY earned_at LIMIT ?";
+    private static final String EXPIRE_SQL = "UPDATE rewards SET points = 0, earned_at = NULL WHERE phone = ?";
+    private static final String KEYS_SQL = "SELECT phone FROM rewards";
+
+    private final RewardsDatabase[] shards;
+    private final RewardsMetrics metrics;
+    private volatile long lifetimeMillis;
+
+    /**
+     * Wraps a single database as a one-shard layout.
+     * @param db Database holding every customer
+     */
+    public ShardedDatabase(RewardsDatabase db) {
+        this.shards = new RewardsDatabase[] {db};
+        this.metrics = db.getMetrics();
+    }
+
+    private ShardedDatabase(RewardsDatabase[] shards, RewardsMetrics metrics) {
+        this.shards = shards;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Opens the default layout next to the application: rewards.db, or
+     * the number of shards given by -Drewards.shards.
+     * @return The opened shards
+     */
+    public static ShardedDatabase open() {
+        int shardCount = Integer.getInteger("rewards.shards", 1);
+        if (shardCount == 1) {
+            return new ShardedDatabase(new RewardsDatabase());
+        }
+        return open(RewardsDatabase.DB_NAME, shardCount, RewardsDatabase.DEFAULT_POOL_SIZE,
+            RewardsDatabase.DEFAULT_SYNCHRONOUS, RewardsDatabase.DEFAULT_BUSY_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Opens or creates a layout of shard files sharing one set of metrics.
+     * @param path Base database path, e.g. rewards.db
+     * @param shardCount Number of shards, 1 to {@link #MAX_SHARDS}
+     * @param poolSize Connections per shard
+     * @param synchronous SQLite synchronous level: OFF, NORMAL, FULL or EXTRA
+     * @param busyTimeoutMillis How long SQLite waits on a lock held by another process
+     * @return The opened shards
+     */
+    public static ShardedDatabase open(String path, int shardCount, int poolSize,
+                                       String synchronous, int busyTimeoutMillis) {
+        if (shardCount < 1 || shardCount > MAX_SHARDS) {
+            throw new IllegalArgumentException("Shard count must be between 1 and " + MAX_SHARDS);
+        }
+        RewardsMetrics metrics = new RewardsMetrics();
+        RewardsDatabase[] shards = new RewardsDatabase[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new RewardsDatabase(shardPath(path, i, shardCount), poolSize, synchronous,
+                busyTimeoutMillis, metrics, i, shardCount);
+        }
+        return new ShardedDatabase(shards, metrics);
+    }
+
+    /**
+     * Returns the file name of one shard.
+     * @param path Base database path, e.g. rewards.db
+     * @param shard Shard index
+     * @param shardCount Number of shards
+     * @return The base path itself for a single shard, otherwise e.g. rewards-shard-2.db
+     */
+    public static String shardPath(String path, int shard, int shardCount) {
+        if (shardCount == 1) {
+            return path;
+        }
+        int dot = path.lastIndexOf('.');
+        int slash = Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\'));
+        if (dot <= slash) {
+            return path + "-shard-" + shard;
+        }
+        return path.substring(0, dot) + "-shard-" + shard + path.substring(dot);
+    }
+
+    /**
+     * Picks the shard a customer lives in. This mapping decides where data
+     * is stored on disk, so it must never change.
+     * @param key Customer's phone key
+     * @param shardCount Number of shards
+     * @return Shard index from 0 to shardCount - 1
+     */
+    public static int shardOf(long key, int shardCount) {
+        // Mix the bits first so area codes spread evenly
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 33) % shardCount;
+    }
+
+    /**
+     * @param key Customer's phone key
+     * @return The shard holding that customer
+     */
+    public RewardsDatabase shardFor(long key) {
+        return shards[partitionOf(key)];
+    }
+
+    /**
+     * @param shard Shard index
+     * @return That shard's database
+     */
+    public RewardsDatabase getShard(int shard) {
+        return shards[shard];
+    }
+
+    /**
+     * @return Number of shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return Metrics shared by every shard
+     */
+    @Override
+    public RewardsMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param now Current time
+     * @return Latest earned_at whose points have expired by now; below every time if points never expire
+     */
+    long expiryCutoff(long now) {
+        long lifetime = lifetimeMillis;
+        return lifetime == 0 ? Long.MIN_VALUE : now - lifetime;
+    }
+
+    @Override
+    public long getPointsLifetime() {
+        return lifetimeMillis;
+    }
+
+    @Override
+    public void setPointsLifetime(long lifetimeMillis) {
+        if (lifetimeMillis < 0) {
+            throw new IllegalArgumentException("Points lifetime must not be negative");
+        }
+        this.lifetimeMillis = lifetimeMillis;
+    }
+
+    @Override
+    public int addPoints(long key, int points, long txnId, CommitListener listener) throws SQLException {
+        RewardsDatabase shard = shardFor(key);
+        try (PooledConnection conn = shard.acquireWriter()) {
+            long now = System.currentTimeMillis();
+            TransactionIds txnIds = shard.transactionIds();
+            if (txnId != TransactionIds.NONE && txnIds.contains(txnId, now)) {
+                return REPLAYED;
+            }
+            conn.begin();
+            try {
+                String phone = PhoneNumbers.format(key);
+                int expired = expireIfDue(conn, phone, expiryCutoff(now));
+                PreparedStatement pstmt = conn.addPointsStatement();
+                pstmt.setString(1, phone);
+                pstmt.setInt(2, points);
+                setEarnedAt(pstmt, 3, points, now);
+                int balance;
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    rs.next();
+                    balance = rs.getInt(1);
+                }
+                PointsLedger.append(conn, key, points);
+                if (txnId != TransactionIds.NONE) {
+                    txnIds.persist(conn, txnId, now);
+                }
+                conn.commit();
+                if (txnId != TransactionIds.NONE) {
+                    txnIds.add(txnId, now);
+                }
+                if (listener != null) {
+                    if (expired > 0) {
+                        listener.committed(key, -expired, 0);
+                    }
+                    listener.committed(key, points, balance);
+                }
+                return balance;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Upserts the rows and their ledger entries in one transaction on
+     * their shard. Rows sorted by phone insert into the indexes sequentially,
+     * and consecutive rows for the same customer share one upsert.
+     */
+    @Override
+    public void addAll(long[] keys, int[] points, int from, int to, CommitListener expired)
+            throws SQLException {
+        if (from >= to) {
+            return;
+        }
+        int shard = partitionOf(keys[from]);
+        for (int i = from + 1; i < to; i++) {
+            if (partitionOf(keys[i]) != shard) {
+                throw new IllegalArgumentException("Rows span more than one shard");
+            }
+        }
+        long now = System.currentTimeMillis();
+        long cutoff = expiryCutoff(now);
+        int[] taken = new int[to - from];
+        try (PooledConnection conn = shards[shard].acquireWriter()) {
+            conn.begin();
+            try {
+                // Expiries append to the ledger through the statement the batch
+                // below fills, so all of them run before any row is batched
+                for (int i = from; i < to; i++) {
+                    if (i == from || keys[i] != keys[i - 1]) {
+                        taken[i - from] = expireIfDue(conn, PhoneNumbers.format(keys[i]), cutoff);
+                    }
+                }
+                PreparedStatement upsert = conn.prepare(UPSERT_SQL);
+                PreparedStatement ledger = conn.appendLedgerStatement();
+                for (int i = from; i < to; ) {
+                    String phone = PhoneNumbers.format(keys[i]);
+                    int sum = 0;
+                    int earned = 0;
+                    int run = i;
+                    do {
+                        ledger.setString(1, phone);
+                        ledger.setInt(2, points[run]);
+                        ledger.setLong(3, now);
+                        ledger.addBatch();
+                        sum += points[run];
+                        earned = Math.max(earned, points[run]);
+                        run++;
+                    } while (run < to && keys[run] == keys[i]);
+                    upsert.setString(1, phone);
+                    upsert.setInt(2, sum);
+                    setEarnedAt(upsert, 3, earned, now);
+                    upsert.addBatch();
+                    i = run;
+                }
+                upsert.executeBatch();
+                ledger.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+            if (expired != null) {
+                for (int i = from; i < to; i++) {
+                    if (taken[i - from] > 0) {
+                        expired.committed(keys[i], -taken[i - from], 0);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public int getBalance(long key) throws SQLException {
+        try (PooledConnection conn = shardFor(key).acquire()) {
+            PreparedStatement pstmt = conn.checkPointsStatement();
+            pstmt.setString(1, PhoneNumbers.format(key));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next()) {
+                    return 0;
+                }
+                int points = rs.getInt(1);
+                long earnedAt = rs.getLong(2);
+                boolean expired = !rs.wasNull() && earnedAt <= expiryCutoff(System.currentTimeMillis());
+                return expired && points > 0 ? 0 : points;
+            }
+        }
+    }
+
+    @Override
+    public long getExpiryTime(long key) throws SQLException {
+        long lifetime = lifetimeMillis;
+        if (lifetime == 0) {
+            return Long.MAX_VALUE;
+        }
+        try (PooledConnection conn = shardFor(key).acquire()) {
+            PreparedStatement pstmt = conn.checkPointsStatement();
+            pstmt.setString(1, PhoneNumbers.format(key));
+            try (ResultSet rs = pstmt.executeQuery()) {
+                if (!rs.next() || rs.getInt(1) <= 0) {
+                    return Long.MAX_VALUE;
+                }
+                long earnedAt = rs.getLong(2);
+                // Overdue once earned_at <= now - lifetime
+                return rs.wasNull() ? Long.MAX_VALUE : earnedAt + lifetime;
+            }
+        }
+    }
+
+    /**
+     * Deducts in a single conditional update, so concurrent redemptions
+     * against the same customer can never overdraw it.
+     */
+    @Override
+    public int redeem(long key, int points, long txnId, CommitListener listener) throws SQLException {
+        RewardsDatabase shard = shardFor(key);
+        try (PooledConnection conn = shard.acquireWriter()) {
+            long now = System.currentTimeMillis();
+            TransactionIds txnIds = shard.transactionIds();
+            if (txnId != TransactionIds.NONE && txnIds.contains(txnId, now)) {
+                return REPLAYED;
+            }
+            conn.begin();
+            try {
+                PreparedStatement pstmt = conn.redeemStatement();
+                pstmt.setInt(1, points);
+                pstmt.setString(2, PhoneNumbers.format(key));
+                pstmt.setInt(3, points);
+                pstmt.setLong(4, expiryCutoff(now));
+                int balance = NOT_APPLIED;
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    if (rs.next()) {
+                        balance = rs.getInt(1);
+                    }
+                }
+                boolean record = balance != NOT_APPLIED && txnId != TransactionIds.NONE;
+                if (balance != NOT_APPLIED) {
+                    PointsLedger.append(conn, key, -points);
+                }
+                if (record) {
+                    txnIds.persist(conn, txnId, now);
+                }
+                conn.commit();
+                if (record) {
+                    txnIds.add(txnId, now);
+                }
+                if (balance != NOT_APPLIED && listener != null) {
+                    listener.committed(key, -points, balance);
+                }
+                return balance;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Expires a batch from each shard in turn, in its own transaction.
+     */
+    @Override
+    public boolean expireDue(int maxBalances, long budgetNanos, CommitListener listener) throws SQLException {
+        boolean more = false;
+        long[] lag = new long[1];
+        for (RewardsDatabase shard : shards) {
+            more |= expireDue(shard, maxBalances, budgetNanos, listener, lag);
+        }
+        metrics.sweepLagged(lag[0]);
+        return more;
+    }
+
+    /**
+     * Expires one batch from one shard, raising lag[0] to the batch's lag.
+     */
+    private boolean expireDue(RewardsDatabase shard, int maxBalances, long budgetNanos, CommitListener listener,
+                              long[] lag) throws SQLException {
+        long now = System.currentTimeMillis();
+        long cutoff = expiryCutoff(now);
+        if (cutoff == Long.MIN_VALUE) {
+            return false;
+        }
+        String[] phones = new String[maxBalances];
+        int[] points = new int[maxBalances];
+        try (PooledConnection conn = shard.acquireWriter()) {
+            long deadline = System.nanoTime() + budgetNanos;
+            conn.begin();
+            try {
+                PreparedStatement due = conn.prepare(DUE_SQL);
+                due.setLong(1, cutoff);
+                due.setInt(2, maxBalances);
+                int found = 0;
+                long oldest = cutoff;
+                try (ResultSet rs = due.executeQuery()) {
+                    while (rs.next()) {
+                        phones[found] = rs.getString(1);
+                        points[found] = rs.getInt(2);
+                        if (found++ == 0) {
+                            oldest = rs.getLong(3);
+                        }
+                    }
+                }
+                PreparedStatement expire = conn.prepare(EXPIRE_SQL);
+                int expired = 0;
+                long expiredPoints = 0;
+                int done = 0;
+                while (done < found && (done == 0 || System.nanoTime() < deadline)) {
+                    expired += expire(conn, expire, phones[done], points[done]);
+                    expiredPoints += Math.max(0, points[done]);
+                    done++;
+                }
+                conn.commit();
+                if (listener != null) {
+                    for (int i = 0; i < done; i++) {
+                        if (points[i] > 0) {
+                            listener.committed(PhoneNumbers.parse(phones[i]), -points[i], 0);
+                        }
+                    }
+                }
+                metrics.pointsExpired(expired, expiredPoints);
+                lag[0] = Math.max(lag[0], cutoff - oldest);
+                return found == maxBalances || done < found;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Expires a customer's points if they are overdue, inside the caller's
+     * write transaction, so new points are never added to expired ones.
+     * @return Points taken, 0 if the balance was not overdue
+     */
+    private int expireIfDue(PooledConnection conn, String phone, long cutoff) throws SQLException {
+        if (cutoff == Long.MIN_VALUE) {
+            return 0;
+        }
+        PreparedStatement pstmt = conn.checkPointsStatement();
+        pstmt.setString(1, phone);
+        int points;
+        try (ResultSet rs = pstmt.executeQuery()) {
+            if (!rs.next()) {
+                return 0;
+            }
+            points = rs.getInt(1);
+            long earnedAt = rs.getLong(2);
+            if (rs.wasNull() || earnedAt > cutoff) {
+                return 0;
+            }
+        }
+        if (expire(conn, conn.prepare(EXPIRE_SQL), phone, points) > 0) {
+            metrics.pointsExpired(1, points);
+            return points;
+        }
+        return 0;
+    }
+
+    /**
+     * Zeroes one overdue balance, recording the points taken in the ledger.
+     * @return 1 if points were taken, 0 if the balance was already empty
+     */
+    private static int expire(PooledConnection conn, PreparedStatement expire, String phone, int points)
+            throws SQLException {
+        expire.setString(1, phone);
+        expire.executeUpdate();
+        if (points <= 0) {
+            // Nothing to take; just leaves the earned_at index
+            return 0;
+        }
+        PointsLedger.appendExpiry(conn, PhoneNumbers.parse(phone), points);
+        return 1;
+    }
+
+    /**
+     * Binds earned_at: now for points earned, NULL (keep the last earning) otherwise.
+     */
+    private static void setEarnedAt(PreparedStatement pstmt, int index, int points, long now) throws SQLException {
+        if (points > 0) {
+            pstmt.setLong(index, now);
+        } else {
+            pstmt.setNull(index, Types.INTEGER);
+        }
+    }
+
+    @Override
+    public List<LedgerEntry> getHistory(long key, int limit) throws SQLException {
+        return PointsLedger.history(shardFor(key), key, limit);
+    }
+
+    @Override
+    public long readLedger(int partition, long afterId, int limit, PointsLog.Replayer reader) throws SQLException {
+        return PointsLedger.readSince(shards[partition], afterId, limit, reader);
+    }
+
+    /**
+     * Reads each shard's phones on a pooled reader, from one consistent
+     * read per shard.
+     */
+    @Override
+    public long readKeys(LongConsumer reader) throws SQLException {
+        long count = 0;
+        for (RewardsDatabase shard : shards) {
+            try (PooledConnection conn = shard.acquire();
+                 ResultSet rs = conn.prepare(KEYS_SQL).executeQuery()) {
+                while (rs.next()) {
+                    reader.accept(PhoneNumbers.parse(rs.getString(1)));
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long rebuildBalances() throws SQLException {
+        long written = 0;
+        for (RewardsDatabase shard : shards) {
+            written += PointsLedger.rebuildBalances(shard, REBUILD_CHUNK_SIZE);
+        }
+        return written;
+    }
+
+    @Override
+    public long exportCsv(Path target) throws IOException, SQLException {
+        return RewardsBulkIO.exportCsv(this, target);
+    }
+
+    /**
+     * Every commit is already as durable as the synchronous level allows.
+     */
+    @Override
+    public void sync() {
+    }
+
+    @Override
+    public int getPartitionCount() {
+        return shards.length;
+    }
+
+    @Override
+    public int partitionOf(long key) {
+        return shards.length == 1 ? 0 : shardOf(key, shards.length);
+    }
+
+    /**
+     * Closes every shard.
+     */
+    @Override
+    public void close() {
+        for (RewardsDatabase shard : shards) {
+            shard.close();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * StartupProbe - Times a cold start of the till.
+ * Enable it with -Drewards.startupProbe=true. When the window first
+ * paints, it looks up a balance the way a cashier would, prints how long
+ * after JVM start each happened, and exits. Used by the startup benchmark
+ * and to record the class-data-sharing archive, which then holds every
+ * class a start needs. Without a display it skips the window and times
+ * the lookup alone.
+ */
+package reward_app;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+final class StartupProbe {
+    static final String PAINT_LINE = "Startup: first paint after ";
+    static final String QUERY_LINE = "Startup: first query after ";
+    // Only read, so any valid number will do
+    private static final String PROBE_PHONE = "7050000000";
+
+    private final AtomicBoolean painted = new AtomicBoolean();
+
+    /**
+     * @return A probe if -Drewards.startupProbe is set, otherwise null
+     */
+    static StartupProbe configured() {
+        return Boolean.getBoolean("rewards.startupProbe") ? new StartupProbe() : null;
+    }
+
+    /**
+     * Records the window's first paint and starts the lookup. Later paints
+     * are ignored. Called on the Event Dispatch Thread.
+     * @param service Service the till sends its calls to
+     */
+    void painted(RewardsService service) {
+        if (painted.compareAndSet(false, true)) {
+            long paintedAt = System.currentTimeMillis();
+            CompletableFuture<Long> lookup = lookup(service);
+            System.out.println(PAINT_LINE + (paintedAt - jvmStartedAt()) + " ms");
+            report(lookup);
+        }
+    }
+
+    /**
+     * Looks up a balance, prints how long after JVM start it completed and
+     * exits, with status 1 if it failed.
+     * @param service Service to query
+     * @return Future completed just before the JVM exits
+     */
+    CompletableFuture<Void> query(RewardsService service) {
+        return report(lookup(service));
+    }
+
+    /**
+     * @return Future holding the time the lookup completed
+     */
+    private static CompletableFuture<Long> lookup(RewardsService service) {
+        return service.checkPointsAsync(PROBE_PHONE).thenApply(points -> System.currentTimeMillis());
+    }
+
+    private static CompletableFuture<Void> report(CompletableFuture<Long> lookup) {
+        return lookup.handle((queriedAt, error) -> {
+            if (error != null) {
+                System.out.println("Startup query failed: " + error.getMessage());
+            } else {
+                System.out.println(QUERY_LINE + (queriedAt - jvmStartedAt()) + " ms");
+            }
+            System.exit(error == null ? 0 : 1);
+            return null;
+        });
+    }
+
+    // Looked up after the time is taken, as loading JMX takes a while
+    private static long jvmStartedAt() {
+        return ManagementFactory.getRuntimeMXBean().getStartTime();
+    }
+}
@@ -0,0 +1,304 @@
+/**
+ * TransactionIds - Recently applied client transaction IDs, so a till's
+ * retry is recognized and not applied twice.
+ * IDs are held as 63-bit hashes in two generations, each covering one
+ * window of time: the current one and the one before. When a new window
+ * starts the older generation is dropped whole, so an ID is remembered
+ * for at least one window and at most two, and forgetting old IDs costs
+ * nothing per ID. If a generation fills up before its window ends, the
+ * older one is dropped early to keep memory bounded.
+ *
+ * Not thread safe: each store checks and records IDs under its write
+ * lock, in the same transaction as the change, and keeps them on disk in
+ * its own way. SQLite shards keep them in the txn_ids table in the order
+ * they were recorded, so each insert lands on the table's last page and
+ * old IDs are trimmed off the front a few rows at a time.
+ */
+package reward_app;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+final class TransactionIds {
+    /** Passed instead of an ID for changes without one. */
+    static final long NONE = 0;
+    static final int MAX_ID_LENGTH = 128;
+    static final long DEFAULT_WINDOW_MILLIS = TimeUnit.HOURS.toMillis(24);
+    static final int DEFAULT_MAX_IDS = 2_000_000;
+
+    // No index: lookups are served from memory, and rowid order is time order
+    static final String CREATE_TABLE_SQL = "CREATE TABLE IF NOT EXISTS txn_ids "
+                                         + "(gen INTEGER NOT NULL, id INTEGER NOT NULL)";
+    private static final String LOAD_SQL = "SELECT gen, id FROM txn_ids";
+    private static final String RECORD_SQL = "INSERT INTO txn_ids (gen, id) VALUES (?, ?)";
+    private static final String PRUNE_SQL = "DELETE FROM txn_ids WHERE rowid IN "
+                                          + "(SELECT rowid FROM txn_ids ORDER BY rowid LIMIT ?) AND gen < ?";
+    // Old rows deleted per ID recorded; more than one, so pruning keeps up
+    private static final int PRUNE_ROWS = 4;
+
+    private final long windowMillis;
+    private final int maxPerGeneration;
+    private IdSet current = new IdSet(0);
+    private IdSet previous = new IdSet(0);
+    // Window numbers of the two generations; equal if the older was cut short
+    private long generation = Long.MIN_VALUE;
+    private long previousGeneration = Long.MIN_VALUE;
+    // Whether the txn_ids table may still start with rows older than previous
+    private boolean prunePending = true;
+
+    /**
+     * @param windowMillis How long an ID is remembered at least
+     * @param maxIds Most IDs held; beyond it the oldest are forgotten early
+     */
+    TransactionIds(long windowMillis, int maxIds) {
+        if (windowMillis <= 0 || maxIds < 2) {
+            throw new IllegalArgumentException("Transaction ID window and limit must be positive");
+        }
+        this.windowMillis = windowMillis;
+        this.maxPerGeneration = maxIds / 2;
+    }
+
+    /**
+     * Creates the set configured by -Drewards.txnWindowHours (default 24)
+     * and -Drewards.txnMaxIds (default 2 million), shared out between
+     * the store's partitions.
+     * @param partitions Number of sets the limit is split between
+     * @return Empty set
+     */
+    static TransactionIds configured(int partitions) {
+        long windowHours = Long.getLong("rewards.txnWindowHours", TimeUnit.MILLISECONDS.toHours(DEFAULT_WINDOW_MILLIS));
+        int maxIds = Integer.getInteger("rewards.txnMaxIds", DEFAULT_MAX_IDS);
+        return new TransactionIds(TimeUnit.HOURS.toMillis(windowHours), Math.max(2, maxIds / partitions));
+    }
+
+    /**
+     * Hashes a client's transaction ID. Two IDs share a hash with odds of
+     * about one in ten million even with a million IDs held.
+     * @param txnId Transaction ID, e.g. a UUID, or null for none
+     * @return Hash, never {@link #NONE}; {@link #NONE} for a null ID
+     * @throws IllegalArgumentException If the ID is empty or too long
+     */
+    static long hash(String txnId) {
+        if (txnId == null) {
+            return NONE;
+        }
+        if (txnId.isEmpty() || txnId.length() > MAX_ID_LENGTH) {
+            throw new IllegalArgumentException("Transaction ID must be 1 to " + MAX_ID_LENGTH + " characters");
+        }
+        // FNV-1a over the characters, then a finalizer to spread the bits
+        long h = 0xCBF29CE484222325L;
+        for (int i = 0; i < txnId.length(); i++) {
+            h = (h ^ txnId.charAt(i)) * 0x100000001B3L;
+        }
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        h = (h ^ (h >>> 33)) & Long.MAX_VALUE;
+        return h == NONE ? 1 : h;
+    }
+
+    /**
+     * @param id Hashed transaction ID
+     * @param now Current time
+     * @return Whether the ID was recorded within the window
+     */
+    boolean contains(long id, long now) {
+        roll(now);
+        return current.contains(id) || previous.contains(id);
+    }
+
+    /**
+     * Records an ID as applied.
+     * @param id Hashed transaction ID
+     * @param now Current time
+     */
+    void add(long id, long now) {
+        roll(now);
+        if (current.size() >= maxPerGeneration) {
+            System.out.println("More than " + maxPerGeneration + " transaction IDs in one window, "
+                               + "forgetting older ones early");
+            previous = current;
+            previousGeneration = generation;
+            current = new IdSet(maxPerGeneration);
+        }
+        current.add(id);
+    }
+
+    /**
+     * Puts back an ID read from disk, if it is still within the window.
+     * @param id Hashed transaction ID
+     * @param gen Generation it was recorded in, from {@link #generation(long)}
+     * @param now Current time
+     */
+    void restore(long id, long gen, long now) {
+        roll(now);
+        if (gen == generation) {
+            add(id, now);
+        } else if (gen == generation - 1 && previousGeneration == gen) {
+            previous.add(id);
+        }
+    }
+
+    /**
+     * @param now Current time
+     * @return Generation an ID recorded now belongs to
+     */
+    long generation(long now) {
+        return Math.floorDiv(now, windowMillis);
+    }
+
+    /**
+     * @return Number of IDs held
+     */
+    int size() {
+        return current.size() + previous.size();
+    }
+
+    /**
+     * Copies every ID held, with its generation, e.g. for a snapshot.
+     * @param gens Receives the generations, at least {@link #size()} long
+     * @param ids Receives the IDs, at least {@link #size()} long
+     * @return Number of IDs copied
+     */
+    int copyTo(long[] gens, long[] ids) {
+        int count = previous.copyTo(previousGeneration, gens, ids, 0);
+        return current.copyTo(generation, gens, ids, count);
+    }
+
+    /**
+     * Starts a new generation if the window has moved on.
+     */
+    private void roll(long now) {
+        long gen = generation(now);
+        if (gen <= generation) {
+            return;
+        }
+        previous = gen == generation + 1 ? current : new IdSet(0);
+        previousGeneration = gen - 1;
+        // Sized like the last window so a steady load never has to grow it
+        current = new IdSet(previous.size());
+        generation = gen;
+        prunePending = true;
+    }
+
+    /**
+     * Loads the IDs still within the window from a shard's txn_ids table.
+     * @param connection Connection to the shard
+     * @throws SQLException If the table could not be read
+     */
+    void load(Connection connection) throws SQLException {
+        long now = System.currentTimeMillis();
+        try (PreparedStatement stmt = connection.prepareStatement(LOAD_SQL)) {
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    restore(rs.getLong(2), rs.getLong(1), now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stores an ID in the shard's txn_ids table, in the caller's
+     * transaction, and deletes a few rows that have left the window.
+     * Call holding the shard's write lock, after checking
+     * {@link #contains(long, long)}; {@link #add(long, long)} it once the
+     * transaction commits.
+     * @param conn Writer connection in a transaction
+     * @param id Hashed transaction ID
+     * @param now Current time
+     * @throws SQLException If the ID could not be stored
+     */
+    void persist(PooledConnection conn, long id, long now) throws SQLException {
+        roll(now);
+        if (prunePending) {
+            // Only the oldest rows are looked at; once some are kept, the rest are newer
+            PreparedStatement prune = conn.prepare(PRUNE_SQL);
+            prune.setInt(1, PRUNE_ROWS);
+            prune.setLong(2, generation - 1);
+            prunePending = prune.executeUpdate() == PRUNE_ROWS;
+        }
+        PreparedStatement insert = conn.prepare(RECORD_SQL);
+        insert.setLong(1, generation(now));
+        insert.setLong(2, id);
+        insert.executeUpdate();
+    }
+
+    /**
+     * Open-addressing set of non-zero longs that only grows, at most
+     * three quarters full.
+     */
+    private static final class IdSet {
+        private long[] slots;
+        private int size;
+
+        IdSet(int expected) {
+            int capacity = 1024;
+            while (capacity / 4 * 3 <= expected) {
+                capacity *= 2;
+            }
+            slots = new long[capacity];
+        }
+
+        boolean contains(long id) {
+            int mask = slots.length - 1;
+            for (int i = spread(id) & mask; ; i = (i + 1) & mask) {
+                long slot = slots[i];
+                if (slot == id) {
+                    return true;
+                }
+                if (slot == NONE) {
+                    return false;
+                }
+            }
+        }
+
+        void add(long id) {
+            if (size >= slots.length / 4 * 3) {
+                long[] old = slots;
+                slots = new long[old.length * 2];
+                size = 0;
+                for (long slot : old) {
+                    if (slot != NONE) {
+                        insert(slot);
+                    }
+                }
+            }
+            insert(id);
+        }
+
+        private void insert(long id) {
+            int mask = slots.length - 1;
+            for (int i = spread(id) & mask; ; i = (i + 1) & mask) {
+                if (slots[i] == id) {
+                    return;
+                }
+                if (slots[i] == NONE) {
+                    slots[i] = id;
+                    size++;
+                    return;
+                }
+            }
+        }
+
+        int size() {
+            return size;
+        }
+
+        int copyTo(long gen, long[] gens, long[] ids, int at) {
+            for (long slot : slots) {
+                if (slot != NONE) {
+                    gens[at] = gen;
+                    ids[at++] = slot;
+                }
+            }
+            return at;
+        }
+
+        private static int spread(long id) {
+            // IDs are already hashes; fold the high bits in
+            return (int) (id ^ (id >>> 32));
+        }
+    }
+}